@@ -3,47 +3,179 @@ package fk.prof.aggregation.model;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.aggregation.serialize.SerializationException;
 import fk.prof.aggregation.serialize.Serializer;
+import fk.prof.storage.compression.CompressionCodec;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.zip.Adler32;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.Checksum;
-import java.util.zip.GZIPOutputStream;
 
 /**
+ * Serializes an aggregation window in one of two formats:
+ * <ul>
+ *     <li>{@link #SEQUENTIAL_FORMAT_VERSION}: a single stream of all sections, compressed as a whole by storage.</li>
+ *     <li>{@link #BLOCK_FORMAT_VERSION}: magic number and format version, followed by an index of blocks and the blocks themselves.
+ *     First block holds the header, traces, profiles summary and method lookup, followed by a block per trace context holding its
+ *     stacktrace tree. Every block is compressed independently, with the header of its codec, and its index entry carries its
+ *     compressed length, uncompressed length and checksum of uncompressed bytes. Stacktrace trees are serialized and compressed in parallel, and all blocks are held
+ *     in memory until the index can be written.</li>
+ * </ul>
  * @author gaurav.ashok
  */
 public class AggregationWindowSerializer implements Serializer {
 
+    /**
+     * Version of the layout of aggregated profile files in storage, part of their file names. Format of a file is versioned separately.
+     */
     public static final int VERSION = 1;
+    public static final int SEQUENTIAL_FORMAT_VERSION = 1;
+    public static final int BLOCK_FORMAT_VERSION = 2;
     public static final int AGGREGATION_FILE_MAGIC_NUM = 0x19A9F5C2;
     public static final int STACKTRACETREE_SERIAL_BATCHSIZE = 1000;
 
     private AggregatedProfileModel.WorkType workType;
     private FinalizedAggregationWindow aggregation;
+    private ForkJoinPool blockSerializationPool;
+    private CompressionCodec blockCodec;
 
     public AggregationWindowSerializer(FinalizedAggregationWindow aggregation, AggregatedProfileModel.WorkType workType) {
+        this(aggregation, workType, null, CompressionCodec.GZIP);
+    }
+
+    /**
+     * @param blockSerializationPool pool to serialize stacktrace trees on, in block format. If null, sequential format is used
+     * @param blockCodec codec to compress blocks with, in block format
+     */
+    public AggregationWindowSerializer(FinalizedAggregationWindow aggregation, AggregatedProfileModel.WorkType workType, ForkJoinPool blockSerializationPool,
+                                       CompressionCodec blockCodec) {
         this.aggregation = aggregation;
         this.workType = workType;
+        this.blockSerializationPool = blockSerializationPool;
+        this.blockCodec = blockCodec;
+    }
+
+    public int getFormatVersion() {
+        return blockSerializationPool == null ? SEQUENTIAL_FORMAT_VERSION : BLOCK_FORMAT_VERSION;
+    }
+
+    /**
+     * @return true if serialized bytes are already compressed, and should be stored as is
+     */
+    public boolean isCompressed() {
+        return blockSerializationPool != null;
     }
 
     @Override
     public void serialize(OutputStream out) throws IOException {
+        if(blockSerializationPool == null) {
+            serializeSequential(out);
+        }
+        else {
+            serializeBlocks(out);
+        }
+    }
+
+    private void serializeSequential(OutputStream out) throws IOException {
         Checksum checksum = new Adler32();
         CheckedOutputStream cout = new CheckedOutputStream(out, checksum);
 
         Serializer.writeVariantInt32(AGGREGATION_FILE_MAGIC_NUM, cout);
 
-        // header
-        Serializer.writeCheckedDelimited(aggregation.buildHeaderProto(VERSION, AggregatedProfileModel.WorkType.cpu_sample_work), cout);
+        AggregatedProfileModel.TraceCtxNames traceNames = aggregation.buildTraceCtxNamesProto(workType);
+        writeSummary(traceNames, cout);
 
+        // work specific aggregated samples
+        switch (workType) {
+            case cpu_sample_work:
+                new CpuSamplingAggregatedSamplesSerializer(aggregation.cpuSamplingAggregationBucket, traceNames).serialize(out);
+        }
+    }
+
+    private void serializeBlocks(OutputStream out) throws IOException {
         AggregatedProfileModel.TraceCtxNames traceNames = aggregation.buildTraceCtxNamesProto(workType);
-        AggregatedProfileModel.TraceCtxDetailList traceDetails = aggregation.buildTraceCtxDetailListProto(workType, traceNames);
+
+        // stacktrace trees are serialized on the pool, while summary is serialized here
+        List<ForkJoinTask<Block>> traceBlocks = new ArrayList<>();
+        switch (workType) {
+            case cpu_sample_work:
+                FinalizedCpuSamplingAggregationBucket cpuSamplingAggregation = aggregation.cpuSamplingAggregationBucket;
+                int index = 0;
+                for(String traceName: traceNames.getNameList()) {
+                    CpuSamplingTraceDetail traceDetail = cpuSamplingAggregation.traceDetailLookup.get(traceName);
+                    int traceCtxIdx = index++;
+                    traceBlocks.add(blockSerializationPool.submit(() -> Block.of(blockCodec, bout -> writeStacktraceTree(traceDetail, traceCtxIdx, bout))));
+                }
+        }
+
+        List<Block> blocks = new ArrayList<>(traceBlocks.size() + 1);
+        try {
+            blocks.add(Block.of(blockCodec, bout -> {
+                CheckedOutputStream cout = new CheckedOutputStream(bout, new Adler32());
+                writeSummary(traceNames, cout);
+                if(workType == AggregatedProfileModel.WorkType.cpu_sample_work) {
+                    Serializer.writeCheckedDelimited(aggregation.cpuSamplingAggregationBucket.methodIdLookup.buildMethodIdLookupProto(), cout);
+                }
+            }));
+            for(ForkJoinTask<Block> traceBlock: traceBlocks) {
+                blocks.add(traceBlock.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SerializationException("Interrupted while serializing stacktrace trees", e);
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new SerializationException("Unexpected error while serializing stacktrace tree", e.getCause());
+        }
+        finally {
+            for(ForkJoinTask<Block> traceBlock: traceBlocks) {
+                traceBlock.cancel(false);
+            }
+        }
+
+        Checksum checksum = new Adler32();
+        CheckedOutputStream cout = new CheckedOutputStream(out, checksum);
+
+        Serializer.writeVariantInt32(AGGREGATION_FILE_MAGIC_NUM, cout);
+        Serializer.writeVariantInt32(BLOCK_FORMAT_VERSION, cout);
+
+        // block index
+        checksum.reset();
+        Serializer.writeVariantInt32(blocks.size(), cout);
+        for(Block block: blocks) {
+            Serializer.writeVariantInt32(block.bytes.length, cout);
+            Serializer.writeVariantInt32(block.uncompressedLength, cout);
+            Serializer.writeVariantInt32(block.checksum, cout);
+        }
+        Serializer.writeVariantInt32((int) checksum.getValue(), cout);
+
+        for(Block block: blocks) {
+            out.write(block.bytes);
+        }
+    }
+
+    /**
+     * Writes header, traces and profiles summary
+     */
+    private void writeSummary(AggregatedProfileModel.TraceCtxNames traceNames, CheckedOutputStream cout) throws IOException {
+        Checksum checksum = cout.getChecksum();
+
+        // header
+        Serializer.writeCheckedDelimited(aggregation.buildHeaderProto(getFormatVersion(), AggregatedProfileModel.WorkType.cpu_sample_work), cout);
 
         // traces
         Serializer.writeCheckedDelimited(traceNames, cout);
-        Serializer.writeCheckedDelimited(traceDetails, cout);
+        Serializer.writeCheckedDelimited(aggregation.buildTraceCtxDetailListProto(workType, traceNames), cout);
 
         // profiles summary
         checksum.reset();
@@ -55,11 +187,46 @@ public class AggregationWindowSerializer implements Serializer {
         // end flag for profile summary
         Serializer.writeVariantInt32(0, cout);
         Serializer.writeVariantInt32((int)checksum.getValue(), cout);
+    }
 
-        // work specific aggregated samples
-        switch (workType) {
-            case cpu_sample_work:
-                new CpuSamplingAggregatedSamplesSerializer(aggregation.cpuSamplingAggregationBucket, traceNames).serialize(out);
+    private static void writeStacktraceTree(CpuSamplingTraceDetail traceDetail, int traceCtxIdx, OutputStream out) throws IOException {
+        FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor =
+                new FinalizedCpuSamplingAggregationBucket.NodeVisitor(out, STACKTRACETREE_SERIAL_BATCHSIZE, traceCtxIdx);
+
+        try {
+            traceDetail.traverse(visitor);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SerializationException("Unexpected error while traversing stacktrace tree", e);
+        }
+        visitor.end();
+    }
+
+    private interface BlockWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * An independently compressed block, along with length and checksum of its uncompressed bytes
+     */
+    private static class Block {
+        private final byte[] bytes;
+        private final int uncompressedLength;
+        private final int checksum;
+
+        private Block(byte[] bytes, int uncompressedLength, int checksum) {
+            this.bytes = bytes;
+            this.uncompressedLength = uncompressedLength;
+            this.checksum = checksum;
+        }
+
+        static Block of(CompressionCodec codec, BlockWriter writer) throws IOException {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            CheckedOutputStream cout = new CheckedOutputStream(bout, new Adler32());
+            writer.write(cout);
+            byte[] uncompressed = bout.toByteArray();
+            return new Block(codec.compress(uncompressed), uncompressed.length, (int) cout.getChecksum().getValue());
         }
     }
 
@@ -86,17 +253,7 @@ public class AggregationWindowSerializer implements Serializer {
             checksum.reset();
             int index = 0;
             for(String traceName: traces.getNameList()) {
-                FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor =
-                        new FinalizedCpuSamplingAggregationBucket.NodeVisitor(cout, STACKTRACETREE_SERIAL_BATCHSIZE, index);
-
-                try {
-                    cpuSamplingAggregation.traceDetailLookup.get(traceName).getGlobalRoot().traverse(visitor);
-                } catch (IOException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new SerializationException("Unexpected error while traversing stacktrace tree", e);
-                }
-                visitor.end();
+                writeStacktraceTree(cpuSamplingAggregation.traceDetailLookup.get(traceName), index, cout);
                 ++index;
             }
             Serializer.writeVariantInt32((int) checksum.getValue(), cout);
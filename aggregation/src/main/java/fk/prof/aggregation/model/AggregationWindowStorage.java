@@ -7,8 +7,8 @@ import fk.prof.aggregation.serialize.Serializer;
 import fk.prof.metrics.MetricName;
 import fk.prof.metrics.ProcessGroupTag;
 import fk.prof.storage.AsyncStorage;
-import fk.prof.storage.StreamTransformer;
 import fk.prof.storage.buffer.StorageBackedOutputStream;
+import fk.prof.storage.compression.CompressionCodec;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +18,8 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 
 /**
  * Created by gaurav.ashok on 09/03/17.
@@ -31,12 +32,40 @@ public class AggregationWindowStorage {
     private final AsyncStorage storage;
     private final GenericObjectPool<ByteBuffer> bufferPool;
     private final MetricRegistry metricRegistry;
+    private final ForkJoinPool blockSerializationPool;
+    private final CompressionCodec codec;
+    private final int partSize;
+    private final Semaphore partPermits;
 
     public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, MetricRegistry metricRegistry) {
+        this(baseDir, storage, bufferPool, metricRegistry, null, CompressionCodec.GZIP);
+    }
+
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, MetricRegistry metricRegistry,
+                                    ForkJoinPool blockSerializationPool, CompressionCodec codec) {
+        this(baseDir, storage, bufferPool, 0, null, metricRegistry, blockSerializationPool, codec);
+    }
+
+    /**
+     * @param blockSerializationPool if not null, aggregation windows are stored in block format, with stacktrace trees of trace contexts
+     *                               serialized and compressed in parallel on this pool
+     * @param codec codec to compress profile files with. Files in block format are not compressed as a whole, their blocks are compressed instead.
+     *              Summary files are always compressed with gzip
+     * @param partSize size in bytes of the parts files are stored in, buffered in as many buffers of the pool as needed. 0 to store
+     *                 every buffer as a part
+     * @param partPermits permits to buffer a part, at most as many as parts which fit in the pool. null if parts are buffered without permits
+     */
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, int partSize,
+                                    Semaphore partPermits, MetricRegistry metricRegistry, ForkJoinPool blockSerializationPool,
+                                    CompressionCodec codec) {
         this.baseDir = baseDir;
         this.storage = storage;
         this.bufferPool = bufferPool;
+        this.partSize = partSize;
+        this.partPermits = partPermits;
         this.metricRegistry = metricRegistry;
+        this.blockSerializationPool = blockSerializationPool;
+        this.codec = codec;
     }
 
     public void store(FinalizedAggregationWindow aggregationWindow) throws IOException {
@@ -54,8 +83,8 @@ public class AggregationWindowStorage {
         Timer tmr = metricRegistry.timer(MetricRegistry.name(MetricName.AW_Store_Profile_Complete.get(), aggregationWindow.getProcessGroupTag().toString()));
         try (Timer.Context context = tmr.time()) {
             AggregatedProfileNamingStrategy filename = getFilename(aggregationWindow, workType);
-            AggregationWindowSerializer serializer = new AggregationWindowSerializer(aggregationWindow, workType);
-            writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag());
+            AggregationWindowSerializer serializer = new AggregationWindowSerializer(aggregationWindow, workType, blockSerializationPool, codec);
+            writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag(), serializer.isCompressed() ? null : codec);
         }
     }
 
@@ -64,11 +93,12 @@ public class AggregationWindowStorage {
         try (Timer.Context context = tmr.time()) {
             AggregatedProfileNamingStrategy filename = getSummaryFilename(aggregationWindow);
             AggregationWindowSummarySerializer serializer = new AggregationWindowSummarySerializer(aggregationWindow);
-            writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag());
+            // summaries stay on gzip irrespective of codec of profiles, so that they remain readable by userapi prior to codecs
+            writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag(), CompressionCodec.GZIP);
         }
     }
 
-    private void writeToStream(Serializer serializer, AggregatedProfileNamingStrategy filename, ProcessGroupTag processGroupTag) throws IOException {
+    private void writeToStream(Serializer serializer, AggregatedProfileNamingStrategy filename, ProcessGroupTag processGroupTag, CompressionCodec codec) throws IOException {
         if(logger.isDebugEnabled()) {
             logger.debug("Attempting serialization and write of file: " + filename);
         }
@@ -78,27 +108,30 @@ public class AggregationWindowStorage {
         Meter mtrWriteFailure = metricRegistry.meter(MetricRegistry.name(MetricName.AW_Store_Failure.get(), processGroupStr));
         Timer tmrBuffPoolBorrow = metricRegistry.timer(MetricRegistry.name(MetricName.AW_BuffPool_Borrow.get(), processGroupStr));
         Counter ctrBuffPoolFailures = metricRegistry.counter(MetricRegistry.name(MetricName.AW_Buffpool_Failure.get(), processGroupStr));
+        Counter ctrBuffPoolBytesUsed = metricRegistry.counter(MetricName.AW_BuffPool_Bytes_Used.get());
 
-        OutputStream out = new StorageBackedOutputStream(bufferPool, storage, filename, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures);
-        GZIPOutputStream gout;
+        OutputStream out = new StorageBackedOutputStream(bufferPool, partSize, partPermits, storage, filename, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow,
+            ctrBuffPoolFailures, ctrBuffPoolBytesUsed);
 
-        try {
-            gout = StreamTransformer.zip(out);
-        }
-        catch (IOException e) {
-            mtrWriteFailure.mark();
-            logger.error("Could not zip outstream for file: " + filename, e);
+        if(codec != null) {
             try {
-                out.close();
+                out = codec.compress(out);
             }
-            catch (IOException ee) {
-                logger.error("Failed to close outstream for file: " + filename, ee);
+            catch (IOException e) {
+                mtrWriteFailure.mark();
+                logger.error("Could not compress outstream with " + codec.getName() + " for file: " + filename, e);
+                try {
+                    out.close();
+                }
+                catch (IOException ee) {
+                    logger.error("Failed to close outstream for file: " + filename, ee);
+                }
+                throw e;
             }
-            throw e;
         }
 
         try {
-            serializer.serialize(gout);
+            serializer.serialize(out);
             if(logger.isDebugEnabled()) {
                 logger.debug("Serialization and subsequent write successfully scheduled for file: " + filename);
             }
@@ -110,10 +143,10 @@ public class AggregationWindowStorage {
         }
         finally {
             try {
-                gout.close();
+                out.close();
             }
             catch (IOException e) {
-                logger.error("Failed to close zipped outstream for file: " + filename);
+                logger.error("Failed to close outstream for file: " + filename);
                 throw e;
             }
         }
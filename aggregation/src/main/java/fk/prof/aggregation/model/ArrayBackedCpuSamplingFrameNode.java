@@ -0,0 +1,70 @@
+package fk.prof.aggregation.model;
+
+/**
+ * View of a node of {@link ArrayBackedCpuSamplingFrameTree} as a {@link CpuSamplingFrameNode}. Reads and updates go to the tree, so the
+ * view holds no samples or children of its own, and two views of the same node are equal.
+ * Views do not guard the tree, they are subject to the same single writer assumption as {@link ArrayBackedCpuSamplingTraceDetail}.
+ * Children can be accessed only once the tree is trimmed, see {@link ArrayBackedCpuSamplingFrameTree#getChildAt(int, int)}.
+ */
+class ArrayBackedCpuSamplingFrameNode extends CpuSamplingFrameNode {
+  private final ArrayBackedCpuSamplingFrameTree tree;
+  private final int node;
+
+  ArrayBackedCpuSamplingFrameNode(ArrayBackedCpuSamplingFrameTree tree, int node) {
+    super(tree.getMethodId(node), tree.getLineNumber(node), false);
+    this.tree = tree;
+    this.node = node;
+  }
+
+  @Override
+  public CpuSamplingFrameNode getOrAddChild(int childMethodId, int childLineNumber) {
+    return new ArrayBackedCpuSamplingFrameNode(tree, tree.getOrAddChild(node, childMethodId, childLineNumber));
+  }
+
+  @Override
+  public int incrementOnStackSamples() {
+    tree.incrementOnStackSamples(node);
+    return tree.getOnStackSamples(node);
+  }
+
+  @Override
+  void countOnStackSample() {
+    tree.incrementOnStackSamples(node);
+  }
+
+  @Override
+  public int incrementOnCpuSamples() {
+    tree.incrementOnCpuSamples(node);
+    return tree.getOnCpuSamples(node);
+  }
+
+  @Override
+  public void addOnStackSamples(long samples) {
+    tree.addOnStackSamples(node, Math.toIntExact(samples));
+  }
+
+  @Override
+  public void addOnCpuSamples(long samples) {
+    tree.addOnCpuSamples(node, Math.toIntExact(samples));
+  }
+
+  @Override
+  protected long getOnStackSamples() {
+    return tree.getOnStackSamples(node);
+  }
+
+  @Override
+  protected long getOnCpuSamples() {
+    return tree.getOnCpuSamples(node);
+  }
+
+  @Override
+  public int getChildCount() {
+    return tree.getChildCount(node);
+  }
+
+  @Override
+  public CpuSamplingFrameNode getChild(int index) {
+    return new ArrayBackedCpuSamplingFrameNode(tree, tree.getChildAt(node, index));
+  }
+}
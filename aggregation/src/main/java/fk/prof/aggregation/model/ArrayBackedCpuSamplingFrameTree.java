@@ -0,0 +1,443 @@
+package fk.prof.aggregation.model;
+
+import java.util.Arrays;
+
+/**
+ * Calling-context tree for cpu samples which keeps its nodes in parallel primitive arrays instead of one object per node.
+ * A node is addressed by its int index, {@link #ROOT} being the index of the root node. Parent of a node is always added before it,
+ * so children of a node, in insertion order, are the nodes with that parent in increasing order of index.
+ *
+ * (methodId, lineNumber) of a node is interned in a frame table, which is much smaller than the tree since the same frames recur
+ * across paths, so a node holds only 4 ints: frame, parent, on-stack and on-cpu samples. Children are looked up through an open
+ * addressing hash table keyed on (parent, frame), which costs another 1.3-2.7 ints per node while the tree is being aggregated.
+ * {@link #trim()} drops the lookup tables and the spare capacity of arrays once the tree is not expected to change, after which a node
+ * takes 16 bytes, against ~140 bytes of a {@link CpuSamplingFrameNode} (node object, its sample counters and children array).
+ * Parent -> children links are not kept, they are derived from parents when the tree is traversed. Children of a node can be accessed
+ * individually, through {@link #getChildCount(int)} and {@link #getChildAt(int, int)}, only once the tree is trimmed, so that the index
+ * of children is built at most once rather than on every node added.
+ *
+ * NOTE: This class is not thread safe, callers are expected to guard concurrent updates.
+ */
+public class ArrayBackedCpuSamplingFrameTree {
+  public static final int ROOT = 0;
+  public static final int NO_NODE = -1;
+
+  private static final int DEFAULT_INITIAL_CAPACITY = 64;
+  // lookup tables are resized when they are more than 3/4 full
+  private static final int MIN_TABLE_SIZE = 16;
+
+  private int size = 0;
+  private int[] frames;
+  private int[] parents;
+  private int[] onStackSamples;
+  private int[] onCpuSamples;
+
+  private int frameCount = 0;
+  private int[] frameMethodIds;
+  private int[] frameLineNumbers;
+
+  // slots hold index + 1, 0 denotes an empty slot. null once the tree is trimmed, rebuilt on next lookup
+  private int[] childLookup;
+  private int[] frameLookup;
+
+  // true if no node has been added since the tree was trimmed
+  private boolean trimmed = false;
+  // children of every node grouped by parent, derived from parents. Built on first access of children of trimmed tree, null otherwise
+  private ChildIndex childIndex;
+
+  public ArrayBackedCpuSamplingFrameTree(int rootMethodId, int rootLineNumber) {
+    this(rootMethodId, rootLineNumber, DEFAULT_INITIAL_CAPACITY);
+  }
+
+  public ArrayBackedCpuSamplingFrameTree(int rootMethodId, int rootLineNumber, int initialCapacity) {
+    int capacity = Math.max(initialCapacity, 2);
+    frames = new int[capacity];
+    parents = new int[capacity];
+    onStackSamples = new int[capacity];
+    onCpuSamples = new int[capacity];
+    frameMethodIds = new int[capacity];
+    frameLineNumbers = new int[capacity];
+    childLookup = new int[tableSizeFor(capacity)];
+    frameLookup = new int[tableSizeFor(capacity)];
+
+    addNode(NO_NODE, getOrAddFrame(rootMethodId, rootLineNumber));
+  }
+
+  /**
+   * @return count of nodes in the tree including the root
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns index of the child of parent node with given method id and line number, adding the child if not present.
+   * Children are kept in insertion order, same as {@link CpuSamplingFrameNode#getOrAddChild(int, int)}
+   * @param parent index of parent node
+   * @param childMethodId
+   * @param childLineNumber
+   * @return index of the child node
+   */
+  public int getOrAddChild(int parent, int childMethodId, int childLineNumber) {
+    int frame = getOrAddFrame(childMethodId, childLineNumber);
+    int child = getChildWithFrame(parent, frame);
+    if (child == NO_NODE) {
+      child = addNode(parent, frame);
+    }
+    return child;
+  }
+
+  /**
+   * @return index of the child of parent node with given method id and line number, {@link #NO_NODE} if not present
+   */
+  public int getChild(int parent, int childMethodId, int childLineNumber) {
+    int frame = getFrame(childMethodId, childLineNumber);
+    return frame == NO_NODE ? NO_NODE : getChildWithFrame(parent, frame);
+  }
+
+  public void incrementOnStackSamples(int node) {
+    onStackSamples[node]++;
+  }
+
+  public void incrementOnCpuSamples(int node) {
+    onCpuSamples[node]++;
+  }
+
+  /**
+   * Throws {@link ArithmeticException} if the count would overflow an int
+   */
+  public void addOnStackSamples(int node, int samples) {
+    onStackSamples[node] = Math.addExact(onStackSamples[node], samples);
+  }
+
+  /**
+   * Throws {@link ArithmeticException} if the count would overflow an int
+   */
+  public void addOnCpuSamples(int node, int samples) {
+    onCpuSamples[node] = Math.addExact(onCpuSamples[node], samples);
+  }
+
+  /**
+   * @return index of parent of the node, {@link #NO_NODE} for root. Parent is always added before the child, so its index is smaller
+   */
+  public int getParent(int node) {
+    return parents[node];
+  }
+
+  public int getMethodId(int node) {
+    return frameMethodIds[frames[node]];
+  }
+
+  public int getLineNumber(int node) {
+    return frameLineNumbers[frames[node]];
+  }
+
+  public int getOnStackSamples(int node) {
+    return onStackSamples[node];
+  }
+
+  public int getOnCpuSamples(int node) {
+    return onCpuSamples[node];
+  }
+
+  /**
+   * Throws {@link IllegalStateException} if tree has not been trimmed, or nodes have been added since it was trimmed
+   */
+  public int getChildCount(int node) {
+    return childIndex().childCount(node);
+  }
+
+  /**
+   * Throws {@link IllegalStateException} if tree has not been trimmed, or nodes have been added since it was trimmed
+   * @param node index of parent node
+   * @param position position of child in insertion order, in [0, {@link #getChildCount(int)})
+   * @return index of the child node
+   */
+  public int getChildAt(int node, int position) {
+    return childIndex().childAt(node, position);
+  }
+
+  /**
+   * Releases the spare capacity of node arrays and the lookup tables, to be called once no more nodes are expected to be added.
+   * Tree remains usable, the lookup tables are rebuilt if a child is looked up afterwards. Children of nodes can be accessed individually
+   * till another node is added.
+   */
+  public void trim() {
+    frames = Arrays.copyOf(frames, size);
+    parents = Arrays.copyOf(parents, size);
+    onStackSamples = Arrays.copyOf(onStackSamples, size);
+    onCpuSamples = Arrays.copyOf(onCpuSamples, size);
+    frameMethodIds = Arrays.copyOf(frameMethodIds, frameCount);
+    frameLineNumbers = Arrays.copyOf(frameLineNumbers, frameCount);
+    childLookup = null;
+    frameLookup = null;
+    trimmed = true;
+  }
+
+  /**
+   * Visits all nodes of the tree in dfs pre-order, children in insertion order, which is the order in which {@link CpuSamplingFrameNode}
+   * trees are serialized. Traversal uses parent links to backtrack, so it does not recurse.
+   * @param visitor
+   * @throws Exception
+   */
+  public void traverse(NodeVisitor visitor) throws Exception {
+    // index is not retained, so a traversal of a finalized tree does not hold on to it
+    ChildIndex index = childIndex != null ? childIndex : new ChildIndex();
+    // position of next child to be visited, of every node on the current path
+    int[] nextChildren = new int[16];
+    int depth = 0;
+    int node = ROOT;
+    visit(visitor, node, index);
+    while (node != NO_NODE) {
+      if (nextChildren[depth] < index.childCount(node)) {
+        node = index.childAt(node, nextChildren[depth]++);
+        if (++depth == nextChildren.length) {
+          nextChildren = Arrays.copyOf(nextChildren, depth << 1);
+        }
+        nextChildren[depth] = 0;
+        visit(visitor, node, index);
+      } else {
+        node = parents[node];
+        depth--;
+      }
+    }
+  }
+
+  private void visit(NodeVisitor visitor, int node, ChildIndex index) throws Exception {
+    visitor.visit(getMethodId(node), getLineNumber(node), index.childCount(node), onStackSamples[node], onCpuSamples[node]);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof ArrayBackedCpuSamplingFrameTree)) {
+      return false;
+    }
+
+    ArrayBackedCpuSamplingFrameTree other = (ArrayBackedCpuSamplingFrameTree) o;
+    if (this.size != other.size) {
+      return false;
+    }
+
+    // compares subtrees irrespective of the order of children, same as CpuSamplingFrameNode#equals. Pairs of nodes yet to be compared
+    // are kept on an explicit stack instead of recursing, so deep stacktraces do not exhaust the thread stack
+    ChildIndex index = this.childIndex != null ? this.childIndex : new ChildIndex();
+    ChildIndex otherIndex = other.childIndex != null ? other.childIndex : other.new ChildIndex();
+    int[] pending = new int[32];
+    int pendingCount = 0;
+    pending[pendingCount++] = ROOT;
+    pending[pendingCount++] = ROOT;
+    while (pendingCount > 0) {
+      int otherNode = pending[--pendingCount];
+      int node = pending[--pendingCount];
+      if (getMethodId(node) != other.getMethodId(otherNode)
+          || getLineNumber(node) != other.getLineNumber(otherNode)
+          || onStackSamples[node] != other.onStackSamples[otherNode]
+          || onCpuSamples[node] != other.onCpuSamples[otherNode]
+          || index.childCount(node) != otherIndex.childCount(otherNode)) {
+        return false;
+      }
+
+      for (int i = 0; i < index.childCount(node); i++) {
+        int child = index.childAt(node, i);
+        int otherChild = other.getChild(otherNode, getMethodId(child), getLineNumber(child));
+        if (otherChild == NO_NODE) {
+          return false;
+        }
+        if (pendingCount + 2 > pending.length) {
+          pending = Arrays.copyOf(pending, pending.length << 1);
+        }
+        pending[pendingCount++] = child;
+        pending[pendingCount++] = otherChild;
+      }
+    }
+    return true;
+  }
+
+  private int getChildWithFrame(int parent, int frame) {
+    if (childLookup == null) {
+      rebuildChildLookup();
+    }
+    int mask = childLookup.length - 1;
+    int slot = hash(parent, frame) & mask;
+    int entry;
+    while ((entry = childLookup[slot]) != 0) {
+      int node = entry - 1;
+      if (parents[node] == parent && frames[node] == frame) {
+        return node;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NO_NODE;
+  }
+
+  private int addNode(int parent, int frame) {
+    if (size == frames.length) {
+      int capacity = size + (size >> 1);
+      frames = Arrays.copyOf(frames, capacity);
+      parents = Arrays.copyOf(parents, capacity);
+      onStackSamples = Arrays.copyOf(onStackSamples, capacity);
+      onCpuSamples = Arrays.copyOf(onCpuSamples, capacity);
+    }
+
+    int node = size++;
+    frames[node] = frame;
+    parents[node] = parent;
+    trimmed = false;
+    childIndex = null;
+
+    // root is not part of lookup
+    if (parent != NO_NODE) {
+      if (isOverloaded(size - 1, childLookup.length)) {
+        childLookup = new int[childLookup.length << 1];
+        for (int n = 1; n < node; n++) {
+          insertInChildLookup(n);
+        }
+      }
+      insertInChildLookup(node);
+    }
+    return node;
+  }
+
+  private void insertInChildLookup(int node) {
+    int mask = childLookup.length - 1;
+    int slot = hash(parents[node], frames[node]) & mask;
+    while (childLookup[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    childLookup[slot] = node + 1;
+  }
+
+  private void rebuildChildLookup() {
+    childLookup = new int[tableSizeFor(size)];
+    for (int node = 1; node < size; node++) {
+      insertInChildLookup(node);
+    }
+  }
+
+  private int getFrame(int methodId, int lineNumber) {
+    if (frameLookup == null) {
+      rebuildFrameLookup();
+    }
+    int mask = frameLookup.length - 1;
+    int slot = hash(methodId, lineNumber) & mask;
+    int entry;
+    while ((entry = frameLookup[slot]) != 0) {
+      int frame = entry - 1;
+      if (frameMethodIds[frame] == methodId && frameLineNumbers[frame] == lineNumber) {
+        return frame;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NO_NODE;
+  }
+
+  private int getOrAddFrame(int methodId, int lineNumber) {
+    int frame = getFrame(methodId, lineNumber);
+    if (frame != NO_NODE) {
+      return frame;
+    }
+
+    if (frameCount == frameMethodIds.length) {
+      int capacity = Math.max(frameCount + (frameCount >> 1), 2);
+      frameMethodIds = Arrays.copyOf(frameMethodIds, capacity);
+      frameLineNumbers = Arrays.copyOf(frameLineNumbers, capacity);
+    }
+    frame = frameCount++;
+    frameMethodIds[frame] = methodId;
+    frameLineNumbers[frame] = lineNumber;
+
+    if (isOverloaded(frameCount, frameLookup.length)) {
+      frameLookup = new int[frameLookup.length << 1];
+      for (int f = 0; f < frame; f++) {
+        insertInFrameLookup(f);
+      }
+    }
+    insertInFrameLookup(frame);
+    return frame;
+  }
+
+  private void insertInFrameLookup(int frame) {
+    int mask = frameLookup.length - 1;
+    int slot = hash(frameMethodIds[frame], frameLineNumbers[frame]) & mask;
+    while (frameLookup[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    frameLookup[slot] = frame + 1;
+  }
+
+  private void rebuildFrameLookup() {
+    frameLookup = new int[tableSizeFor(frameCount)];
+    for (int frame = 0; frame < frameCount; frame++) {
+      insertInFrameLookup(frame);
+    }
+  }
+
+  private ChildIndex childIndex() {
+    if (!trimmed) {
+      throw new IllegalStateException("Children of a node can be accessed only once the tree is trimmed");
+    }
+    if (childIndex == null) {
+      childIndex = new ChildIndex();
+    }
+    return childIndex;
+  }
+
+  private static boolean isOverloaded(int entries, int tableSize) {
+    return entries > tableSize - (tableSize >> 2);
+  }
+
+  private static int tableSizeFor(int entries) {
+    int tableSize = MIN_TABLE_SIZE;
+    while (isOverloaded(entries, tableSize)) {
+      tableSize <<= 1;
+    }
+    return tableSize;
+  }
+
+  private static int hash(int a, int b) {
+    int h = a * 0x9E3779B9 + b;
+    h *= 0x85EBCA6B;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Children of all nodes grouped by parent, in increasing order of index, i.e. insertion order. Built by a counting sort of nodes on
+   * their parents.
+   */
+  private class ChildIndex {
+    // children of node n are children[childStarts[n]] .. children[childStarts[n + 1] - 1]
+    private final int[] childStarts = new int[size + 1];
+    private final int[] children = new int[size];
+
+    private ChildIndex() {
+      for (int node = 1; node < size; node++) {
+        childStarts[parents[node] + 1]++;
+      }
+      for (int node = 0; node < size; node++) {
+        childStarts[node + 1] += childStarts[node];
+      }
+      int[] positions = Arrays.copyOf(childStarts, size);
+      for (int node = 1; node < size; node++) {
+        children[positions[parents[node]]++] = node;
+      }
+    }
+
+    private int childCount(int node) {
+      return childStarts[node + 1] - childStarts[node];
+    }
+
+    private int childAt(int node, int position) {
+      return children[childStarts[node] + position];
+    }
+  }
+
+  /**
+   * Visitor over the nodes of {@link ArrayBackedCpuSamplingFrameTree}, node fields are passed in as primitives
+   */
+  public interface NodeVisitor {
+    void visit(int methodId, int lineNumber, int childCount, int onStackSamples, int onCpuSamples) throws Exception;
+  }
+}
@@ -0,0 +1,132 @@
+package fk.prof.aggregation.model;
+
+/**
+ * {@link CpuSamplingTraceDetail} which keeps the stacktrace tree in an {@link ArrayBackedCpuSamplingFrameTree}.
+ * Samples aggregated one at a time, through {@link #aggregate(int[], int[], int, boolean)}, {@link #resolvePath(int[], int[], int, boolean)}
+ * or the root nodes, are not guarded: they assume a single writer and must not race with any other update of the trace detail.
+ * {@link #merge(ArrayBackedCpuSamplingFrameTree, int[], int)} takes a lock on the tree once per partial tree, so that profiles aggregated
+ * separately can be merged concurrently, which is how backend updates array backed trees.
+ */
+public class ArrayBackedCpuSamplingTraceDetail extends CpuSamplingTraceDetail {
+  private final ArrayBackedCpuSamplingFrameTree tree;
+  private final int unclassifiableRoot;
+  private final CpuSamplingFrameNode globalRootView;
+  private final CpuSamplingFrameNode unclassifiableRootView;
+
+  public ArrayBackedCpuSamplingTraceDetail() {
+    super(null);
+    this.tree = new ArrayBackedCpuSamplingFrameTree(MethodIdLookup.GLOBAL_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
+    this.unclassifiableRoot = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT,
+        MethodIdLookup.UNCLASSIFIABLE_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
+    this.globalRootView = new ArrayBackedCpuSamplingFrameNode(tree, ArrayBackedCpuSamplingFrameTree.ROOT);
+    this.unclassifiableRootView = new ArrayBackedCpuSamplingFrameNode(tree, unclassifiableRoot);
+  }
+
+  /**
+   * @return view over the root of the tree, see {@link ArrayBackedCpuSamplingFrameNode}
+   */
+  @Override
+  public CpuSamplingFrameNode getGlobalRoot() {
+    return globalRootView;
+  }
+
+  /**
+   * @return view over the unclassifiable root of the tree, see {@link ArrayBackedCpuSamplingFrameNode}
+   */
+  @Override
+  public CpuSamplingFrameNode getUnclassifiableRoot() {
+    return unclassifiableRootView;
+  }
+
+  @Override
+  public void aggregate(int[] methodIds, int[] lineNumbers, int frameCount, boolean snipped) {
+    int currentNode = ArrayBackedCpuSamplingFrameTree.ROOT;
+    tree.incrementOnStackSamples(currentNode);
+
+    if (snipped) {
+      currentNode = unclassifiableRoot;
+      tree.incrementOnStackSamples(currentNode);
+    }
+
+    for (int i = 0; i < frameCount; i++) {
+      currentNode = tree.getOrAddChild(currentNode, methodIds[i], lineNumbers[i]);
+      tree.incrementOnStackSamples(currentNode);
+    }
+    tree.incrementOnCpuSamples(currentNode);
+    incrementSamples();
+  }
+
+  @Override
+  public StackPath resolvePath(int[] methodIds, int[] lineNumbers, int frameCount, boolean snipped) {
+    int[] path = new int[frameCount + (snipped ? 2 : 1)];
+    int depth = 0;
+    int currentNode = ArrayBackedCpuSamplingFrameTree.ROOT;
+    path[depth++] = currentNode;
+
+    if (snipped) {
+      currentNode = unclassifiableRoot;
+      path[depth++] = currentNode;
+    }
+
+    for (int i = 0; i < frameCount; i++) {
+      currentNode = tree.getOrAddChild(currentNode, methodIds[i], lineNumbers[i]);
+      path[depth++] = currentNode;
+    }
+
+    // nodes are never removed from the tree, so indices in the path stay valid
+    return () -> {
+      for (int node : path) {
+        tree.incrementOnStackSamples(node);
+      }
+      tree.incrementOnCpuSamples(path[path.length - 1]);
+      incrementSamples();
+    };
+  }
+
+  @Override
+  public void merge(ArrayBackedCpuSamplingFrameTree partialTree, int[] methodIdMapping, int sampleCount) {
+    int[] targets = new int[partialTree.size()];
+    synchronized (tree) {
+      targets[ArrayBackedCpuSamplingFrameTree.ROOT] = ArrayBackedCpuSamplingFrameTree.ROOT;
+      tree.addOnStackSamples(ArrayBackedCpuSamplingFrameTree.ROOT, partialTree.getOnStackSamples(ArrayBackedCpuSamplingFrameTree.ROOT));
+      tree.addOnCpuSamples(ArrayBackedCpuSamplingFrameTree.ROOT, partialTree.getOnCpuSamples(ArrayBackedCpuSamplingFrameTree.ROOT));
+
+      for (int node = ArrayBackedCpuSamplingFrameTree.ROOT + 1; node < partialTree.size(); node++) {
+        int target = tree.getOrAddChild(targets[partialTree.getParent(node)],
+            methodIdMapping[partialTree.getMethodId(node)], partialTree.getLineNumber(node));
+        tree.addOnStackSamples(target, partialTree.getOnStackSamples(node));
+        tree.addOnCpuSamples(target, partialTree.getOnCpuSamples(node));
+        targets[node] = target;
+      }
+    }
+    addSamples(sampleCount);
+  }
+
+  @Override
+  public void trim() {
+    synchronized (tree) {
+      tree.trim();
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof ArrayBackedCpuSamplingTraceDetail)) {
+      return false;
+    }
+
+    ArrayBackedCpuSamplingTraceDetail other = (ArrayBackedCpuSamplingTraceDetail) o;
+    return this.getSampleCount() == other.getSampleCount()
+        && this.tree.equals(other.tree);
+  }
+
+  @Override
+  protected void traverse(FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor) throws Exception {
+    synchronized (tree) {
+      tree.traverse(visitor);
+    }
+  }
+}
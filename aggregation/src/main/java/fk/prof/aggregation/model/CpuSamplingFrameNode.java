@@ -3,53 +3,136 @@ package fk.prof.aggregation.model;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.aggregation.stacktrace.StacktraceFrameNode;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CpuSamplingFrameNode extends StacktraceFrameNode<CpuSamplingFrameNode> {
+  private static final AtomicIntegerFieldUpdater<CpuSamplingFrameNode> ON_STACK_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(CpuSamplingFrameNode.class, "onStackSamples");
+  private static final AtomicIntegerFieldUpdater<CpuSamplingFrameNode> ON_CPU_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(CpuSamplingFrameNode.class, "onCpuSamples");
+
+  // Every stack sample goes through the root and one of the few nodes below it, so on-stack samples of nodes above this depth are
+  // counted in a LongAdder which does not contend. Deeper nodes are spread across stacks and count in an int, saving the memory of adders
+  private static final int HOT_DEPTH = 2;
+
+  // Count of attempts to add a child which was concurrently added by some other thread, across all nodes. Measures contention on tree updates
+  private static final LongAdder childPublishContention = new LongAdder();
+
   private final int methodId;
   private final int lineNumber;
-  private final List<CpuSamplingFrameNode> children = new ArrayList<>();
+  private final int depth;
+  private volatile Children children = Children.EMPTY;
 
-  private final AtomicInteger onStackSamples = new AtomicInteger(0);
-  private final AtomicInteger onCpuSamples = new AtomicInteger(0);
+  private volatile int onStackSamples = 0;
+  private volatile int onCpuSamples = 0;
+  // null for nodes at HOT_DEPTH or deeper, which count on-stack samples in onStackSamples
+  private final LongAdder hotOnStackSamples;
 
+  /**
+   * Creates the root of a tree
+   */
   public CpuSamplingFrameNode(int methodId, int lineNumber) {
+    this(methodId, lineNumber, 0, new LongAdder());
+  }
+
+  /**
+   * @param countsSamples false for subclasses which keep samples and children of the node elsewhere and override their accessors, in which
+   *                      case no counter is allocated for the node
+   */
+  protected CpuSamplingFrameNode(int methodId, int lineNumber, boolean countsSamples) {
+    this(methodId, lineNumber, 0, countsSamples ? new LongAdder() : null);
+  }
+
+  /**
+   * @param depth count of ancestors of the node
+   */
+  private CpuSamplingFrameNode(int methodId, int lineNumber, int depth, LongAdder hotOnStackSamples) {
     this.methodId = methodId;
     this.lineNumber = lineNumber;
+    this.depth = depth;
+    this.hotOnStackSamples = hotOnStackSamples;
   }
 
+  /**
+   * Lookup of child does not lock, see {@link Children}. A missing child is added under the lock on this node, after looking it up
+   * again, which ensures that a (methodId, lineNumber) pair is never added twice.
+   */
   public CpuSamplingFrameNode getOrAddChild(int childMethodId, int childLineNumber) {
-    synchronized (children) {
-      CpuSamplingFrameNode result = null;
-      Iterator<CpuSamplingFrameNode> i = children.iterator();
-      // Since count of children is going to be small for a node (in scale of tens usually),
-      // sticking with arraylist impl of children with O(N) traversal
-      while (i.hasNext()) {
-        CpuSamplingFrameNode child = i.next();
-        if (child.methodId == childMethodId && child.lineNumber == childLineNumber) {
-          result = child;
-          break;
-        }
-      }
+    CpuSamplingFrameNode result = children.find(childMethodId, childLineNumber);
+    if (result != null) {
+      return result;
+    }
 
-      if (result == null) {
-        result = new CpuSamplingFrameNode(childMethodId, childLineNumber);
-        children.add(result);
+    synchronized (this) {
+      Children current = children;
+      result = current.find(childMethodId, childLineNumber);
+      if (result != null) {
+        childPublishContention.increment();
+        return result;
       }
 
+      result = new CpuSamplingFrameNode(childMethodId, childLineNumber, depth + 1, depth + 1 < HOT_DEPTH ? new LongAdder() : null);
+      if (!current.append(result)) {
+        children = current.grow(result);
+      }
       return result;
     }
   }
 
+  /**
+   * @return on-stack samples of the node after the increment
+   */
   public int incrementOnStackSamples() {
-    return this.onStackSamples.incrementAndGet();
+    if (hotOnStackSamples != null) {
+      hotOnStackSamples.increment();
+      return Math.toIntExact(hotOnStackSamples.sum());
+    }
+    return ON_STACK_UPDATER.incrementAndGet(this);
   }
 
+  /**
+   * Same as {@link #incrementOnStackSamples()} without reading back the count, which for nodes near the root means summing the cells
+   * of their adder. Used when aggregating stack samples, where the count is not needed
+   */
+  void countOnStackSample() {
+    if (hotOnStackSamples != null) {
+      hotOnStackSamples.increment();
+    } else {
+      ON_STACK_UPDATER.incrementAndGet(this);
+    }
+  }
+
+  /**
+   * @return on-cpu samples of the node after the increment
+   */
   public int incrementOnCpuSamples() {
-    return this.onCpuSamples.incrementAndGet();
+    return ON_CPU_UPDATER.incrementAndGet(this);
+  }
+
+  /**
+   * Throws {@link ArithmeticException} if the count would overflow an int
+   */
+  public void addOnStackSamples(long samples) {
+    if (hotOnStackSamples != null) {
+      hotOnStackSamples.add(samples);
+    } else {
+      ON_STACK_UPDATER.accumulateAndGet(this, Math.toIntExact(samples), Math::addExact);
+    }
+  }
+
+  /**
+   * Throws {@link ArithmeticException} if the count would overflow an int
+   */
+  public void addOnCpuSamples(long samples) {
+    ON_CPU_UPDATER.accumulateAndGet(this, Math.toIntExact(samples), Math::addExact);
+  }
+
+  /**
+   * @return count of attempts to add a child which was concurrently added by some other thread, since start, across all nodes
+   */
+  public static long getChildPublishContentionCount() {
+    return childPublishContention.sum();
   }
 
   @Override
@@ -61,14 +144,34 @@ public class CpuSamplingFrameNode extends StacktraceFrameNode<CpuSamplingFrameNo
       return false;
     }
 
+    // compared through accessors, so that nodes which are views over some other representation of the tree compare alike
     CpuSamplingFrameNode other = (CpuSamplingFrameNode) o;
-    return this.methodId == other.methodId
-        && this.lineNumber == other.lineNumber
-        && this.onStackSamples.get() == other.onStackSamples.get()
-        && this.onCpuSamples.get() == other.onCpuSamples.get()
-        && this.children.size() == other.children.size()
-        && this.children.containsAll(other.children)
-        && other.children.containsAll(this.children);
+    if (this.getMethodId() != other.getMethodId()
+        || this.getLineNumber() != other.getLineNumber()
+        || this.getOnStackSamples() != other.getOnStackSamples()
+        || this.getOnCpuSamples() != other.getOnCpuSamples()
+        || this.getChildCount() != other.getChildCount()) {
+      return false;
+    }
+    // (methodId, lineNumber) is unique among siblings, so every child is compared only with its counterpart in the other node
+    for (int i = 0; i < getChildCount(); i++) {
+      CpuSamplingFrameNode child = getChild(i);
+      CpuSamplingFrameNode otherChild = other.findChild(child.getMethodId(), child.getLineNumber());
+      if (otherChild == null || !child.equals(otherChild)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private CpuSamplingFrameNode findChild(int childMethodId, int childLineNumber) {
+    for (int i = 0; i < getChildCount(); i++) {
+      CpuSamplingFrameNode child = getChild(i);
+      if (child.getMethodId() == childMethodId && child.getLineNumber() == childLineNumber) {
+        return child;
+      }
+    }
+    return null;
   }
 
   @Override
@@ -82,16 +185,138 @@ public class CpuSamplingFrameNode extends StacktraceFrameNode<CpuSamplingFrameNo
 
   protected AggregatedProfileModel.FrameNode buildFrameNodeProto() {
     return AggregatedProfileModel.FrameNode.newBuilder()
-      .setMethodId(methodId)
-      .setChildCount(children.size())
-      .setLineNo(lineNumber)
+      .setMethodId(getMethodId())
+      .setChildCount(getChildCount())
+      .setLineNo(getLineNumber())
       .setCpuSamplingProps(AggregatedProfileModel.CPUSamplingNodeProps.newBuilder()
-          .setOnCpuSamples(onCpuSamples.get()).setOnStackSamples(onStackSamples.get()))
+          .setOnCpuSamples(Math.toIntExact(getOnCpuSamples())).setOnStackSamples(Math.toIntExact(getOnStackSamples())))
       .build();
   }
 
+  protected int getMethodId() {
+    return methodId;
+  }
+
+  protected int getLineNumber() {
+    return lineNumber;
+  }
+
+  protected long getOnStackSamples() {
+    return hotOnStackSamples != null ? hotOnStackSamples.sum() : onStackSamples;
+  }
+
+  protected long getOnCpuSamples() {
+    return onCpuSamples;
+  }
+
   @Override
-  protected Iterable<CpuSamplingFrameNode> children() {
-    return children;
+  public int getChildCount() {
+    return children.count;
+  }
+
+  @Override
+  public CpuSamplingFrameNode getChild(int index) {
+    return children.nodes[index];
+  }
+
+  /**
+   * Children of a node in insertion order. Since count of children is going to be small for most nodes (in scale of tens usually),
+   * lookup is a linear scan of the array. Once capacity is above {@link #INDEX_THRESHOLD}, an open addressing hash index over the array
+   * is kept as well.
+   * Lookups do not lock, they see the children published by the volatile write of count. Children are appended in place under the lock
+   * on the parent node, so an append inserts just the new child in the index. Arrays are copied and the index is rebuilt only when
+   * capacity is exhausted, into a new instance which is then published, so appends take amortized constant time.
+   */
+  private static class Children {
+    private static final Children EMPTY = new Children(0);
+    private static final int INDEX_THRESHOLD = 16;
+
+    private final CpuSamplingFrameNode[] nodes;
+    // slots hold position in nodes + 1, 0 denotes an empty slot. null if capacity is within threshold
+    private final int[] index;
+    // nodes[0, count) and their slots in index are visible to a reader which has read count
+    private volatile int count = 0;
+
+    private Children(int capacity) {
+      this.nodes = new CpuSamplingFrameNode[capacity];
+      // keeping the index at most half full
+      this.index = capacity > INDEX_THRESHOLD ? new int[capacity << 1] : null;
+    }
+
+    private CpuSamplingFrameNode find(int methodId, int lineNumber) {
+      int count = this.count;
+      if (index == null) {
+        for (int i = 0; i < count; i++) {
+          CpuSamplingFrameNode node = nodes[i];
+          if (node.methodId == methodId && node.lineNumber == lineNumber) {
+            return node;
+          }
+        }
+        return null;
+      }
+
+      int mask = index.length - 1;
+      int slot = hash(methodId, lineNumber) & mask;
+      int entry;
+      while ((entry = index[slot]) != 0) {
+        // slots of children appended after count was read are skipped, node in them may not be visible yet
+        if (entry <= count) {
+          CpuSamplingFrameNode node = nodes[entry - 1];
+          if (node.methodId == methodId && node.lineNumber == lineNumber) {
+            return node;
+          }
+        }
+        slot = (slot + 1) & mask;
+      }
+      return null;
+    }
+
+    /**
+     * To be called under the lock on parent node
+     * @return false if there is no spare capacity for the child
+     */
+    private boolean append(CpuSamplingFrameNode child) {
+      int position = count;
+      if (position == nodes.length) {
+        return false;
+      }
+      nodes[position] = child;
+      if (index != null) {
+        insertInIndex(position);
+      }
+      count = position + 1;
+      return true;
+    }
+
+    /**
+     * To be called under the lock on parent node
+     * @return children with double the capacity, including the given child
+     */
+    private Children grow(CpuSamplingFrameNode child) {
+      Children grown = new Children(Math.max(nodes.length << 1, 1));
+      System.arraycopy(nodes, 0, grown.nodes, 0, count);
+      if (grown.index != null) {
+        for (int i = 0; i < count; i++) {
+          grown.insertInIndex(i);
+        }
+      }
+      grown.count = count;
+      grown.append(child);
+      return grown;
+    }
+
+    private void insertInIndex(int position) {
+      int mask = index.length - 1;
+      int slot = hash(nodes[position].methodId, nodes[position].lineNumber) & mask;
+      while (index[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      index[slot] = position + 1;
+    }
+
+    private static int hash(int methodId, int lineNumber) {
+      int h = methodId * 0x9E3779B9 + lineNumber;
+      return h ^ (h >>> 16);
+    }
   }
 }
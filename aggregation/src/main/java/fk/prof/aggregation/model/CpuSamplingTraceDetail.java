@@ -8,8 +8,17 @@ public class CpuSamplingTraceDetail {
   private final CpuSamplingFrameNode unclassifiableRoot;
 
   public CpuSamplingTraceDetail() {
-    this.globalRoot = new CpuSamplingFrameNode(MethodIdLookup.GLOBAL_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
-    this.unclassifiableRoot = this.globalRoot.getOrAddChild(MethodIdLookup.UNCLASSIFIABLE_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
+    this(new CpuSamplingFrameNode(MethodIdLookup.GLOBAL_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER));
+  }
+
+  /**
+   * Allows subclasses which maintain the stacktrace tree in some other form to skip building the node based tree
+   * @param globalRoot root of node based tree, null if subclass keeps its own tree
+   */
+  protected CpuSamplingTraceDetail(CpuSamplingFrameNode globalRoot) {
+    this.globalRoot = globalRoot;
+    this.unclassifiableRoot = globalRoot == null ? null :
+        globalRoot.getOrAddChild(MethodIdLookup.UNCLASSIFIABLE_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
   }
 
   public CpuSamplingFrameNode getGlobalRoot() {
@@ -24,6 +33,104 @@ public class CpuSamplingTraceDetail {
     this.sampleCount.incrementAndGet();
   }
 
+  /**
+   * Merges a stack sample in the stacktrace tree. Increments on-stack samples of all nodes in the path and on-cpu samples of the leaf node
+   * @param methodIds method ids of frames, ordered root -> leaf
+   * @param lineNumbers line numbers of frames, ordered root -> leaf
+   * @param frameCount number of frames to be read from methodIds and lineNumbers, should be greater than zero
+   * @param snipped true if stack sample is incomplete, in which case it is merged under unclassifiable root
+   */
+  public void aggregate(int[] methodIds, int[] lineNumbers, int frameCount, boolean snipped) {
+    CpuSamplingFrameNode currentNode = globalRoot;
+    currentNode.countOnStackSample();
+    incrementSamples();
+
+    if (snipped) {
+      currentNode = unclassifiableRoot;
+      currentNode.countOnStackSample();
+    }
+
+    for (int i = 0; i < frameCount; i++) {
+      currentNode = currentNode.getOrAddChild(methodIds[i], lineNumbers[i]);
+      currentNode.countOnStackSample();
+    }
+    currentNode.incrementOnCpuSamples();
+  }
+
+  /**
+   * Resolves the path of nodes on which a stack sample is aggregated, adding the nodes which are not present in the stacktrace tree.
+   * Aggregating a sample through the returned path is same as {@link #aggregate(int[], int[], int, boolean)} but does not look up
+   * any children, so a path can be reused for repeated samples of the same stack
+   * @param methodIds method ids of frames, ordered root -> leaf
+   * @param lineNumbers line numbers of frames, ordered root -> leaf
+   * @param frameCount number of frames to be read from methodIds and lineNumbers, should be greater than zero
+   * @param snipped true if stack sample is incomplete, in which case the path starts at unclassifiable root
+   * @return resolved path
+   */
+  public StackPath resolvePath(int[] methodIds, int[] lineNumbers, int frameCount, boolean snipped) {
+    CpuSamplingFrameNode[] path = new CpuSamplingFrameNode[frameCount + (snipped ? 2 : 1)];
+    int depth = 0;
+    CpuSamplingFrameNode currentNode = globalRoot;
+    path[depth++] = currentNode;
+
+    if (snipped) {
+      currentNode = unclassifiableRoot;
+      path[depth++] = currentNode;
+    }
+
+    for (int i = 0; i < frameCount; i++) {
+      currentNode = currentNode.getOrAddChild(methodIds[i], lineNumbers[i]);
+      path[depth++] = currentNode;
+    }
+
+    return () -> {
+      for (CpuSamplingFrameNode node : path) {
+        node.countOnStackSample();
+      }
+      path[path.length - 1].incrementOnCpuSamples();
+      incrementSamples();
+    };
+  }
+
+  /**
+   * Merges a partial stacktrace tree, aggregated separately, in the stacktrace tree. Sample counts of every node of partial tree are
+   * added to the corresponding node of this tree
+   * @param partialTree tree rooted at {@link MethodIdLookup#GLOBAL_ROOT_METHOD_ID}, whose method ids are local to the partial tree
+   * @param methodIdMapping maps method ids of partial tree (array index) to method ids of this tree
+   * @param sampleCount number of stack samples aggregated in partial tree
+   */
+  public void merge(ArrayBackedCpuSamplingFrameTree partialTree, int[] methodIdMapping, int sampleCount) {
+    CpuSamplingFrameNode[] targets = new CpuSamplingFrameNode[partialTree.size()];
+    targets[ArrayBackedCpuSamplingFrameTree.ROOT] = globalRoot;
+    globalRoot.addOnStackSamples(partialTree.getOnStackSamples(ArrayBackedCpuSamplingFrameTree.ROOT));
+    globalRoot.addOnCpuSamples(partialTree.getOnCpuSamples(ArrayBackedCpuSamplingFrameTree.ROOT));
+
+    // parent of a node always precedes it in the partial tree, so targets[parent] is resolved by the time node is visited
+    for (int node = ArrayBackedCpuSamplingFrameTree.ROOT + 1; node < partialTree.size(); node++) {
+      CpuSamplingFrameNode target = targets[partialTree.getParent(node)].getOrAddChild(
+          methodIdMapping[partialTree.getMethodId(node)], partialTree.getLineNumber(node));
+      target.addOnStackSamples(partialTree.getOnStackSamples(node));
+      target.addOnCpuSamples(partialTree.getOnCpuSamples(node));
+      targets[node] = target;
+    }
+    addSamples(sampleCount);
+  }
+
+  /**
+   * Releases memory which is needed only to aggregate more samples, to be called once the trace detail is finalized. Trace detail remains
+   * usable afterwards, further updates may reclaim the released memory. Node based tree has nothing to release.
+   */
+  public void trim() {
+  }
+
+  /**
+   * Adds to count of samples, to be used by subclasses which merge samples in bulk
+   * @param samples
+   */
+  protected void addSamples(int samples) {
+    this.sampleCount.addAndGet(samples);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (o == this) {
@@ -41,4 +148,23 @@ public class CpuSamplingTraceDetail {
   protected int getSampleCount() {
     return sampleCount.get();
   }
+
+  /**
+   * Path from root to leaf node of a stack in the stacktrace tree, see {@link #resolvePath(int[], int[], int, boolean)}
+   */
+  public interface StackPath {
+    /**
+     * Aggregates a sample of the stack. Increments on-stack samples of all nodes in the path and on-cpu samples of the leaf node
+     */
+    void aggregate();
+  }
+
+  /**
+   * Visits nodes of the stacktrace tree in dfs order
+   * @param visitor
+   * @throws Exception
+   */
+  protected void traverse(FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor) throws Exception {
+    globalRoot.traverse(visitor);
+  }
 }
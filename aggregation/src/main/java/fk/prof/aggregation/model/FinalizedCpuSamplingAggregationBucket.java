@@ -1,5 +1,7 @@
 package fk.prof.aggregation.model;
 
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 import fk.prof.aggregation.proto.AggregatedProfileModel.*;
 import fk.prof.aggregation.stacktrace.StacktraceFrameNode;
 
@@ -55,33 +57,96 @@ public class FinalizedCpuSamplingAggregationBucket {
   /**
    * Serializes the stacktrace tree in a dfs order. It serializes the tree in batches of fixed size, reusing the memory
    * allocated for temporary data structures in subsequent batches.
+   * Both node based and array backed stacktrace trees are serialized to the same {@link FrameNode} representation. Fields of nodes
+   * in a batch are held in primitive arrays and written out as a delimited {@link FrameNodeList} directly, without building the protos.
    */
-  protected static class NodeVisitor implements StacktraceFrameNode.NodeVisitor<CpuSamplingFrameNode> {
-    private OutputStream out;
-    private int batchSize;
-    private FrameNodeList.Builder builder = FrameNodeList.newBuilder();
+  protected static class NodeVisitor implements StacktraceFrameNode.NodeVisitor<CpuSamplingFrameNode>, ArrayBackedCpuSamplingFrameTree.NodeVisitor {
+    private static final int FRAMENODES_TAG_SIZE = CodedOutputStream.computeTagSize(FrameNodeList.FRAMENODES_FIELD_NUMBER);
+    private static final int CPUSAMPLINGPROPS_TAG_SIZE = CodedOutputStream.computeTagSize(FrameNode.CPUSAMPLINGPROPS_FIELD_NUMBER);
+
+    private CodedOutputStream out;
+    private int traceCtxIdx;
+    private int batchCount = 0;
+    private int[] methodIds;
+    private int[] childCounts;
+    private int[] lineNumbers;
+    private int[] onStackSamples;
+    private int[] onCpuSamples;
+    private int[] nodeSizes;
 
     public NodeVisitor(OutputStream out, int batchSize, int traceCtxId) {
-      this.out = out;
-      this.batchSize = batchSize;
-      this.builder.setTraceCtxIdx(traceCtxId);
+      this.out = CodedOutputStream.newInstance(out);
+      this.traceCtxIdx = traceCtxId;
+      this.methodIds = new int[batchSize];
+      this.childCounts = new int[batchSize];
+      this.lineNumbers = new int[batchSize];
+      this.onStackSamples = new int[batchSize];
+      this.onCpuSamples = new int[batchSize];
+      this.nodeSizes = new int[batchSize];
     }
 
     @Override
     public void visit(CpuSamplingFrameNode node) throws IOException {
-      if(builder.getFrameNodesCount() >= batchSize) {
-        builder.build().writeDelimitedTo(out);
+      visit(node.getMethodId(), node.getLineNumber(), node.getChildCount(), (int) node.getOnStackSamples(), (int) node.getOnCpuSamples());
+    }
 
-        // clear this batch of nodes
-        builder.clearFrameNodes();
+    @Override
+    public void visit(int methodId, int lineNumber, int childCount, int onStackSamples, int onCpuSamples) throws IOException {
+      if(batchCount >= methodIds.length) {
+        writeBatch();
       }
-      builder.addFrameNodes(node.buildFrameNodeProto());
+      this.methodIds[batchCount] = methodId;
+      this.childCounts[batchCount] = childCount;
+      this.lineNumbers[batchCount] = lineNumber;
+      this.onStackSamples[batchCount] = onStackSamples;
+      this.onCpuSamples[batchCount] = onCpuSamples;
+      ++batchCount;
     }
 
     protected void end() throws IOException {
-      if(builder.getFrameNodesCount() > 0) {
-        builder.build().writeDelimitedTo(out);
+      if(batchCount > 0) {
+        writeBatch();
+      }
+    }
+
+    /**
+     * Writes the batch with the same bytes as {@link FrameNodeList#writeDelimitedTo(OutputStream)} would, fields in order of their numbers
+     */
+    private void writeBatch() throws IOException {
+      int listSize = CodedOutputStream.computeUInt32Size(FrameNodeList.TRACECTXIDX_FIELD_NUMBER, traceCtxIdx);
+      for(int i = 0; i < batchCount; ++i) {
+        int nodeSize = CodedOutputStream.computeUInt32Size(FrameNode.METHODID_FIELD_NUMBER, methodIds[i])
+            + CodedOutputStream.computeUInt32Size(FrameNode.CHILDCOUNT_FIELD_NUMBER, childCounts[i])
+            + CodedOutputStream.computeUInt32Size(FrameNode.LINENO_FIELD_NUMBER, lineNumbers[i]);
+        int propsSize = cpuSamplingPropsSize(i);
+        nodeSize += CPUSAMPLINGPROPS_TAG_SIZE + CodedOutputStream.computeUInt32SizeNoTag(propsSize) + propsSize;
+        nodeSizes[i] = nodeSize;
+        listSize += FRAMENODES_TAG_SIZE + CodedOutputStream.computeUInt32SizeNoTag(nodeSize) + nodeSize;
       }
+
+      out.writeUInt32NoTag(listSize);
+      out.writeUInt32(FrameNodeList.TRACECTXIDX_FIELD_NUMBER, traceCtxIdx);
+      for(int i = 0; i < batchCount; ++i) {
+        out.writeTag(FrameNodeList.FRAMENODES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(nodeSizes[i]);
+        out.writeUInt32(FrameNode.METHODID_FIELD_NUMBER, methodIds[i]);
+        out.writeUInt32(FrameNode.CHILDCOUNT_FIELD_NUMBER, childCounts[i]);
+        out.writeUInt32(FrameNode.LINENO_FIELD_NUMBER, lineNumbers[i]);
+        out.writeTag(FrameNode.CPUSAMPLINGPROPS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(cpuSamplingPropsSize(i));
+        out.writeUInt32(CPUSamplingNodeProps.ONCPUSAMPLES_FIELD_NUMBER, onCpuSamples[i]);
+        out.writeUInt32(CPUSamplingNodeProps.ONSTACKSAMPLES_FIELD_NUMBER, onStackSamples[i]);
+      }
+      // the underlying stream is expected to have the whole batch once it is written
+      out.flush();
+
+      // clear this batch of nodes
+      batchCount = 0;
+    }
+
+    private int cpuSamplingPropsSize(int i) {
+      return CodedOutputStream.computeUInt32Size(CPUSamplingNodeProps.ONCPUSAMPLES_FIELD_NUMBER, onCpuSamples[i])
+          + CodedOutputStream.computeUInt32Size(CPUSamplingNodeProps.ONSTACKSAMPLES_FIELD_NUMBER, onStackSamples[i]);
     }
   }
 }
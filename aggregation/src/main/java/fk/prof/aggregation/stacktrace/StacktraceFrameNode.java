@@ -1,6 +1,6 @@
 package fk.prof.aggregation.stacktrace;
 
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A generic traverser for a stacktrace tree.
@@ -8,29 +8,84 @@ import java.util.Iterator;
  */
 public abstract class StacktraceFrameNode<T extends StacktraceFrameNode<T>> {
 
-    protected abstract Iterable<T> children();
+    public abstract int getChildCount();
 
+    /**
+     * @param index position of child, in [0, {@link #getChildCount()})
+     */
+    public abstract T getChild(int index);
+
+    /**
+     * Visits all nodes of the tree rooted at this node in dfs order. Traversal keeps the current path on an explicit stack instead of
+     * recursing, so deep stacktraces do not exhaust the thread stack, and children are accessed by position, so no iterator is allocated
+     * per node.
+     * @param visitor
+     * @throws Exception
+     */
     public void traverse(NodeVisitor<T> visitor) throws Exception {
-        new DFSTraversal(visitor).traverse(this);
+        new DFSTraversal<>(visitor).traverse(self());
+    }
+
+    @SuppressWarnings("unchecked")
+    private T self() {
+        return (T) this;
     }
 
     private static class DFSTraversal<T extends StacktraceFrameNode<T>> {
-        private NodeVisitor<T> visitor;
+        private static final int INITIAL_DEPTH = 64;
+
+        private final NodeVisitor<T> visitor;
+
+        // path from root to the node being visited, along with child count of every node on the path and position of its next child
+        private Object[] path = new Object[INITIAL_DEPTH];
+        private int[] childCounts = new int[INITIAL_DEPTH];
+        private int[] nextChildren = new int[INITIAL_DEPTH];
+        private int depth = -1;
+
         public DFSTraversal(NodeVisitor<T> visitor) {
             this.visitor = visitor;
         }
 
-        public void traverse(T node) throws Exception {
+        @SuppressWarnings("unchecked")
+        public void traverse(T root) throws Exception {
+            push(root);
+            while(depth >= 0) {
+                T node = (T) path[depth];
+                if(nextChildren[depth] < childCounts[depth]) {
+                    push(node.getChild(nextChildren[depth]++));
+                }
+                else {
+                    path[depth--] = null;
+                    visitor.postVisit(node);
+                }
+            }
+        }
+
+        private void push(T node) throws Exception {
             visitor.visit(node);
-            Iterator<T> children = node.children().iterator();
-            while(children.hasNext()) {
-                T child = children.next();
-                traverse(child);
+            if(++depth == path.length) {
+                int capacity = path.length << 1;
+                path = Arrays.copyOf(path, capacity);
+                childCounts = Arrays.copyOf(childCounts, capacity);
+                nextChildren = Arrays.copyOf(nextChildren, capacity);
             }
+            path[depth] = node;
+            // child count is read once, children added to the node concurrently after this are not traversed
+            childCounts[depth] = node.getChildCount();
+            nextChildren[depth] = 0;
         }
     }
 
     public interface NodeVisitor<T> {
+        /**
+         * Called before any of the children of the node are visited, i.e. in dfs pre-order
+         */
         void visit(T obj) throws Exception;
+
+        /**
+         * Called after all the children of the node are visited, i.e. in dfs post-order
+         */
+        default void postVisit(T obj) throws Exception {
+        }
     }
 }
@@ -0,0 +1,188 @@
+package fk.prof.aggregation.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+public class ArrayBackedCpuSamplingFrameTreeTest {
+  @Test
+  public void testGetAndAddOfChildUsingMethodIdAndLineNumber() {
+    ArrayBackedCpuSamplingFrameTree tree = new ArrayBackedCpuSamplingFrameTree(0, 0);
+    int n1 = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 1, 10);
+    int n2 = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 1, 20);
+    int n3 = tree.getOrAddChild(n1, 1, 10);
+    Assert.assertNotEquals(n1, n2);
+    Assert.assertNotEquals(n1, n3);
+
+    Assert.assertEquals(n1, tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 1, 10));
+    Assert.assertEquals(n3, tree.getChild(n1, 1, 10));
+    Assert.assertEquals(ArrayBackedCpuSamplingFrameTree.NO_NODE, tree.getChild(n2, 1, 10));
+    Assert.assertEquals(4, tree.size());
+    tree.trim();
+    Assert.assertEquals(2, tree.getChildCount(ArrayBackedCpuSamplingFrameTree.ROOT));
+  }
+
+  @Test
+  public void testChildrenCanBeAccessedOnlyTillTreeIsTrimmedAgain() {
+    ArrayBackedCpuSamplingFrameTree tree = new ArrayBackedCpuSamplingFrameTree(0, 0);
+    int n1 = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 1, 10);
+    assertThrowsIllegalState(() -> tree.getChildCount(ArrayBackedCpuSamplingFrameTree.ROOT));
+
+    tree.trim();
+    Assert.assertEquals(1, tree.getChildCount(ArrayBackedCpuSamplingFrameTree.ROOT));
+    Assert.assertEquals(n1, tree.getChildAt(ArrayBackedCpuSamplingFrameTree.ROOT, 0));
+
+    // updating samples of existing nodes keeps children accessible, adding a node does not
+    tree.incrementOnStackSamples(n1);
+    Assert.assertEquals(n1, tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 1, 10));
+    Assert.assertEquals(1, tree.getChildCount(ArrayBackedCpuSamplingFrameTree.ROOT));
+    int n2 = tree.getOrAddChild(n1, 2, 10);
+    assertThrowsIllegalState(() -> tree.getChildAt(n1, 0));
+
+    tree.trim();
+    Assert.assertEquals(n2, tree.getChildAt(n1, 0));
+  }
+
+  @Test
+  public void testTreeGrowsBeyondInitialCapacity() {
+    ArrayBackedCpuSamplingFrameTree tree = new ArrayBackedCpuSamplingFrameTree(0, 0, 2);
+    int[] nodes = new int[1000];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = tree.getOrAddChild(i % 2 == 0 ? ArrayBackedCpuSamplingFrameTree.ROOT : nodes[i - 1], i, i);
+    }
+    for (int i = 0; i < nodes.length; i++) {
+      Assert.assertEquals(nodes[i], tree.getChild(i % 2 == 0 ? ArrayBackedCpuSamplingFrameTree.ROOT : nodes[i - 1], i, i));
+    }
+    Assert.assertEquals(nodes.length + 1, tree.size());
+  }
+
+  @Test
+  public void testChildrenAreInInsertionOrder() {
+    ArrayBackedCpuSamplingFrameTree tree = new ArrayBackedCpuSamplingFrameTree(0, 0);
+    int n1 = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 3, 10);
+    int n2 = tree.getOrAddChild(n1, 1, 10);
+    int n3 = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 2, 10);
+    int n4 = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT, 1, 10);
+    tree.trim();
+
+    Assert.assertEquals(3, tree.getChildCount(ArrayBackedCpuSamplingFrameTree.ROOT));
+    Assert.assertEquals(n1, tree.getChildAt(ArrayBackedCpuSamplingFrameTree.ROOT, 0));
+    Assert.assertEquals(n3, tree.getChildAt(ArrayBackedCpuSamplingFrameTree.ROOT, 1));
+    Assert.assertEquals(n4, tree.getChildAt(ArrayBackedCpuSamplingFrameTree.ROOT, 2));
+    Assert.assertEquals(1, tree.getChildCount(n1));
+    Assert.assertEquals(n2, tree.getChildAt(n1, 0));
+    Assert.assertEquals(0, tree.getChildCount(n2));
+  }
+
+  @Test
+  public void testSerializedTreeIsSameAsNodeBasedTree() throws Exception {
+    CpuSamplingTraceDetail nodeBased = new CpuSamplingTraceDetail();
+    ArrayBackedCpuSamplingTraceDetail arrayBacked = new ArrayBackedCpuSamplingTraceDetail();
+    aggregateRandomSamples(new Random(7), nodeBased, arrayBacked);
+
+    Assert.assertEquals(nodeBased.getSampleCount(), arrayBacked.getSampleCount());
+    Assert.assertArrayEquals(serialize(nodeBased), serialize(arrayBacked));
+  }
+
+  @Test
+  public void testTrimmedTreeIsSameAndRemainsUpdatable() throws Exception {
+    CpuSamplingTraceDetail nodeBased = new CpuSamplingTraceDetail();
+    ArrayBackedCpuSamplingTraceDetail arrayBacked = new ArrayBackedCpuSamplingTraceDetail();
+    Random random = new Random(11);
+    aggregateRandomSamples(random, nodeBased, arrayBacked);
+
+    arrayBacked.trim();
+    Assert.assertArrayEquals(serialize(nodeBased), serialize(arrayBacked));
+
+    aggregateRandomSamples(random, nodeBased, arrayBacked);
+    Assert.assertArrayEquals(serialize(nodeBased), serialize(arrayBacked));
+  }
+
+  @Test
+  public void testRootsOfArrayBackedTraceDetailAreViewsOverTheTree() {
+    CpuSamplingTraceDetail nodeBased = new CpuSamplingTraceDetail();
+    ArrayBackedCpuSamplingTraceDetail arrayBacked = new ArrayBackedCpuSamplingTraceDetail();
+    aggregateRandomSamples(new Random(13), nodeBased, arrayBacked);
+    arrayBacked.trim();
+    Assert.assertTrue(arrayBacked.getGlobalRoot() == arrayBacked.getGlobalRoot());
+    Assert.assertEquals(nodeBased.getGlobalRoot(), arrayBacked.getGlobalRoot());
+    Assert.assertEquals(arrayBacked.getGlobalRoot(), nodeBased.getGlobalRoot());
+    Assert.assertEquals(nodeBased.getUnclassifiableRoot(), arrayBacked.getUnclassifiableRoot());
+
+    CpuSamplingFrameNode child = arrayBacked.getUnclassifiableRoot().getOrAddChild(100, 1);
+    child.incrementOnStackSamples();
+    child.incrementOnCpuSamples();
+    arrayBacked.trim();
+    Assert.assertNotEquals(nodeBased.getGlobalRoot(), arrayBacked.getGlobalRoot());
+
+    arrayBacked.aggregate(new int[]{100}, new int[]{1}, 1, true);
+    Assert.assertEquals(2, arrayBacked.getUnclassifiableRoot().getOrAddChild(100, 1).getOnCpuSamples());
+  }
+
+  private void aggregateRandomSamples(Random random, CpuSamplingTraceDetail... traceDetails) {
+    int[] methodIds = new int[50];
+    int[] lineNumbers = new int[50];
+    for (int sample = 0; sample < 500; sample++) {
+      int frameCount = 1 + random.nextInt(methodIds.length);
+      for (int i = 0; i < frameCount; i++) {
+        methodIds[i] = 2 + random.nextInt(5);
+        lineNumbers[i] = random.nextInt(3);
+      }
+      boolean snipped = random.nextInt(10) == 0;
+      for (CpuSamplingTraceDetail traceDetail : traceDetails) {
+        traceDetail.aggregate(methodIds, lineNumbers, frameCount, snipped);
+      }
+    }
+  }
+
+  @Test
+  public void testEqualityOfTreesIsIndependentOfInsertionOrder() {
+    ArrayBackedCpuSamplingTraceDetail t1 = new ArrayBackedCpuSamplingTraceDetail();
+    ArrayBackedCpuSamplingTraceDetail t2 = new ArrayBackedCpuSamplingTraceDetail();
+
+    t1.aggregate(new int[]{2, 3}, new int[]{10, 10}, 2, false);
+    t1.aggregate(new int[]{4}, new int[]{10}, 1, false);
+    t2.aggregate(new int[]{4}, new int[]{10}, 1, false);
+    t2.aggregate(new int[]{2, 3}, new int[]{10, 10}, 2, false);
+    Assert.assertEquals(t1, t2);
+
+    t2.aggregate(new int[]{4}, new int[]{10}, 1, true);
+    Assert.assertNotEquals(t1, t2);
+  }
+
+  @Test
+  public void testEqualityOfDeepTreesDoesNotOverflowThreadStack() {
+    ArrayBackedCpuSamplingTraceDetail t1 = new ArrayBackedCpuSamplingTraceDetail();
+    ArrayBackedCpuSamplingTraceDetail t2 = new ArrayBackedCpuSamplingTraceDetail();
+    int depth = 100000;
+    int[] methodIds = new int[depth];
+    int[] lineNumbers = new int[depth];
+    for (int i = 0; i < depth; i++) {
+      methodIds[i] = 2 + i % 7;
+    }
+    t1.aggregate(methodIds, lineNumbers, depth, false);
+    t2.aggregate(methodIds, lineNumbers, depth, false);
+    Assert.assertEquals(t1, t2);
+
+    t2.aggregate(methodIds, lineNumbers, depth, false);
+    Assert.assertNotEquals(t1, t2);
+  }
+
+  private static void assertThrowsIllegalState(Runnable runnable) {
+    try {
+      runnable.run();
+      Assert.fail("Expected IllegalStateException");
+    } catch (IllegalStateException ex) {
+    }
+  }
+
+  private byte[] serialize(CpuSamplingTraceDetail traceDetail) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor = new FinalizedCpuSamplingAggregationBucket.NodeVisitor(out, 100, 0);
+    traceDetail.traverse(visitor);
+    visitor.end();
+    return out.toByteArray();
+  }
+}
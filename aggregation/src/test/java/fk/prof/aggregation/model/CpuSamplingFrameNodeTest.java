@@ -1,8 +1,18 @@
 package fk.prof.aggregation.model;
 
+import fk.prof.aggregation.stacktrace.StacktraceFrameNode;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 public class CpuSamplingFrameNodeTest {
   @Test
   public void testEqualityOfNodesBasedOnMethodIdAndLineNumber() {
@@ -32,5 +42,189 @@ public class CpuSamplingFrameNodeTest {
     Assert.assertTrue(n3 == n4);
   }
 
+  @Test
+  public void testGetAndAddOfChildWithFanOutAboveIndexThreshold() {
+    CpuSamplingFrameNode parent = new CpuSamplingFrameNode(1, 10);
+    List<CpuSamplingFrameNode> children = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      children.add(parent.getOrAddChild(i, i % 3));
+    }
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(children.get(i) == parent.getOrAddChild(i, i % 3));
+    }
+    Assert.assertEquals(100, parent.buildFrameNodeProto().getChildCount());
+  }
+
+  @Test
+  public void testChildrenAreInInsertionOrderAsTheyGrow() {
+    CpuSamplingFrameNode parent = new CpuSamplingFrameNode(1, 10);
+    for (int i = 0; i < 100; i++) {
+      parent.getOrAddChild(100 - i, 0);
+      Assert.assertEquals(i + 1, parent.getChildCount());
+      for (int j = 0; j <= i; j++) {
+        Assert.assertEquals(100 - j, parent.getChild(j).getMethodId());
+      }
+    }
+  }
+
+  @Test
+  public void testIncrementsReturnUpdatedSamplesAtAllDepths() {
+    CpuSamplingFrameNode node = new CpuSamplingFrameNode(0, 0);
+    for (int depth = 0; depth < 4; depth++) {
+      Assert.assertEquals(1, node.incrementOnStackSamples());
+      Assert.assertEquals(2, node.incrementOnStackSamples());
+      Assert.assertEquals(1, node.incrementOnCpuSamples());
+      node = node.getOrAddChild(depth + 1, 0);
+    }
+  }
+
+  @Test
+  public void testAddOfSamplesFailsOnOverflowInsteadOfWrapping() {
+    CpuSamplingFrameNode node = new CpuSamplingFrameNode(0, 0).getOrAddChild(1, 0).getOrAddChild(2, 0);
+    node.addOnStackSamples(Integer.MAX_VALUE);
+    node.addOnCpuSamples(Integer.MAX_VALUE);
+    for (Runnable add : Arrays.<Runnable>asList(
+        () -> node.addOnStackSamples(1), () -> node.addOnCpuSamples(1), () -> node.addOnCpuSamples(1L << 32))) {
+      try {
+        add.run();
+        Assert.fail("Add of samples should fail on overflow");
+      } catch (ArithmeticException ex) {
+      }
+    }
+    Assert.assertEquals(Integer.MAX_VALUE, node.getOnStackSamples());
+    Assert.assertEquals(Integer.MAX_VALUE, node.getOnCpuSamples());
+  }
+
+  @Test(timeout = 10000)
+  public void testConcurrentUpdatesOfSamplesAtAllDepths() throws Exception {
+    CpuSamplingFrameNode root = new CpuSamplingFrameNode(0, 0);
+    CpuSamplingFrameNode[] path = new CpuSamplingFrameNode[5];
+    path[0] = root;
+    for (int i = 1; i < path.length; i++) {
+      path[i] = path[i - 1].getOrAddChild(i, 0);
+    }
+
+    int threads = 8;
+    int iterations = 5000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < iterations; i++) {
+          for (CpuSamplingFrameNode node : path) {
+            node.incrementOnStackSamples();
+            node.addOnCpuSamples(2);
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    for (CpuSamplingFrameNode node : path) {
+      Assert.assertEquals(threads * iterations, node.getOnStackSamples());
+      Assert.assertEquals(2 * threads * iterations, node.getOnCpuSamples());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testConcurrentGetAndAddOfChildAddsEachChildOnce() throws Exception {
+    CpuSamplingFrameNode root = new CpuSamplingFrameNode(0, 0);
+    int threads = 8;
+    int iterations = 2000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < iterations; i++) {
+          CpuSamplingFrameNode child = root.getOrAddChild(i % 40, 0);
+          child.incrementOnStackSamples();
+          child.getOrAddChild(i % 7, 0).incrementOnCpuSamples();
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+
+    Assert.assertEquals(40, root.buildFrameNodeProto().getChildCount());
+    int onStackSamples = 0, onCpuSamples = 0;
+    for (int i = 0; i < root.getChildCount(); i++) {
+      CpuSamplingFrameNode child = root.getChild(i);
+      onStackSamples += child.buildFrameNodeProto().getCpuSamplingProps().getOnStackSamples();
+      for (int j = 0; j < child.getChildCount(); j++) {
+        onCpuSamples += child.getChild(j).buildFrameNodeProto().getCpuSamplingProps().getOnCpuSamples();
+      }
+    }
+    Assert.assertEquals(threads * iterations, onStackSamples);
+    Assert.assertEquals(threads * iterations, onCpuSamples);
+  }
+
+  @Test
+  public void testTraverseVisitsNodesInPreAndPostOrder() throws Exception {
+    /**
+     * 0
+     * |_ 1
+     * |  |_ 2
+     * |  |_ 3
+     * |_ 4
+     */
+    CpuSamplingFrameNode root = new CpuSamplingFrameNode(0, 0);
+    CpuSamplingFrameNode n1 = root.getOrAddChild(1, 0);
+    n1.getOrAddChild(2, 0);
+    n1.getOrAddChild(3, 0);
+    root.getOrAddChild(4, 0);
+
+    List<Integer> preOrder = new ArrayList<>();
+    List<Integer> postOrder = new ArrayList<>();
+    root.traverse(new StacktraceFrameNode.NodeVisitor<CpuSamplingFrameNode>() {
+      @Override
+      public void visit(CpuSamplingFrameNode node) {
+        preOrder.add(node.getMethodId());
+      }
+
+      @Override
+      public void postVisit(CpuSamplingFrameNode node) {
+        postOrder.add(node.getMethodId());
+      }
+    });
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), preOrder);
+    Assert.assertEquals(Arrays.asList(2, 3, 1, 4, 0), postOrder);
+  }
+
+  @Test
+  public void testTraverseOfDeepTreeDoesNotOverflowThreadStack() throws Exception {
+    int depth = 200000;
+    CpuSamplingFrameNode root = new CpuSamplingFrameNode(0, 0);
+    CpuSamplingFrameNode node = root;
+    for (int i = 1; i < depth; i++) {
+      node = node.getOrAddChild(i, 0);
+    }
+
+    int[] visited = new int[2];
+    root.traverse(new StacktraceFrameNode.NodeVisitor<CpuSamplingFrameNode>() {
+      @Override
+      public void visit(CpuSamplingFrameNode node) {
+        Assert.assertEquals(visited[0]++, node.getMethodId());
+      }
+
+      @Override
+      public void postVisit(CpuSamplingFrameNode node) {
+        Assert.assertEquals(depth - ++visited[1], node.getMethodId());
+      }
+    });
+    Assert.assertEquals(depth, visited[0]);
+    Assert.assertEquals(depth, visited[1]);
+  }
+
   //TODO: Tests for increment of on-stack and on-cpu samples should be added once serialization is implemented
 }
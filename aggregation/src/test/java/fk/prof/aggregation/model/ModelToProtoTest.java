@@ -173,6 +173,38 @@ public class ModelToProtoTest {
         assertThat(in.available(), is(0));
     }
 
+    @Test
+    public void testStackTraceTreeToProto_nodeVisitorShouldWriteSameBytesAsFrameNodeListProtos() throws Exception {
+        CpuSamplingFrameNode root = new CpuSamplingFrameNode(0, 0);
+        CpuSamplingFrameNode deep = root;
+        for(int i = 1; i <= 10; ++i) {
+            // method ids, line numbers and sample counts spanning multi byte varints
+            deep = deep.getOrAddChild(i * 40000, i * 20);
+            deep.addOnStackSamples(i * 1000);
+            deep.addOnCpuSamples(i);
+            root.getOrAddChild(i, 0).addOnCpuSamples(i * 200);
+        }
+        root.addOnStackSamples(Integer.MAX_VALUE);
+
+        int batchSize = 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor = new FinalizedCpuSamplingAggregationBucket.NodeVisitor(out, batchSize, 7);
+        root.traverse(visitor);
+        visitor.end();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        List<FrameNode> frameNodes = new ArrayList<>();
+        root.traverse(node -> frameNodes.add(node.buildFrameNodeProto()));
+        for(int i = 0; i < frameNodes.size(); i += batchSize) {
+            FrameNodeList.newBuilder().setTraceCtxIdx(7)
+                    .addAllFrameNodes(frameNodes.subList(i, Math.min(i + batchSize, frameNodes.size())))
+                    .build().writeDelimitedTo(expected);
+        }
+
+        assertThat(frameNodes.size(), is(21));
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
     private Set<RecorderInfo> recorders() {
         Set<RecorderInfo> recorders = new HashSet<>();
         recorders.addAll(
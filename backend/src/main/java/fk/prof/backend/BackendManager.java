@@ -3,6 +3,7 @@ package fk.prof.backend;
 import com.codahale.metrics.*;
 import com.google.common.base.Preconditions;
 import fk.prof.aggregation.model.AggregationWindowStorage;
+import fk.prof.aggregation.model.CpuSamplingFrameNode;
 import fk.prof.backend.deployer.VerticleDeployer;
 import fk.prof.backend.deployer.impl.*;
 import fk.prof.backend.http.ApiPathConstants;
@@ -19,9 +20,11 @@ import fk.prof.backend.model.aggregation.impl.ActiveAggregationWindowsImpl;
 import fk.prof.backend.model.policy.PolicyStore;
 import fk.prof.metrics.MetricName;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.LocalFileAsyncStorage;
 import fk.prof.storage.S3AsyncStorage;
 import fk.prof.storage.S3ClientFactory;
 import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.compression.CompressionCodec;
 import io.vertx.core.*;
 import io.vertx.core.Future;
 import io.vertx.core.logging.Logger;
@@ -38,6 +41,7 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.KeeperException;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
@@ -50,6 +54,9 @@ public class BackendManager {
   private final CuratorFramework curatorClient;
   private AsyncStorage storage;
   private GenericObjectPool<ByteBuffer> bufferPool;
+  private ForkJoinPool blockSerializationPool;
+  private Semaphore partPermits;
+  private CompressionCodec compressionCodec;
   private MetricRegistry metricRegistry;
 
   public BackendManager(String configFilePath) throws Exception {
@@ -64,6 +71,10 @@ public class BackendManager {
     vertxOptions.setMetricsOptions(buildMetricsOptions());
     this.vertx = Vertx.vertx(vertxOptions);
     this.metricRegistry = SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY);
+    // contention is counted across all trees of the process, a previous manager in the same process may have registered the gauge already
+    metricRegistry.remove(MetricName.AW_CpuSampling_Child_Contention.get());
+    metricRegistry.register(MetricName.AW_CpuSampling_Child_Contention.get(),
+        (Gauge<Long>) CpuSamplingFrameNode::getChildPublishContentionCount);
 
     this.curatorClient = createCuratorClient();
     curatorClient.start();
@@ -79,6 +90,9 @@ public class BackendManager {
       if (closeResult.succeeded()) {
         logger.info("Shutdown successful for vertx instance");
         curatorClient.close();
+        if (blockSerializationPool != null) {
+          blockSerializationPool.shutdown();
+        }
         future.complete();
       } else {
         logger.error("Error shutting down vertx instance");
@@ -95,7 +109,8 @@ public class BackendManager {
     ActiveAggregationWindows activeAggregationWindows = new ActiveAggregationWindowsImpl();
     AssociatedProcessGroups associatedProcessGroups = new AssociatedProcessGroupsImpl(config.getRecorderDefunctThresholdSecs());
     WorkSlotPool workSlotPool = new WorkSlotPool(config.getScheduleSlotPoolCapacity());
-    AggregationWindowStorage aggregationWindowStorage = new AggregationWindowStorage(config.getProfilesBaseDir(), storage, bufferPool, metricRegistry);
+    AggregationWindowStorage aggregationWindowStorage = new AggregationWindowStorage(config.getProfilesBaseDir(), storage, bufferPool,
+        config.getBufferPoolConfig().getBufferSize(), partPermits, metricRegistry, blockSerializationPool, compressionCodec);
 
     VerticleDeployer backendHttpVerticleDeployer = new BackendHttpVerticleDeployer(vertx, config, leaderStore, activeAggregationWindows, associatedProcessGroups);
     VerticleDeployer backendDaemonVerticleDeployer = new BackendDaemonVerticleDeployer(vertx, config, leaderStore, associatedProcessGroups, activeAggregationWindows, workSlotPool, aggregationWindowStorage);
@@ -139,7 +154,7 @@ public class BackendManager {
   }
 
   private void initStorage() {
-    Configuration.StorageConfig.S3Config s3Config = config.getStorageConfig().getS3Config();
+    Configuration.StorageConfig storageConfig = config.getStorageConfig();
     Configuration.StorageConfig.FixedSizeThreadPoolConfig threadPoolConfig = config.getStorageConfig().getTpConfig();
     Meter threadPoolRejectionsMtr = metricRegistry.meter(MetricName.S3_Threadpool_Rejection.get());
 
@@ -150,8 +165,13 @@ public class BackendManager {
                 new AbortPolicy("s3ExectorSvc", threadPoolRejectionsMtr)),
         metricRegistry, "executors.fixed_thread_pool.storage");
 
-    this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
-        storageExecSvc, s3Config.getListObjectsTimeoutMs());
+    if(Configuration.StorageConfig.TYPE_LOCAL.equals(storageConfig.getType())) {
+      this.storage = new LocalFileAsyncStorage(Paths.get(storageConfig.getLocalConfig().getBaseDir()), storageExecSvc);
+    } else {
+      Configuration.StorageConfig.S3Config s3Config = storageConfig.getS3Config();
+      this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
+          storageExecSvc, s3Config.getListObjectsTimeoutMs());
+    }
 
     // buffer pool to temporarily store serialized bytes
     Configuration.BufferPoolConfig bufferPoolConfig = config.getBufferPoolConfig();
@@ -159,7 +179,25 @@ public class BackendManager {
     poolConfig.setMaxTotal(bufferPoolConfig.getMaxTotal());
     poolConfig.setMaxIdle(bufferPoolConfig.getMaxIdle());
 
-    this.bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(bufferPoolConfig.getBufferSize(), false), poolConfig);
+    int chunkSize = bufferPoolConfig.getChunkSize();
+    this.bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(chunkSize, bufferPoolConfig.getDirect()), poolConfig);
+    // a previous manager in the same process, as in local clusters of loadgen, is replaced as the one whose pool is reported
+    metricRegistry.remove(MetricName.AW_BuffPool_Bytes_Held.get());
+    metricRegistry.register(MetricName.AW_BuffPool_Bytes_Held.get(), (Gauge<Long>) () -> (long) bufferPool.getNumActive() * chunkSize);
+
+    // files being stored take a permit per part they buffer, so that parts of all of them never need more chunks than the pool has
+    int chunksPerPart = (bufferPoolConfig.getBufferSize() + chunkSize - 1) / chunkSize;
+    int partsInPool = bufferPoolConfig.getMaxTotal() / chunksPerPart;
+    if (partsInPool < 1) {
+      throw new IllegalArgumentException(String.format("bufferPoolOptions max.total=%d cannot hold a part of %d chunks",
+          bufferPoolConfig.getMaxTotal(), chunksPerPart));
+    }
+    this.partPermits = new Semaphore(partsInPool);
+
+    // pool to serialize stacktrace trees of an aggregation window in parallel
+    int blockParallelism = config.getSerializationWorkerPoolConfig().getBlockParallelism();
+    this.blockSerializationPool = blockParallelism > 0 ? new ForkJoinPool(blockParallelism) : null;
+    this.compressionCodec = CompressionCodec.forName(config.getSerializationWorkerPoolConfig().getCompressionCodec());
   }
 
   private CuratorFramework createCuratorClient() {
@@ -2,13 +2,17 @@ package fk.prof.backend;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import fk.prof.backend.leader.election.KillBehavior;
+import fk.prof.backend.request.CompositeByteBufInputStream;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.VertxOptions;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.json.JsonObject;
 
 import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -235,6 +239,13 @@ public class Configuration {
         return profilesBaseDir;
     }
 
+    @AssertTrue(message = "daemonOptions aggregation.tree.array.backed requires backendHttpOptions aggregation.local")
+    private boolean isArrayBackedTreesAggregatedLocally() {
+        return daemonVerticleConfig == null || backendHttpVerticleConfig == null
+            || !Boolean.TRUE.equals(daemonVerticleConfig.getArrayBackedTrees())
+            || Boolean.TRUE.equals(backendHttpVerticleConfig.getLocalAggregation());
+    }
+
     public static class HttpClientConfig {
         @JsonProperty("connect.timeout.ms")
         private Integer connectTimeoutMs = 5000;
@@ -286,6 +297,25 @@ public class Configuration {
         @JsonProperty("parser")
         private ParserConfig parserConfig;
 
+        @JsonProperty("aggregation.local")
+        private Boolean localAggregation = false;
+
+        @JsonProperty("aggregation.stack.cache.max.entries")
+        private Integer maxStackCacheEntries = 0;
+
+        @JsonProperty("aggregation.streaming")
+        private Boolean streamingDecode = false;
+
+        @JsonProperty("aggregation.pipeline.workers")
+        private Integer aggregationWorkers = 0;
+
+        @JsonProperty("aggregation.pipeline.queue.max.wse")
+        private Integer maxQueuedWse = 16;
+
+        @Valid
+        @JsonProperty("admission")
+        private ProfileAdmissionConfig admissionConfig = new ProfileAdmissionConfig();
+
         public Integer getVerticleCount() {
             return verticleCount;
         }
@@ -298,6 +328,30 @@ public class Configuration {
             return parserConfig;
         }
 
+        public Boolean getLocalAggregation() {
+            return localAggregation;
+        }
+
+        public Integer getMaxStackCacheEntries() {
+            return maxStackCacheEntries;
+        }
+
+        public Boolean getStreamingDecode() {
+            return streamingDecode;
+        }
+
+        public Integer getAggregationWorkers() {
+            return aggregationWorkers;
+        }
+
+        public Integer getMaxQueuedWse() {
+            return maxQueuedWse;
+        }
+
+        public ProfileAdmissionConfig getAdmissionConfig() {
+            return admissionConfig;
+        }
+
         public static class ParserConfig {
             @NotNull
             @JsonProperty("recordingheader.max.bytes")
@@ -307,6 +361,12 @@ public class Configuration {
             @JsonProperty("wse.max.bytes")
             private Integer wseMaxSizeBytes;
 
+            @JsonProperty("buffer.max.components")
+            private Integer bufferMaxComponents = CompositeByteBufInputStream.DEFAULT_MAX_NUM_COMPONENTS;
+
+            @JsonProperty("buffer.coalesce.max.bytes")
+            private Integer bufferCoalesceMaxBytes = CompositeByteBufInputStream.DEFAULT_COALESCE_MAX_BYTES;
+
             public Integer getRecordingHeaderMaxSizeBytes() {
                 return recordingHeaderMaxSizeBytes;
             }
@@ -314,6 +374,118 @@ public class Configuration {
             public Integer getWseMaxSizeBytes() {
                 return wseMaxSizeBytes;
             }
+
+            public Integer getBufferMaxComponents() {
+                return bufferMaxComponents;
+            }
+
+            public Integer getBufferCoalesceMaxBytes() {
+                return bufferCoalesceMaxBytes;
+            }
+        }
+
+        public static class ProfileAdmissionConfig {
+            @JsonProperty("max.active.profiles")
+            private Integer maxActiveProfiles = 1024;
+
+            @JsonProperty("buffered.bytes.watermark")
+            private Long bufferedBytesWatermark = 256L * 1024 * 1024;
+
+            @JsonProperty("buffered.bytes.max")
+            private Long maxBufferedBytes = 512L * 1024 * 1024;
+
+            @JsonProperty("throttle.pause.ms")
+            private Integer throttlePauseMs = 100;
+
+            @JsonProperty("retry.after.secs")
+            private Integer retryAfterSecs = 30;
+
+            @JsonProperty("process.group.max.active.profiles")
+            private Integer processGroupMaxActiveProfiles = 64;
+
+            @JsonProperty("process.group.buffered.bytes.max")
+            private Long processGroupMaxBufferedBytes = 64L * 1024 * 1024;
+
+            @Valid
+            @JsonProperty("process.groups")
+            private List<ProcessGroupAdmissionConfig> processGroups = new ArrayList<>();
+
+            public Integer getMaxActiveProfiles() {
+                return maxActiveProfiles;
+            }
+
+            public Long getBufferedBytesWatermark() {
+                return bufferedBytesWatermark;
+            }
+
+            public Long getMaxBufferedBytes() {
+                return maxBufferedBytes;
+            }
+
+            public Integer getThrottlePauseMs() {
+                return throttlePauseMs;
+            }
+
+            public Integer getRetryAfterSecs() {
+                return retryAfterSecs;
+            }
+
+            public Integer getProcessGroupMaxActiveProfiles() {
+                return processGroupMaxActiveProfiles;
+            }
+
+            public Long getProcessGroupMaxBufferedBytes() {
+                return processGroupMaxBufferedBytes;
+            }
+
+            public List<ProcessGroupAdmissionConfig> getProcessGroups() {
+                return processGroups;
+            }
+        }
+
+        /**
+         * Overrides limits of {@link ProfileAdmissionConfig} for a process group
+         */
+        public static class ProcessGroupAdmissionConfig {
+            @NotNull
+            @JsonProperty("app.id")
+            private String appId;
+
+            @NotNull
+            @JsonProperty("cluster.id")
+            private String clusterId;
+
+            @NotNull
+            @JsonProperty("proc.name")
+            private String procName;
+
+            @NotNull
+            @JsonProperty("max.active.profiles")
+            private Integer maxActiveProfiles;
+
+            @NotNull
+            @JsonProperty("buffered.bytes.max")
+            private Long maxBufferedBytes;
+
+            public String getAppId() {
+                return appId;
+            }
+
+            public String getClusterId() {
+                return clusterId;
+            }
+
+            public String getProcName() {
+                return procName;
+            }
+
+            public Integer getMaxActiveProfiles() {
+                return maxActiveProfiles;
+            }
+
+            public Long getMaxBufferedBytes() {
+                return maxBufferedBytes;
+            }
         }
     }
 
@@ -436,6 +608,13 @@ public class Configuration {
         @JsonProperty("verticle.count")
         private Integer verticleCount;
 
+        /**
+         * Array backed trees are not guarded against concurrent aggregation of samples, they are updated only by merges of profiles
+         * aggregated separately, so this requires aggregation.local of backendHttpOptions
+         */
+        @JsonProperty("aggregation.tree.array.backed")
+        private Boolean arrayBackedTrees = false;
+
         public Integer getAggrWindowDurationSecs() {
             return aggrWindowDurationSecs;
         }
@@ -459,6 +638,10 @@ public class Configuration {
         public Integer getVerticleCount() {
             return verticleCount;
         }
+
+        public Boolean getArrayBackedTrees() {
+            return arrayBackedTrees;
+        }
     }
 
     public static class SerializationWorkerPoolConfig {
@@ -470,6 +653,20 @@ public class Configuration {
         @JsonProperty("timeout.secs")
         private Integer timeoutSecs;
 
+        /**
+         * Parallelism of the pool on which stacktrace trees of an aggregation window are serialized, in block format.
+         * If 0, aggregation windows are serialized sequentially, in the format readers prior to block format understand.
+         */
+        @JsonProperty("block.parallelism")
+        private Integer blockParallelism = 0;
+
+        /**
+         * Codec aggregation windows are compressed with: gzip, deflate, lz4, zstd or none. Readers detect the codec from the file itself,
+         * so userapi should be deployed with support for a codec before backend is configured to use it. Summaries are always gzip.
+         */
+        @JsonProperty("compression.codec")
+        private String compressionCodec = "gzip";
+
         public Integer getSize() {
             return size;
         }
@@ -477,27 +674,69 @@ public class Configuration {
         public Integer getTimeoutSecs() {
             return timeoutSecs;
         }
+
+        public Integer getBlockParallelism() {
+            return blockParallelism;
+        }
+
+        public String getCompressionCodec() {
+            return compressionCodec;
+        }
     }
 
     public static class StorageConfig {
+        public static final String TYPE_S3 = "s3";
+        public static final String TYPE_LOCAL = "local";
+
+        /* s3 or local. Config of the selected storage is required */
         @NotNull
+        @JsonProperty("type")
+        private String type = TYPE_S3;
+
         @Valid
         @JsonProperty("s3")
         private S3Config s3Config;
 
+        @Valid
+        @JsonProperty("local")
+        private LocalConfig localConfig;
+
         @NotNull
         @Valid
         @JsonProperty("thread.pool")
         private FixedSizeThreadPoolConfig tpConfig;
 
+        public String getType() {
+            return type;
+        }
+
         public S3Config getS3Config() {
             return s3Config;
         }
 
+        public LocalConfig getLocalConfig() {
+            return localConfig;
+        }
+
         public FixedSizeThreadPoolConfig getTpConfig() {
             return tpConfig;
         }
 
+        @AssertTrue(message = "config of the selected storage type is required")
+        private boolean isTypeConfigured() {
+            return (TYPE_S3.equals(type) && s3Config != null) || (TYPE_LOCAL.equals(type) && localConfig != null);
+        }
+
+        public static class LocalConfig {
+            @NotNull
+            @JsonProperty("base.dir")
+            private String baseDir;
+
+            public String getBaseDir() {
+                return baseDir;
+            }
+        }
+
         public static class S3Config {
             @NotNull
             @JsonProperty("endpoint")
@@ -580,6 +819,15 @@ public class Configuration {
         @JsonProperty("buffer.size")
         private Integer bufferSize;
 
+        /* size of the buffers in pool. Files are buffered in as many buffers as needed till buffer.size, before being written to
+         * storage. max.total and max.idle are in terms of these buffers. Defaults to buffer.size, i.e. a single buffer per part.
+         */
+        @JsonProperty("chunk.size")
+        private Integer chunkSize;
+
+        @JsonProperty("direct")
+        private Boolean direct = false;
+
         public Integer getMaxTotal() {
             return maxTotal;
         }
@@ -591,6 +839,14 @@ public class Configuration {
         public Integer getBufferSize() {
             return bufferSize;
         }
+
+        public Integer getChunkSize() {
+            return chunkSize != null ? chunkSize : bufferSize;
+        }
+
+        public Boolean getDirect() {
+            return direct;
+        }
     }
 
     private static DeploymentOptions toDeploymentOptions(Map<String, Object> map) {
@@ -11,6 +11,7 @@ import fk.prof.backend.ConfigManager;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
 import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.model.profile.RecordedStackSample;
 import fk.prof.metrics.MetricName;
 import fk.prof.metrics.ProcessGroupTag;
 import recording.Recorder;
@@ -28,7 +29,7 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
   private final int durationInSecs;
 
   private final Map<Long, ProfileWorkInfo> workInfoLookup;
-  private final CpuSamplingAggregationBucket cpuSamplingAggregationBucket = new CpuSamplingAggregationBucket();
+  private final CpuSamplingAggregationBucket cpuSamplingAggregationBucket;
 
   private final ProcessGroupTag processGroupTag;
   private MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY);
@@ -36,6 +37,12 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
 
   public AggregationWindow(String appId, String clusterId, String procId,
                            LocalDateTime start, int durationInSecs, long[] workIds, int workDurationInSec) {
+    this(appId, clusterId, procId, start, durationInSecs, workIds, workDurationInSec, false);
+  }
+
+  public AggregationWindow(String appId, String clusterId, String procId,
+                           LocalDateTime start, int durationInSecs, long[] workIds, int workDurationInSec,
+                           boolean arrayBackedTrees) {
     this.appId = appId;
     this.clusterId = clusterId;
     this.procId = procId;
@@ -47,6 +54,7 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
       workInfoModifiableLookup.put(workIds[i], new ProfileWorkInfo(workDurationInSec));
     }
     this.workInfoLookup = Collections.unmodifiableMap(workInfoModifiableLookup);
+    this.cpuSamplingAggregationBucket = new CpuSamplingAggregationBucket(arrayBackedTrees);
 
     this.processGroupTag = new ProcessGroupTag(appId, clusterId, procId);
     String processGroupTagStr = this.processGroupTag.toString();
@@ -138,6 +146,34 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
   }
 
   public void aggregate(Recorder.Wse wse, RecordedProfileIndexes indexes) throws AggregationFailure {
+    aggregate(wse, indexes, (StackSampleCache) null);
+  }
+
+  /**
+   * @param stackSampleCache cache of stacks of the profile to which wse belongs, null if stacks should not be cached
+   */
+  public void aggregate(Recorder.Wse wse, RecordedProfileIndexes indexes, StackSampleCache stackSampleCache) throws AggregationFailure {
+    ensureEntityIsWriteable();
+
+    switch (wse.getWType()) {
+      case cpu_sample_work:
+        Recorder.StackSampleWse stackSampleWse = wse.getCpuSampleEntry();
+        if (stackSampleWse == null) {
+          throw new AggregationFailure(String.format("work type=%s did not have associated samples", wse.getWType()));
+        }
+        cpuSamplingAggregationBucket.aggregate(stackSampleWse, indexes, stackSampleCache, mtrCSAggrFailures);
+        break;
+      default:
+        throw new AggregationFailure(String.format("Aggregation not supported for work type=%s", wse.getWType()));
+    }
+  }
+
+  /**
+   * Aggregates the wse in a bucket private to the profile instead of the shared buckets of the window.
+   * Aggregated samples are made part of the window by {@link #mergeLocalAggregation(LocalCpuSamplingAggregationBucket, RecordedProfileIndexes)}
+   */
+  public void aggregate(Recorder.Wse wse, RecordedProfileIndexes indexes, LocalCpuSamplingAggregationBucket localBucket)
+      throws AggregationFailure {
     ensureEntityIsWriteable();
 
     switch (wse.getWType()) {
@@ -146,13 +182,19 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
         if (stackSampleWse == null) {
           throw new AggregationFailure(String.format("work type=%s did not have associated samples", wse.getWType()));
         }
-        cpuSamplingAggregationBucket.aggregate(stackSampleWse, indexes, mtrCSAggrFailures);
+        localBucket.aggregate(stackSampleWse, indexes, mtrCSAggrFailures);
         break;
       default:
         throw new AggregationFailure(String.format("Aggregation not supported for work type=%s", wse.getWType()));
     }
   }
 
+  public void mergeLocalAggregation(LocalCpuSamplingAggregationBucket localBucket, RecordedProfileIndexes indexes)
+      throws AggregationFailure {
+    ensureEntityIsWriteable();
+    cpuSamplingAggregationBucket.merge(localBucket, indexes, mtrCSAggrFailures);
+  }
+
   public void updateWorkInfoWithWSE(long workId, Recorder.Wse wse) {
     ensureEntityIsWriteable();
 
@@ -163,6 +205,45 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
     workInfo.updateWSESpecificDetails(wse);
   }
 
+  /**
+   * Aggregates a cpu sampling stack sample, received through {@link fk.prof.backend.request.profile.parser.WseVisitor}
+   * @param stackSampleCache cache of stacks of the profile to which sample belongs, null if stacks should not be cached
+   */
+  public void aggregateCpuSample(RecordedStackSample stackSample, RecordedProfileIndexes indexes, StackSampleCache stackSampleCache)
+      throws AggregationFailure {
+    ensureEntityIsWriteable();
+    cpuSamplingAggregationBucket.aggregate(stackSample, indexes, stackSampleCache, mtrCSAggrFailures);
+  }
+
+  /**
+   * Aggregates a cpu sampling stack sample in a bucket private to the profile, see {@link #aggregate(Recorder.Wse, RecordedProfileIndexes, LocalCpuSamplingAggregationBucket)}
+   */
+  public void aggregateCpuSample(RecordedStackSample stackSample, RecordedProfileIndexes indexes, LocalCpuSamplingAggregationBucket localBucket)
+      throws AggregationFailure {
+    ensureEntityIsWriteable();
+    localBucket.aggregate(stackSample, indexes, mtrCSAggrFailures);
+  }
+
+  public void updateWorkInfoWithTraceCoverage(long workId, Recorder.TraceContext traceContext) {
+    ensureEntityIsWriteable();
+
+    ProfileWorkInfo workInfo = workInfoLookup.get(workId);
+    if (workInfo == null) {
+      throw new AggregationFailure(String.format("Cannot find work id=%d association in the aggregation window", workId), true);
+    }
+    workInfo.updateTraceCoverage(traceContext);
+  }
+
+  public void updateWorkInfoWithSampleCount(long workId, Recorder.WorkType workType, int sampleCount) {
+    ensureEntityIsWriteable();
+
+    ProfileWorkInfo workInfo = workInfoLookup.get(workId);
+    if (workInfo == null) {
+      throw new AggregationFailure(String.format("Cannot find work id=%d association in the aggregation window", workId), true);
+    }
+    workInfo.updateWorkTypeSamples(workType, sampleCount);
+  }
+
   public void updateRecorderInfo(long workId, Recorder.RecorderInfo recorderInfo) {
     ensureEntityIsWriteable();
 
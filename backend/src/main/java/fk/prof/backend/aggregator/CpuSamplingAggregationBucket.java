@@ -2,20 +2,33 @@ package fk.prof.backend.aggregator;
 
 import com.codahale.metrics.Meter;
 import fk.prof.aggregation.FinalizableBuilder;
+import fk.prof.aggregation.model.ArrayBackedCpuSamplingTraceDetail;
 import fk.prof.aggregation.model.MethodIdLookup;
-import fk.prof.aggregation.model.CpuSamplingFrameNode;
 import fk.prof.aggregation.model.CpuSamplingTraceDetail;
 import fk.prof.aggregation.model.FinalizedCpuSamplingAggregationBucket;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.model.profile.RecordedStackSample;
 import recording.Recorder;
 
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class CpuSamplingAggregationBucket extends FinalizableBuilder<FinalizedCpuSamplingAggregationBucket> {
   private final MethodIdLookup methodIdLookup = new MethodIdLookup();
   private final ConcurrentHashMap<String, CpuSamplingTraceDetail> traceDetailLookup = new ConcurrentHashMap<>();
+  private final boolean arrayBackedTrees;
+
+  public CpuSamplingAggregationBucket() {
+    this(false);
+  }
+
+  /**
+   * @param arrayBackedTrees if true, stacktrace trees are kept in compact {@link ArrayBackedCpuSamplingTraceDetail}s
+   *                         instead of node based {@link CpuSamplingTraceDetail}s
+   */
+  public CpuSamplingAggregationBucket(boolean arrayBackedTrees) {
+    this.arrayBackedTrees = arrayBackedTrees;
+  }
 
   /**
    * Aggregates stack samples in the bucket. Throws {@link AggregationFailure} if aggregation fails
@@ -24,56 +37,146 @@ public class CpuSamplingAggregationBucket extends FinalizableBuilder<FinalizedCp
    */
   public void aggregate(Recorder.StackSampleWse stackSampleWse, RecordedProfileIndexes indexes, Meter mtrAggrFailures)
       throws AggregationFailure {
+    aggregate(stackSampleWse, indexes, null, mtrAggrFailures);
+  }
+
+  /**
+   * Aggregates stack samples in the bucket, reusing resolved method ids and stacktrace tree paths of stacks cached in stackSampleCache.
+   * Throws {@link AggregationFailure} if aggregation fails
+   *
+   * @param stackSampleWse
+   * @param stackSampleCache cache of stacks of the profile being aggregated, null if stacks should not be cached
+   */
+  public void aggregate(Recorder.StackSampleWse stackSampleWse, RecordedProfileIndexes indexes,
+                        StackSampleCache stackSampleCache, Meter mtrAggrFailures)
+      throws AggregationFailure {
     try {
+      RecordedStackSample recordedStackSample = new RecordedStackSample();
       for (Recorder.StackSample stackSample : stackSampleWse.getStackSampleList()) {
-        for (Integer traceId : stackSample.getTraceIdList()) {//TODO: this is not necessarily the best way of doing this from temporal locality PoV (may be we want a de-duped DS), think thru this -jj
-          String trace = indexes.getTrace(traceId);
-          if (trace == null) {
-            throw new AggregationFailure("Unknown trace id encountered in stack sample, aborting aggregation of this profile");
-          }
-          CpuSamplingTraceDetail traceDetail = traceDetailLookup.computeIfAbsent(trace,
-              key -> new CpuSamplingTraceDetail()
-          );
-
-          List<Recorder.Frame> frames = stackSample.getFrameList();
-          if (frames.size() > 0) {
-
-            // global sample count increment
-            CpuSamplingFrameNode currentNode = traceDetail.getGlobalRoot();
-            currentNode.incrementOnStackSamples();
-            traceDetail.incrementSamples();
-
-            if(stackSample.getSnipped()) {
-              currentNode = traceDetail.getUnclassifiableRoot();
-              currentNode.incrementOnStackSamples();
-            }
-
-            //callee -> caller ordering in frames, so iterating bottom up in the list to merge in existing tree in root->leaf fashion
-            for (int i = frames.size() - 1; i >= 0; i--) {
-              Recorder.Frame frame = frames.get(i);
-              String method = indexes.getMethod(frame.getMethodId());
-              if (method == null) {
-                throw new AggregationFailure("Unknown method id encountered in stack sample, aborting aggregation of this profile");
-              }
-              int methodId = methodIdLookup.getOrAdd(method);
-              currentNode = currentNode.getOrAddChild(methodId, frame.getLineNo());
-              currentNode.incrementOnStackSamples();
-              //The first frame is the on-cpu frame so incrementing on-cpu samples count
-              if (i == 0) {
-                currentNode.incrementOnCpuSamples();
-              }
-            }
-          }
+        recordedStackSample.reset(stackSample);
+        aggregate(recordedStackSample, indexes, stackSampleCache);
+      }
+    } catch (Exception ex) {
+      mtrAggrFailures.mark();
+      throw ex;
+    }
+  }
+
+  /**
+   * Aggregates a single stack sample in the bucket. Throws {@link AggregationFailure} if aggregation fails
+   *
+   * @param stackSample
+   * @param stackSampleCache cache of stacks of the profile being aggregated, null if stacks should not be cached
+   */
+  public void aggregate(RecordedStackSample stackSample, RecordedProfileIndexes indexes,
+                        StackSampleCache stackSampleCache, Meter mtrAggrFailures)
+      throws AggregationFailure {
+    try {
+      aggregate(stackSample, indexes, stackSampleCache);
+    } catch (Exception ex) {
+      mtrAggrFailures.mark();
+      throw ex;
+    }
+  }
+
+  private void aggregate(RecordedStackSample stackSample, RecordedProfileIndexes indexes, StackSampleCache stackSampleCache)
+      throws AggregationFailure {
+    int frameCount = stackSample.getFrameCount();
+    StackSampleCache.Entry cachedStack = stackSampleCache == null ? null : stackSampleCache.get(stackSample, indexes);
+    int[] methodIds = stackSample.getResolvedMethodIds();
+    int[] lineNumbers = stackSample.getResolvedLineNumbers();
+
+    // method ids are resolved only if the sample is aggregated in some trace, so an unknown method id in a sample without trace ids
+    // does not fail aggregation of the profile
+    if (cachedStack == null && stackSample.getTraceCount() > 0) {
+      //callee -> caller ordering in frames, so iterating bottom up to merge in existing tree in root->leaf fashion
+      for (int i = frameCount - 1, depth = 0; i >= 0; i--, depth++) {
+        methodIds[depth] = getOrAddMethodId(stackSample.getMethodId(i), indexes);
+        lineNumbers[depth] = stackSample.getLineNumber(i);
+      }
+
+      if (stackSampleCache != null && frameCount > 0) {
+        cachedStack = stackSampleCache.put(stackSample, methodIds, lineNumbers);
+      }
+    }
+
+    for (int t = 0; t < stackSample.getTraceCount(); t++) {
+      int traceId = stackSample.getTraceId(t);
+      CpuSamplingTraceDetail.StackPath path = cachedStack == null ? null : cachedStack.getPath(traceId);
+      if (path != null) {
+        path.aggregate();
+        continue;
+      }
+
+      String trace = indexes.getTrace(traceId);
+      if (trace == null) {
+        throw new AggregationFailure("Unknown trace id encountered in stack sample, aborting aggregation of this profile");
+      }
+      CpuSamplingTraceDetail traceDetail = getOrAddTraceDetail(trace);
+
+      if (frameCount > 0) {
+        if (cachedStack != null) {
+          path = traceDetail.resolvePath(cachedStack.methodIds, cachedStack.lineNumbers, frameCount, stackSample.isSnipped());
+          cachedStack.putPath(traceId, path);
+          path.aggregate();
+        } else {
+          traceDetail.aggregate(methodIds, lineNumbers, frameCount, stackSample.isSnipped());
         }
       }
+    }
+  }
+
+  /**
+   * Merges stack samples aggregated separately for a profile in the bucket. Throws {@link AggregationFailure} if merge fails
+   *
+   * @param localBucket
+   * @param indexes indexes of the profile whose samples were aggregated in localBucket
+   */
+  public void merge(LocalCpuSamplingAggregationBucket localBucket, RecordedProfileIndexes indexes, Meter mtrAggrFailures)
+      throws AggregationFailure {
+    try {
+      localBucket.mergeInto(this, indexes);
     } catch (Exception ex) {
       mtrAggrFailures.mark();
       throw ex;
     }
   }
 
+  /**
+   * Translates recorder method id to method id of this bucket. Translation is remembered in indexes of the profile against this bucket,
+   * so signature of a method is looked up once per profile and bucket. Throws {@link AggregationFailure} if method is not present in indexes
+   */
+  int getOrAddMethodId(long recorderMethodId, RecordedProfileIndexes indexes) throws AggregationFailure {
+    int methodId = indexes.getMappedMethodId(this, recorderMethodId);
+    if (methodId == RecordedProfileIndexes.UNMAPPED_METHOD_ID) {
+      Recorder.MethodInfo methodInfo = indexes.getMethodInfo(recorderMethodId);
+      if (methodInfo == null) {
+        throw new AggregationFailure("Unknown method id encountered in stack sample, aborting aggregation of this profile");
+      }
+      methodId = getOrAddMethodId(methodInfo);
+      indexes.mapMethodId(this, recorderMethodId, methodId);
+    }
+    return methodId;
+  }
+
+  /**
+   * Interns signature of the method in {@link MethodIdLookup} of this bucket. Callers remember the returned method id, so this is called
+   * once per distinct method of a profile
+   */
+  int getOrAddMethodId(Recorder.MethodInfo methodInfo) {
+    return methodIdLookup.getOrAdd(methodInfo.getClassFqdn() + "#" + methodInfo.getMethodName() + " " + methodInfo.getSignature());
+  }
+
+  CpuSamplingTraceDetail getOrAddTraceDetail(String trace) {
+    return traceDetailLookup.computeIfAbsent(trace,
+        key -> arrayBackedTrees ? new ArrayBackedCpuSamplingTraceDetail() : new CpuSamplingTraceDetail()
+    );
+  }
+
   @Override
   protected FinalizedCpuSamplingAggregationBucket buildFinalizedEntity() {
+    // no more samples are aggregated in the bucket once it is finalized
+    traceDetailLookup.values().forEach(CpuSamplingTraceDetail::trim);
     return new FinalizedCpuSamplingAggregationBucket(
         methodIdLookup,
         traceDetailLookup
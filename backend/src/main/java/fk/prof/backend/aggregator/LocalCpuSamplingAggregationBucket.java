@@ -0,0 +1,170 @@
+package fk.prof.backend.aggregator;
+
+import com.codahale.metrics.Meter;
+import com.koloboke.collect.map.hash.HashIntObjMap;
+import com.koloboke.collect.map.hash.HashIntObjMaps;
+import com.koloboke.collect.map.hash.HashLongIntMap;
+import com.koloboke.collect.map.hash.HashLongIntMaps;
+import fk.prof.aggregation.model.ArrayBackedCpuSamplingFrameTree;
+import fk.prof.aggregation.model.MethodIdLookup;
+import fk.prof.backend.exception.AggregationFailure;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.model.profile.RecordedStackSample;
+import recording.Recorder;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates stack samples of a single recorded profile, keyed on method ids and trace ids local to the recording.
+ * Nothing here is shared with other profiles, so aggregation does not pay for any synchronization. The aggregated trees are merged
+ * in {@link CpuSamplingAggregationBucket} once, when the profile has been received completely.
+ *
+ * NOTE: This class is not thread safe, it is meant to be confined to the processor of a single profile
+ */
+public class LocalCpuSamplingAggregationBucket {
+  private static final int NO_LOCAL_METHOD_ID = -1;
+  // local method ids 0 and 1 are reserved for placeholder roots, same as in MethodIdLookup
+  private static final int FIRST_LOCAL_METHOD_ID = MethodIdLookup.UNCLASSIFIABLE_ROOT_METHOD_ID + 1;
+
+  private final HashLongIntMap localMethodIdLookup = HashLongIntMaps.newUpdatableMap();
+  // method info of recorder method at index = local method id
+  private Recorder.MethodInfo[] methodInfos = new Recorder.MethodInfo[64];
+  private int methodCount = FIRST_LOCAL_METHOD_ID;
+  // method redefinition count of indexes of the profile when localMethodIdLookup was last validated
+  private int methodRedefinitionCount = 0;
+
+  private final HashIntObjMap<LocalTraceDetail> traceDetailLookup = HashIntObjMaps.newUpdatableMap();
+
+  // reused across stack samples of the profile
+  private final RecordedStackSample recordedStackSample = new RecordedStackSample();
+
+  /**
+   * Aggregates stack samples in the bucket. Throws {@link AggregationFailure} if aggregation fails
+   *
+   * @param stackSampleWse
+   */
+  public void aggregate(Recorder.StackSampleWse stackSampleWse, RecordedProfileIndexes indexes, Meter mtrAggrFailures)
+      throws AggregationFailure {
+    try {
+      for (Recorder.StackSample stackSample : stackSampleWse.getStackSampleList()) {
+        recordedStackSample.reset(stackSample);
+        aggregate(recordedStackSample, indexes);
+      }
+    } catch (Exception ex) {
+      mtrAggrFailures.mark();
+      throw ex;
+    }
+  }
+
+  /**
+   * Aggregates a single stack sample in the bucket. Throws {@link AggregationFailure} if aggregation fails
+   *
+   * @param stackSample
+   */
+  public void aggregate(RecordedStackSample stackSample, RecordedProfileIndexes indexes, Meter mtrAggrFailures)
+      throws AggregationFailure {
+    try {
+      aggregate(stackSample, indexes);
+    } catch (Exception ex) {
+      mtrAggrFailures.mark();
+      throw ex;
+    }
+  }
+
+  /**
+   * Merges aggregated samples in the shared bucket. Method ids are translated once per distinct method of the recording
+   * and trace ids once per distinct trace. Methods are translated by the method info they had when sampled, so a recorder method id
+   * redefined during the recording is merged as two different methods.
+   */
+  void mergeInto(CpuSamplingAggregationBucket bucket, RecordedProfileIndexes indexes) throws AggregationFailure {
+    int[] methodIdMapping = new int[methodCount];
+    methodIdMapping[MethodIdLookup.GLOBAL_ROOT_METHOD_ID] = MethodIdLookup.GLOBAL_ROOT_METHOD_ID;
+    methodIdMapping[MethodIdLookup.UNCLASSIFIABLE_ROOT_METHOD_ID] = MethodIdLookup.UNCLASSIFIABLE_ROOT_METHOD_ID;
+    for (int localMethodId = FIRST_LOCAL_METHOD_ID; localMethodId < methodCount; localMethodId++) {
+      methodIdMapping[localMethodId] = bucket.getOrAddMethodId(methodInfos[localMethodId]);
+    }
+
+    traceDetailLookup.forEach((int traceId, LocalTraceDetail traceDetail) ->
+        bucket.getOrAddTraceDetail(indexes.getTrace(traceId)).merge(traceDetail.tree, methodIdMapping, traceDetail.sampleCount));
+  }
+
+  private void aggregate(RecordedStackSample stackSample, RecordedProfileIndexes indexes) throws AggregationFailure {
+    int frameCount = stackSample.getFrameCount();
+    int[] methodIds = stackSample.getResolvedMethodIds();
+    int[] lineNumbers = stackSample.getResolvedLineNumbers();
+
+    // method ids are resolved only if the sample is aggregated in some trace, so an unknown method id in a sample without trace ids
+    // does not fail aggregation of the profile
+    if (stackSample.getTraceCount() > 0) {
+      //callee -> caller ordering in frames, so iterating bottom up to merge in existing tree in root->leaf fashion
+      for (int i = frameCount - 1, depth = 0; i >= 0; i--, depth++) {
+        methodIds[depth] = getOrAddLocalMethodId(stackSample.getMethodId(i), indexes);
+        lineNumbers[depth] = stackSample.getLineNumber(i);
+      }
+    }
+
+    for (int t = 0; t < stackSample.getTraceCount(); t++) {
+      int traceId = stackSample.getTraceId(t);
+      LocalTraceDetail traceDetail = traceDetailLookup.get(traceId);
+      if (traceDetail == null) {
+        if (indexes.getTrace(traceId) == null) {
+          throw new AggregationFailure("Unknown trace id encountered in stack sample, aborting aggregation of this profile");
+        }
+        traceDetail = new LocalTraceDetail();
+        traceDetailLookup.put(traceId, traceDetail);
+      }
+
+      if (frameCount > 0) {
+        traceDetail.aggregate(methodIds, lineNumbers, frameCount, stackSample.isSnipped());
+      }
+    }
+  }
+
+  private int getOrAddLocalMethodId(long recorderMethodId, RecordedProfileIndexes indexes) throws AggregationFailure {
+    if (indexes.getMethodRedefinitionCount() != methodRedefinitionCount) {
+      // local method ids already assigned keep their method info, redefined methods get new local method ids
+      localMethodIdLookup.clear();
+      methodRedefinitionCount = indexes.getMethodRedefinitionCount();
+    }
+
+    int localMethodId = localMethodIdLookup.getOrDefault(recorderMethodId, NO_LOCAL_METHOD_ID);
+    if (localMethodId == NO_LOCAL_METHOD_ID) {
+      Recorder.MethodInfo methodInfo = indexes.getMethodInfo(recorderMethodId);
+      if (methodInfo == null) {
+        throw new AggregationFailure("Unknown method id encountered in stack sample, aborting aggregation of this profile");
+      }
+      localMethodId = methodCount++;
+      if (localMethodId == methodInfos.length) {
+        methodInfos = Arrays.copyOf(methodInfos, methodInfos.length << 1);
+      }
+      methodInfos[localMethodId] = methodInfo;
+      localMethodIdLookup.put(recorderMethodId, localMethodId);
+    }
+    return localMethodId;
+  }
+
+  private static class LocalTraceDetail {
+    private final ArrayBackedCpuSamplingFrameTree tree = new ArrayBackedCpuSamplingFrameTree(
+        MethodIdLookup.GLOBAL_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
+    private final int unclassifiableRoot = tree.getOrAddChild(ArrayBackedCpuSamplingFrameTree.ROOT,
+        MethodIdLookup.UNCLASSIFIABLE_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
+    private int sampleCount = 0;
+
+    private void aggregate(int[] methodIds, int[] lineNumbers, int frameCount, boolean snipped) {
+      int currentNode = ArrayBackedCpuSamplingFrameTree.ROOT;
+      tree.incrementOnStackSamples(currentNode);
+      sampleCount++;
+
+      if (snipped) {
+        currentNode = unclassifiableRoot;
+        tree.incrementOnStackSamples(currentNode);
+      }
+
+      for (int i = 0; i < frameCount; i++) {
+        currentNode = tree.getOrAddChild(currentNode, methodIds[i], lineNumbers[i]);
+        tree.incrementOnStackSamples(currentNode);
+      }
+      tree.incrementOnCpuSamples(currentNode);
+    }
+  }
+}
@@ -42,9 +42,17 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
 
   public void updateWSESpecificDetails(Recorder.Wse wse) {
     for (Recorder.TraceContext trace : wse.getIndexedData().getTraceCtxList()) {
-      traceCoverages.put(trace.getTraceName(), trace.getCoveragePct());
+      updateTraceCoverage(trace);
     }
-    workTypeSamples.put(wse.getWType(), workTypeSamples.getOrDefault(wse.getWType(), 0) + getSampleCount(wse));
+    updateWorkTypeSamples(wse.getWType(), getSampleCount(wse));
+  }
+
+  public void updateTraceCoverage(Recorder.TraceContext trace) {
+    traceCoverages.put(trace.getTraceName(), trace.getCoveragePct());
+  }
+
+  public void updateWorkTypeSamples(Recorder.WorkType workType, int sampleCount) {
+    workTypeSamples.put(workType, workTypeSamples.getOrDefault(workType, 0) + sampleCount);
   }
 
   public AggregationState startProfile(int recorderVersion, LocalDateTime startedAt) {
@@ -0,0 +1,161 @@
+package fk.prof.backend.aggregator;
+
+import com.codahale.metrics.Meter;
+import com.koloboke.collect.map.hash.HashLongObjMap;
+import com.koloboke.collect.map.hash.HashLongObjMaps;
+import fk.prof.aggregation.model.CpuSamplingTraceDetail;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.model.profile.RecordedStackSample;
+
+import java.util.Arrays;
+
+/**
+ * Per profile cache of stack samples seen so far. Stack samples of a profile repeat a small set of stacks, so caching the resolved
+ * method ids of frames and the resolved paths in stacktrace trees turns aggregation of a repeated stack into one hash lookup and a walk
+ * over the counters of the path, instead of resolving every frame through {@link fk.prof.backend.model.profile.RecordedProfileIndexes}
+ * and {@link fk.prof.aggregation.model.MethodIdLookup}.
+ *
+ * Stacks are keyed on a hash of (methodId, lineNo) of recorder frames and snipped flag. Entries with same hash are chained and frames
+ * are compared on lookup, so a hash collision never merges two different stacks.
+ * Redefinition of a recorder method id makes resolved method ids of cached stacks stale, so the cache is cleared whenever a method id
+ * has been redefined in indexes of the profile since last lookup. Redefinitions are rare, so entries are not invalidated selectively.
+ *
+ * NOTE: This class is not thread safe, it is meant to be confined to the processor of a single profile
+ */
+public class StackSampleCache {
+  private final int maxEntries;
+  private final Meter mtrHit, mtrMiss;
+  private final HashLongObjMap<Entry> entries = HashLongObjMaps.newUpdatableMap();
+  private int size = 0;
+  // method redefinition count of indexes of the profile when entries were last validated
+  private int methodRedefinitionCount = 0;
+
+  // hash of the stack sample last looked up, avoids hashing frames again when a missed stack sample is added
+  private long lastLookupHash;
+
+  /**
+   * @param maxEntries maximum number of distinct stacks cached, stacks seen after cache is full are not cached
+   * @param mtrHit marked on lookup of a cached stack
+   * @param mtrMiss marked on lookup of a stack which is not cached
+   */
+  public StackSampleCache(int maxEntries, Meter mtrHit, Meter mtrMiss) {
+    this.maxEntries = maxEntries;
+    this.mtrHit = mtrHit;
+    this.mtrMiss = mtrMiss;
+  }
+
+  /**
+   * @param indexes indexes of the profile, cached entries are discarded if a method id has been redefined in these since last lookup
+   * @return cached entry for stack of the sample, null if not cached
+   */
+  Entry get(RecordedStackSample stackSample, RecordedProfileIndexes indexes) {
+    if (indexes.getMethodRedefinitionCount() != methodRedefinitionCount) {
+      entries.clear();
+      size = 0;
+      methodRedefinitionCount = indexes.getMethodRedefinitionCount();
+    }
+
+    lastLookupHash = hash(stackSample);
+    for (Entry entry = entries.get(lastLookupHash); entry != null; entry = entry.next) {
+      if (entry.matches(stackSample)) {
+        mtrHit.mark();
+        return entry;
+      }
+    }
+    mtrMiss.mark();
+    return null;
+  }
+
+  /**
+   * Caches resolved method ids of the stack sample. Should be called after a
+   * {@link #get(RecordedStackSample, RecordedProfileIndexes)} of the same sample missed
+   * @param methodIds resolved method ids of frames, ordered root -> leaf
+   * @param lineNumbers line numbers of frames, ordered root -> leaf
+   * @return added entry, null if cache is full
+   */
+  Entry put(RecordedStackSample stackSample, int[] methodIds, int[] lineNumbers) {
+    if (size >= maxEntries) {
+      return null;
+    }
+
+    int frameCount = stackSample.getFrameCount();
+    long[] recorderMethodIds = new long[frameCount];
+    int[] recorderLineNumbers = new int[frameCount];
+    for (int i = 0; i < frameCount; i++) {
+      recorderMethodIds[i] = stackSample.getMethodId(i);
+      recorderLineNumbers[i] = stackSample.getLineNumber(i);
+    }
+
+    Entry entry = new Entry(recorderMethodIds, recorderLineNumbers, stackSample.isSnipped(),
+        Arrays.copyOf(methodIds, frameCount), Arrays.copyOf(lineNumbers, frameCount));
+    entry.next = entries.get(lastLookupHash);
+    entries.put(lastLookupHash, entry);
+    size++;
+    return entry;
+  }
+
+  private static long hash(RecordedStackSample stackSample) {
+    long h = stackSample.isSnipped() ? 1 : 0;
+    for (int i = 0; i < stackSample.getFrameCount(); i++) {
+      h = h * 0x9E3779B97F4A7C15L + stackSample.getMethodId(i);
+      h = h * 0x9E3779B97F4A7C15L + stackSample.getLineNumber(i);
+    }
+    return h ^ (h >>> 32);
+  }
+
+  static class Entry {
+    // recorder method ids and line numbers in callee -> caller order, as received in stack sample
+    private final long[] recorderMethodIds;
+    private final int[] recorderLineNumbers;
+    private final boolean snipped;
+
+    final int[] methodIds;
+    final int[] lineNumbers;
+
+    // resolved paths per recorder trace id. Count of traces a stack is sampled in is small, so these are scanned linearly
+    private int[] traceIds = new int[1];
+    private CpuSamplingTraceDetail.StackPath[] paths = new CpuSamplingTraceDetail.StackPath[1];
+    private int pathCount = 0;
+
+    private Entry next;
+
+    private Entry(long[] recorderMethodIds, int[] recorderLineNumbers, boolean snipped, int[] methodIds, int[] lineNumbers) {
+      this.recorderMethodIds = recorderMethodIds;
+      this.recorderLineNumbers = recorderLineNumbers;
+      this.snipped = snipped;
+      this.methodIds = methodIds;
+      this.lineNumbers = lineNumbers;
+    }
+
+    CpuSamplingTraceDetail.StackPath getPath(int traceId) {
+      for (int i = 0; i < pathCount; i++) {
+        if (traceIds[i] == traceId) {
+          return paths[i];
+        }
+      }
+      return null;
+    }
+
+    void putPath(int traceId, CpuSamplingTraceDetail.StackPath path) {
+      if (pathCount == traceIds.length) {
+        traceIds = Arrays.copyOf(traceIds, pathCount << 1);
+        paths = Arrays.copyOf(paths, pathCount << 1);
+      }
+      traceIds[pathCount] = traceId;
+      paths[pathCount] = path;
+      pathCount++;
+    }
+
+    private boolean matches(RecordedStackSample stackSample) {
+      if (this.snipped != stackSample.isSnipped() || recorderMethodIds.length != stackSample.getFrameCount()) {
+        return false;
+      }
+      for (int i = 0; i < recorderMethodIds.length; i++) {
+        if (recorderMethodIds[i] != stackSample.getMethodId(i) || recorderLineNumbers[i] != stackSample.getLineNumber(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
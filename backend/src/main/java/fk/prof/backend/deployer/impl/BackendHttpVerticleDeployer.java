@@ -7,6 +7,7 @@ import fk.prof.backend.http.BackendHttpVerticle;
 import fk.prof.backend.model.assignment.ProcessGroupDiscoveryContext;
 import fk.prof.backend.model.election.LeaderReadContext;
 import fk.prof.backend.model.aggregation.AggregationWindowDiscoveryContext;
+import fk.prof.backend.request.profile.ProfileAdmissionController;
 import io.vertx.core.*;
 
 public class BackendHttpVerticleDeployer extends VerticleDeployer {
@@ -14,6 +15,8 @@ public class BackendHttpVerticleDeployer extends VerticleDeployer {
   private final LeaderReadContext leaderReadContext;
   private final AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext;
   private final ProcessGroupDiscoveryContext processGroupDiscoveryContext;
+  // shared by all deployed instances, so that limits apply to the backend as a whole
+  private final ProfileAdmissionController profileAdmissionController;
 
   public BackendHttpVerticleDeployer(Vertx vertx,
                                      Configuration config,
@@ -24,6 +27,7 @@ public class BackendHttpVerticleDeployer extends VerticleDeployer {
     this.leaderReadContext = Preconditions.checkNotNull(leaderReadContext);
     this.aggregationWindowDiscoveryContext = Preconditions.checkNotNull(aggregationWindowDiscoveryContext);
     this.processGroupDiscoveryContext = Preconditions.checkNotNull(processGroupDiscoveryContext);
+    this.profileAdmissionController = new ProfileAdmissionController(config.getBackendHttpVerticleConfig().getAdmissionConfig());
   }
 
   @Override
@@ -33,7 +37,8 @@ public class BackendHttpVerticleDeployer extends VerticleDeployer {
 
   @Override
   protected Verticle buildVerticle() {
-    return new BackendHttpVerticle(getConfig(), leaderReadContext, aggregationWindowDiscoveryContext, processGroupDiscoveryContext);
+    return new BackendHttpVerticle(getConfig(), leaderReadContext, aggregationWindowDiscoveryContext, processGroupDiscoveryContext,
+        profileAdmissionController);
   }
 
 }
@@ -0,0 +1,17 @@
+package fk.prof.backend.exception;
+
+/**
+ * Fails request with 503, asking the client to retry after given number of seconds
+ */
+public class ServiceUnavailableException extends HttpFailure {
+  private final int retryAfterSecs;
+
+  public ServiceUnavailableException(String message, int retryAfterSecs) {
+    super(message, 503);
+    this.retryAfterSecs = retryAfterSecs;
+  }
+
+  public int getRetryAfterSecs() {
+    return retryAfterSecs;
+  }
+}
@@ -12,10 +12,12 @@ import fk.prof.backend.aggregator.AggregationWindow;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.exception.BadRequestException;
 import fk.prof.backend.exception.HttpFailure;
+import fk.prof.backend.exception.ServiceUnavailableException;
 import fk.prof.backend.model.assignment.ProcessGroupContextForPolling;
 import fk.prof.backend.model.assignment.ProcessGroupDiscoveryContext;
 import fk.prof.backend.model.election.LeaderReadContext;
 import fk.prof.backend.proto.BackendDTO;
+import fk.prof.backend.request.profile.ProfileAdmissionController;
 import fk.prof.backend.request.profile.RecordedProfileProcessor;
 import fk.prof.backend.request.profile.impl.SharedMapBasedSingleProcessingOfProfileGate;
 import fk.prof.backend.model.aggregation.AggregationWindowDiscoveryContext;
@@ -26,6 +28,7 @@ import fk.prof.metrics.ProcessGroupTag;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
@@ -52,12 +55,15 @@ public class BackendHttpVerticle extends AbstractVerticle {
   private final LeaderReadContext leaderReadContext;
   private final AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext;
   private final ProcessGroupDiscoveryContext processGroupDiscoveryContext;
+  private final ProfileAdmissionController profileAdmissionController;
   private final int backendHttpPort;
   private final String ipAddress;
   private final int backendVersion;
 
   private LocalMap<Long, Boolean> workIdsInPipeline;
   private ProfHttpClient httpClient;
+  // null if wse are aggregated on the event loop receiving the profile
+  private WorkerExecutor aggregationWorkerExecutor;
 
   private MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY);
   private Counter ctrLeaderSelfReq = metricRegistry.counter(MetricName.Backend_Self_Leader_Request.get());
@@ -66,7 +72,8 @@ public class BackendHttpVerticle extends AbstractVerticle {
   public BackendHttpVerticle(Configuration config,
                              LeaderReadContext leaderReadContext,
                              AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext,
-                             ProcessGroupDiscoveryContext processGroupDiscoveryContext) {
+                             ProcessGroupDiscoveryContext processGroupDiscoveryContext,
+                             ProfileAdmissionController profileAdmissionController) {
     this.config = config;
     this.backendHttpPort = config.getBackendHttpServerOpts().getPort();
     this.ipAddress = config.getIpAddress();
@@ -75,6 +82,7 @@ public class BackendHttpVerticle extends AbstractVerticle {
     this.leaderReadContext = leaderReadContext;
     this.aggregationWindowDiscoveryContext = aggregationWindowDiscoveryContext;
     this.processGroupDiscoveryContext = processGroupDiscoveryContext;
+    this.profileAdmissionController = profileAdmissionController;
   }
 
   @Override
@@ -84,11 +92,22 @@ public class BackendHttpVerticle extends AbstractVerticle {
 
     Router router = setupRouting();
     workIdsInPipeline = vertx.sharedData().getLocalMap("WORK_ID_PIPELINE");
+    int aggregationWorkers = config.getBackendHttpVerticleConfig().getAggregationWorkers();
+    if (aggregationWorkers > 0) {
+      aggregationWorkerExecutor = vertx.createSharedWorkerExecutor("aggregation.pipeline.threadpool", aggregationWorkers);
+    }
     vertx.createHttpServer(config.getBackendHttpServerOpts())
         .requestHandler(router::accept)
         .listen(config.getBackendHttpServerOpts().getPort(), http -> completeStartup(http, fut));
   }
 
+  @Override
+  public void stop() {
+    if (aggregationWorkerExecutor != null) {
+      aggregationWorkerExecutor.close();
+    }
+  }
+
   private Router setupRouting() {
     Router router = Router.router(vertx);
     router.route().handler(LoggerHandler.create());
@@ -119,20 +138,23 @@ public class BackendHttpVerticle extends AbstractVerticle {
   }
 
   private void handlePostProfile(RoutingContext context) {
+    ProfileAdmissionController.Admission admission;
+    try {
+      admission = profileAdmissionController.admit();
+    } catch (ServiceUnavailableException ex) {
+      HttpHelper.handleFailure(context, ex);
+      return;
+    }
+
     RecordedProfileProcessor profileProcessor = new RecordedProfileProcessor(
         context,
         aggregationWindowDiscoveryContext,
         new SharedMapBasedSingleProcessingOfProfileGate(workIdsInPipeline),
-        config().getJsonObject("parser").getInteger("recordingheader.max.bytes", 1024),
-        config().getJsonObject("parser").getInteger("wse.max.bytes", 1024 * 1024));
+        config.getBackendHttpVerticleConfig(),
+        aggregationWorkerExecutor,
+        admission);
 
-    context.response().endHandler(v -> {
-      try {
-        profileProcessor.close();
-      } catch (Exception ex) {
-        logger.error("Unexpected error when closing profile: {}", ex, profileProcessor);
-      }
-    });
+    context.response().endHandler(v -> closeProfile(profileProcessor));
 
     context.request()
         .handler(profileProcessor)
@@ -140,10 +162,13 @@ public class BackendHttpVerticle extends AbstractVerticle {
           HttpFailure httpFailure = HttpFailure.failure(th);
           HttpHelper.handleFailure(context, httpFailure);
         })
-        .endHandler(v -> {
+        .endHandler(v -> profileProcessor.whenAggregated(aggregated -> {
           try {
             if (!context.response().ended()) {
-              if(profileProcessor.isProcessed()) {
+              boolean processed = profileProcessor.isProcessed();
+              // profile is closed before responding, so that its state is final by the time recorder receives the response
+              closeProfile(profileProcessor);
+              if(processed) {
                 context.response().end();
               } else {
                 throw new AggregationFailure("Incomplete profile received: " + profileProcessor);
@@ -153,7 +178,15 @@ public class BackendHttpVerticle extends AbstractVerticle {
             HttpFailure httpFailure = HttpFailure.failure(ex);
             HttpHelper.handleFailure(context, httpFailure);
           }
-        });
+        }));
+  }
+
+  private void closeProfile(RecordedProfileProcessor profileProcessor) {
+    try {
+      profileProcessor.close();
+    } catch (Exception ex) {
+      logger.error("Unexpected error when closing profile: {}", ex, profileProcessor);
+    }
   }
 
   private void handlePostPoll(RoutingContext context) {
@@ -1,6 +1,7 @@
 package fk.prof.backend.http;
 
 import fk.prof.backend.exception.HttpFailure;
+import fk.prof.backend.exception.ServiceUnavailableException;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.Handler;
 import io.vertx.core.http.HttpMethod;
@@ -30,6 +31,9 @@ public class HttpHelper {
     logger.error("Http error path={}, time={}, {}", exception, requestPath, currentTimeMillis);
 
     if (!context.response().ended()) {
+      if (exception instanceof ServiceUnavailableException) {
+        context.response().putHeader("Retry-After", String.valueOf(((ServiceUnavailableException) exception).getRetryAfterSecs()));
+      }
       context.response().setStatusCode(exception.getStatusCode());
       context.response().end(error.encode());
     }
@@ -46,6 +46,7 @@ public class AggregationWindowPlanner {
   private final Recorder.ProcessGroup processGroup;
   private final int aggregationWindowDurationInSecs;
   private final int policyRefreshBufferInSecs;
+  private final boolean arrayBackedTrees;
   private final long aggregationWindowStartupTimer;
   private final Future<Long> aggregationWindowScheduleTimer;
 
@@ -72,7 +73,8 @@ public class AggregationWindowPlanner {
                                   ProcessGroupContextForScheduling processGroupContextForScheduling,
                                   ActiveAggregationWindows activeAggregationWindows,
                                   PolicyRequestor policyForBackendRequestor,
-                                  Consumer<FinalizedAggregationWindow> aggregationWindowWriter) {
+                                  Consumer<FinalizedAggregationWindow> aggregationWindowWriter,
+                                  boolean arrayBackedTrees) {
     this.vertx = Preconditions.checkNotNull(vertx);
     this.backendId = backendId;
     this.processGroupContextForScheduling = Preconditions.checkNotNull(processGroupContextForScheduling);
@@ -84,6 +86,7 @@ public class AggregationWindowPlanner {
     this.workSlotPool = Preconditions.checkNotNull(workSlotPool);
     this.aggregationWindowDurationInSecs = aggregationWindowDurationInSecs;
     this.policyRefreshBufferInSecs = policyRefreshBufferInSecs;
+    this.arrayBackedTrees = arrayBackedTrees;
 
     processGroupTag = new ProcessGroupTag(processGroup.getAppId(), processGroup.getCluster(), processGroup.getProcName());
     String processGroupStr = processGroupTag.toString();
@@ -249,7 +252,8 @@ public class AggregationWindowPlanner {
         windowStart,
         aggregationWindowDurationInSecs,
         workIds,
-        latestRecordingPolicy.getDuration());
+        latestRecordingPolicy.getDuration(),
+        arrayBackedTrees);
     processGroupContextForScheduling.updateWorkAssignmentSchedule(workAssignmentSchedule);
     activeAggregationWindows.associateAggregationWindow(workIds, currentAggregationWindow);
   }
@@ -28,6 +28,7 @@ public class AggregationWindowPlannerStore {
   private final int aggregationWindowDurationInSecs;
   private final int policyRefreshBufferInSecs;
   private final int thresholdForDefunctRecorderInSecs;
+  private final boolean arrayBackedTrees;
 
   public AggregationWindowPlannerStore(Vertx vertx,
                                        int backendId,
@@ -40,7 +41,8 @@ public class AggregationWindowPlannerStore {
                                        WorkSlotPool workSlotPool,
                                        ActiveAggregationWindows activeAggregationWindows,
                                        PolicyRequestor policyForBackendRequestor,
-                                       Consumer<FinalizedAggregationWindow> aggregationWindowWriter) {
+                                       Consumer<FinalizedAggregationWindow> aggregationWindowWriter,
+                                       boolean arrayBackedTrees) {
     this.vertx = Preconditions.checkNotNull(vertx);
     this.backendId = backendId;
     this.policyForBackendRequestor = Preconditions.checkNotNull(policyForBackendRequestor);
@@ -54,6 +56,7 @@ public class AggregationWindowPlannerStore {
     this.aggregationWindowDurationInSecs = windowDurationInSecs;
     this.policyRefreshBufferInSecs = policyRefreshBufferInSecs;
     this.thresholdForDefunctRecorderInSecs = thresholdForDefunctRecorderInSecs;
+    this.arrayBackedTrees = arrayBackedTrees;
   }
 
   /**
@@ -73,7 +76,8 @@ public class AggregationWindowPlannerStore {
           processGroupContextForScheduling,
           activeAggregationWindows,
           policyForBackendRequestor,
-          aggregationWindowWriter);
+          aggregationWindowWriter,
+          arrayBackedTrees);
       this.lookup.put(processGroupContextForScheduling.getProcessGroup(), aggregationWindowPlanner);
       return true;
     }
@@ -2,17 +2,27 @@ package fk.prof.backend.model.profile;
 
 import com.koloboke.collect.map.hash.HashIntObjMap;
 import com.koloboke.collect.map.hash.HashIntObjMaps;
+import com.koloboke.collect.map.hash.HashLongIntMap;
+import com.koloboke.collect.map.hash.HashLongIntMaps;
 import com.koloboke.collect.map.hash.HashLongObjMap;
 import com.koloboke.collect.map.hash.HashLongObjMaps;
+import fk.prof.backend.aggregator.CpuSamplingAggregationBucket;
 import recording.Recorder;
 
 import java.util.List;
 
 public class RecordedProfileIndexes {
-  private final HashLongObjMap<String> methodLookup = HashLongObjMaps.newUpdatableMap();
+  public static final int UNMAPPED_METHOD_ID = -1;
+
+  private final HashLongObjMap<Recorder.MethodInfo> methodLookup = HashLongObjMaps.newUpdatableMap();
   private final HashIntObjMap<String> traceLookup = HashIntObjMaps.newUpdatableMap();
+  // recorder method id -> method id in mappedBucket, the cpu sampling bucket the profile was last aggregated in
+  private final HashLongIntMap mappedMethodIdLookup = HashLongIntMaps.newMutableMap();
+  private CpuSamplingAggregationBucket mappedBucket;
+  // count of method ids redefined so far, lets caches of resolved method ids detect that they may be stale
+  private int methodRedefinitionCount = 0;
 
-  public String getMethod(long methodId) {
+  public Recorder.MethodInfo getMethodInfo(long methodId) {
     return methodLookup.get(methodId);
   }
 
@@ -20,16 +30,57 @@ public class RecordedProfileIndexes {
     return traceLookup.get(traceId);
   }
 
+  /**
+   * @param bucket cpu sampling bucket whose method ids are being looked up, compared by identity
+   * @return method id in the bucket which has been mapped to the recorder method id, {@link #UNMAPPED_METHOD_ID} if not mapped yet
+   */
+  public int getMappedMethodId(CpuSamplingAggregationBucket bucket, long methodId) {
+    if (bucket != mappedBucket) {
+      return UNMAPPED_METHOD_ID;
+    }
+    return mappedMethodIdLookup.getOrDefault(methodId, UNMAPPED_METHOD_ID);
+  }
+
+  /**
+   * Mappings are only kept for one bucket at a time, mapping a method id of another bucket discards mappings of the previous one
+   */
+  public void mapMethodId(CpuSamplingAggregationBucket bucket, long methodId, int mappedMethodId) {
+    if (bucket != mappedBucket) {
+      mappedMethodIdLookup.clear();
+      mappedBucket = bucket;
+    }
+    mappedMethodIdLookup.put(methodId, mappedMethodId);
+  }
+
+  /**
+   * @return count of recorder method ids which have been redefined with a new method info, method ids resolved before a change in
+   * this count may be stale
+   */
+  public int getMethodRedefinitionCount() {
+    return methodRedefinitionCount;
+  }
+
   public void update(Recorder.IndexedData indexedData) {
     updateMethodIndex(indexedData.getMethodInfoList());
     updateTraceIndex(indexedData.getTraceCtxList());
   }
 
+  public void updateMethod(Recorder.MethodInfo methodInfo) {
+    if (methodLookup.put(methodInfo.getMethodId(), methodInfo) != null) {
+      // method id has been redefined, mapping has to be resolved again
+      mappedMethodIdLookup.remove(methodInfo.getMethodId());
+      methodRedefinitionCount++;
+    }
+  }
+
+  public void updateTrace(Recorder.TraceContext traceContext) {
+    traceLookup.put(traceContext.getTraceId(), traceContext.getTraceName());
+  }
+
   private void updateMethodIndex(List<Recorder.MethodInfo> methods) {
     if (methods != null) {
       for (Recorder.MethodInfo methodInfo : methods) {
-        methodLookup.put(methodInfo.getMethodId(),
-            methodInfo.getClassFqdn() + "#" + methodInfo.getMethodName() + " " + methodInfo.getSignature());
+        updateMethod(methodInfo);
       }
     }
   }
@@ -37,7 +88,7 @@ public class RecordedProfileIndexes {
   private void updateTraceIndex(List<Recorder.TraceContext> traces) {
     if (traces != null) {
       for (Recorder.TraceContext traceContext : traces) {
-        traceLookup.put(traceContext.getTraceId(), traceContext.getTraceName());
+        updateTrace(traceContext);
       }
     }
   }
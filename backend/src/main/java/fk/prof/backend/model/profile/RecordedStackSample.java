@@ -0,0 +1,113 @@
+package fk.prof.backend.model.profile;
+
+import recording.Recorder;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mutable holder of a single stack sample received from recorder, with frames and trace ids held in primitive arrays.
+ * An instance is meant to be reused across samples, so aggregating a sample does not allocate per frame.
+ * Frames are kept in the order they are received, that is callee -> caller
+ */
+public class RecordedStackSample {
+  private long[] methodIds = new long[64];
+  private int[] lineNumbers = new int[64];
+  private int frameCount = 0;
+  private int[] traceIds = new int[4];
+  private int traceCount = 0;
+  private boolean snipped = false;
+
+  // frames resolved by aggregator, ordered root -> leaf
+  private int[] resolvedMethodIds = new int[64];
+  private int[] resolvedLineNumbers = new int[64];
+
+  public void reset() {
+    frameCount = 0;
+    traceCount = 0;
+    snipped = false;
+  }
+
+  /**
+   * Resets the holder with frames, trace ids and snipped flag of stackSample
+   */
+  public void reset(Recorder.StackSample stackSample) {
+    reset();
+    List<Recorder.Frame> frames = stackSample.getFrameList();
+    for (int i = 0; i < frames.size(); i++) {
+      Recorder.Frame frame = frames.get(i);
+      addFrame(frame.getMethodId(), frame.getLineNo());
+    }
+    for (int i = 0; i < stackSample.getTraceIdCount(); i++) {
+      addTraceId(stackSample.getTraceId(i));
+    }
+    this.snipped = stackSample.getSnipped();
+  }
+
+  public void addFrame(long methodId, int lineNumber) {
+    if (frameCount == methodIds.length) {
+      methodIds = Arrays.copyOf(methodIds, frameCount << 1);
+      lineNumbers = Arrays.copyOf(lineNumbers, frameCount << 1);
+      resolvedMethodIds = new int[frameCount << 1];
+      resolvedLineNumbers = new int[frameCount << 1];
+    }
+    methodIds[frameCount] = methodId;
+    lineNumbers[frameCount] = lineNumber;
+    frameCount++;
+  }
+
+  public void addTraceId(int traceId) {
+    if (traceCount == traceIds.length) {
+      traceIds = Arrays.copyOf(traceIds, traceCount << 1);
+    }
+    traceIds[traceCount++] = traceId;
+  }
+
+  public void setSnipped(boolean snipped) {
+    this.snipped = snipped;
+  }
+
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * @param index of frame, 0 being the leaf frame
+   */
+  public long getMethodId(int index) {
+    return methodIds[index];
+  }
+
+  /**
+   * @param index of frame, 0 being the leaf frame
+   */
+  public int getLineNumber(int index) {
+    return lineNumbers[index];
+  }
+
+  public int getTraceCount() {
+    return traceCount;
+  }
+
+  public int getTraceId(int index) {
+    return traceIds[index];
+  }
+
+  public boolean isSnipped() {
+    return snipped;
+  }
+
+  /**
+   * Scratch space for aggregators to resolve frames of the sample in, ordered root -> leaf. Has room for all frames of the sample
+   */
+  public int[] getResolvedMethodIds() {
+    return resolvedMethodIds;
+  }
+
+  /**
+   * Scratch space for aggregators to resolve frames of the sample in, ordered root -> leaf. Has room for all frames of the sample
+   */
+  public int[] getResolvedLineNumbers() {
+    return resolvedLineNumbers;
+  }
+}
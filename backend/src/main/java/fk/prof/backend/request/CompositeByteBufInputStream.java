@@ -1,36 +1,114 @@
 package fk.prof.backend.request;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.CompositeByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 
+/**
+ * InputStream over chunks of a request, held as a ring of buffers. Ownership of accepted buffers is transferred to the stream.
+ * Consumed bytes are never compacted, a buffer is released once all of its bytes lie before the mark. Bytes are copied only when
+ * - a chunk no larger than coalesceMaxBytes is accepted, it is appended to a buffer allocated by the stream, so that small chunks
+ *   do not occupy a slot of the ring each
+ * - ring is full, bytes from the mark onwards are consolidated into a single buffer
+ * Buffers of the stream are allocated from a pooled allocator and released back when consumed or when stream is closed.
+ *
+ * NOTE: Not thread safe, should be used only on the event loop of the request
+ */
 public class CompositeByteBufInputStream extends InputStream {
-  private final CompositeByteBuf buffer;
+  public static final int DEFAULT_MAX_NUM_COMPONENTS = 64;
+  public static final int DEFAULT_COALESCE_MAX_BYTES = 512;
+  private static final int MAX_VARINT_BYTES = 10;
+  // buffers allocated to coalesce small chunks accommodate these many of them
+  private static final int COALESCED_CHUNKS_PER_BUFFER = 16;
+  private static final ByteBuffer[] EMPTY_NIO_BUFFERS = new ByteBuffer[] {ByteBuffer.allocate(0)};
+
+  private final ByteBufAllocator allocator;
+  private final int maxNumComponents;
+  private final int coalesceMaxBytes;
+
+  // ring of components, readable bytes of a component are never consumed, position in the stream is tracked in absolute offsets
+  private final ByteBuf[] components;
+  // absolute offset of first readable byte of corresponding component
+  private final long[] componentStarts;
+  private int head = 0;
+  private int count = 0;
+  // last component was allocated by the stream, so that small chunks can be appended to it
+  private boolean tailOwned = false;
+
+  private long position = 0;
+  private long mark = 0;
+  private long limit = 0;
+  // index, relative to head, of component holding the byte at position, equal to count if position is at limit
+  private int current = 0;
+
+  private long copiedBytes = 0;
 
   public CompositeByteBufInputStream() {
-    buffer = Unpooled.compositeBuffer();
+    this(DEFAULT_MAX_NUM_COMPONENTS);
   }
 
   public CompositeByteBufInputStream(int maxNumComponents) {
-    buffer = Unpooled.compositeBuffer(maxNumComponents);
+    this(PooledByteBufAllocator.DEFAULT, maxNumComponents, DEFAULT_COALESCE_MAX_BYTES);
+  }
+
+  /**
+   * @param allocator allocates buffers to which chunks are copied
+   * @param maxNumComponents count of buffers held by the ring, beyond which buffers are consolidated
+   * @param coalesceMaxBytes chunks up to this size are copied to a buffer of the stream instead of being held as is, 0 disables it
+   */
+  public CompositeByteBufInputStream(ByteBufAllocator allocator, int maxNumComponents, int coalesceMaxBytes) {
+    this.allocator = allocator;
+    this.maxNumComponents = Math.max(2, maxNumComponents);
+    this.coalesceMaxBytes = Math.max(0, coalesceMaxBytes);
+    this.components = new ByteBuf[this.maxNumComponents];
+    this.componentStarts = new long[this.maxNumComponents];
   }
 
   public void accept(ByteBuf newSource) {
-    buffer.addComponent(true, newSource);
+    int length = newSource.readableBytes();
+    if (length == 0) {
+      newSource.release();
+      return;
+    }
+
+    if (length <= coalesceMaxBytes) {
+      ByteBuf tail = tailOwned ? component(count - 1) : null;
+      if (tail == null || tail.writableBytes() < length) {
+        tail = allocator.heapBuffer(coalesceMaxBytes * COALESCED_CHUNKS_PER_BUFFER);
+        addComponent(tail, true);
+      }
+      tail.writeBytes(newSource);
+      newSource.release();
+      copiedBytes += length;
+    } else {
+      addComponent(newSource, false);
+    }
+    limit += length;
+    current = locate(position, current);
   }
 
   @Override
   public int read() throws IOException {
-    if (!buffer.isReadable()) {
+    if (position == limit) {
       return -1;
     }
-    int readByte = buffer.readByte() & 0xff;
+    ByteBuf component = component(current);
+    int offset = (int) (position - componentStarts[ringIndex(current)]);
+    int readByte = component.getByte(component.readerIndex() + offset) & 0xff;
+    position++;
+    if (offset + 1 == component.readableBytes()) {
+      current++;
+    }
     return readByte;
   }
 
@@ -42,7 +120,17 @@ public class CompositeByteBufInputStream extends InputStream {
     }
 
     len = Math.min(available, len);
-    buffer.readBytes(b, off, len);
+    for (int done = 0; done < len; ) {
+      ByteBuf component = component(current);
+      int offset = (int) (position - componentStarts[ringIndex(current)]);
+      int bytes = Math.min(len - done, component.readableBytes() - offset);
+      component.getBytes(component.readerIndex() + offset, b, off + done, bytes);
+      done += bytes;
+      position += bytes;
+      if (offset + bytes == component.readableBytes()) {
+        current++;
+      }
+    }
     return len;
   }
 
@@ -57,43 +145,313 @@ public class CompositeByteBufInputStream extends InputStream {
 
   private int skipBytes(int n) throws IOException {
     int nBytes = Math.min(available(), n);
-    buffer.skipBytes(nBytes);
+    position += nBytes;
+    current = locate(position, current);
     return nBytes;
   }
 
   @Override
   public int available() throws IOException {
-    return buffer.readableBytes();
+    return (int) (limit - position);
+  }
+
+  /**
+   * @return bytes copied while accepting chunks, by coalescing small chunks or consolidating buffers of the ring
+   */
+  public long getCopiedBytes() {
+    return copiedBytes;
+  }
+
+  /**
+   * Reads a protobuf varint32 directly off the buffers. Position is advanced only if the complete varint was available
+   * Throws EOFException if buffer ends before the last byte of varint
+   * Throws InvalidProtocolBufferException if varint is malformed
+   *
+   * @return decoded value
+   * @throws IOException
+   */
+  public int readRawVarint32() throws IOException {
+    long endPosition = Math.min(limit, position + MAX_VARINT_BYTES);
+    int result = 0;
+    int index = current;
+    int shift = 0;
+    for (long pos = position; pos < endPosition; pos++, shift += 7) {
+      ByteBuf component = component(index);
+      int offset = (int) (pos - componentStarts[ringIndex(index)]);
+      byte b = component.getByte(component.readerIndex() + offset);
+      if (offset + 1 == component.readableBytes()) {
+        index++;
+      }
+      // bytes beyond 32 bits are only present for negative values sign extended to 64 bits, they are discarded
+      if (shift < 32) {
+        result |= (b & 0x7f) << shift;
+      }
+      if ((b & 0x80) == 0) {
+        position = pos + 1;
+        current = index;
+        return result;
+      }
+    }
+
+    if (endPosition - position == MAX_VARINT_BYTES) {
+      throw new InvalidProtocolBufferException("Malformed varint32, no terminating byte found in " + MAX_VARINT_BYTES + " bytes");
+    }
+    throw new EOFException();
+  }
+
+  /**
+   * Parses a protobuf message from next length bytes, decoding directly from nio buffers of the underlying components instead of
+   * copying the bytes through this stream. Position is advanced past the message only if parsing succeeds, so mark/reset
+   * semantics are same as reading the message off the stream
+   * NOTE: Caller should ensure that length bytes are available
+   *
+   * @param parser
+   * @param length size of serialized message in bytes
+   * @return parsed message
+   * @throws InvalidProtocolBufferException
+   */
+  public <T> T parse(Parser<T> parser, int length) throws InvalidProtocolBufferException {
+    T message = parser.parseFrom(codedInputStream(length));
+    advance(length);
+    return message;
+  }
+
+  /**
+   * Same as {@link #parse(Parser, int)}, additionally updates checksum with the bytes of message as they are consumed by the parser,
+   * so that message bytes are read only once, instead of once for parsing and again for checksum
+   *
+   * @param parser
+   * @param length size of serialized message in bytes
+   * @param checksum updated with bytes of the message
+   * @return parsed message
+   * @throws InvalidProtocolBufferException
+   */
+  public <T> T parse(Parser<T> parser, int length, Checksum checksum) throws InvalidProtocolBufferException {
+    ByteBuffer[] nioBuffers = nioBuffers(position, length);
+    T message = parser.parseFrom(CodedInputStream.newInstance(new ByteBuffersInputStream(nioBuffers, checksum)));
+    advance(length);
+    return message;
+  }
+
+  /**
+   * Returns a CodedInputStream over next length bytes, backed by nio buffers of the underlying components. If the bytes lie within
+   * a single component, the stream decodes directly from its nio buffer, otherwise from a stream over nio buffers of all spanned
+   * components. Position is not advanced
+   * NOTE: Caller should ensure that length bytes are available. Returned stream is valid only till read bytes are discarded or
+   * next chunk is accepted
+   *
+   * @param length
+   * @return
+   */
+  public CodedInputStream codedInputStream(int length) {
+    ByteBuffer[] nioBuffers = nioBuffers(position, length);
+    return nioBuffers.length == 1
+        ? CodedInputStream.newInstance(nioBuffers[0])
+        : CodedInputStream.newInstance(new ByteBuffersInputStream(nioBuffers, null));
   }
   
-  public synchronized void markAndDiscardRead() {
-    buffer.markReaderIndex();
-    buffer.discardReadBytes();
+  /**
+   * Marks current position and releases buffers all of whose bytes have been read. Remaining bytes are not moved
+   */
+  public void markAndDiscardRead() {
+    mark = position;
+    while (count > 0 && componentEnd(0) <= mark) {
+      int index = ringIndex(0);
+      components[index].release();
+      components[index] = null;
+      head = ringIndex(1);
+      count--;
+      current--;
+    }
+    if (count == 0) {
+      tailOwned = false;
+    }
   }
 
   public void resetMark() throws IOException {
-    buffer.resetReaderIndex();
+    position = mark;
+    current = locate(position, 0);
   }
 
   @Override
   public void close() throws IOException {
-    buffer.release();
+    for (int i = 0; i < count; i++) {
+      int index = ringIndex(i);
+      components[index].release();
+      components[index] = null;
+    }
+    count = 0;
+    current = 0;
+    tailOwned = false;
   }
 
-  public void updateChecksumSinceMarked(Adler32 checksum) {
-    int currentReaderIndex = buffer.readerIndex();
-
-    // reset the readerIndex buffer, so we can get marked readerIndex
-    buffer.resetReaderIndex();
-    int bytesRead = currentReaderIndex - buffer.readerIndex();
+  public void updateChecksumSinceMarked(Checksum checksum) {
+    int bytesRead = (int) (position - mark);
     if(bytesRead > 0) {
-      ByteBuffer[] nioBuffers = buffer.nioBuffers(buffer.readerIndex(), bytesRead);
+      ByteBuffer[] nioBuffers = nioBuffers(mark, bytesRead);
       for(int i = 0; i < nioBuffers.length; ++i) {
-        checksum.update(nioBuffers[i]);
+        updateChecksum(checksum, nioBuffers[i]);
       }
     }
+  }
 
-    // fix the reader index
-    buffer.readerIndex(currentReaderIndex);
+  /**
+   * Returns nio buffers over length bytes starting at absolute offset from, one for every component spanned
+   */
+  private ByteBuffer[] nioBuffers(long from, int length) {
+    if (length == 0) {
+      return EMPTY_NIO_BUFFERS;
+    }
+    long to = from + length;
+    int first = locate(from, current);
+    int last = first;
+    while (componentEnd(last) < to) {
+      last++;
+    }
+
+    ByteBuffer[] nioBuffers = new ByteBuffer[last - first + 1];
+    for (int i = first; i <= last; i++) {
+      ByteBuf component = component(i);
+      long start = componentStarts[ringIndex(i)];
+      int offset = (int) (Math.max(from, start) - start);
+      int bytes = (int) (Math.min(to, componentEnd(i)) - start) - offset;
+      nioBuffers[i - first] = component.nioBuffer(component.readerIndex() + offset, bytes);
+    }
+    return nioBuffers;
+  }
+
+  private void advance(int length) {
+    position += length;
+    current = locate(position, current);
+  }
+
+  /**
+   * Returns index, relative to head, of component holding byte at absolute offset pos, count if pos is at limit.
+   * Search begins at component from if it does not lie beyond pos
+   */
+  private int locate(long pos, int from) {
+    int index = Math.min(from, count - 1);
+    if (index < 0 || componentStarts[ringIndex(index)] > pos) {
+      index = 0;
+    }
+    while (index < count && componentEnd(index) <= pos) {
+      index++;
+    }
+    return index;
+  }
+
+  private void addComponent(ByteBuf component, boolean owned) {
+    if (count == maxNumComponents) {
+      consolidate();
+    }
+    int index = ringIndex(count);
+    components[index] = component;
+    componentStarts[index] = limit;
+    count++;
+    tailOwned = owned;
+  }
+
+  /**
+   * Copies bytes from mark onwards into a single buffer, which replaces all components of the ring
+   */
+  private void consolidate() {
+    int bytes = (int) (limit - mark);
+    ByteBuf consolidated = allocator.heapBuffer(bytes + coalesceMaxBytes * COALESCED_CHUNKS_PER_BUFFER);
+    for (int i = 0; i < count; i++) {
+      int index = ringIndex(i);
+      ByteBuf component = components[index];
+      int offset = (int) (Math.max(mark - componentStarts[index], 0));
+      consolidated.writeBytes(component, component.readerIndex() + offset, component.readableBytes() - offset);
+      component.release();
+      components[index] = null;
+    }
+    copiedBytes += bytes;
+
+    head = 0;
+    count = 1;
+    components[0] = consolidated;
+    componentStarts[0] = mark;
+    tailOwned = true;
+    current = locate(position, 0);
+  }
+
+  private ByteBuf component(int relativeIndex) {
+    return components[ringIndex(relativeIndex)];
+  }
+
+  private long componentEnd(int relativeIndex) {
+    int index = ringIndex(relativeIndex);
+    return componentStarts[index] + components[index].readableBytes();
+  }
+
+  private int ringIndex(int relativeIndex) {
+    return (head + relativeIndex) % maxNumComponents;
+  }
+
+  /**
+   * Updates checksum with remaining bytes of nio buffer. java 8 supports updating from nio buffer only for {@link Adler32},
+   * other checksums are updated from backing array of the buffer or from a copy of the buffer if it is direct
+   */
+  private static void updateChecksum(Checksum checksum, ByteBuffer nioBuffer) {
+    if (checksum instanceof Adler32) {
+      ((Adler32) checksum).update(nioBuffer);
+    } else if (nioBuffer.hasArray()) {
+      checksum.update(nioBuffer.array(), nioBuffer.arrayOffset() + nioBuffer.position(), nioBuffer.remaining());
+      nioBuffer.position(nioBuffer.limit());
+    } else {
+      byte[] copy = new byte[nioBuffer.remaining()];
+      nioBuffer.get(copy);
+      checksum.update(copy, 0, copy.length);
+    }
+  }
+
+  /**
+   * Sequential view over nio buffers spanning a message which does not sit in a single component. Reads are bulk copies out of
+   * the nio buffers and are unsynchronized, unlike reads through the outer stream. If checksum is provided, it is updated with the
+   * bytes read
+   */
+  private static class ByteBuffersInputStream extends InputStream {
+    private final ByteBuffer[] buffers;
+    private final Checksum checksum;
+    private int current = 0;
+
+    ByteBuffersInputStream(ByteBuffer[] buffers, Checksum checksum) {
+      this.buffers = buffers;
+      this.checksum = checksum;
+    }
+
+    @Override
+    public int read() throws IOException {
+      ByteBuffer buffer = currentBuffer();
+      if (buffer == null) {
+        return -1;
+      }
+      int readByte = buffer.get() & 0xff;
+      if (checksum != null) {
+        checksum.update(readByte);
+      }
+      return readByte;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = currentBuffer();
+      if (buffer == null) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      if (checksum != null) {
+        checksum.update(b, off, len);
+      }
+      return len;
+    }
+
+    private ByteBuffer currentBuffer() {
+      while (current < buffers.length && !buffers[current].hasRemaining()) {
+        current++;
+      }
+      return current < buffers.length ? buffers[current] : null;
+    }
   }
 }
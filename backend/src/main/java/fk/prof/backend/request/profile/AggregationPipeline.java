@@ -0,0 +1,215 @@
+package fk.prof.backend.request.profile;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of aggregation tasks of a single profile, drained in order on a worker pool so that aggregation of wse does not run
+ * on the event loop receiving the profile. At most one worker drains the queue of a profile at a time, so tasks of a profile are
+ * executed sequentially, one after another, and need no synchronization among themselves.
+ * Request is paused when the queue is full and resumed once workers have drained half of it.
+ * If a task fails, pending tasks are dropped and failure handler is invoked, tasks submitted afterwards are ignored.
+ * Bytes held by a task, i.e. its framed wse, are counted in admission of the profile from submit till the task has run or is dropped.
+ *
+ * NOTE: {@link #submit(Runnable)}, {@link #whenDrained(Handler)} and {@link #discard()} should be invoked on the event loop of the
+ * request, handlers are invoked on the same event loop
+ */
+public class AggregationPipeline {
+  private final WorkerExecutor workerExecutor;
+  private final Context context;
+  private final PausableRequest request;
+  private final int maxQueuedTasks;
+  private final Handler<Throwable> failureHandler;
+  // null if profile is not subject to admission control
+  private final ProfileAdmissionController.Admission admission;
+
+  private final Histogram histQueueDepth;
+  private final Counter ctrQueued;
+  private final Timer tmrHandoff;
+  private final Meter mtrPause;
+
+  // guarded by this
+  private final ArrayDeque<QueuedTask> tasks = new ArrayDeque<>();
+  private final List<Handler<Void>> drainHandlers = new ArrayList<>(2);
+  private boolean draining = false;
+  private boolean paused = false;
+  private boolean discarded = false;
+
+  /**
+   * @param context event loop context of the request
+   * @param maxQueuedTasks count of tasks queued at which request is paused
+   * @param failureHandler invoked with failure of a task
+   * @param admission admission of the profile in which bytes held by queued tasks are counted, null if not subject to admission control
+   * @param histQueueDepth updated with depth of the queue on every submit
+   * @param ctrQueued tasks queued but not yet picked by a worker, shared across profiles
+   * @param tmrHandoff time taken for a submitted task to be picked by a worker
+   * @param mtrPause marked when request is paused because the queue is full
+   */
+  public AggregationPipeline(WorkerExecutor workerExecutor, Context context, PausableRequest request, int maxQueuedTasks,
+                             Handler<Throwable> failureHandler, ProfileAdmissionController.Admission admission,
+                             Histogram histQueueDepth, Counter ctrQueued, Timer tmrHandoff, Meter mtrPause) {
+    this.workerExecutor = workerExecutor;
+    this.context = context;
+    this.request = request;
+    this.maxQueuedTasks = Math.max(1, maxQueuedTasks);
+    this.failureHandler = failureHandler;
+    this.admission = admission;
+    this.histQueueDepth = histQueueDepth;
+    this.ctrQueued = ctrQueued;
+    this.tmrHandoff = tmrHandoff;
+    this.mtrPause = mtrPause;
+  }
+
+  public void submit(Runnable task) {
+    submit(task, 0);
+  }
+
+  /**
+   * @param bytes held by the task till it is run, counted in admission of the profile
+   */
+  public void submit(Runnable task, int bytes) {
+    boolean schedule, pause;
+    synchronized (this) {
+      if (discarded) {
+        return;
+      }
+      tasks.add(new QueuedTask(task, bytes, System.nanoTime()));
+      ctrQueued.inc();
+      addQueuedBytes(bytes);
+      histQueueDepth.update(tasks.size());
+
+      schedule = !draining;
+      draining = true;
+      pause = !paused && tasks.size() >= maxQueuedTasks;
+      paused |= pause;
+    }
+
+    if (pause) {
+      mtrPause.mark();
+      request.pause(PausableRequest.PauseReason.AGGREGATION_BACKLOG);
+    }
+    if (schedule) {
+      workerExecutor.executeBlocking(this::drain, false, null);
+    }
+  }
+
+  /**
+   * Invokes handler once all submitted tasks have been executed or dropped. Handler is invoked immediately if no task is pending
+   */
+  public void whenDrained(Handler<Void> handler) {
+    synchronized (this) {
+      if (draining) {
+        drainHandlers.add(handler);
+        return;
+      }
+    }
+    handler.handle(null);
+  }
+
+  /**
+   * Drops pending tasks, tasks submitted afterwards are ignored. Task being executed, if any, runs to completion
+   */
+  public void discard() {
+    synchronized (this) {
+      discarded = true;
+      dropPendingTasks();
+    }
+  }
+
+  /**
+   * To be called under lock on this
+   */
+  private void dropPendingTasks() {
+    ctrQueued.dec(tasks.size());
+    long bytes = 0;
+    for (QueuedTask queued : tasks) {
+      bytes += queued.bytes;
+    }
+    addQueuedBytes(-bytes);
+    tasks.clear();
+  }
+
+  private void addQueuedBytes(long bytes) {
+    if (admission != null && bytes != 0) {
+      admission.addQueuedBytes(bytes);
+    }
+  }
+
+  private void drain(Future<Void> future) {
+    while (true) {
+      QueuedTask queued;
+      boolean resume = false;
+      List<Handler<Void>> drained = null;
+      synchronized (this) {
+        queued = tasks.poll();
+        if (queued == null) {
+          draining = false;
+          drained = new ArrayList<>(drainHandlers);
+          drainHandlers.clear();
+        } else {
+          ctrQueued.dec();
+          if (paused && tasks.size() <= maxQueuedTasks / 2) {
+            paused = false;
+            resume = true;
+          }
+        }
+      }
+
+      if (resume) {
+        context.runOnContext(v -> request.resume(PausableRequest.PauseReason.AGGREGATION_BACKLOG));
+      }
+      if (queued == null) {
+        for (Handler<Void> handler : drained) {
+          context.runOnContext(handler);
+        }
+        future.complete();
+        return;
+      }
+
+      tmrHandoff.update(System.nanoTime() - queued.queuedAt, TimeUnit.NANOSECONDS);
+      try {
+        queued.task.run();
+      } catch (Throwable th) {
+        boolean resumeAfterFailure;
+        synchronized (this) {
+          discarded = true;
+          dropPendingTasks();
+          resumeAfterFailure = paused;
+          paused = false;
+        }
+        // failure is reported before drain handlers are invoked, rest of the request is consumed and ignored
+        context.runOnContext(v -> {
+          failureHandler.handle(th);
+          if (resumeAfterFailure) {
+            request.resume(PausableRequest.PauseReason.AGGREGATION_BACKLOG);
+          }
+        });
+      } finally {
+        addQueuedBytes(-queued.bytes);
+      }
+    }
+  }
+
+  private static class QueuedTask {
+    private final Runnable task;
+    private final int bytes;
+    private final long queuedAt;
+
+    QueuedTask(Runnable task, int bytes, long queuedAt) {
+      this.task = task;
+      this.bytes = bytes;
+      this.queuedAt = queuedAt;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package fk.prof.backend.request.profile;
+
+import io.vertx.core.http.HttpServerRequest;
+
+import java.util.EnumSet;
+
+/**
+ * Pauses a request on behalf of independent sources of backpressure, request is resumed only once none of them holds it paused
+ *
+ * NOTE: Should be used only on the event loop of the request
+ */
+public class PausableRequest {
+  public enum PauseReason {
+    // wse received are pending aggregation
+    AGGREGATION_BACKLOG,
+    // bytes buffered across profiles are above watermark
+    BUFFERED_BYTES
+  }
+
+  private final HttpServerRequest request;
+  private final EnumSet<PauseReason> pausedBy = EnumSet.noneOf(PauseReason.class);
+
+  public PausableRequest(HttpServerRequest request) {
+    this.request = request;
+  }
+
+  public void pause(PauseReason reason) {
+    if (pausedBy.isEmpty()) {
+      request.pause();
+    }
+    pausedBy.add(reason);
+  }
+
+  public void resume(PauseReason reason) {
+    if (pausedBy.remove(reason) && pausedBy.isEmpty()) {
+      request.resume();
+    }
+  }
+
+  public boolean isPausedBy(PauseReason reason) {
+    return pausedBy.contains(reason);
+  }
+}
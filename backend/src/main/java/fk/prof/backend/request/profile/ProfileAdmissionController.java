@@ -0,0 +1,214 @@
+package fk.prof.backend.request.profile;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import fk.prof.backend.ConfigManager;
+import fk.prof.backend.Configuration;
+import fk.prof.backend.exception.ServiceUnavailableException;
+import fk.prof.metrics.MetricName;
+import fk.prof.metrics.ProcessGroupTag;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of profiles uploaded to backend. Tracks profiles being received and bytes buffered by their processors, across
+ * all http verticles of the backend and per process group:
+ * - a new profile is rejected with 503 and a retry-after interval once count of active profiles or buffered bytes reach their limits
+ * - while buffered bytes are above watermark, readers of profiles are slowed down by pausing them for a short interval after every chunk
+ * Process group of a profile is known only after its header has been parsed, so limits per process group are applied at that point.
+ *
+ * Thread safe, meant to be shared by all instances of {@link fk.prof.backend.http.BackendHttpVerticle}
+ */
+public class ProfileAdmissionController {
+  private final Configuration.BackendHttpVerticleConfig.ProfileAdmissionConfig config;
+  // limits of process groups overridden in config, keyed on process group tag
+  private final Map<String, Configuration.BackendHttpVerticleConfig.ProcessGroupAdmissionConfig> processGroupConfigs = new HashMap<>();
+  private final Map<String, ProcessGroupUsage> processGroupUsages = new ConcurrentHashMap<>();
+
+  private final AtomicInteger activeProfiles = new AtomicInteger(0);
+  private final AtomicLong bufferedBytes = new AtomicLong(0);
+
+  private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY);
+  private final Counter ctrActive = metricRegistry.counter(MetricName.Profile_Admission_Active.get());
+  private final Counter ctrBuffered = metricRegistry.counter(MetricName.Profile_Admission_Buffered.get());
+  private final Meter mtrReject = metricRegistry.meter(MetricName.Profile_Admission_Reject.get());
+  private final Meter mtrThrottle = metricRegistry.meter(MetricName.Profile_Admission_Throttle.get());
+
+  public ProfileAdmissionController(Configuration.BackendHttpVerticleConfig.ProfileAdmissionConfig config) {
+    this.config = config;
+    for (Configuration.BackendHttpVerticleConfig.ProcessGroupAdmissionConfig processGroupConfig : config.getProcessGroups()) {
+      String processGroupTag = new ProcessGroupTag(processGroupConfig.getAppId(), processGroupConfig.getClusterId(),
+          processGroupConfig.getProcName()).toString();
+      processGroupConfigs.put(processGroupTag, processGroupConfig);
+    }
+  }
+
+  /**
+   * Admits a new profile, returned admission should be released once the profile has been processed
+   *
+   * @return admission of the profile
+   * @throws ServiceUnavailableException if count of active profiles or buffered bytes are at their limits
+   */
+  public Admission admit() throws ServiceUnavailableException {
+    if (bufferedBytes.get() >= config.getMaxBufferedBytes()) {
+      mtrReject.mark();
+      throw new ServiceUnavailableException("Buffered bytes of profiles at limit, retry later", config.getRetryAfterSecs());
+    }
+    if (activeProfiles.incrementAndGet() > config.getMaxActiveProfiles()) {
+      activeProfiles.decrementAndGet();
+      mtrReject.mark();
+      throw new ServiceUnavailableException("Active profiles at limit, retry later", config.getRetryAfterSecs());
+    }
+    ctrActive.inc();
+    return new Admission();
+  }
+
+  private ProcessGroupUsage getProcessGroupUsage(ProcessGroupTag processGroupTag) {
+    String processGroupTagStr = processGroupTag.toString();
+    return processGroupUsages.computeIfAbsent(processGroupTagStr, tag -> {
+      Configuration.BackendHttpVerticleConfig.ProcessGroupAdmissionConfig processGroupConfig = processGroupConfigs.get(tag);
+      return processGroupConfig == null
+          ? new ProcessGroupUsage(tag, config.getProcessGroupMaxActiveProfiles(), config.getProcessGroupMaxBufferedBytes())
+          : new ProcessGroupUsage(tag, processGroupConfig.getMaxActiveProfiles(), processGroupConfig.getMaxBufferedBytes());
+    });
+  }
+
+  /**
+   * Admission of a single profile. Updated from the event loop receiving the profile, except for bytes of framed wse queued for
+   * aggregation, which are released by aggregation workers as well
+   */
+  public class Admission {
+    private volatile ProcessGroupUsage processGroupUsage = null;
+    private long buffered = 0;
+    private final AtomicLong queued = new AtomicLong(0);
+    private volatile boolean released = false;
+
+    /**
+     * Admits the profile against limits of its process group
+     *
+     * @throws ServiceUnavailableException if count of active profiles or buffered bytes of the process group are at their limits
+     */
+    public void admitProcessGroup(ProcessGroupTag processGroupTag) throws ServiceUnavailableException {
+      ProcessGroupUsage usage = getProcessGroupUsage(processGroupTag);
+      if (usage.bufferedBytes.get() >= usage.maxBufferedBytes) {
+        usage.reject();
+        throw new ServiceUnavailableException("Buffered bytes of profiles of process group at limit, retry later",
+            config.getRetryAfterSecs());
+      }
+      if (usage.activeProfiles.incrementAndGet() > usage.maxActiveProfiles) {
+        usage.activeProfiles.decrementAndGet();
+        usage.reject();
+        throw new ServiceUnavailableException("Active profiles of process group at limit, retry later", config.getRetryAfterSecs());
+      }
+      usage.ctrActive.inc();
+      usage.addBuffered(buffered + queued.get());
+      processGroupUsage = usage;
+    }
+
+    /**
+     * @param bytes currently buffered by processor of the profile
+     */
+    public void updateBufferedBytes(long bytes) {
+      if (released) {
+        return;
+      }
+      long delta = bytes - buffered;
+      buffered = bytes;
+      addBuffered(delta);
+    }
+
+    /**
+     * Bytes of framed wse queued for aggregation are held by the profile until aggregated, so they count towards its buffered bytes.
+     * Can be invoked from any thread, but not after the admission has been released
+     *
+     * @param delta bytes queued, negative when queued bytes are drained
+     */
+    public void addQueuedBytes(long delta) {
+      if (released) {
+        return;
+      }
+      queued.addAndGet(delta);
+      addBuffered(delta);
+    }
+
+    private void addBuffered(long delta) {
+      bufferedBytes.addAndGet(delta);
+      ctrBuffered.inc(delta);
+      ProcessGroupUsage usage = processGroupUsage;
+      if (usage != null) {
+        usage.addBuffered(delta);
+      }
+    }
+
+    /**
+     * @return true if readers of profiles should be slowed down, marks throttle meter if so
+     */
+    public boolean throttle() {
+      if (bufferedBytes.get() > config.getBufferedBytesWatermark()) {
+        mtrThrottle.mark();
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return duration for which reader of the profile should be paused when throttled
+     */
+    public int getThrottlePauseMs() {
+      return config.getThrottlePauseMs();
+    }
+
+    /**
+     * Releases active profile and bytes buffered by it, including queued bytes. Should be invoked once no more wse of the profile are
+     * being aggregated. Idempotent
+     */
+    public void release() {
+      if (released) {
+        return;
+      }
+      updateBufferedBytes(0);
+      addBuffered(-queued.getAndSet(0));
+      released = true;
+      activeProfiles.decrementAndGet();
+      ctrActive.dec();
+      if (processGroupUsage != null) {
+        processGroupUsage.activeProfiles.decrementAndGet();
+        processGroupUsage.ctrActive.dec();
+      }
+    }
+  }
+
+  private class ProcessGroupUsage {
+    private final int maxActiveProfiles;
+    private final long maxBufferedBytes;
+    private final AtomicInteger activeProfiles = new AtomicInteger(0);
+    private final AtomicLong bufferedBytes = new AtomicLong(0);
+
+    private final Counter ctrActive, ctrBuffered;
+    private final Meter mtrReject;
+
+    ProcessGroupUsage(String processGroupTagStr, int maxActiveProfiles, long maxBufferedBytes) {
+      this.maxActiveProfiles = maxActiveProfiles;
+      this.maxBufferedBytes = maxBufferedBytes;
+      this.ctrActive = metricRegistry.counter(MetricRegistry.name(MetricName.Profile_Admission_Active.get(), processGroupTagStr));
+      this.ctrBuffered = metricRegistry.counter(MetricRegistry.name(MetricName.Profile_Admission_Buffered.get(), processGroupTagStr));
+      this.mtrReject = metricRegistry.meter(MetricRegistry.name(MetricName.Profile_Admission_Reject.get(), processGroupTagStr));
+    }
+
+    void addBuffered(long delta) {
+      bufferedBytes.addAndGet(delta);
+      ctrBuffered.inc(delta);
+    }
+
+    void reject() {
+      mtrReject.mark();
+      ProfileAdmissionController.this.mtrReject.mark();
+    }
+  }
+}
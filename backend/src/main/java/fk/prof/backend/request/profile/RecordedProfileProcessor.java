@@ -1,20 +1,30 @@
 package fk.prof.backend.request.profile;
 
 import com.codahale.metrics.*;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import fk.prof.backend.ConfigManager;
+import fk.prof.backend.Configuration;
 import fk.prof.backend.aggregator.AggregationWindow;
+import fk.prof.backend.aggregator.LocalCpuSamplingAggregationBucket;
+import fk.prof.backend.aggregator.StackSampleCache;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.exception.HttpFailure;
+import fk.prof.backend.exception.ServiceUnavailableException;
 import fk.prof.backend.http.HttpHelper;
 import fk.prof.backend.model.profile.RecordedProfileHeader;
 import fk.prof.backend.model.profile.RecordedProfileIndexes;
 import fk.prof.backend.request.CompositeByteBufInputStream;
 import fk.prof.backend.request.profile.parser.RecordedProfileHeaderParser;
+import fk.prof.backend.request.profile.parser.WseDecoder;
 import fk.prof.backend.request.profile.parser.WseParser;
 import fk.prof.backend.model.aggregation.AggregationWindowDiscoveryContext;
 import fk.prof.metrics.MetricName;
 import fk.prof.metrics.ProcessGroupTag;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
@@ -36,6 +46,23 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
   private final WseParser wseParser;
   private final CompositeByteBufInputStream inputStream;
   private final RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+  // null if samples are aggregated directly in the aggregation window
+  private final LocalCpuSamplingAggregationBucket localCpuSamplingAggregationBucket;
+  private final int maxStackCacheEntries;
+  private final boolean streamingDecode;
+  // null if wse are aggregated on the event loop receiving the profile
+  private final WorkerExecutor aggregationWorkerExecutor;
+  private final int maxQueuedWse;
+  private final Context eventLoopContext;
+  private final PausableRequest pausableRequest;
+  // null if profile is not subject to admission control
+  private final ProfileAdmissionController.Admission admission;
+  // initialized with aggregation window, null if wse are aggregated on the event loop
+  private AggregationPipeline aggregationPipeline = null;
+  // initialized with aggregation window, null if wse are materialized before aggregation
+  private StreamingWseAggregator streamingWseAggregator = null;
+  // initialized with aggregation window, null if stacks are not cached
+  private StackSampleCache stackSampleCache = null;
 
   private LocalDateTime startedAt = null;
   private RecordedProfileHeader header = null;
@@ -43,6 +70,7 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
   private AggregationWindow aggregationWindow = null;
 
   private boolean errored = false;
+  private boolean closed = false;
   private Long chunkReceivedTime = null;
 
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY);
@@ -50,20 +78,53 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
   private Timer tmrChunkIdle;
   private Meter mtrChunkBytes, mtrPayloadInvalid, mtrPayloadCorrupt;
   private Histogram histWseSize, histHeaderSize;
+  private Meter mtrStackCacheHit, mtrStackCacheMiss;
+  private Histogram histPipelineDepth;
+  private Timer tmrPipelineHandoff;
+  private Meter mtrPipelinePause;
+  private final Counter ctrPipelineQueued = metricRegistry.counter(MetricName.Profile_Pipeline_Queued.get());
   private final Counter ctrAggrWinMiss = metricRegistry.counter(MetricName.Profile_Window_Miss.get());
 
+  /**
+   * Parser and aggregation settings are read from config:
+   * - aggregation.local: if true, samples are aggregated in a bucket private to this processor and merged in the aggregation window
+   *   only when the profile is closed after being received completely. Corrupt or incomplete profiles then do not contribute any
+   *   samples to the window
+   * - aggregation.stack.cache.max.entries: maximum number of distinct stacks of the profile whose resolved form is cached for
+   *   aggregation of repeated samples, 0 disables caching. Not applicable when aggregating locally
+   * - aggregation.streaming: if true, wse are decoded straight into aggregation with {@link WseDecoder} instead of being materialized
+   *   as {@link Recorder.Wse}
+   * - aggregation.pipeline.queue.max.wse: count of framed wse of the profile pending aggregation at which the request is paused
+   * - parser: max size of recording header and wse, and how chunks of the request are buffered
+   *
+   * @param config config of the http verticle receiving the profile
+   * @param aggregationWorkerExecutor if not null, event loop only frames wse and validates their checksum, wse are decoded and aggregated
+   *                                  on this executor. Null if wse should be aggregated on the event loop
+   * @param admission admission of the profile, released when the profile is closed. Null if profile is not subject to admission control
+   */
   public RecordedProfileProcessor(RoutingContext context,
                                   AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext,
                                   ISingleProcessingOfProfileGate singleProcessingOfProfileGate,
-                                  int maxAllowedBytesForRecordingHeader,
-                                  int maxAllowedBytesForWse) {
+                                  Configuration.BackendHttpVerticleConfig config,
+                                  WorkerExecutor aggregationWorkerExecutor,
+                                  ProfileAdmissionController.Admission admission) {
     this.context = context;
     this.aggregationWindowDiscoveryContext = aggregationWindowDiscoveryContext;
     this.singleProcessingOfProfileGate = singleProcessingOfProfileGate;
-    this.inputStream = new CompositeByteBufInputStream();
+    Configuration.BackendHttpVerticleConfig.ParserConfig parserConfig = config.getParserConfig();
+    this.inputStream = new CompositeByteBufInputStream(PooledByteBufAllocator.DEFAULT, parserConfig.getBufferMaxComponents(),
+        parserConfig.getBufferCoalesceMaxBytes());
+    this.localCpuSamplingAggregationBucket = config.getLocalAggregation() ? new LocalCpuSamplingAggregationBucket() : null;
+    this.maxStackCacheEntries = config.getMaxStackCacheEntries();
+    this.streamingDecode = config.getStreamingDecode();
+    this.aggregationWorkerExecutor = aggregationWorkerExecutor;
+    this.maxQueuedWse = config.getMaxQueuedWse();
+    this.eventLoopContext = context.vertx().getOrCreateContext();
+    this.pausableRequest = new PausableRequest(context.request());
+    this.admission = admission;
     setupMetrics(ProcessGroupTag.EMPTY);
-    this.wseParser = new WseParser(maxAllowedBytesForWse, histWseSize);
-    this.headerParser = new RecordedProfileHeaderParser(maxAllowedBytesForRecordingHeader, histHeaderSize);
+    this.wseParser = new WseParser(parserConfig.getWseMaxSizeBytes(), histWseSize);
+    this.headerParser = new RecordedProfileHeaderParser(parserConfig.getRecordingHeaderMaxSizeBytes(), histHeaderSize);
   }
 
   @Override
@@ -78,6 +139,7 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
 
       if (!context.response().ended()) {
         process(requestBuffer);
+        throttle();
       }
     } catch (Exception ex) {
       HttpFailure httpFailure = HttpFailure.failure(ex);
@@ -97,12 +159,46 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
     return aggregationWindow != null && wseParser.isEndMarkerReceived();
   }
 
+  /**
+   * Invokes handler once all wse received so far have been aggregated. Invoked immediately if wse are aggregated on the event loop
+   */
+  public void whenAggregated(Handler<Void> handler) {
+    if (aggregationPipeline != null) {
+      aggregationPipeline.whenDrained(handler);
+    } else {
+      handler.handle(null);
+    }
+  }
+
   /**
    * If parsing was successful, marks the profile as corrupt if errored, completed/retried if processed, incomplete otherwise
+   * Locally aggregated samples, if any, are merged in the aggregation window only if profile was processed
+   * If wse are aggregated on workers, pending wse are dropped and profile is closed once wse being aggregated, if any, is done
+   * Closing again has no effect
    *
    * @throws AggregationFailure
    */
   public void close() throws AggregationFailure {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (aggregationPipeline == null) {
+      closeProfile();
+      return;
+    }
+
+    aggregationPipeline.discard();
+    aggregationPipeline.whenDrained(v -> {
+      try {
+        closeProfile();
+      } catch (Exception ex) {
+        logger.error("Unexpected error when closing profile: {}", ex, this);
+      }
+    });
+  }
+
+  private void closeProfile() throws AggregationFailure {
     try {
       inputStream.close();
       // Check for errored before checking for processed.
@@ -114,6 +210,9 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
         }
       } else {
         if (isProcessed()) {
+          if (localCpuSamplingAggregationBucket != null) {
+            aggregationWindow.mergeLocalAggregation(localCpuSamplingAggregationBucket, indexes);
+          }
           aggregationWindow.completeProfile(workId);
         } else {
           mtrPayloadInvalid.mark();
@@ -126,6 +225,9 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
       throw new AggregationFailure(ex, true);
     } finally {
       singleProcessingOfProfileGate.finish(workId);
+      if (admission != null) {
+        admission.release();
+      }
     }
   }
 
@@ -161,14 +263,31 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
           workId = header.getRecordingHeader().getWorkAssignment().getWorkId();
 
           singleProcessingOfProfileGate.accept(workId);
-          aggregationWindow = aggregationWindowDiscoveryContext.getAssociatedAggregationWindow(workId);
-          if (aggregationWindow == null) {
+          AggregationWindow associatedAggregationWindow = aggregationWindowDiscoveryContext.getAssociatedAggregationWindow(workId);
+          if (associatedAggregationWindow == null) {
             ctrAggrWinMiss.inc();
             throw new AggregationFailure(String.format("workId=%d not found, cannot continue receiving associated profile",
                 workId));
           }
+          // a profile rejected here is not started, so that it can be retried
+          if (admission != null) {
+            admission.admitProcessGroup(associatedAggregationWindow.getProcessGroupTag());
+          }
+          aggregationWindow = associatedAggregationWindow;
+          wseParser.setChecksumType(header.getRecordingHeader().getWseChecksumType());
 
           setupMetrics(aggregationWindow.getProcessGroupTag());
+          if (localCpuSamplingAggregationBucket == null && maxStackCacheEntries > 0) {
+            stackSampleCache = new StackSampleCache(maxStackCacheEntries, mtrStackCacheHit, mtrStackCacheMiss);
+          }
+          if (streamingDecode) {
+            streamingWseAggregator = new StreamingWseAggregator(aggregationWindow, workId, indexes,
+                stackSampleCache, localCpuSamplingAggregationBucket);
+          }
+          if (aggregationWorkerExecutor != null) {
+            aggregationPipeline = new AggregationPipeline(aggregationWorkerExecutor, eventLoopContext, pausableRequest, maxQueuedWse,
+                this::failAggregation, admission, histPipelineDepth, ctrPipelineQueued, tmrPipelineHandoff, mtrPipelinePause);
+          }
           aggregationWindow.startProfile(workId, header.getRecordingHeader().getRecorderVersion(), startedAt);
           logger.info(String.format("Profile aggregation started for work_id=%d started_at=%s",
               workId, startedAt.toString()));
@@ -177,19 +296,30 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
 
       if (aggregationWindow != null) {
         while (inputStream.available() > 0) {
-          wseParser.parse(inputStream);
+          if (aggregationPipeline != null) {
+            wseParser.frame(inputStream);
+          } else if (streamingWseAggregator != null) {
+            wseParser.parse(inputStream, streamingWseAggregator);
+          } else {
+            wseParser.parse(inputStream);
+          }
           if(wseParser.isEndMarkerReceived()) {
             return;
           } else if (wseParser.isParsed()) {
             Recorder.Wse wse = wseParser.get();
-            processWse(wse);
+            byte[] framedWse = wseParser.getFramed();
+            if (wse != null) {
+              processWse(wse);
+            } else if (framedWse != null) {
+              aggregationPipeline.submit(() -> processFramedWse(framedWse), framedWse.length);
+            }
             wseParser.reset();
           } else {
             break;
           }
         }
       }
-    } catch (AggregationFailure ex) {
+    } catch (AggregationFailure | ServiceUnavailableException ex) {
       errored = true;
       throw ex;
     } catch (Exception ex) {
@@ -201,7 +331,53 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
   private void processWse(Recorder.Wse wse) throws AggregationFailure {
     indexes.update(wse.getIndexedData());
     aggregationWindow.updateWorkInfoWithWSE(workId, wse);
-    aggregationWindow.aggregate(wse, indexes);
+    if (localCpuSamplingAggregationBucket != null) {
+      aggregationWindow.aggregate(wse, indexes, localCpuSamplingAggregationBucket);
+    } else {
+      aggregationWindow.aggregate(wse, indexes, stackSampleCache);
+    }
+  }
+
+  /**
+   * Updates bytes buffered by the profile in its input stream with admission controller, framed wse queued for aggregation are counted
+   * by {@link AggregationPipeline}. Pauses the request for a while if readers are being throttled
+   */
+  private void throttle() throws IOException {
+    if (admission != null) {
+      admission.updateBufferedBytes(inputStream.available());
+      if (!pausableRequest.isPausedBy(PausableRequest.PauseReason.BUFFERED_BYTES) && admission.throttle()) {
+        pausableRequest.pause(PausableRequest.PauseReason.BUFFERED_BYTES);
+        context.vertx().setTimer(admission.getThrottlePauseMs(),
+            timerId -> pausableRequest.resume(PausableRequest.PauseReason.BUFFERED_BYTES));
+      }
+    }
+  }
+
+  /**
+   * Decodes and aggregates a framed wse, runs on aggregation workers
+   */
+  private void processFramedWse(byte[] framedWse) throws AggregationFailure {
+    try {
+      if (streamingWseAggregator != null) {
+        WseDecoder.decode(CodedInputStream.newInstance(framedWse), streamingWseAggregator);
+      } else {
+        processWse(Recorder.Wse.parseFrom(framedWse));
+      }
+    } catch (InvalidProtocolBufferException ex) {
+      throw new AggregationFailure("Error while parsing WSE", ex);
+    } catch (AggregationFailure ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new AggregationFailure(ex, true);
+    }
+  }
+
+  /**
+   * Fails the request with failure of a wse aggregated on workers, runs on the event loop
+   */
+  private void failAggregation(Throwable th) {
+    errored = true;
+    HttpHelper.handleFailure(context, HttpFailure.failure(th));
   }
 
   private void setupMetrics(ProcessGroupTag processGroupTag) {
@@ -213,5 +389,10 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
     this.mtrPayloadCorrupt = metricRegistry.meter(MetricRegistry.name(MetricName.Profile_Payload_Corrupt.get(), processGroupTagStr));
     this.histWseSize = metricRegistry.histogram(MetricRegistry.name(MetricName.Profile_Wse_Size.get(), processGroupTagStr));
     this.histHeaderSize = metricRegistry.histogram(MetricRegistry.name(MetricName.Profile_Header_Size.get(), processGroupTagStr));
+    this.mtrStackCacheHit = metricRegistry.meter(MetricRegistry.name(MetricName.Profile_Stack_Cache_Hit.get(), processGroupTagStr));
+    this.mtrStackCacheMiss = metricRegistry.meter(MetricRegistry.name(MetricName.Profile_Stack_Cache_Miss.get(), processGroupTagStr));
+    this.histPipelineDepth = metricRegistry.histogram(MetricRegistry.name(MetricName.Profile_Pipeline_Depth.get(), processGroupTagStr));
+    this.tmrPipelineHandoff = metricRegistry.timer(MetricRegistry.name(MetricName.Profile_Pipeline_Handoff.get(), processGroupTagStr));
+    this.mtrPipelinePause = metricRegistry.meter(MetricRegistry.name(MetricName.Profile_Pipeline_Pause.get(), processGroupTagStr));
   }
 }
@@ -0,0 +1,160 @@
+package fk.prof.backend.request.profile;
+
+import fk.prof.backend.aggregator.AggregationWindow;
+import fk.prof.backend.aggregator.LocalCpuSamplingAggregationBucket;
+import fk.prof.backend.aggregator.StackSampleCache;
+import fk.prof.backend.exception.AggregationFailure;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.model.profile.RecordedStackSample;
+import fk.prof.backend.request.profile.parser.WseVisitor;
+import recording.Recorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aggregates wse of a profile as it is decoded, equivalent to updating indexes, work info and aggregating a materialized {@link Recorder.Wse}.
+ * Contents of a wse are buffered in primitive arrays as they are decoded and are applied only once the whole wse has been decoded, so a
+ * wse which fails to decode midway does not contribute any samples to the aggregation window.
+ * A single {@link RecordedStackSample} is reused for all stack samples of the profile.
+ *
+ * NOTE: This class is not thread safe, it is meant to be confined to the processor of a single profile
+ */
+public class StreamingWseAggregator implements WseVisitor {
+  private final AggregationWindow aggregationWindow;
+  private final long workId;
+  private final RecordedProfileIndexes indexes;
+  private final StackSampleCache stackSampleCache;
+  private final LocalCpuSamplingAggregationBucket localCpuSamplingAggregationBucket;
+
+  private final RecordedStackSample stackSample = new RecordedStackSample();
+
+  // contents of the wse being decoded
+  private final List<Recorder.TraceContext> traceContexts = new ArrayList<>();
+  private final List<Recorder.MethodInfo> methodInfos = new ArrayList<>();
+  private Recorder.WorkType workType = null;
+  private long[] frameMethodIds = new long[1024];
+  private int[] frameLineNumbers = new int[1024];
+  private int frameCount = 0;
+  private int[] traceIds = new int[64];
+  private int traceIdCount = 0;
+  // end offsets of frames and trace ids of every stack sample, in the arrays above
+  private int[] sampleFramesEnd = new int[64];
+  private int[] sampleTraceIdsEnd = new int[64];
+  private boolean[] sampleSnipped = new boolean[64];
+  private int sampleCount = 0;
+
+  /**
+   * @param stackSampleCache cache of stacks of the profile, null if stacks should not be cached
+   * @param localCpuSamplingAggregationBucket bucket private to the profile, null if samples should be aggregated in aggregation window
+   */
+  public StreamingWseAggregator(AggregationWindow aggregationWindow, long workId, RecordedProfileIndexes indexes,
+                                StackSampleCache stackSampleCache, LocalCpuSamplingAggregationBucket localCpuSamplingAggregationBucket) {
+    this.aggregationWindow = aggregationWindow;
+    this.workId = workId;
+    this.indexes = indexes;
+    this.stackSampleCache = stackSampleCache;
+    this.localCpuSamplingAggregationBucket = localCpuSamplingAggregationBucket;
+  }
+
+  @Override
+  public void onWseStart() {
+    // discards contents of a previous wse which failed to decode, if any
+    traceContexts.clear();
+    methodInfos.clear();
+    workType = null;
+    frameCount = 0;
+    traceIdCount = 0;
+    sampleCount = 0;
+  }
+
+  @Override
+  public void onTraceCtx(Recorder.TraceContext traceContext) {
+    traceContexts.add(traceContext);
+  }
+
+  @Override
+  public void onMethodInfo(Recorder.MethodInfo methodInfo) {
+    methodInfos.add(methodInfo);
+  }
+
+  @Override
+  public void onWorkType(Recorder.WorkType workType) {
+    if (workType != Recorder.WorkType.cpu_sample_work) {
+      throw new AggregationFailure(String.format("Aggregation not supported for work type=%s", workType));
+    }
+    this.workType = workType;
+  }
+
+  @Override
+  public void onStackSampleStart() {
+  }
+
+  @Override
+  public void onFrame(long methodId, int lineNo) {
+    if (frameCount == frameMethodIds.length) {
+      frameMethodIds = Arrays.copyOf(frameMethodIds, frameCount << 1);
+      frameLineNumbers = Arrays.copyOf(frameLineNumbers, frameCount << 1);
+    }
+    frameMethodIds[frameCount] = methodId;
+    frameLineNumbers[frameCount] = lineNo;
+    frameCount++;
+  }
+
+  @Override
+  public void onTraceId(int traceId) {
+    if (traceIdCount == traceIds.length) {
+      traceIds = Arrays.copyOf(traceIds, traceIdCount << 1);
+    }
+    traceIds[traceIdCount++] = traceId;
+  }
+
+  @Override
+  public void onStackSampleEnd(boolean snipped) {
+    if (sampleCount == sampleFramesEnd.length) {
+      sampleFramesEnd = Arrays.copyOf(sampleFramesEnd, sampleCount << 1);
+      sampleTraceIdsEnd = Arrays.copyOf(sampleTraceIdsEnd, sampleCount << 1);
+      sampleSnipped = Arrays.copyOf(sampleSnipped, sampleCount << 1);
+    }
+    sampleFramesEnd[sampleCount] = frameCount;
+    sampleTraceIdsEnd[sampleCount] = traceIdCount;
+    sampleSnipped[sampleCount] = snipped;
+    sampleCount++;
+  }
+
+  /**
+   * Applies the decoded wse in the same order as a materialized wse is: indexes and work info are updated before samples are aggregated
+   */
+  @Override
+  public void onWseEnd() {
+    for (Recorder.TraceContext traceContext : traceContexts) {
+      indexes.updateTrace(traceContext);
+      aggregationWindow.updateWorkInfoWithTraceCoverage(workId, traceContext);
+    }
+    for (Recorder.MethodInfo methodInfo : methodInfos) {
+      indexes.updateMethod(methodInfo);
+    }
+
+    int frameStart = 0, traceIdStart = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      stackSample.reset();
+      for (int frame = frameStart; frame < sampleFramesEnd[i]; frame++) {
+        stackSample.addFrame(frameMethodIds[frame], frameLineNumbers[frame]);
+      }
+      for (int traceId = traceIdStart; traceId < sampleTraceIdsEnd[i]; traceId++) {
+        stackSample.addTraceId(traceIds[traceId]);
+      }
+      stackSample.setSnipped(sampleSnipped[i]);
+      frameStart = sampleFramesEnd[i];
+      traceIdStart = sampleTraceIdsEnd[i];
+
+      if (localCpuSamplingAggregationBucket != null) {
+        aggregationWindow.aggregateCpuSample(stackSample, indexes, localCpuSamplingAggregationBucket);
+      } else {
+        aggregationWindow.aggregateCpuSample(stackSample, indexes, stackSampleCache);
+      }
+    }
+    aggregationWindow.updateWorkInfoWithSampleCount(workId, workType, sampleCount);
+  }
+}
@@ -0,0 +1,49 @@
+package fk.prof.backend.request.profile.parser;
+
+import recording.Recorder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+/**
+ * Checksums of wse, of the type advertised by recorder in {@link Recorder.RecordingHeader}
+ */
+public class Checksums {
+  // java.util.zip.CRC32C is available from java 9 onwards and is intrinsified to use crc32 instruction on x86
+  private static final MethodHandle JDK_CRC32C_CTOR = findJdkCrc32C();
+
+  private Checksums() {
+  }
+
+  public static Checksum newChecksum(Recorder.ChecksumType type) {
+    switch (type) {
+      case adler32:
+        return new Adler32();
+      case crc32c:
+        return newCrc32C();
+      default:
+        throw new IllegalArgumentException("Unsupported wse checksum type: " + type);
+    }
+  }
+
+  static Checksum newCrc32C() {
+    if (JDK_CRC32C_CTOR != null) {
+      try {
+        return (Checksum) JDK_CRC32C_CTOR.invoke();
+      } catch (Throwable ignored) {
+      }
+    }
+    return new Crc32C();
+  }
+
+  private static MethodHandle findJdkCrc32C() {
+    try {
+      return MethodHandles.publicLookup().findConstructor(Class.forName("java.util.zip.CRC32C"), MethodType.methodType(void.class));
+    } catch (ReflectiveOperationException ex) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package fk.prof.backend.request.profile.parser;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli polynomial) checksum, same as computed by sse4.2 crc32 instruction used by recorder.
+ * Table driven, processes 8 bytes at a time (slicing-by-8). Used only when the jvm does not provide java.util.zip.CRC32C,
+ * see {@link Checksums#newChecksum(recording.Recorder.ChecksumType)}
+ */
+public class Crc32C implements Checksum {
+  private static final int POLY_REFLECTED = 0x82F63B78;
+  private static final int[][] TABLES = new int[8][256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY_REFLECTED : crc >>> 1;
+      }
+      TABLES[0][i] = crc;
+    }
+    for (int i = 0; i < 256; i++) {
+      for (int t = 1; t < 8; t++) {
+        TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xff];
+      }
+    }
+  }
+
+  private int crc = 0xFFFFFFFF;
+
+  @Override
+  public void update(int b) {
+    crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+  }
+
+  @Override
+  public void update(byte[] b, int off, int len) {
+    int c = crc;
+    int end = off + len;
+    for (; off + 8 <= end; off += 8) {
+      int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+      c = TABLES[7][lo & 0xff] ^ TABLES[6][(lo >>> 8) & 0xff] ^ TABLES[5][(lo >>> 16) & 0xff] ^ TABLES[4][lo >>> 24]
+          ^ TABLES[3][b[off + 4] & 0xff] ^ TABLES[2][b[off + 5] & 0xff] ^ TABLES[1][b[off + 6] & 0xff] ^ TABLES[0][b[off + 7] & 0xff];
+    }
+    for (; off < end; off++) {
+      c = (c >>> 8) ^ TABLES[0][(c ^ b[off]) & 0xff];
+    }
+    crc = c;
+  }
+
+  @Override
+  public long getValue() {
+    return (~crc) & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public void reset() {
+    crc = 0xFFFFFFFF;
+  }
+}
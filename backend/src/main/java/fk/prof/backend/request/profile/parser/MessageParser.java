@@ -1,14 +1,15 @@
 package fk.prof.backend.request.profile.parser;
 
 import com.codahale.metrics.Histogram;
-import com.google.common.io.ByteStreams;
 import com.google.protobuf.*;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.request.CompositeByteBufInputStream;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.zip.Checksum;
 
 /**
  * @author gaurav.ashok
@@ -22,8 +23,6 @@ public class MessageParser {
         this.histMsgSize = histMsgSize;
     }
 
-    private static final int MAX_VARINT32_BYTES = 10;
-
     /**
      * Reads protobuf varint32 from input stream and returns the value
      * Throws UnexpectedEOFException if enough bytes are not available for reading varint32
@@ -34,21 +33,38 @@ public class MessageParser {
      * @throws IOException
      */
     public int readRawVariantInt(CompositeByteBufInputStream in, String tag) throws IOException {
-        int bytesAvailable = in.available();
-        int firstByte = in.read();
-        if (firstByte == -1) {
-            throw new UnexpectedEOFException();
-        }
-
         try {
-            return CodedInputStream.readRawVarint32(firstByte, in);
+            return in.readRawVarint32();
         }
-        catch (InvalidProtocolBufferException e) {
-            if(bytesAvailable > MAX_VARINT32_BYTES) {
-                throw new AggregationFailure("Error while parsing " + tag, e);
-            }
+        catch (EOFException e) {
             throw new UnexpectedEOFException();
         }
+        catch (InvalidProtocolBufferException e) {
+            throw new AggregationFailure("Error while parsing " + tag, e);
+        }
+    }
+
+    /**
+     * Reads length of a length delimited protobuf message from input stream and returns it
+     * Throws UnexpectedEOFException if enough bytes are not available in stream for reading length
+     * Throws AggregationFailure if error reading length provided enough bytes were available
+     * Throws AggregationFailure if length of protobuf message is more than max allowed length
+     * @param in
+     * @param maxMessageSize
+     * @param tag
+     * @return
+     * @throws IOException
+     */
+    public int readDelimitedSize(CompositeByteBufInputStream in, int maxMessageSize, String tag) throws IOException {
+        int msgSize = readRawVariantInt(in, tag + ":size");
+        histMsgSize.update(msgSize);
+
+        if(msgSize > maxMessageSize) {
+            String errMsg = "invalid length for " + tag + ". msgSize: " + msgSize + ". maxLimit: " + maxMessageSize;
+            logger.error(errMsg);
+            throw new AggregationFailure(errMsg);
+        }
+        return msgSize;
     }
 
     /**
@@ -67,21 +83,29 @@ public class MessageParser {
      * @throws IOException
      */
     public <T extends AbstractMessage> T readDelimited(Parser<T> parser, CompositeByteBufInputStream in, int maxMessageSize, String tag) throws IOException {
-        try {
-            int msgSize = readRawVariantInt(in, tag + ":size");
-            histMsgSize.update(msgSize);
+        return readDelimited(parser, in, maxMessageSize, tag, null);
+    }
 
+    /**
+     * Same as {@link #readDelimited(Parser, CompositeByteBufInputStream, int, String)}, additionally updates checksum with length and
+     * message bytes as they are parsed, so that bytes are not read again for computing checksum. Checksum is updated partially if
+     * enough bytes are not available, caller should reset the checksum before reading the message again
+     * @param checksum updated with bytes read since mark, if not null. Stream should be marked at start of length
+     */
+    public <T extends AbstractMessage> T readDelimited(Parser<T> parser, CompositeByteBufInputStream in, int maxMessageSize, String tag,
+                                                       Checksum checksum) throws IOException {
+        try {
+            int msgSize = readDelimitedSize(in, maxMessageSize, tag);
             if(msgSize == 0) {
                 return null;
             }
-            if(msgSize > maxMessageSize) {
-                String errMsg = "invalid length for " + tag + ". msgSize: " + msgSize + ". maxLimit: " + maxMessageSize;
-                logger.error(errMsg);
-                throw new AggregationFailure(errMsg);
-            }
 
             if(in.available() >= msgSize) {
-                return parser.parseFrom(ByteStreams.limit(in, msgSize));
+                if(checksum == null) {
+                    return in.parse(parser, msgSize);
+                }
+                in.updateChecksumSinceMarked(checksum);
+                return in.parse(parser, msgSize, checksum);
             }
             else {
                 throw new UnexpectedEOFException();
@@ -0,0 +1,208 @@
+package fk.prof.backend.request.profile.parser;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.google.protobuf.UninitializedMessageException;
+import com.google.protobuf.WireFormat;
+import recording.Recorder;
+
+import java.io.IOException;
+
+/**
+ * Streaming decoder of serialized {@link Recorder.Wse}, which reports its contents to a {@link WseVisitor} instead of building
+ * the object graph. Frames and trace ids of stack samples are decoded into primitives, so decoding does not allocate per frame.
+ * Entries of indexed data are decoded as messages since they are sent only once per method / trace in a profile.
+ * Entries which are not aggregated (like thread sample or monitor entries) are parsed only to be validated, and discarded.
+ * A wse missing any required field fails to decode, same as {@link Recorder.Wse#parseFrom(byte[])} would fail.
+ */
+public class WseDecoder {
+  private static final int WSE_INDEXED_DATA = Recorder.Wse.INDEXED_DATA_FIELD_NUMBER;
+  private static final int WSE_W_TYPE = Recorder.Wse.W_TYPE_FIELD_NUMBER;
+  private static final int WSE_CPU_SAMPLE_ENTRY = Recorder.Wse.CPU_SAMPLE_ENTRY_FIELD_NUMBER;
+  private static final int WSE_THREAD_SAMPLE_ENTRY = Recorder.Wse.THREAD_SAMPLE_ENTRY_FIELD_NUMBER;
+  private static final int WSE_MONITOR_CONTENTION_ENTRY = Recorder.Wse.MONITOR_CONTENTION_ENTRY_FIELD_NUMBER;
+  private static final int WSE_MONITOR_WAIT_ENTRY = Recorder.Wse.MONITOR_WAIT_ENTRY_FIELD_NUMBER;
+  private static final int INDEXED_DATA_TRACE_CTX = Recorder.IndexedData.TRACE_CTX_FIELD_NUMBER;
+  private static final int INDEXED_DATA_METHOD_INFO = Recorder.IndexedData.METHOD_INFO_FIELD_NUMBER;
+  private static final int STACK_SAMPLE_WSE_STACK_SAMPLE = Recorder.StackSampleWse.STACK_SAMPLE_FIELD_NUMBER;
+  private static final int STACK_SAMPLE_START_OFFSET_MICROS = Recorder.StackSample.START_OFFSET_MICROS_FIELD_NUMBER;
+  private static final int STACK_SAMPLE_FRAME = Recorder.StackSample.FRAME_FIELD_NUMBER;
+  private static final int STACK_SAMPLE_TRACE_ID = Recorder.StackSample.TRACE_ID_FIELD_NUMBER;
+  private static final int STACK_SAMPLE_SNIPPED = Recorder.StackSample.SNIPPED_FIELD_NUMBER;
+  private static final int FRAME_METHOD_ID = Recorder.Frame.METHOD_ID_FIELD_NUMBER;
+  private static final int FRAME_BCI = Recorder.Frame.BCI_FIELD_NUMBER;
+  private static final int FRAME_LINE_NO = Recorder.Frame.LINE_NO_FIELD_NUMBER;
+
+  // required fields of a message are tracked in a bitmask of decoded fields, bit i of which is set once required field i is decoded
+  private static final String[] STACK_SAMPLE_REQUIRED_FIELDS = {"start_offset_micros", "snipped"};
+  private static final String[] FRAME_REQUIRED_FIELDS = {"method_id", "bci", "line_no"};
+
+  private static final ExtensionRegistryLite EMPTY_REGISTRY = ExtensionRegistryLite.getEmptyRegistry();
+
+  /**
+   * Decodes a wse till end of input
+   * @param in positioned at start of serialized wse, ending at end of it
+   * @param visitor
+   * @throws IOException if wse is malformed
+   */
+  public static void decode(CodedInputStream in, WseVisitor visitor) throws IOException {
+    visitor.onWseStart();
+    boolean workTypeDecoded = false;
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      int field = WireFormat.getTagFieldNumber(tag);
+      if (field == WSE_INDEXED_DATA) {
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        decodeIndexedData(in, visitor);
+        in.popLimit(oldLimit);
+      } else if (field == WSE_W_TYPE) {
+        int workTypeValue = in.readEnum();
+        Recorder.WorkType workType = Recorder.WorkType.forNumber(workTypeValue);
+        if (workType == null) {
+          throw new InvalidProtocolBufferException("Unknown work type=" + workTypeValue);
+        }
+        visitor.onWorkType(workType);
+        workTypeDecoded = true;
+      } else if (field == WSE_CPU_SAMPLE_ENTRY) {
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        decodeStackSampleWse(in, visitor);
+        in.popLimit(oldLimit);
+      } else if (field == WSE_THREAD_SAMPLE_ENTRY) {
+        readInitializedMessage(in, Recorder.StackSampleWse.parser());
+      } else if (field == WSE_MONITOR_CONTENTION_ENTRY || field == WSE_MONITOR_WAIT_ENTRY) {
+        readInitializedMessage(in, Recorder.MonitorReportWse.parser());
+      } else if (!in.skipField(tag)) {
+        break;
+      }
+    }
+
+    if (!workTypeDecoded) {
+      throw new InvalidProtocolBufferException("Message missing required fields: w_type");
+    }
+    visitor.onWseEnd();
+  }
+
+  private static void decodeIndexedData(CodedInputStream in, WseVisitor visitor) throws IOException {
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      int field = WireFormat.getTagFieldNumber(tag);
+      if (field == INDEXED_DATA_TRACE_CTX) {
+        visitor.onTraceCtx(readInitializedMessage(in, Recorder.TraceContext.parser()));
+      } else if (field == INDEXED_DATA_METHOD_INFO) {
+        visitor.onMethodInfo(readInitializedMessage(in, Recorder.MethodInfo.parser()));
+      } else if (!in.skipField(tag)) {
+        break;
+      }
+    }
+  }
+
+  private static void decodeStackSampleWse(CodedInputStream in, WseVisitor visitor) throws IOException {
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      if (WireFormat.getTagFieldNumber(tag) == STACK_SAMPLE_WSE_STACK_SAMPLE) {
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        visitor.onStackSampleStart();
+        decodeStackSample(in, visitor);
+        in.popLimit(oldLimit);
+      } else if (!in.skipField(tag)) {
+        break;
+      }
+    }
+  }
+
+  private static void decodeStackSample(CodedInputStream in, WseVisitor visitor) throws IOException {
+    boolean snipped = false;
+    int decoded = 0;
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      int field = WireFormat.getTagFieldNumber(tag);
+      if (field == STACK_SAMPLE_START_OFFSET_MICROS) {
+        in.readUInt32();
+        decoded |= 1;
+      } else if (field == STACK_SAMPLE_FRAME) {
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        decodeFrame(in, visitor);
+        in.popLimit(oldLimit);
+      } else if (field == STACK_SAMPLE_TRACE_ID) {
+        if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+          // packed encoding
+          int oldLimit = in.pushLimit(in.readRawVarint32());
+          while (in.getBytesUntilLimit() > 0) {
+            visitor.onTraceId(in.readUInt32());
+          }
+          in.popLimit(oldLimit);
+        } else {
+          visitor.onTraceId(in.readUInt32());
+        }
+      } else if (field == STACK_SAMPLE_SNIPPED) {
+        snipped = in.readBool();
+        decoded |= 1 << 1;
+      } else if (!in.skipField(tag)) {
+        break;
+      }
+    }
+
+    checkRequiredFields(decoded, STACK_SAMPLE_REQUIRED_FIELDS);
+    visitor.onStackSampleEnd(snipped);
+  }
+
+  private static void decodeFrame(CodedInputStream in, WseVisitor visitor) throws IOException {
+    long methodId = 0;
+    int lineNo = 0;
+    int decoded = 0;
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      int field = WireFormat.getTagFieldNumber(tag);
+      if (field == FRAME_METHOD_ID) {
+        methodId = in.readInt64();
+        decoded |= 1;
+      } else if (field == FRAME_BCI) {
+        in.readInt32();
+        decoded |= 1 << 1;
+      } else if (field == FRAME_LINE_NO) {
+        lineNo = in.readInt32();
+        decoded |= 1 << 2;
+      } else if (!in.skipField(tag)) {
+        break;
+      }
+    }
+
+    checkRequiredFields(decoded, FRAME_REQUIRED_FIELDS);
+    visitor.onFrame(methodId, lineNo);
+  }
+
+  /**
+   * Reading a message from a coded stream does not check its required fields, unlike parsing it
+   * @throws InvalidProtocolBufferException if message is missing required fields
+   */
+  private static <T extends MessageLite> T readInitializedMessage(CodedInputStream in, Parser<T> parser) throws IOException {
+    T message = in.readMessage(parser, EMPTY_REGISTRY);
+    if (!message.isInitialized()) {
+      throw new UninitializedMessageException(message).asInvalidProtocolBufferException();
+    }
+    return message;
+  }
+
+  /**
+   * @param decoded bitmask of required fields which have been decoded
+   * @param requiredFields names of required fields of the message, in order of their bits
+   * @throws InvalidProtocolBufferException listing required fields which were not decoded
+   */
+  private static void checkRequiredFields(int decoded, String[] requiredFields) throws InvalidProtocolBufferException {
+    if (decoded == (1 << requiredFields.length) - 1) {
+      return;
+    }
+    StringBuilder missing = new StringBuilder("Message missing required fields: ");
+    String separator = "";
+    for (int i = 0; i < requiredFields.length; i++) {
+      if ((decoded & (1 << i)) == 0) {
+        missing.append(separator).append(requiredFields[i]);
+        separator = ", ";
+      }
+    }
+    throw new InvalidProtocolBufferException(missing.toString());
+  }
+}
@@ -1,17 +1,20 @@
 package fk.prof.backend.request.profile.parser;
 
 import com.codahale.metrics.Histogram;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.request.CompositeByteBufInputStream;
 import recording.Recorder;
 
 import java.io.IOException;
-import java.util.zip.Adler32;
+import java.util.zip.Checksum;
 
 public class WseParser {
   private Recorder.Wse wse = null;
+  private byte[] framedWse = null;
 
-  private Adler32 wseChecksum = new Adler32();
+  private Checksum wseChecksum = Checksums.newChecksum(Recorder.ChecksumType.adler32);
   private boolean wseParsed = false;
   private int maxMessageSizeInBytes;
   private boolean endMarkerReceived = false;
@@ -23,6 +26,14 @@ public class WseParser {
     this.msgParser = new MessageParser(histWseSize);
   }
 
+  /**
+   * Sets type of checksum of wse, as advertised by recorder in recording header. Should be set before parsing first wse
+   * @param checksumType
+   */
+  public void setChecksumType(Recorder.ChecksumType checksumType) {
+    this.wseChecksum = Checksums.newChecksum(checksumType);
+  }
+
   /**
    * Returns true if wse has been read and checksum validated, false otherwise
    *
@@ -45,30 +56,115 @@ public class WseParser {
     return this.wse;
   }
 
+  /**
+   * Returns serialized wse if {@link #isParsed()} is true after {@link #frame(CompositeByteBufInputStream)}, null otherwise
+   *
+   * @return
+   */
+  public byte[] getFramed() {
+    return this.framedWse;
+  }
+
   /**
    * Resets internal fields of the parser
    * Note: If {@link #get()} is not performed before reset, previous parsed entry will be lost
    */
   public void reset() {
     this.wse = null;
+    this.framedWse = null;
     this.wseParsed = false;
     this.wseChecksum.reset();
   }
 
   /**
-   * Reads buffer and updates internal state with parsed fields.
+   * Reads buffer and decodes next wse into visitor using {@link WseDecoder}, without materializing it as {@link Recorder.Wse}.
+   * Wse is decoded only after it has been received along with its checksum and checksum has been validated, so visitor never
+   * receives contents of a partial or corrupt wse. A wse whose checksum does not match is reported as such without being decoded.
+   * {@link #isParsed()} is true after wse has been decoded, {@link #get()} stays null
+   * Unlike {@link #parse(CompositeByteBufInputStream)}, bytes of wse are read twice, once for checksum and once while decoding
+   * @param in
+   * @param visitor
+   */
+  public void parse(CompositeByteBufInputStream in, WseVisitor visitor) throws AggregationFailure {
+    try {
+      int msgSize = readSize(in);
+      if (msgSize == 0) {
+        return;
+      }
+
+      // view over the wse stays valid till next markAndDiscardRead, which happens only on next invocation
+      CodedInputStream wseIn = in.codedInputStream(msgSize);
+      in.skip(msgSize);
+      if (!checksumMatches(in)) {
+        throw new AggregationFailure("Checksum of wse does not match");
+      }
+
+      WseDecoder.decode(wseIn, visitor);
+      wseParsed = true;
+    }
+    catch (UnexpectedEOFException e) {
+      // wse is decoded again from its start when rest of the bytes are received
+      resetMark(in);
+    }
+    catch (InvalidProtocolBufferException e) {
+      throw new AggregationFailure("Error while parsing WSE", e);
+    }
+    catch (IOException e) {
+      throw new AggregationFailure(e, true);
+    }
+  }
+
+  /**
+   * Reads buffer and frames next wse, that is, copies out its serialized bytes once it has been received along with its checksum and
+   * checksum has been validated. Wse is not decoded, so that it can be decoded off the thread reading the buffer.
+   * {@link #isParsed()} is true after wse has been framed, {@link #getFramed()} returns the serialized wse
+   * @param in
+   */
+  public void frame(CompositeByteBufInputStream in) throws AggregationFailure {
+    try {
+      int msgSize = readSize(in);
+      if (msgSize == 0) {
+        return;
+      }
+
+      // checksum is computed over the copy while it is still in cache, instead of reading the buffer again
+      wseChecksum.reset();
+      in.updateChecksumSinceMarked(wseChecksum);
+      byte[] wseBytes = new byte[msgSize];
+      in.read(wseBytes, 0, msgSize);
+      wseChecksum.update(wseBytes, 0, msgSize);
+      if (!checksumValueMatches(in)) {
+        throw new AggregationFailure("Checksum of wse does not match");
+      }
+
+      framedWse = wseBytes;
+      wseParsed = true;
+    }
+    catch (UnexpectedEOFException e) {
+      resetMark(in);
+    }
+    catch (InvalidProtocolBufferException e) {
+      throw new AggregationFailure("Error while parsing WSE", e);
+    }
+    catch (IOException e) {
+      throw new AggregationFailure(e, true);
+    }
+  }
+
+  /**
+   * Reads buffer and updates internal state with parsed fields. Checksum is computed as bytes of wse are consumed by the parser
    * @param in
    */
   public void parse(CompositeByteBufInputStream in) throws AggregationFailure {
     try {
       if (wse == null) {
         in.markAndDiscardRead();
-        wse = msgParser.readDelimited(Recorder.Wse.parser(), in, maxMessageSizeInBytes, "WSE");
+        wseChecksum.reset();
+        wse = msgParser.readDelimited(Recorder.Wse.parser(), in, maxMessageSizeInBytes, "WSE", wseChecksum);
         if(wse == null) {
           endMarkerReceived = true;
           return;
         }
-        in.updateChecksumSinceMarked(wseChecksum);
       }
       in.markAndDiscardRead();
       int checksumValue = msgParser.readRawVariantInt(in, "wseChecksumValue");
@@ -89,4 +185,45 @@ public class WseParser {
       throw new AggregationFailure(e, true);
     }
   }
+
+  /**
+   * Marks the buffer and reads size of next wse. Returns 0 if end marker has been received
+   * Throws UnexpectedEOFException if complete wse is not yet available in buffer
+   */
+  private int readSize(CompositeByteBufInputStream in) throws IOException {
+    in.markAndDiscardRead();
+    int msgSize = msgParser.readDelimitedSize(in, maxMessageSizeInBytes, "WSE");
+    if (msgSize == 0) {
+      endMarkerReceived = true;
+    } else if (in.available() < msgSize) {
+      throw new UnexpectedEOFException();
+    }
+    return msgSize;
+  }
+
+  /**
+   * Reads checksum following the wse and validates it against bytes read since mark, that is, size and contents of the wse
+   */
+  private boolean checksumMatches(CompositeByteBufInputStream in) throws IOException {
+    wseChecksum.reset();
+    in.updateChecksumSinceMarked(wseChecksum);
+    return checksumValueMatches(in);
+  }
+
+  /**
+   * Reads checksum following the wse and validates it against checksum computed so far
+   */
+  private boolean checksumValueMatches(CompositeByteBufInputStream in) throws IOException {
+    int checksumValue = msgParser.readRawVariantInt(in, "wseChecksumValue");
+    return checksumValue == ((int) wseChecksum.getValue());
+  }
+
+  private void resetMark(CompositeByteBufInputStream in) throws AggregationFailure {
+    try {
+      in.resetMark();
+    }
+    catch (IOException resetEx) {
+      throw new AggregationFailure(resetEx);
+    }
+  }
 }
@@ -0,0 +1,43 @@
+package fk.prof.backend.request.profile.parser;
+
+import fk.prof.backend.exception.AggregationFailure;
+import recording.Recorder;
+
+/**
+ * Receives contents of a wse as it is decoded by {@link WseDecoder}, without the wse being materialized as {@link Recorder.Wse}.
+ * Callbacks are made in the order fields appear in serialized wse, which for a recorder is the order of field numbers:
+ * indexed data, followed by work type, followed by stack samples. Frames of a stack sample are visited before its trace ids.
+ * Implementations can throw {@link AggregationFailure} to abort decoding.
+ */
+public interface WseVisitor {
+  /**
+   * Called before any field of the wse is decoded
+   */
+  default void onWseStart() {
+  }
+
+  void onTraceCtx(Recorder.TraceContext traceContext);
+
+  void onMethodInfo(Recorder.MethodInfo methodInfo);
+
+  void onWorkType(Recorder.WorkType workType);
+
+  /**
+   * Called at start of every stack sample of cpu sample entry
+   */
+  void onStackSampleStart();
+
+  /**
+   * Called for every frame of a stack sample, in callee -> caller order
+   */
+  void onFrame(long methodId, int lineNo);
+
+  void onTraceId(int traceId);
+
+  void onStackSampleEnd(boolean snipped);
+
+  /**
+   * Called after all fields of the wse have been decoded
+   */
+  void onWseEnd();
+}
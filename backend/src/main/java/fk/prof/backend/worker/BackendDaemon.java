@@ -99,7 +99,8 @@ public class BackendDaemon extends AbstractVerticle {
         workSlotPool,
         activeAggregationWindows,
         this::getWorkFromLeader,
-        this::serializeAndPersistAggregationWindow);
+        this::serializeAndPersistAggregationWindow,
+        daemonConfig.getArrayBackedTrees());
   }
 
   private void postLoadToLeader() {
@@ -0,0 +1,230 @@
+package fk.prof.backend;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import fk.prof.backend.request.profile.AggregationPipeline;
+import fk.prof.backend.request.profile.PausableRequest;
+import fk.prof.backend.request.profile.ProfileAdmissionController;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(VertxUnitRunner.class)
+public class AggregationPipelineTest {
+  private static final int MAX_QUEUED_TASKS = 4;
+
+  private Vertx vertx;
+  private WorkerExecutor workerExecutor;
+  private CountingPausableRequest request;
+  private Counter ctrQueued;
+
+  @Before
+  public void setUp() {
+    vertx = Vertx.vertx();
+    workerExecutor = vertx.createSharedWorkerExecutor("aggregation.pipeline.test", 4);
+    request = new CountingPausableRequest();
+    ctrQueued = new Counter();
+  }
+
+  @After
+  public void tearDown(TestContext context) {
+    workerExecutor.close();
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test(timeout = 10000)
+  public void testTasksRunInOrderAndRequestIsPausedTillQueueIsDrained(TestContext context) {
+    Async async = context.async();
+    Context eventLoop = vertx.getOrCreateContext();
+    CountDownLatch blocked = new CountDownLatch(1);
+    List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> expected = new ArrayList<>();
+
+    eventLoop.runOnContext(v -> {
+      AggregationPipeline pipeline = newPipeline(eventLoop, context::fail);
+      pipeline.submit(() -> await(blocked));
+      for (int i = 0; i < 2 * MAX_QUEUED_TASKS; i++) {
+        int task = i;
+        expected.add(task);
+        pipeline.submit(() -> executed.add(task));
+      }
+      // first task is still running, so the queue is full
+      context.assertEquals(1, request.pauses);
+      context.assertEquals(0, request.resumes);
+
+      pipeline.whenDrained(drained -> {
+        context.assertTrue(Vertx.currentContext() == eventLoop);
+        context.assertEquals(expected, executed);
+        context.assertEquals(1, request.resumes);
+        context.assertEquals(0L, ctrQueued.getCount());
+        async.complete();
+      });
+      blocked.countDown();
+    });
+  }
+
+  @Test(timeout = 10000)
+  public void testFailedTaskDropsPendingTasksAndIsReportedBeforeDrain(TestContext context) {
+    Async async = context.async();
+    Context eventLoop = vertx.getOrCreateContext();
+    CountDownLatch blocked = new CountDownLatch(1);
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+    RuntimeException failure = new RuntimeException("aggregation failed");
+
+    eventLoop.runOnContext(v -> {
+      AggregationPipeline pipeline = newPipeline(eventLoop, th -> {
+        context.assertEquals(failure, th);
+        events.add("failed");
+      });
+      pipeline.submit(() -> await(blocked));
+      pipeline.submit(() -> {
+        throw failure;
+      });
+      pipeline.submit(() -> events.add("dropped"));
+
+      pipeline.whenDrained(drained -> {
+        // submitted after failure, ignored
+        pipeline.submit(() -> events.add("ignored"));
+        vertx.setTimer(100, id -> {
+          context.assertEquals(Collections.singletonList("failed"), events);
+          context.assertEquals(0L, ctrQueued.getCount());
+          async.complete();
+        });
+      });
+      blocked.countDown();
+    });
+  }
+
+  @Test(timeout = 10000)
+  public void testDiscardDropsPendingTasksAndLetsRunningTaskComplete(TestContext context) {
+    Async async = context.async();
+    Context eventLoop = vertx.getOrCreateContext();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+
+    eventLoop.runOnContext(v -> {
+      AggregationPipeline pipeline = newPipeline(eventLoop, context::fail);
+      pipeline.submit(() -> {
+        started.countDown();
+        await(blocked);
+        executed.add(0);
+      });
+      pipeline.submit(() -> executed.add(1));
+      pipeline.submit(() -> executed.add(2));
+
+      await(started);
+      pipeline.discard();
+      pipeline.submit(() -> executed.add(3));
+      context.assertEquals(0L, ctrQueued.getCount());
+
+      pipeline.whenDrained(drained -> {
+        context.assertEquals(Collections.singletonList(0), executed);
+        async.complete();
+      });
+      blocked.countDown();
+    });
+  }
+
+  @Test(timeout = 10000)
+  public void testBytesOfQueuedTasksCountInAdmissionTillTasksAreRunOrDropped(TestContext context) {
+    Async async = context.async();
+    Context eventLoop = vertx.getOrCreateContext();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    ProfileAdmissionController controller = new ProfileAdmissionController(new JsonObject()
+        .put("max.active.profiles", 10).put("buffered.bytes.watermark", 100).put("buffered.bytes.max", 1000)
+        .mapTo(Configuration.BackendHttpVerticleConfig.ProfileAdmissionConfig.class));
+    ProfileAdmissionController.Admission admission = controller.admit();
+
+    eventLoop.runOnContext(v -> {
+      AggregationPipeline pipeline = newPipeline(eventLoop, context::fail, admission);
+      pipeline.submit(() -> {
+        started.countDown();
+        await(blocked);
+      }, 60);
+      pipeline.submit(() -> {}, 60);
+      await(started);
+      context.assertTrue(admission.throttle());
+
+      blocked.countDown();
+      pipeline.whenDrained(drained -> {
+        context.assertFalse(admission.throttle());
+
+        CountDownLatch blockedAgain = new CountDownLatch(1);
+        pipeline.submit(() -> await(blockedAgain), 60);
+        pipeline.submit(() -> {}, 60);
+        pipeline.discard();
+        blockedAgain.countDown();
+        pipeline.whenDrained(discarded -> {
+          context.assertFalse(admission.throttle());
+          async.complete();
+        });
+      });
+    });
+  }
+
+  private AggregationPipeline newPipeline(Context eventLoop, Handler<Throwable> failureHandler) {
+    return newPipeline(eventLoop, failureHandler, null);
+  }
+
+  private AggregationPipeline newPipeline(Context eventLoop, Handler<Throwable> failureHandler,
+                                          ProfileAdmissionController.Admission admission) {
+    return new AggregationPipeline(workerExecutor, eventLoop, request, MAX_QUEUED_TASKS, failureHandler, admission,
+        new Histogram(new SlidingWindowReservoir(16)), ctrQueued, new Timer(), new Meter());
+  }
+
+  /**
+   * Counts pauses and resumes due to aggregation backlog, instead of pausing an http request
+   */
+  private static class CountingPausableRequest extends PausableRequest {
+    volatile int pauses = 0;
+    volatile int resumes = 0;
+
+    CountingPausableRequest() {
+      super(null);
+    }
+
+    @Override
+    public void pause(PauseReason reason) {
+      if (reason == PauseReason.AGGREGATION_BACKLOG) {
+        pauses++;
+      }
+    }
+
+    @Override
+    public void resume(PauseReason reason) {
+      if (reason == PauseReason.AGGREGATION_BACKLOG) {
+        resumes++;
+      }
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      if (!latch.await(5, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Timed out waiting on latch");
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
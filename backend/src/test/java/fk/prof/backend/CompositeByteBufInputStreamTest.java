@@ -0,0 +1,103 @@
+package fk.prof.backend;
+
+import fk.prof.backend.request.CompositeByteBufInputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompositeByteBufInputStreamTest {
+
+  @Test
+  public void testReadsAcrossChunksAndResetsToMark() throws Exception {
+    CompositeByteBufInputStream in = new CompositeByteBufInputStream(UnpooledByteBufAllocator.DEFAULT, 4, 0);
+    // varint 300 is encoded as 0xac 0x02, split across chunks
+    in.accept(chunk(0xac));
+    in.accept(chunk(0x02, 1, 2));
+    in.accept(chunk(3, 4, 5));
+
+    in.markAndDiscardRead();
+    Assert.assertEquals(300, in.readRawVarint32());
+    byte[] read = new byte[4];
+    Assert.assertEquals(4, in.read(read, 0, 4));
+    Assert.assertArrayEquals(new byte[] {1, 2, 3, 4}, read);
+
+    in.resetMark();
+    Assert.assertEquals(7, in.available());
+    Assert.assertEquals(300, in.readRawVarint32());
+    Assert.assertEquals(1, in.read());
+    Assert.assertEquals(2, in.skip(2));
+    Assert.assertEquals(4, in.read());
+    Assert.assertEquals(5, in.read());
+    Assert.assertEquals(-1, in.read());
+  }
+
+  @Test(expected = EOFException.class)
+  public void testIncompleteVarintDoesNotAdvance() throws Exception {
+    CompositeByteBufInputStream in = new CompositeByteBufInputStream(UnpooledByteBufAllocator.DEFAULT, 4, 0);
+    in.accept(chunk(0xac));
+    try {
+      in.readRawVarint32();
+    } finally {
+      Assert.assertEquals(1, in.available());
+    }
+  }
+
+  @Test
+  public void testConsumedChunksAreReleased() throws Exception {
+    CompositeByteBufInputStream in = new CompositeByteBufInputStream(UnpooledByteBufAllocator.DEFAULT, 4, 0);
+    ByteBuf first = chunk(1, 2), second = chunk(3, 4);
+    in.accept(first);
+    in.accept(second);
+
+    in.skip(3);
+    in.markAndDiscardRead();
+    Assert.assertEquals(0, first.refCnt());
+    Assert.assertEquals(1, second.refCnt());
+    Assert.assertEquals(0, in.getCopiedBytes());
+
+    in.close();
+    Assert.assertEquals(0, second.refCnt());
+  }
+
+  @Test
+  public void testSmallChunksAreCoalescedAndFullRingIsConsolidatedFromMark() throws Exception {
+    CompositeByteBufInputStream in = new CompositeByteBufInputStream(UnpooledByteBufAllocator.DEFAULT, 2, 2);
+    List<ByteBuf> chunks = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      chunks.add(chunk(i));
+      in.accept(chunks.get(i));
+    }
+    // small chunks are copied to a single buffer of the stream
+    Assert.assertEquals(8, in.getCopiedBytes());
+    Assert.assertEquals(0, chunks.get(7).refCnt());
+
+    Assert.assertEquals(0, in.read());
+    in.markAndDiscardRead();
+    in.accept(chunk(8, 9, 10));
+    Assert.assertEquals(8, in.getCopiedBytes());
+    // ring of 2 is full, bytes from mark onwards are consolidated
+    in.accept(chunk(11, 12, 13));
+    Assert.assertEquals(8 + 10, in.getCopiedBytes());
+
+    for (int expected = 1; expected <= 13; expected++) {
+      Assert.assertEquals(expected, in.read());
+    }
+    in.resetMark();
+    Assert.assertEquals(13, in.available());
+    in.close();
+  }
+
+  private static ByteBuf chunk(int... bytes) {
+    byte[] arr = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      arr[i] = (byte) bytes[i];
+    }
+    return Unpooled.wrappedBuffer(arr);
+  }
+}
@@ -0,0 +1,224 @@
+package fk.prof.backend;
+
+import com.codahale.metrics.Meter;
+import fk.prof.backend.aggregator.CpuSamplingAggregationBucket;
+import fk.prof.backend.aggregator.LocalCpuSamplingAggregationBucket;
+import fk.prof.backend.aggregator.StackSampleCache;
+import fk.prof.backend.exception.AggregationFailure;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import org.junit.Assert;
+import org.junit.Test;
+import recording.Recorder;
+
+import java.util.stream.Collectors;
+
+public class CpuSamplingAggregationBucketTest {
+
+  @Test
+  public void testMergeOfLocalAggregationIsSameAsDirectAggregation() {
+    for (boolean arrayBackedTrees : new boolean[]{false, true}) {
+      Recorder.StackSampleWse stackSampleWse1 = Recorder.StackSampleWse.newBuilder()
+          .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+          .build();
+      Recorder.StackSampleWse stackSampleWse2 = Recorder.StackSampleWse.newBuilder()
+          .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1).stream()
+              .map(stackSample -> stackSample.toBuilder().setSnipped(false).build())
+              .collect(Collectors.toList()))
+          .build();
+      Recorder.Wse wse1 = MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse1, null);
+      Recorder.Wse wse2 = MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse2, stackSampleWse1);
+
+      CpuSamplingAggregationBucket direct = new CpuSamplingAggregationBucket(arrayBackedTrees);
+      RecordedProfileIndexes directIndexes = new RecordedProfileIndexes();
+      for (Recorder.Wse wse : new Recorder.Wse[]{wse1, wse2}) {
+        directIndexes.update(wse.getIndexedData());
+        direct.aggregate(wse.getCpuSampleEntry(), directIndexes, new Meter());
+      }
+
+      CpuSamplingAggregationBucket merged = new CpuSamplingAggregationBucket(arrayBackedTrees);
+      LocalCpuSamplingAggregationBucket local = new LocalCpuSamplingAggregationBucket();
+      RecordedProfileIndexes localIndexes = new RecordedProfileIndexes();
+      for (Recorder.Wse wse : new Recorder.Wse[]{wse1, wse2}) {
+        localIndexes.update(wse.getIndexedData());
+        local.aggregate(wse.getCpuSampleEntry(), localIndexes, new Meter());
+      }
+      merged.merge(local, localIndexes, new Meter());
+
+      Assert.assertEquals(direct.finalizeEntity(), merged.finalizeEntity());
+    }
+  }
+
+  @Test
+  public void testAggregationWithStackSampleCacheIsSameAsWithoutCache() {
+    for (boolean arrayBackedTrees : new boolean[]{false, true}) {
+      Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+          .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+          .build();
+      Recorder.Wse wse = MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse, null);
+      RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+      indexes.update(wse.getIndexedData());
+
+      CpuSamplingAggregationBucket uncached = new CpuSamplingAggregationBucket(arrayBackedTrees);
+      CpuSamplingAggregationBucket cached = new CpuSamplingAggregationBucket(arrayBackedTrees);
+      Meter mtrHit = new Meter(), mtrMiss = new Meter();
+      // capacity of cache is less than count of distinct stacks, so last stack is aggregated without caching
+      StackSampleCache stackSampleCache = new StackSampleCache(2, mtrHit, mtrMiss);
+      for (int i = 0; i < 3; i++) {
+        uncached.aggregate(stackSampleWse, indexes, new Meter());
+        cached.aggregate(stackSampleWse, indexes, stackSampleCache, new Meter());
+      }
+
+      Assert.assertEquals(uncached.finalizeEntity(), cached.finalizeEntity());
+      Assert.assertEquals(4, mtrHit.getCount());
+      Assert.assertEquals(5, mtrMiss.getCount());
+    }
+  }
+
+  @Test
+  public void testSameMethodWithDifferentRecorderIdsIsMappedToSameMethodId() {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket();
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+    RecordedProfileIndexes expectedIndexes = getIndexesWithSingleMethod(10);
+    for (long recorderMethodId : new long[]{10, 20}) {
+      bucket.aggregate(getStackSampleWseWithSingleFrame(recorderMethodId), getIndexesWithSingleMethod(recorderMethodId), new Meter());
+      expected.aggregate(getStackSampleWseWithSingleFrame(10), expectedIndexes, new Meter());
+    }
+
+    Assert.assertEquals(expected.finalizeEntity(), bucket.finalizeEntity());
+  }
+
+  @Test
+  public void testRedefinedRecorderMethodIdIsMappedAgain() {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket();
+    RecordedProfileIndexes indexes = getIndexesWithSingleMethod(10, "A");
+    bucket.aggregate(getStackSampleWseWithSingleFrame(10), indexes, new Meter());
+    indexes.update(getIndexedDataWithSingleMethod(10, "B"));
+    bucket.aggregate(getStackSampleWseWithSingleFrame(10), indexes, new Meter());
+
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+    expected.aggregate(getStackSampleWseWithSingleFrame(10), getIndexesWithSingleMethod(10, "A"), new Meter());
+    expected.aggregate(getStackSampleWseWithSingleFrame(20), getIndexesWithSingleMethod(20, "B"), new Meter());
+
+    Assert.assertEquals(expected.finalizeEntity(), bucket.finalizeEntity());
+  }
+
+  @Test
+  public void testRedefinedRecorderMethodIdInvalidatesCachedStacks() {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket();
+    Meter mtrHit = new Meter(), mtrMiss = new Meter();
+    StackSampleCache stackSampleCache = new StackSampleCache(10, mtrHit, mtrMiss);
+    RecordedProfileIndexes indexes = getIndexesWithSingleMethod(10, "A");
+    bucket.aggregate(getStackSampleWseWithSingleFrame(10), indexes, stackSampleCache, new Meter());
+    bucket.aggregate(getStackSampleWseWithSingleFrame(10), indexes, stackSampleCache, new Meter());
+    indexes.update(getIndexedDataWithSingleMethod(10, "B"));
+    bucket.aggregate(getStackSampleWseWithSingleFrame(10), indexes, stackSampleCache, new Meter());
+
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+    RecordedProfileIndexes expectedIndexes = getIndexesWithSingleMethod(10, "A");
+    expected.aggregate(getStackSampleWseWithSingleFrame(10), expectedIndexes, new Meter());
+    expected.aggregate(getStackSampleWseWithSingleFrame(10), expectedIndexes, new Meter());
+    expected.aggregate(getStackSampleWseWithSingleFrame(20), getIndexesWithSingleMethod(20, "B"), new Meter());
+
+    Assert.assertEquals(expected.finalizeEntity(), bucket.finalizeEntity());
+    Assert.assertEquals(1, mtrHit.getCount());
+    Assert.assertEquals(2, mtrMiss.getCount());
+  }
+
+  @Test
+  public void testRedefinedRecorderMethodIdIsMergedAsAnotherMethod() {
+    CpuSamplingAggregationBucket merged = new CpuSamplingAggregationBucket();
+    LocalCpuSamplingAggregationBucket local = new LocalCpuSamplingAggregationBucket();
+    RecordedProfileIndexes indexes = getIndexesWithSingleMethod(10, "A");
+    local.aggregate(getStackSampleWseWithSingleFrame(10), indexes, new Meter());
+    indexes.update(getIndexedDataWithSingleMethod(10, "B"));
+    local.aggregate(getStackSampleWseWithSingleFrame(10), indexes, new Meter());
+    merged.merge(local, indexes, new Meter());
+
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+    RecordedProfileIndexes expectedIndexes = getIndexesWithSingleMethod(10, "A");
+    expected.aggregate(getStackSampleWseWithSingleFrame(10), expectedIndexes, new Meter());
+    expectedIndexes.update(getIndexedDataWithSingleMethod(10, "B"));
+    expected.aggregate(getStackSampleWseWithSingleFrame(10), expectedIndexes, new Meter());
+
+    Assert.assertEquals(expected.finalizeEntity(), merged.finalizeEntity());
+  }
+
+  @Test
+  public void testUnknownMethodInSampleWithoutTracesIsIgnored() {
+    Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+        .addStackSample(Recorder.StackSample.newBuilder()
+            .setStartOffsetMicros(1000).setThreadId(1).setSnipped(false)
+            .addFrame(Recorder.Frame.newBuilder().setMethodId(30).setBci(1).setLineNo(10)))
+        .build();
+    RecordedProfileIndexes indexes = getIndexesWithSingleMethod(10);
+
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket();
+    bucket.aggregate(stackSampleWse, indexes, new Meter());
+    bucket.aggregate(stackSampleWse, indexes, new StackSampleCache(10, new Meter(), new Meter()), new Meter());
+    LocalCpuSamplingAggregationBucket local = new LocalCpuSamplingAggregationBucket();
+    local.aggregate(stackSampleWse, indexes, new Meter());
+    bucket.merge(local, indexes, new Meter());
+
+    Assert.assertEquals(new CpuSamplingAggregationBucket().finalizeEntity(), bucket.finalizeEntity());
+  }
+
+  @Test
+  public void testIndexesReusedWithAnotherBucketAreMappedToMethodIdsOfThatBucket() {
+    CpuSamplingAggregationBucket first = new CpuSamplingAggregationBucket();
+    CpuSamplingAggregationBucket second = new CpuSamplingAggregationBucket();
+    // method of the profile gets a different method id in second bucket
+    second.aggregate(getStackSampleWseWithSingleFrame(20), getIndexesWithSingleMethod(20, "B"), new Meter());
+
+    RecordedProfileIndexes indexes = getIndexesWithSingleMethod(10, "A");
+    first.aggregate(getStackSampleWseWithSingleFrame(10), indexes, new Meter());
+    second.aggregate(getStackSampleWseWithSingleFrame(10), indexes, new Meter());
+
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+    expected.aggregate(getStackSampleWseWithSingleFrame(20), getIndexesWithSingleMethod(20, "B"), new Meter());
+    expected.aggregate(getStackSampleWseWithSingleFrame(10), getIndexesWithSingleMethod(10, "A"), new Meter());
+
+    Assert.assertEquals(expected.finalizeEntity(), second.finalizeEntity());
+  }
+
+  @Test
+  public void testLocalAggregationFailsOnUnknownMethod() {
+    Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+        .build();
+    Meter mtrAggrFailures = new Meter();
+    LocalCpuSamplingAggregationBucket local = new LocalCpuSamplingAggregationBucket();
+    try {
+      local.aggregate(stackSampleWse, new RecordedProfileIndexes(), mtrAggrFailures);
+      Assert.fail("Aggregation should fail when method index is missing");
+    } catch (AggregationFailure ex) {
+      Assert.assertEquals(1, mtrAggrFailures.getCount());
+    }
+  }
+
+  private static RecordedProfileIndexes getIndexesWithSingleMethod(long recorderMethodId) {
+    return getIndexesWithSingleMethod(recorderMethodId, "A");
+  }
+
+  private static RecordedProfileIndexes getIndexesWithSingleMethod(long recorderMethodId, String classFqdn) {
+    RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+    indexes.update(getIndexedDataWithSingleMethod(recorderMethodId, classFqdn));
+    return indexes;
+  }
+
+  private static Recorder.IndexedData getIndexedDataWithSingleMethod(long recorderMethodId, String classFqdn) {
+    return Recorder.IndexedData.newBuilder()
+        .addMethodInfo(Recorder.MethodInfo.newBuilder()
+            .setMethodId(recorderMethodId).setClassFqdn(classFqdn).setMethodName("m").setSignature("()V").setFileName(""))
+        .addTraceCtx(Recorder.TraceContext.newBuilder().setTraceId(1).setTraceName("t").setIsGenerated(false))
+        .build();
+  }
+
+  private static Recorder.StackSampleWse getStackSampleWseWithSingleFrame(long recorderMethodId) {
+    return Recorder.StackSampleWse.newBuilder()
+        .addStackSample(Recorder.StackSample.newBuilder()
+            .setStartOffsetMicros(1000).setThreadId(1).setSnipped(false).addTraceId(1)
+            .addFrame(Recorder.Frame.newBuilder().setMethodId(recorderMethodId).setBci(1).setLineNo(10)))
+        .build();
+  }
+}
@@ -0,0 +1,101 @@
+package fk.prof.backend;
+
+import fk.prof.backend.exception.ServiceUnavailableException;
+import fk.prof.backend.request.profile.ProfileAdmissionController;
+import fk.prof.metrics.ProcessGroupTag;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProfileAdmissionControllerTest {
+  private static final ProcessGroupTag pg1 = new ProcessGroupTag("a", "c", "p1");
+  private static final ProcessGroupTag pg2 = new ProcessGroupTag("a", "c", "p2");
+
+  @Test
+  public void testProfilesAreRejectedAtActiveProfileLimits() {
+    ProfileAdmissionController controller = new ProfileAdmissionController(getConfig(3, 1000, 2000));
+
+    ProfileAdmissionController.Admission admission1 = controller.admit();
+    admission1.admitProcessGroup(pg1);
+    ProfileAdmissionController.Admission admission2 = controller.admit();
+    // limit of pg1 is overridden to a single active profile
+    assertRejected(() -> admission2.admitProcessGroup(pg1), 5);
+    admission2.admitProcessGroup(pg2);
+    controller.admit();
+    assertRejected(controller::admit, 5);
+
+    admission1.release();
+    admission1.release();
+    controller.admit().admitProcessGroup(pg1);
+  }
+
+  @Test
+  public void testProfilesAreThrottledAndRejectedOnBufferedBytes() {
+    ProfileAdmissionController controller = new ProfileAdmissionController(getConfig(10, 1000, 2000));
+
+    ProfileAdmissionController.Admission admission1 = controller.admit();
+    admission1.updateBufferedBytes(900);
+    Assert.assertFalse(admission1.throttle());
+    admission1.admitProcessGroup(pg2);
+    admission1.updateBufferedBytes(1500);
+    Assert.assertTrue(admission1.throttle());
+
+    // buffered bytes of pg1 are limited to 100
+    ProfileAdmissionController.Admission admission2 = controller.admit();
+    admission2.updateBufferedBytes(100);
+    admission2.admitProcessGroup(pg1);
+    ProfileAdmissionController.Admission admission3 = controller.admit();
+    assertRejected(() -> admission3.admitProcessGroup(pg1), 5);
+
+    admission1.updateBufferedBytes(1900);
+    assertRejected(controller::admit, 5);
+
+    admission1.release();
+    Assert.assertFalse(admission2.throttle());
+    controller.admit();
+  }
+
+  @Test
+  public void testQueuedBytesCountAsBufferedTillDrainedOrReleased() {
+    ProfileAdmissionController controller = new ProfileAdmissionController(getConfig(10, 1000, 2000));
+
+    ProfileAdmissionController.Admission admission1 = controller.admit();
+    admission1.admitProcessGroup(pg2);
+    admission1.updateBufferedBytes(500);
+    admission1.addQueuedBytes(600);
+    Assert.assertTrue(admission1.throttle());
+    admission1.addQueuedBytes(-600);
+    Assert.assertFalse(admission1.throttle());
+
+    admission1.addQueuedBytes(1600);
+    assertRejected(controller::admit, 5);
+    admission1.release();
+    admission1.addQueuedBytes(-1600);
+    Assert.assertFalse(controller.admit().throttle());
+  }
+
+  private static void assertRejected(Runnable admit, int retryAfterSecs) {
+    try {
+      admit.run();
+      Assert.fail("Profile should be rejected");
+    } catch (ServiceUnavailableException ex) {
+      Assert.assertEquals(503, ex.getStatusCode());
+      Assert.assertEquals(retryAfterSecs, ex.getRetryAfterSecs());
+    }
+  }
+
+  private static Configuration.BackendHttpVerticleConfig.ProfileAdmissionConfig getConfig(int maxActiveProfiles, long watermark, long maxBufferedBytes) {
+    return new JsonObject()
+        .put("max.active.profiles", maxActiveProfiles)
+        .put("buffered.bytes.watermark", watermark)
+        .put("buffered.bytes.max", maxBufferedBytes)
+        .put("retry.after.secs", 5)
+        .put("process.group.max.active.profiles", 5)
+        .put("process.group.buffered.bytes.max", 1000)
+        .put("process.groups", new JsonArray().add(new JsonObject()
+            .put("app.id", "a").put("cluster.id", "c").put("proc.name", "p1")
+            .put("max.active.profiles", 1).put("buffered.bytes.max", 100)))
+        .mapTo(Configuration.BackendHttpVerticleConfig.ProfileAdmissionConfig.class);
+  }
+}
@@ -56,7 +56,14 @@ public class ProfileApiTest {
   @BeforeClass
   public static void setUp(TestContext context) throws Exception {
     ConfigManager.setDefaultSystemProperties();
-    Configuration config = spy(ConfigManager.loadConfig(ProfileApiTest.class.getClassLoader().getResource("config.json").getFile()));
+    deployBackend(ConfigManager.loadConfig(ProfileApiTest.class.getClassLoader().getResource("config.json").getFile()));
+  }
+
+  /**
+   * Deploys backend http verticles with the config, tests of this class are run against them
+   */
+  static void deployBackend(Configuration loadedConfig) throws Exception {
+    Configuration config = spy(loadedConfig);
 
     vertx = Vertx.vertx(new VertxOptions(config.getVertxOptions()));
     activeAggregationWindows = new ActiveAggregationWindowsImpl();
@@ -348,7 +355,8 @@ public class ProfileApiTest {
 
   @Test(timeout = 5000)
   public void testWithInvalidWse(TestContext context) {
-    makeInvalidWseProfileRequest(context, WsePayloadStrategy.INVALID_WSE, "error while parsing wse");
+    // wse is framed and its checksum validated before it is decoded, so a corrupt wse fails on its checksum first
+    makeInvalidWseProfileRequest(context, WsePayloadStrategy.INVALID_WSE, "checksum of wse does not match");
   }
 
   @Test(timeout = 5000)
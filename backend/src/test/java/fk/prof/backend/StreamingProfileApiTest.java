@@ -0,0 +1,24 @@
+package fk.prof.backend;
+
+import com.google.common.io.Files;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestContext;
+import org.junit.BeforeClass;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs tests of {@link ProfileApiTest} with wse decoded straight into aggregation, see {@link fk.prof.backend.request.profile.StreamingWseAggregator}
+ */
+public class StreamingProfileApiTest extends ProfileApiTest {
+
+  @BeforeClass
+  public static void setUp(TestContext context) throws Exception {
+    ConfigManager.setDefaultSystemProperties();
+    JsonObject json = new JsonObject(Files.toString(
+        new File(StreamingProfileApiTest.class.getClassLoader().getResource("config.json").getFile()), StandardCharsets.UTF_8));
+    json.getJsonObject("backendHttpOptions").getJsonObject("config").put("aggregation.streaming", true);
+    deployBackend(ConfigManager.loadConfig(json));
+  }
+}
@@ -0,0 +1,84 @@
+package fk.prof.backend;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import fk.prof.backend.aggregator.AggregationWindow;
+import fk.prof.backend.aggregator.StackSampleCache;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.request.profile.StreamingWseAggregator;
+import fk.prof.backend.request.profile.parser.WseDecoder;
+import org.junit.Assert;
+import org.junit.Test;
+import recording.Recorder;
+
+import java.time.LocalDateTime;
+
+public class StreamingWseAggregatorTest {
+  private static final long WORK_ID = 1;
+  private static final LocalDateTime START = LocalDateTime.of(2017, 1, 1, 0, 0);
+
+  @Test
+  public void testDecodedWseIsAggregatedSameAsMaterializedWse() throws Exception {
+    Recorder.Wse wse = getWse();
+
+    AggregationWindow expected = startedWindow();
+    RecordedProfileIndexes expectedIndexes = new RecordedProfileIndexes();
+    expectedIndexes.update(wse.getIndexedData());
+    expected.updateWorkInfoWithWSE(WORK_ID, wse);
+    expected.aggregate(wse, expectedIndexes, (StackSampleCache) null);
+
+    AggregationWindow actual = startedWindow();
+    WseDecoder.decode(CodedInputStream.newInstance(wse.toByteArray()), new StreamingWseAggregator(actual, WORK_ID,
+        new RecordedProfileIndexes(), null, null));
+
+    Assert.assertEquals(expected.finalizeEntity(), actual.finalizeEntity());
+  }
+
+  @Test
+  public void testWseFailingToDecodeMidwayIsNotAggregated() throws Exception {
+    AggregationWindow actual = startedWindow();
+    RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+    decodeTruncatedWse(new StreamingWseAggregator(actual, WORK_ID, indexes, null, null));
+
+    Assert.assertEquals(startedWindow().finalizeEntity(), actual.finalizeEntity());
+    Assert.assertNull(indexes.getTrace(1));
+  }
+
+  @Test
+  public void testWseFailingToDecodeMidwayIsNotCarriedOverToNextWse() throws Exception {
+    AggregationWindow actual = startedWindow();
+    StreamingWseAggregator aggregator = new StreamingWseAggregator(actual, WORK_ID, new RecordedProfileIndexes(), null, null);
+    decodeTruncatedWse(aggregator);
+    WseDecoder.decode(CodedInputStream.newInstance(getWse().toByteArray()), aggregator);
+
+    AggregationWindow expected = startedWindow();
+    WseDecoder.decode(CodedInputStream.newInstance(getWse().toByteArray()), new StreamingWseAggregator(expected, WORK_ID,
+        new RecordedProfileIndexes(), null, null));
+    Assert.assertEquals(expected.finalizeEntity(), actual.finalizeEntity());
+  }
+
+  private static void decodeTruncatedWse(StreamingWseAggregator aggregator) throws Exception {
+    byte[] wseBytes = getWse().toByteArray();
+    try {
+      // stack samples are the last field of wse, so a truncated wse fails to decode after some of its samples are visited
+      WseDecoder.decode(CodedInputStream.newInstance(wseBytes, 0, wseBytes.length - 3), aggregator);
+      Assert.fail("Truncated wse should fail to decode");
+    } catch (InvalidProtocolBufferException e) {
+      // expected
+    }
+  }
+
+  private static Recorder.Wse getWse() {
+    Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+        .build();
+    return MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse, null);
+  }
+
+  private static AggregationWindow startedWindow() {
+    AggregationWindow window = new AggregationWindow("a", "c", "p", START, 30 * 60, new long[]{WORK_ID}, 60);
+    window.startProfile(WORK_ID, 1, START);
+    return window;
+  }
+}
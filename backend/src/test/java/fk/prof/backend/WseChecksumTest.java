@@ -0,0 +1,98 @@
+package fk.prof.backend;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+import com.google.protobuf.CodedOutputStream;
+import fk.prof.backend.exception.AggregationFailure;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.request.CompositeByteBufInputStream;
+import fk.prof.backend.request.profile.parser.Checksums;
+import fk.prof.backend.request.profile.parser.Crc32C;
+import fk.prof.backend.request.profile.parser.WseParser;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+import recording.Recorder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+public class WseChecksumTest {
+  private static final byte[] CHECK_INPUT = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+  @Test
+  public void testCrc32CMatchesKnownValues() {
+    Checksum crc = new Crc32C();
+    crc.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+    Assert.assertEquals(0xE3069283L, crc.getValue());
+
+    // same value irrespective of how input is split across updates
+    crc.reset();
+    crc.update(CHECK_INPUT[0]);
+    crc.update(CHECK_INPUT, 1, 2);
+    crc.update(CHECK_INPUT, 3, 6);
+    Assert.assertEquals(0xE3069283L, crc.getValue());
+
+    Checksum negotiated = Checksums.newChecksum(Recorder.ChecksumType.crc32c);
+    negotiated.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+    Assert.assertEquals(0xE3069283L, negotiated.getValue());
+
+    crc.reset();
+    crc.update(new byte[32], 0, 32);
+    Assert.assertEquals(0x8A9136AAL, crc.getValue());
+  }
+
+  @Test
+  public void testWseWithCrc32CChecksumIsParsedAndFramed() throws Exception {
+    Recorder.Wse wse = MockProfileObjects.getMockCpuWseWithStackSample(Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1)).build(), null);
+    byte[] serialized = serialize(wse, new Crc32C());
+
+    WseParser parser = newParser(Recorder.ChecksumType.crc32c);
+    parser.parse(split(serialized));
+    Assert.assertTrue(parser.isParsed());
+    Assert.assertEquals(wse, parser.get());
+
+    parser = newParser(Recorder.ChecksumType.crc32c);
+    parser.frame(split(serialized));
+    Assert.assertTrue(parser.isParsed());
+    Assert.assertArrayEquals(wse.toByteArray(), parser.getFramed());
+  }
+
+  @Test(expected = AggregationFailure.class)
+  public void testWseWithChecksumOfOtherTypeFails() throws Exception {
+    Recorder.Wse wse = MockProfileObjects.getMockCpuWseWithStackSample(Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1)).build(), null);
+    newParser(Recorder.ChecksumType.adler32).parse(split(serialize(wse, new Crc32C())));
+  }
+
+  private static WseParser newParser(Recorder.ChecksumType checksumType) {
+    WseParser parser = new WseParser(1024 * 1024, new Histogram(new UniformReservoir()));
+    parser.setChecksumType(checksumType);
+    return parser;
+  }
+
+  private static byte[] serialize(Recorder.Wse wse, Checksum checksum) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+    wse.writeDelimitedTo(out);
+    byte[] bytes = out.toByteArray();
+    checksum.update(bytes, 0, bytes.length);
+    codedOut.writeUInt32NoTag((int) checksum.getValue());
+    codedOut.flush();
+    return out.toByteArray();
+  }
+
+  /**
+   * Splits the bytes across two components, so that wse does not sit in a single nio buffer
+   */
+  private static CompositeByteBufInputStream split(byte[] bytes) {
+    CompositeByteBufInputStream in = new CompositeByteBufInputStream();
+    int mid = bytes.length / 2;
+    in.accept(Unpooled.wrappedBuffer(Arrays.copyOfRange(bytes, 0, mid)));
+    in.accept(Unpooled.wrappedBuffer(Arrays.copyOfRange(bytes, mid, bytes.length)));
+    return in;
+  }
+}
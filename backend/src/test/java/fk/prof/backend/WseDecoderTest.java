@@ -0,0 +1,136 @@
+package fk.prof.backend;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.request.profile.parser.WseDecoder;
+import fk.prof.backend.request.profile.parser.WseVisitor;
+import org.junit.Assert;
+import org.junit.Test;
+import recording.Recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WseDecoderTest {
+
+  @Test
+  public void testDecodedWseIsSameAsParsedWse() throws Exception {
+    Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+        .addStackSample(Recorder.StackSample.newBuilder()
+            .setStartOffsetMicros(1000).setThreadId(1).setSnipped(false).addTraceId(1).addTraceId(2))
+        .build();
+    Recorder.Wse wse = MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse, null);
+
+    RebuildingVisitor visitor = new RebuildingVisitor();
+    WseDecoder.decode(CodedInputStream.newInstance(wse.toByteArray()), visitor);
+
+    Assert.assertEquals(1, visitor.wseEnded);
+    Assert.assertEquals(wse, visitor.wse.build());
+  }
+
+  @Test(expected = InvalidProtocolBufferException.class)
+  public void testDecodeFailsOnMissingWorkType() throws Exception {
+    WseDecoder.decode(CodedInputStream.newInstance(new byte[0]), new RebuildingVisitor());
+  }
+
+  @Test
+  public void testDecodeFailsOnMissingRequiredFieldsSameAsParse() throws Exception {
+    Recorder.StackSample.Builder stackSample = Recorder.StackSample.newBuilder()
+        .setStartOffsetMicros(1000).setThreadId(1).setSnipped(false).addTraceId(1)
+        .addFrame(Recorder.Frame.newBuilder().setMethodId(1).setBci(1).setLineNo(10));
+    List<Recorder.StackSample> stackSamples = new ArrayList<>();
+    stackSamples.add(stackSample.clone().clearStartOffsetMicros().buildPartial());
+    stackSamples.add(stackSample.clone().setFrame(0, Recorder.Frame.newBuilder().setMethodId(1).setBci(1).buildPartial()).buildPartial());
+    stackSamples.add(stackSample.clone().setFrame(0, Recorder.Frame.newBuilder().setBci(1).setLineNo(10).buildPartial()).buildPartial());
+
+    List<Recorder.Wse> wses = new ArrayList<>();
+    for (Recorder.StackSample partial : stackSamples) {
+      wses.add(Recorder.Wse.newBuilder().setWType(Recorder.WorkType.cpu_sample_work)
+          .setCpuSampleEntry(Recorder.StackSampleWse.newBuilder().addStackSample(partial).buildPartial())
+          .buildPartial());
+    }
+    wses.add(Recorder.Wse.newBuilder().setWType(Recorder.WorkType.cpu_sample_work)
+        .setIndexedData(Recorder.IndexedData.newBuilder()
+            .addMethodInfo(Recorder.MethodInfo.newBuilder().setMethodId(100).setClassFqdn("A").setMethodName("m").buildPartial())
+            .buildPartial())
+        .buildPartial());
+
+    for (Recorder.Wse wse : wses) {
+      byte[] bytes = wse.toByteArray();
+      assertFailsToParse(() -> Recorder.Wse.parseFrom(bytes));
+      assertFailsToParse(() -> WseDecoder.decode(CodedInputStream.newInstance(bytes), new RebuildingVisitor()));
+    }
+  }
+
+  private interface Parse {
+    void run() throws Exception;
+  }
+
+  private static void assertFailsToParse(Parse parse) throws Exception {
+    try {
+      parse.run();
+      Assert.fail("Wse missing required fields should fail to parse");
+    } catch (InvalidProtocolBufferException ex) {
+    }
+  }
+
+  /**
+   * Rebuilds the wse from callbacks, so that it can be compared with the original
+   */
+  private static class RebuildingVisitor implements WseVisitor {
+    private final Recorder.Wse.Builder wse = Recorder.Wse.newBuilder();
+    private final Recorder.IndexedData.Builder indexedData = Recorder.IndexedData.newBuilder();
+    private final Recorder.StackSampleWse.Builder stackSampleWse = Recorder.StackSampleWse.newBuilder();
+    private List<Recorder.Frame> frames;
+    private List<Integer> traceIds;
+    private int wseEnded = 0;
+
+    @Override
+    public void onTraceCtx(Recorder.TraceContext traceContext) {
+      indexedData.addTraceCtx(traceContext);
+    }
+
+    @Override
+    public void onMethodInfo(Recorder.MethodInfo methodInfo) {
+      indexedData.addMethodInfo(methodInfo);
+    }
+
+    @Override
+    public void onWorkType(Recorder.WorkType workType) {
+      wse.setWType(workType);
+    }
+
+    @Override
+    public void onStackSampleStart() {
+      frames = new ArrayList<>();
+      traceIds = new ArrayList<>();
+    }
+
+    @Override
+    public void onFrame(long methodId, int lineNo) {
+      // bci is not decoded, mock frames have it set to 1
+      frames.add(Recorder.Frame.newBuilder().setMethodId(methodId).setLineNo(lineNo).setBci(1).build());
+    }
+
+    @Override
+    public void onTraceId(int traceId) {
+      traceIds.add(traceId);
+    }
+
+    @Override
+    public void onStackSampleEnd(boolean snipped) {
+      // start offset and thread id are not decoded, mock samples have them set to 1000 and 1
+      stackSampleWse.addStackSample(Recorder.StackSample.newBuilder()
+          .setStartOffsetMicros(1000).setThreadId(1).setSnipped(snipped)
+          .addAllFrame(frames).addAllTraceId(traceIds));
+    }
+
+    @Override
+    public void onWseEnd() {
+      wse.setIndexedData(indexedData).setCpuSampleEntry(stackSampleWse);
+      wseEnded++;
+    }
+  }
+}
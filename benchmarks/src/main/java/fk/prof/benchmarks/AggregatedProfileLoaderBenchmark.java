@@ -0,0 +1,93 @@
+package fk.prof.benchmarks;
+
+import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.model.AggregationWindowSerializer;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.storage.compression.CompressionCodec;
+import fk.prof.userapi.api.AggregatedProfileLoader;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import io.vertx.core.Future;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading of an aggregated profile from its serialized form, as done by userapi when a profile is viewed. The profile is read from
+ * memory. In sequential format it is not compressed, so that the score reflects deserialization and building of the profile alone,
+ * while in block format (blockFormat = true) blocks are decompressed as part of loading.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AggregatedProfileLoaderBenchmark {
+
+  @Param({"16", "64"})
+  public int depth;
+
+  @Param({"2", "8"})
+  public int fanOut;
+
+  @Param({"1", "8"})
+  public int profileCount;
+
+  @Param({"false", "true"})
+  public boolean blockFormat;
+
+  private byte[] serialized;
+  private AggregatedProfileNamingStrategy filename;
+  private final Loader loader = new Loader();
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ForkJoinPool blockSerializationPool = blockFormat ? new ForkJoinPool(1) : null;
+    try {
+      new AggregationWindowSerializer(AggregationWindowSerializerBenchmark.aggregationWindow(depth, fanOut, profileCount),
+          AggregatedProfileModel.WorkType.cpu_sample_work, blockSerializationPool, CompressionCodec.GZIP).serialize(out);
+    } finally {
+      if (blockSerializationPool != null) {
+        blockSerializationPool.shutdown();
+      }
+    }
+    serialized = out.toByteArray();
+    filename = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app", "cluster", "proc",
+        ZonedDateTime.now(ZoneOffset.UTC), 1200, AggregatedProfileModel.WorkType.cpu_sample_work);
+  }
+
+  @Benchmark
+  public AggregatedProfileInfo load() {
+    Future<AggregatedProfileInfo> future = Future.future();
+    loader.load(future, filename, new ByteArrayInputStream(serialized), blockFormat);
+    if (future.failed()) {
+      throw new IllegalStateException("Loading of profile failed", future.cause());
+    }
+    return future.result();
+  }
+
+  /**
+   * Loads from a given stream instead of storage
+   */
+  private static class Loader extends AggregatedProfileLoader {
+    Loader() {
+      super(null);
+    }
+
+    void load(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename, InputStream in, boolean blockFormat) {
+      if (blockFormat) {
+        loadFromBlocks(future, filename, in);
+      } else {
+        loadFromInputStream(future, filename, in);
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package fk.prof.benchmarks;
+
+import fk.prof.aggregation.model.AggregationWindowSerializer;
+import fk.prof.aggregation.model.FinalizedAggregationWindow;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.storage.compression.CompressionCodec;
+import org.openjdk.jmh.annotations.*;
+import recording.Recorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a finalized aggregation window, as done when the window expires and is persisted. Output is compressed with the codec
+ * as storage would: as a whole in sequential format (blockParallelism = 0), and per block by the serializer itself in block format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AggregationWindowSerializerBenchmark {
+  private static final int WSE_COUNT = 32;
+  private static final int SAMPLES_PER_WSE = 100;
+
+  @Param({"16", "64"})
+  public int depth;
+
+  @Param({"2", "8"})
+  public int fanOut;
+
+  @Param({"1", "8"})
+  public int profileCount;
+
+  @Param({"0", "4"})
+  public int blockParallelism;
+
+  @Param({"gzip", "deflate"})
+  public String codecName;
+
+  private FinalizedAggregationWindow window;
+  private ForkJoinPool blockSerializationPool;
+  private CompressionCodec codec;
+  private ByteArrayOutputStream out;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    window = aggregationWindow(depth, fanOut, profileCount);
+    blockSerializationPool = blockParallelism > 0 ? new ForkJoinPool(blockParallelism) : null;
+    codec = CompressionCodec.forName(codecName);
+    out = new ByteArrayOutputStream();
+    serialize();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (blockSerializationPool != null) {
+      blockSerializationPool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public int serialize() throws IOException {
+    out.reset();
+    AggregationWindowSerializer serializer = new AggregationWindowSerializer(window, AggregatedProfileModel.WorkType.cpu_sample_work,
+        blockSerializationPool, codec);
+    try (OutputStream sout = serializer.isCompressed() ? out : codec.compress(out)) {
+      serializer.serialize(sout);
+    }
+    return out.size();
+  }
+
+  static FinalizedAggregationWindow aggregationWindow(int depth, int fanOut, int profileCount) {
+    List<List<Recorder.Wse>> profiles = new ArrayList<>(profileCount);
+    for (int i = 0; i < profileCount; i++) {
+      profiles.add(new PayloadGenerator(i, depth, fanOut).wse(WSE_COUNT, SAMPLES_PER_WSE));
+    }
+    return PayloadGenerator.aggregationWindow(profiles);
+  }
+}
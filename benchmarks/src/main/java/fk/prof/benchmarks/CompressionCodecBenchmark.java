@@ -0,0 +1,81 @@
+package fk.prof.benchmarks;
+
+import fk.prof.aggregation.model.AggregationWindowSerializer;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.storage.compression.CompressionCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression and decompression of a serialized aggregation window with each of the codecs, as done by storage on backend and by the
+ * loader on userapi respectively. Compression ratio of each codec is printed on setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionCodecBenchmark {
+
+  @Param({"64"})
+  public int depth;
+
+  @Param({"8"})
+  public int fanOut;
+
+  @Param({"8"})
+  public int profileCount;
+
+  @Param({"gzip", "deflate", "lz4", "zstd", "none"})
+  public String codecName;
+
+  private CompressionCodec codec;
+  private byte[] serialized;
+  private byte[] compressed;
+  private byte[] buffer = new byte[8192];
+  private ByteArrayOutputStream out;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    codec = CompressionCodec.forName(codecName);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    new AggregationWindowSerializer(AggregationWindowSerializerBenchmark.aggregationWindow(depth, fanOut, profileCount),
+        AggregatedProfileModel.WorkType.cpu_sample_work).serialize(bout);
+    serialized = bout.toByteArray();
+    out = new ByteArrayOutputStream(serialized.length);
+    compress();
+    compressed = out.toByteArray();
+    System.out.printf("%n%s: %d bytes compressed to %d bytes, ratio %.2f%n", codecName, serialized.length, compressed.length,
+        (double) serialized.length / compressed.length);
+  }
+
+  @Benchmark
+  public int compress() throws IOException {
+    out.reset();
+    try (OutputStream cout = codec.compress(out)) {
+      cout.write(serialized);
+    }
+    return out.size();
+  }
+
+  @Benchmark
+  public long decompress() throws IOException {
+    PushbackInputStream pin = new PushbackInputStream(new ByteArrayInputStream(compressed), CompressionCodec.HEADER_LENGTH);
+    long length = 0;
+    try (InputStream in = CompressionCodec.detect(pin).decompress(pin)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        length += read;
+      }
+    }
+    return length;
+  }
+}
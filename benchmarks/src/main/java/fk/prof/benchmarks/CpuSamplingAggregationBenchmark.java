@@ -0,0 +1,108 @@
+package fk.prof.benchmarks;
+
+import com.codahale.metrics.Meter;
+import fk.prof.backend.aggregator.CpuSamplingAggregationBucket;
+import fk.prof.backend.aggregator.LocalCpuSamplingAggregationBucket;
+import fk.prof.backend.aggregator.StackSampleCache;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import org.openjdk.jmh.annotations.*;
+import recording.Recorder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregation of stack samples in a {@link CpuSamplingAggregationBucket} shared by all benchmark threads, as buckets of an
+ * aggregation window are shared by processors of profiles of all recorders. Every thread aggregates wse of its own profile, stack
+ * depth and fan-out of frames control the shape and size of stacktrace trees.
+ * Array backed trees are updated only by merges of samples aggregated separately, same as in backend which requires local aggregation
+ * for them, so with array backed trees every wse is aggregated in a local bucket which is then merged in the shared bucket.
+ * Score is in wse aggregated, each wse has {@link #SAMPLES_PER_WSE} samples.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CpuSamplingAggregationBenchmark {
+  private static final int WSE_COUNT = 64;
+  private static final int SAMPLES_PER_WSE = 100;
+  private static final int STACK_SAMPLE_CACHE_ENTRIES = 4096;
+
+  @State(Scope.Benchmark)
+  public static class Window {
+    @Param({"8", "32", "128"})
+    public int depth;
+
+    @Param({"2", "8"})
+    public int fanOut;
+
+    @Param({"false", "true"})
+    public boolean arrayBackedTrees;
+
+    CpuSamplingAggregationBucket bucket;
+    final Meter mtrAggrFailures = new Meter();
+    final AtomicLong seeds = new AtomicLong();
+
+    /**
+     * Bucket is replaced every iteration, so that trees do not keep growing across iterations
+     */
+    @Setup(Level.Iteration)
+    public void setup() {
+      bucket = new CpuSamplingAggregationBucket(arrayBackedTrees);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Profile {
+    // not applicable to array backed trees, whose samples are aggregated locally
+    @Param({"false", "true"})
+    public boolean cacheStacks;
+
+    List<Recorder.Wse> wseList;
+    // indexes of a profile are confined to the processor of the profile
+    RecordedProfileIndexes indexes;
+    StackSampleCache stackSampleCache;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup(Window window) {
+      wseList = new PayloadGenerator(window.seeds.incrementAndGet(), window.depth, window.fanOut)
+          .wse(WSE_COUNT, SAMPLES_PER_WSE);
+    }
+
+    /**
+     * Indexes and cache hold method ids of the bucket they are used with, so they are rebuilt along with the bucket
+     */
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+      indexes = PayloadGenerator.indexes(wseList);
+      stackSampleCache = cacheStacks ? new StackSampleCache(STACK_SAMPLE_CACHE_ENTRIES, new Meter(), new Meter()) : null;
+    }
+
+    void aggregateNextWse(Window window) throws Exception {
+      Recorder.StackSampleWse wse = wseList.get(next).getCpuSampleEntry();
+      next = (next + 1) % wseList.size();
+      if (window.arrayBackedTrees) {
+        LocalCpuSamplingAggregationBucket localBucket = new LocalCpuSamplingAggregationBucket();
+        localBucket.aggregate(wse, indexes, window.mtrAggrFailures);
+        window.bucket.merge(localBucket, indexes, window.mtrAggrFailures);
+      } else {
+        window.bucket.aggregate(wse, indexes, stackSampleCache, window.mtrAggrFailures);
+      }
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void aggregate(Window window, Profile profile) throws Exception {
+    profile.aggregateNextWse(window);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void aggregateContended(Window window, Profile profile) throws Exception {
+    profile.aggregateNextWse(window);
+  }
+}
@@ -0,0 +1,97 @@
+package fk.prof.benchmarks;
+
+import fk.prof.aggregation.model.MethodIdLookup;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MethodIdLookup#getOrAdd(String)} of signatures already present in the lookup, which is the common case once methods of a
+ * process have been seen in an aggregation window, and of new signatures.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MethodIdLookupBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Lookup {
+    @Param({"1000", "100000"})
+    public int methodCount;
+
+    String[] signatures;
+    MethodIdLookup lookup;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      signatures = signatures(methodCount);
+      lookup = new MethodIdLookup();
+      for (String signature : signatures) {
+        lookup.getOrAdd(signature);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      // threads start at different signatures so that they do not walk the lookup in lockstep
+      next = (int) (Thread.currentThread().getId() * 7919);
+    }
+
+    int next(int bound) {
+      next = (next + 1) % bound;
+      return next;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Fresh {
+    static final int ADDS = 10000;
+
+    String[] signatures = signatures(ADDS);
+    MethodIdLookup lookup;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+      lookup = new MethodIdLookup();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Integer hit(Lookup lookup, Cursor cursor) {
+    return lookup.lookup.getOrAdd(lookup.signatures[cursor.next(lookup.methodCount)]);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Integer hitContended(Lookup lookup, Cursor cursor) {
+    return lookup.lookup.getOrAdd(lookup.signatures[cursor.next(lookup.methodCount)]);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Fresh.ADDS)
+  public MethodIdLookup add(Fresh fresh) {
+    for (String signature : fresh.signatures) {
+      fresh.lookup.getOrAdd(signature);
+    }
+    return fresh.lookup;
+  }
+
+  /**
+   * Signatures shaped as recorders report them, class followed by method and its descriptor
+   */
+  private static String[] signatures(int count) {
+    String[] signatures = new String[count];
+    for (int i = 0; i < count; i++) {
+      signatures[i] = "Lcom/example/service/module" + (i % 97) + "/Handler" + (i / 97) + ";handle" + i + "(Ljava/lang/String;I)V";
+    }
+    return signatures;
+  }
+}
@@ -0,0 +1,153 @@
+package fk.prof.benchmarks;
+
+import com.codahale.metrics.Meter;
+import com.google.protobuf.CodedOutputStream;
+import fk.prof.aggregation.model.FinalizedAggregationWindow;
+import fk.prof.backend.aggregator.CpuSamplingAggregationBucket;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import recording.Recorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+/**
+ * Generates synthetic payloads of recorders and aggregated profiles for benchmarks.
+ * Stack samples are random paths from root of a tree of methods, every frame of which has fanOut candidate methods, so a profile
+ * has at most fanOut ^ depth distinct stacks. Depth of every stack is drawn from a distribution. Wse carry indexes of methods and
+ * traces they refer to, built with {@link MockProfileObjects}. Generation is deterministic for a given seed
+ */
+public class PayloadGenerator {
+  public static final int TRACE_COUNT = 4;
+  private static final int ENCODING_VERSION = 1;
+
+  private final Random random;
+  private final WeightedDistribution depths;
+  private final int fanOut;
+
+  public PayloadGenerator(long seed, int depth, int fanOut) {
+    this(seed, new WeightedDistribution(String.valueOf(depth)), fanOut);
+  }
+
+  public PayloadGenerator(long seed, WeightedDistribution depths, int fanOut) {
+    this.random = new Random(seed);
+    this.depths = depths;
+    this.fanOut = fanOut;
+  }
+
+  public Recorder.StackSample stackSample() {
+    int depth = depths.next(random);
+    Recorder.StackSample.Builder sample = Recorder.StackSample.newBuilder()
+        .setStartOffsetMicros(1000).setThreadId(1).setSnipped(false)
+        .addTraceId(1 + random.nextInt(TRACE_COUNT));
+    // frames are ordered callee to caller, that is leaf first
+    for (int level = depth - 1; level >= 0; level--) {
+      sample.addFrame(Recorder.Frame.newBuilder()
+          .setMethodId(1 + level * fanOut + random.nextInt(fanOut))
+          .setBci(1).setLineNo(10 + level));
+    }
+    return sample.build();
+  }
+
+  public List<Recorder.Wse> wse(int wseCount, int samplesPerWse) {
+    List<Recorder.Wse> wseList = new ArrayList<>(wseCount);
+    Recorder.StackSampleWse prev = null;
+    for (int i = 0; i < wseCount; i++) {
+      Recorder.StackSampleWse.Builder current = Recorder.StackSampleWse.newBuilder();
+      for (int j = 0; j < samplesPerWse; j++) {
+        current.addStackSample(stackSample());
+      }
+      wseList.add(MockProfileObjects.getMockCpuWseWithStackSample(current.build(), prev));
+      prev = current.build();
+    }
+    return wseList;
+  }
+
+  /**
+   * Indexes of a profile which has received all of the given wse
+   */
+  public static RecordedProfileIndexes indexes(List<Recorder.Wse> wseList) {
+    RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+    for (Recorder.Wse wse : wseList) {
+      indexes.update(wse.getIndexedData());
+    }
+    return indexes;
+  }
+
+  /**
+   * Serializes wse as recorder does, followed by end marker
+   */
+  public static byte[] serialize(List<Recorder.Wse> wseList) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Recorder.Wse wse : wseList) {
+      writeEntry(wse.toByteArray(), out);
+    }
+    out.write(0);
+    return out.toByteArray();
+  }
+
+  /**
+   * Serializes a single wse as recorder does, without end marker
+   */
+  public static byte[] serialize(Recorder.Wse wse) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(wse.toByteArray(), out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Serializes recording header as recorder does: encoding version, header, checksum of both
+   */
+  public static byte[] serialize(Recorder.RecordingHeader recordingHeader) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+    codedOut.writeUInt32NoTag(ENCODING_VERSION);
+    codedOut.writeUInt32NoTag(recordingHeader.getSerializedSize());
+    recordingHeader.writeTo(codedOut);
+    codedOut.flush();
+    Adler32 checksum = new Adler32();
+    checksum.update(out.toByteArray(), 0, out.size());
+    codedOut.writeUInt32NoTag((int) checksum.getValue());
+    codedOut.flush();
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes size of serialized wse, wse and checksum of size and wse
+   */
+  public static void writeEntry(byte[] serializedWse, OutputStream out) throws IOException {
+    ByteArrayOutputStream entry = new ByteArrayOutputStream(serializedWse.length + 10);
+    CodedOutputStream codedOut = CodedOutputStream.newInstance(entry);
+    codedOut.writeUInt32NoTag(serializedWse.length);
+    codedOut.writeRawBytes(serializedWse);
+    codedOut.flush();
+    Adler32 checksum = new Adler32();
+    checksum.update(entry.toByteArray(), 0, entry.size());
+    codedOut.writeUInt32NoTag((int) checksum.getValue());
+    codedOut.flush();
+    entry.writeTo(out);
+  }
+
+  /**
+   * Aggregates wse of profiles in a window, as backend does before persisting it
+   */
+  public static FinalizedAggregationWindow aggregationWindow(List<List<Recorder.Wse>> profiles) {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket();
+    for (List<Recorder.Wse> profile : profiles) {
+      RecordedProfileIndexes indexes = indexes(profile);
+      for (Recorder.Wse wse : profile) {
+        bucket.aggregate(wse.getCpuSampleEntry(), indexes, new Meter());
+      }
+    }
+    LocalDateTime start = LocalDateTime.of(2017, 1, 1, 0, 0);
+    return new FinalizedAggregationWindow("app", "cluster", "proc", start, start.plusMinutes(20), 1200, new HashMap<>(),
+        bucket.finalizeEntity());
+  }
+}
@@ -0,0 +1,186 @@
+package fk.prof.benchmarks;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+import fk.prof.backend.request.CompositeByteBufInputStream;
+import fk.prof.backend.request.profile.parser.WseParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+/**
+ * Ingestion of a profile, chunk by chunk, as done by {@link fk.prof.backend.request.profile.RecordedProfileProcessor}: chunks are
+ * accepted by the stream and wse are framed off it as soon as they are completely received.
+ * Chunk sizes are drawn from a distribution given as comma separated size:weight pairs, pick them from Profile_Chunk_Size histogram
+ * of a backend to reproduce its traffic. Besides throughput, bytes copied by the stream while buffering chunks are reported as
+ * auxiliary counters, copiedBytes / ingestedBytes gives copies per byte ingested.
+ * {@link #legacyIngest(Copies)} buffers chunks in a netty composite buffer that is compacted before every wse, as the stream did
+ * earlier, for comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfileIngestBenchmark {
+  private static final int PROFILE_BYTES = 8 * 1024 * 1024;
+  private static final int MIN_WSE_BYTES = 1024;
+  private static final int MAX_WSE_BYTES = 64 * 1024;
+  private static final int LEGACY_MAX_NUM_COMPONENTS = 16;
+
+  @Param({"8192:1", "512:2,4096:3,8192:5", "64:3,1460:5,8192:2"})
+  public String chunkSizes;
+
+  @Param({"16", "64"})
+  public int maxNumComponents;
+
+  @Param({"0", "512"})
+  public int coalesceMaxBytes;
+
+  private byte[] profile;
+  private int[] chunkLengths;
+  private final Histogram histWseSize = new Histogram(new UniformReservoir());
+
+  /**
+   * Counters are reset by jmh before every iteration
+   */
+  @State(Scope.Thread)
+  @AuxCounters
+  public static class Copies {
+    public long copiedBytes;
+    public long ingestedBytes;
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Random random = new Random(42);
+    profile = generateProfile(random);
+    chunkLengths = generateChunkLengths(random, profile.length, chunkSizes);
+  }
+
+  @Benchmark
+  public int ingest(Copies copies) throws IOException {
+    CompositeByteBufInputStream in = new CompositeByteBufInputStream(PooledByteBufAllocator.DEFAULT, maxNumComponents,
+        coalesceMaxBytes);
+    WseParser wseParser = new WseParser(MAX_WSE_BYTES, histWseSize);
+    int framed = 0;
+    int offset = 0;
+    for (int chunkLength : chunkLengths) {
+      in.accept(Unpooled.wrappedBuffer(profile, offset, chunkLength));
+      offset += chunkLength;
+      while (in.available() > 0 && !wseParser.isEndMarkerReceived()) {
+        wseParser.frame(in);
+        if (!wseParser.isParsed()) {
+          break;
+        }
+        framed++;
+        wseParser.reset();
+      }
+    }
+    copies.copiedBytes += in.getCopiedBytes();
+    copies.ingestedBytes += profile.length;
+    in.close();
+    return framed;
+  }
+
+  @Benchmark
+  public int legacyIngest(Copies copies) {
+    CompositeByteBuf buffer = Unpooled.compositeBuffer(LEGACY_MAX_NUM_COMPONENTS);
+    Adler32 checksum = new Adler32();
+    int framed = 0;
+    int offset = 0;
+    for (int chunkLength : chunkLengths) {
+      if (buffer.numComponents() == LEGACY_MAX_NUM_COMPONENTS) {
+        // adding a component consolidates all of them into a single buffer
+        copies.copiedBytes += buffer.capacity() + chunkLength;
+      }
+      buffer.addComponent(true, Unpooled.wrappedBuffer(profile, offset, chunkLength));
+      offset += chunkLength;
+      framed += legacyFrame(buffer, checksum);
+    }
+    copies.ingestedBytes += profile.length;
+    buffer.release();
+    return framed;
+  }
+
+  private static int legacyFrame(CompositeByteBuf buffer, Adler32 checksum) {
+    int framed = 0;
+    while (true) {
+      buffer.markReaderIndex();
+      buffer.discardReadBytes();
+      int size = readVarint(buffer);
+      if (size <= 0 || buffer.readableBytes() < size) {
+        buffer.resetReaderIndex();
+        return framed;
+      }
+      int sizeBytes = buffer.readerIndex();
+      byte[] wse = new byte[size];
+      buffer.readBytes(wse);
+      int checksumValue = readVarint(buffer);
+      if (checksumValue == -1) {
+        buffer.resetReaderIndex();
+        return framed;
+      }
+      checksum.reset();
+      checksum.update(buffer.nioBuffer(0, sizeBytes));
+      checksum.update(wse, 0, size);
+      if (checksumValue != (int) checksum.getValue()) {
+        throw new IllegalStateException("Checksum of wse does not match");
+      }
+      framed++;
+    }
+  }
+
+  /**
+   * Returns -1 if varint is not completely available. Values written by the benchmark are never negative
+   */
+  private static int readVarint(ByteBuf buffer) {
+    int result = 0;
+    for (int shift = 0; shift < 35 && buffer.isReadable(); shift += 7) {
+      byte b = buffer.readByte();
+      result |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Generates wse of random sizes, serialized as recorder does: size, wse, checksum of size and wse. Content of a wse is random,
+   * since framing does not decode it
+   */
+  private static byte[] generateProfile(Random random) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(PROFILE_BYTES + MAX_WSE_BYTES);
+    while (out.size() < PROFILE_BYTES) {
+      byte[] wse = new byte[MIN_WSE_BYTES + random.nextInt(MAX_WSE_BYTES - MIN_WSE_BYTES)];
+      random.nextBytes(wse);
+      PayloadGenerator.writeEntry(wse, out);
+    }
+    // end marker
+    out.write(0);
+    return out.toByteArray();
+  }
+
+  private static int[] generateChunkLengths(Random random, int totalBytes, String distribution) {
+    WeightedDistribution chunkSizes = new WeightedDistribution(distribution);
+    List<Integer> chunkLengths = new ArrayList<>();
+    for (int remaining = totalBytes; remaining > 0; ) {
+      int chunkLength = Math.min(chunkSizes.next(random), remaining);
+      chunkLengths.add(chunkLength);
+      remaining -= chunkLength;
+    }
+    return chunkLengths.stream().mapToInt(Integer::intValue).toArray();
+  }
+}
@@ -0,0 +1,48 @@
+package fk.prof.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Discrete distribution of int values, specified as comma separated value:weight pairs, e.g. "64:3,1460:5,8192:2" picks 1460 half
+ * of the times. A value without weight has weight 1
+ */
+public class WeightedDistribution {
+  private final int[] values;
+  private final int[] cumulativeWeights;
+  private final int totalWeight;
+
+  public WeightedDistribution(String spec) {
+    String[] entries = spec.split(",");
+    values = new int[entries.length];
+    cumulativeWeights = new int[entries.length];
+    int totalWeight = 0;
+    for (int i = 0; i < entries.length; i++) {
+      String[] valueAndWeight = entries[i].split(":");
+      values[i] = Integer.parseInt(valueAndWeight[0].trim());
+      int weight = valueAndWeight.length > 1 ? Integer.parseInt(valueAndWeight[1].trim()) : 1;
+      if (values[i] <= 0 || weight <= 0) {
+        throw new IllegalArgumentException("Values and weights of distribution should be positive: " + spec);
+      }
+      totalWeight += weight;
+      cumulativeWeights[i] = totalWeight;
+    }
+    this.totalWeight = totalWeight;
+  }
+
+  public int next(Random random) {
+    int pick = random.nextInt(totalWeight);
+    int i = 0;
+    while (cumulativeWeights[i] <= pick) {
+      i++;
+    }
+    return values[i];
+  }
+
+  public int max() {
+    int max = 0;
+    for (int value : values) {
+      max = Math.max(max, value);
+    }
+    return max;
+  }
+}
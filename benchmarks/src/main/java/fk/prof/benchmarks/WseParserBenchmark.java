@@ -0,0 +1,147 @@
+package fk.prof.benchmarks;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+import fk.prof.backend.request.CompositeByteBufInputStream;
+import fk.prof.backend.request.profile.parser.WseParser;
+import fk.prof.backend.request.profile.parser.WseVisitor;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import recording.Recorder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of wse of a profile, received in a single chunk, through {@link WseParser} and
+ * {@link fk.prof.backend.request.profile.parser.MessageParser}:
+ * - parse: wse are materialized as {@link Recorder.Wse}
+ * - decode: wse are decoded into a visitor without being materialized
+ * - frame: wse are only framed and their checksum validated, as done on the event loop when aggregating on workers
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WseParserBenchmark {
+  private static final int WSE_COUNT = 100;
+  private static final int MAX_WSE_BYTES = 4 * 1024 * 1024;
+
+  @Param({"16", "64"})
+  public int depth;
+
+  @Param({"100", "1000"})
+  public int samplesPerWse;
+
+  private byte[] profile;
+  private final Histogram histWseSize = new Histogram(new UniformReservoir());
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    profile = PayloadGenerator.serialize(new PayloadGenerator(42, depth, 4).wse(WSE_COUNT, samplesPerWse));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WSE_COUNT)
+  public void parse(Blackhole bh) throws IOException {
+    CompositeByteBufInputStream in = newStream();
+    WseParser wseParser = new WseParser(MAX_WSE_BYTES, histWseSize);
+    while (true) {
+      wseParser.parse(in);
+      if (wseParser.isEndMarkerReceived()) {
+        break;
+      }
+      bh.consume(wseParser.get());
+      wseParser.reset();
+    }
+    in.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WSE_COUNT)
+  public void decode(Blackhole bh) throws IOException {
+    CompositeByteBufInputStream in = newStream();
+    WseParser wseParser = new WseParser(MAX_WSE_BYTES, histWseSize);
+    ConsumingVisitor visitor = new ConsumingVisitor(bh);
+    while (true) {
+      wseParser.parse(in, visitor);
+      if (wseParser.isEndMarkerReceived()) {
+        break;
+      }
+      wseParser.reset();
+    }
+    in.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WSE_COUNT)
+  public void frame(Blackhole bh) throws IOException {
+    CompositeByteBufInputStream in = newStream();
+    WseParser wseParser = new WseParser(MAX_WSE_BYTES, histWseSize);
+    while (true) {
+      wseParser.frame(in);
+      if (wseParser.isEndMarkerReceived()) {
+        break;
+      }
+      bh.consume(wseParser.getFramed());
+      wseParser.reset();
+    }
+    in.close();
+  }
+
+  private CompositeByteBufInputStream newStream() {
+    CompositeByteBufInputStream in = new CompositeByteBufInputStream();
+    in.accept(Unpooled.wrappedBuffer(profile));
+    return in;
+  }
+
+  private static class ConsumingVisitor implements WseVisitor {
+    private final Blackhole bh;
+
+    ConsumingVisitor(Blackhole bh) {
+      this.bh = bh;
+    }
+
+    @Override
+    public void onTraceCtx(Recorder.TraceContext traceContext) {
+      bh.consume(traceContext);
+    }
+
+    @Override
+    public void onMethodInfo(Recorder.MethodInfo methodInfo) {
+      bh.consume(methodInfo);
+    }
+
+    @Override
+    public void onWorkType(Recorder.WorkType workType) {
+      bh.consume(workType);
+    }
+
+    @Override
+    public void onStackSampleStart() {
+    }
+
+    @Override
+    public void onFrame(long methodId, int lineNo) {
+      bh.consume(methodId);
+      bh.consume(lineNo);
+    }
+
+    @Override
+    public void onTraceId(int traceId) {
+      bh.consume(traceId);
+    }
+
+    @Override
+    public void onStackSampleEnd(boolean snipped) {
+      bh.consume(snipped);
+    }
+
+    @Override
+    public void onWseEnd() {
+    }
+  }
+}
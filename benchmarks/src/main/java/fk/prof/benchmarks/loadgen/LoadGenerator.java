@@ -0,0 +1,267 @@
+package fk.prof.benchmarks.loadgen;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.io.Files;
+import com.google.protobuf.util.JsonFormat;
+import fk.prof.backend.ConfigManager;
+import fk.prof.backend.http.ApiPathConstants;
+import fk.prof.backend.proto.BackendDTO;
+import fk.prof.benchmarks.PayloadGenerator;
+import fk.prof.benchmarks.WeightedDistribution;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.apache.commons.cli.*;
+import recording.Recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator which simulates recorders against backends launched in this process with an in-process zookeeper, to find how many
+ * recorders and samples/sec a backend sustains without running recorder agents:
+ * java -cp benchmarks/target/benchmarks.jar fk.prof.benchmarks.loadgen.LoadGenerator --conf backend/src/main/conf/backend-conf.json
+ *   --recorders 200 --samples-per-sec 1000 --stack-depths 16:2,64:1 --chunk-sizes 1460:3,8192:1
+ *
+ * Timings of aggregation window, scheduling and load reporting in the configuration are overridden, so that work is assigned to all
+ * recorders within a few seconds and they record concurrently for the profile duration. Storage is not exercised, since aggregation
+ * windows are not expired before the run completes.
+ * On completion, ingest throughput, poll latency percentiles, scheduling misses and heap usage of the process are reported.
+ */
+public class LoadGenerator {
+  private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+  private static final int LAUNCH_TIMEOUT_SECS = 60;
+  private static final int PROGRESS_INTERVAL_SECS = 10;
+
+  static class Settings {
+    int recorders = 10;
+    int processGroups = 1;
+    int backends = 1;
+    int profileDurationSecs = 60;
+    int pollIntervalSecs = 1;
+    int schedulingBufferSecs = 4;
+    int coveragePct = 100;
+    int samplesPerSec = 100;
+    int samplesPerWse = 100;
+    int wsePoolSize = 32;
+    int stackFanOut = 4;
+    String stackDepths = "8:1,32:2,128:1";
+    String chunkSizes = "8192";
+  }
+
+  private final Settings settings;
+  private final JsonObject config;
+  private final LoadStats stats = new LoadStats();
+
+  LoadGenerator(Settings settings, JsonObject config) {
+    this.settings = settings;
+    this.config = overrideTimings(settings, config);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ConfigManager.setDefaultSystemProperties();
+    Options options = new Options();
+    options.addOption(Option.builder("c").longOpt("conf").required().hasArg().argName("json file")
+        .desc("configuration of backends, as passed to BackendApplication").build());
+    options.addOption(intOption("recorders", "number of simulated recorders"));
+    options.addOption(intOption("process-groups", "number of process groups recorders are spread across"));
+    options.addOption(intOption("backends", "number of backends, a leader is launched besides these"));
+    options.addOption(intOption("profile-duration", "duration in seconds of profiles recorded by recorders"));
+    options.addOption(intOption("poll-interval", "interval in seconds at which recorders poll backends"));
+    options.addOption(intOption("scheduling-buffer", "scheduling buffer in seconds of work assignments"));
+    options.addOption(intOption("coverage", "percentage of recorders of a process group which are assigned work"));
+    options.addOption(intOption("samples-per-sec", "cpu samples recorded per second by a recorder"));
+    options.addOption(intOption("samples-per-wse", "samples per wse, that is serialization flush threshold of recorder"));
+    options.addOption(intOption("wse-pool", "distinct wse per process group, profiles cycle through them"));
+    options.addOption(intOption("stack-fanout", "candidate methods at every frame of stacks"));
+    options.addOption(Option.builder().longOpt("stack-depths").hasArg().argName("depth:weight,...")
+        .desc("distribution of depth of stacks").build());
+    options.addOption(Option.builder().longOpt("chunk-sizes").hasArg().argName("bytes:weight,...")
+        .desc("distribution of size of chunks profiles are written in").build());
+
+    Settings settings = new Settings();
+    CommandLine cmd;
+    try {
+      cmd = new DefaultParser().parse(options, args);
+    } catch (ParseException ex) {
+      System.err.println(ex.getMessage());
+      new HelpFormatter().printHelp(LoadGenerator.class.getName(), options);
+      System.exit(2);
+      return;
+    }
+    settings.recorders = intValue(cmd, "recorders", settings.recorders);
+    settings.processGroups = intValue(cmd, "process-groups", settings.processGroups);
+    settings.backends = intValue(cmd, "backends", settings.backends);
+    settings.profileDurationSecs = intValue(cmd, "profile-duration", settings.profileDurationSecs);
+    settings.pollIntervalSecs = intValue(cmd, "poll-interval", settings.pollIntervalSecs);
+    settings.schedulingBufferSecs = intValue(cmd, "scheduling-buffer", settings.schedulingBufferSecs);
+    settings.coveragePct = intValue(cmd, "coverage", settings.coveragePct);
+    settings.samplesPerSec = intValue(cmd, "samples-per-sec", settings.samplesPerSec);
+    settings.samplesPerWse = intValue(cmd, "samples-per-wse", settings.samplesPerWse);
+    settings.wsePoolSize = intValue(cmd, "wse-pool", settings.wsePoolSize);
+    settings.stackFanOut = intValue(cmd, "stack-fanout", settings.stackFanOut);
+    settings.stackDepths = cmd.getOptionValue("stack-depths", settings.stackDepths);
+    settings.chunkSizes = cmd.getOptionValue("chunk-sizes", settings.chunkSizes);
+
+    JsonObject config = new JsonObject(Files.toString(new File(cmd.getOptionValue("c")), StandardCharsets.UTF_8));
+    boolean allCompleted = new LoadGenerator(settings, config).run(System.out);
+    System.exit(allCompleted ? 0 : 1);
+  }
+
+  /**
+   * Runs the load and prints its report
+   * @return true if all recorders completed their profiles successfully
+   */
+  boolean run(PrintStream out) throws Exception {
+    LocalBackendCluster cluster = new LocalBackendCluster(config, settings.backends);
+    Vertx vertx = Vertx.vertx();
+    List<SimulatedRecorder> recorders = new ArrayList<>();
+    try {
+      await(cluster.launch(), LAUNCH_TIMEOUT_SECS);
+      logger.info("Launched " + settings.backends + " backends and a leader");
+
+      List<Recorder.ProcessGroup> processGroups = new ArrayList<>();
+      List<List<byte[]>> wsePools = new ArrayList<>();
+      for (int i = 0; i < settings.processGroups; i++) {
+        Recorder.ProcessGroup processGroup = Recorder.ProcessGroup.newBuilder()
+            .setAppId("load-app-" + i).setCluster("load-cluster").setProcName("load-proc").build();
+        postPolicy(vertx, cluster.getLeaderPorts(), processGroup);
+        processGroups.add(processGroup);
+        wsePools.add(wsePool(i));
+      }
+
+      for (int i = 0; i < settings.recorders; i++) {
+        int pgIndex = i % settings.processGroups;
+        recorders.add(new SimulatedRecorder(vertx, settings, i, processGroups.get(pgIndex),
+            cluster.getBackendPorts(), wsePools.get(pgIndex), stats));
+      }
+      recorders.forEach(SimulatedRecorder::start);
+      vertx.setPeriodic(1000, timerId -> stats.sampleHeap());
+
+      // association takes a couple of load reports, window starts after defunct threshold, work is assigned after scheduling buffer
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getInteger("recorder.defunct.threshold.secs")
+          + windowDurationSecs(settings) + 30);
+      long nextProgress = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_SECS);
+      while (System.nanoTime() < deadline && !recorders.stream().allMatch(SimulatedRecorder::isDone)) {
+        Thread.sleep(200);
+        if (System.nanoTime() >= nextProgress) {
+          nextProgress += TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_SECS);
+          logger.info(String.format("associated=%d, assigned=%d, profiles started=%d, completed=%d, failed=%d",
+              stats.associations.get(), stats.assignments.get(), stats.profilesStarted.get(),
+              stats.profilesCompleted.get(), stats.profilesFailed.get()));
+        }
+      }
+
+      stats.report(out, settings.recorders, SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY));
+      return stats.profilesCompleted.get() == settings.recorders;
+    } finally {
+      recorders.forEach(SimulatedRecorder::stop);
+      vertx.close();
+      cluster.close();
+    }
+  }
+
+  private List<byte[]> wsePool(int pgIndex) throws IOException {
+    PayloadGenerator generator = new PayloadGenerator(pgIndex, new WeightedDistribution(settings.stackDepths), settings.stackFanOut);
+    List<byte[]> pool = new ArrayList<>(settings.wsePoolSize);
+    for (Recorder.Wse wse : generator.wse(settings.wsePoolSize, settings.samplesPerWse)) {
+      pool.add(PayloadGenerator.serialize(wse));
+    }
+    return pool;
+  }
+
+  /**
+   * Posts recording policy of the process group to leader, retrying until a leader is elected and serving
+   */
+  private void postPolicy(Vertx vertx, List<Integer> leaderPorts, Recorder.ProcessGroup processGroup) throws Exception {
+    BackendDTO.RecordingPolicy policy = BackendDTO.RecordingPolicy.newBuilder()
+        .setDuration(settings.profileDurationSecs)
+        .setCoveragePct(settings.coveragePct)
+        .setDescription("load generator")
+        .addWork(BackendDTO.Work.newBuilder()
+            .setWType(BackendDTO.WorkType.cpu_sample_work)
+            .setCpuSample(BackendDTO.CpuSampleWork.newBuilder()
+                .setFrequency(settings.samplesPerSec)
+                .setMaxFrames(new WeightedDistribution(settings.stackDepths).max())))
+        .build();
+    String payload = JsonFormat.printer().print(policy);
+    String path = ApiPathConstants.LEADER_POST_POLICY + "/" + processGroup.getAppId() + "/" + processGroup.getCluster() + "/"
+        + processGroup.getProcName();
+
+    HttpClient httpClient = vertx.createHttpClient();
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(LAUNCH_TIMEOUT_SECS);
+      for (int attempt = 0; System.nanoTime() < deadline; attempt++) {
+        int port = leaderPorts.get(attempt % leaderPorts.size());
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        httpClient.post(port, LocalBackendCluster.LOCALHOST, path, response -> status.complete(response.statusCode()))
+            .exceptionHandler(status::completeExceptionally)
+            .end(payload);
+        try {
+          if (status.get(5, TimeUnit.SECONDS) == 200) {
+            return;
+          }
+        } catch (Exception ex) {
+          // leader is not elected yet, or instance at the port is not the leader
+        }
+        Thread.sleep(500);
+      }
+      throw new IllegalStateException("Could not post policy to leader");
+    } finally {
+      httpClient.close();
+    }
+  }
+
+  /**
+   * Shortens aggregation window to fit a single profile of every recorder, with all of them recording concurrently
+   */
+  private static JsonObject overrideTimings(Settings settings, JsonObject config) {
+    JsonObject overridden = config.copy();
+    int windowDurationSecs = windowDurationSecs(settings);
+    overridden.put("load.report.interval.secs", 1);
+    overridden.put("recorder.defunct.threshold.secs", Math.max(3, 3 * settings.pollIntervalSecs));
+    overridden.getJsonObject("daemonOptions").getJsonObject("config")
+        .put("aggregation.window.duration.secs", windowDurationSecs)
+        .put("aggregation.window.end.tolerance.secs", settings.schedulingBufferSecs)
+        .put("policy.refresh.offset.secs", windowDurationSecs / 2)
+        .put("scheduling.buffer.secs", settings.schedulingBufferSecs)
+        .put("work.assignment.max.delay.secs", 2 * settings.schedulingBufferSecs);
+    return overridden;
+  }
+
+  /**
+   * Window is padded by twice the scheduling buffer at start, and by scheduling buffer at end of every profile and of window
+   */
+  private static int windowDurationSecs(Settings settings) {
+    return settings.profileDurationSecs + 4 * settings.schedulingBufferSecs;
+  }
+
+  private static <T> T await(Future<T> future, int timeoutSecs) throws Exception {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    future.setHandler(ar -> {
+      if (ar.succeeded()) {
+        result.complete(ar.result());
+      } else {
+        result.completeExceptionally(ar.cause());
+      }
+    });
+    return result.get(timeoutSecs, TimeUnit.SECONDS);
+  }
+
+  private static Option intOption(String longOpt, String description) {
+    return Option.builder().longOpt(longOpt).hasArg().argName("n").desc(description).build();
+  }
+
+  private static int intValue(CommandLine cmd, String longOpt, int defaultValue) {
+    return cmd.hasOption(longOpt) ? Integer.parseInt(cmd.getOptionValue(longOpt)) : defaultValue;
+  }
+}
@@ -0,0 +1,128 @@
+package fk.prof.benchmarks.loadgen;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import fk.prof.metrics.MetricName;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Stats of a load run as observed by simulated recorders, updated concurrently by all of them
+ */
+class LoadStats {
+  private static final double BYTES_IN_MB = 1024 * 1024;
+
+  final AtomicLong associations = new AtomicLong();
+  final AtomicLong associationFailures = new AtomicLong();
+  final AtomicLong polls = new AtomicLong();
+  final AtomicLong pollFailures = new AtomicLong();
+  final AtomicLong assignments = new AtomicLong();
+  final AtomicLong profilesStarted = new AtomicLong();
+  final AtomicLong profilesCompleted = new AtomicLong();
+  final AtomicLong profilesFailed = new AtomicLong();
+  final AtomicLong wseSent = new AtomicLong();
+  final AtomicLong wseStalled = new AtomicLong();
+  final AtomicLong samplesSent = new AtomicLong();
+  final AtomicLong samplesAcknowledged = new AtomicLong();
+  final AtomicLong bytesSent = new AtomicLong();
+  final AtomicLong bytesAcknowledged = new AtomicLong();
+  final Histogram pollLatencyMicros = new Histogram(new UniformReservoir());
+
+  private final LongAccumulator firstProfileStart = new LongAccumulator(Math::min, Long.MAX_VALUE);
+  private final LongAccumulator lastProfileEnd = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+  private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+  private final LongAccumulator maxHeapUsed = new LongAccumulator(Math::max, 0);
+  private final long gcCountAtStart = gcCount(), gcTimeMsAtStart = gcTimeMs();
+
+  void profileStarted() {
+    profilesStarted.incrementAndGet();
+    firstProfileStart.accumulate(System.nanoTime());
+  }
+
+  void profileEnded(boolean completed, long bytes, long samples) {
+    lastProfileEnd.accumulate(System.nanoTime());
+    if (completed) {
+      profilesCompleted.incrementAndGet();
+      bytesAcknowledged.addAndGet(bytes);
+      samplesAcknowledged.addAndGet(samples);
+    } else {
+      profilesFailed.incrementAndGet();
+    }
+  }
+
+  void sampleHeap() {
+    maxHeapUsed.accumulate(memoryBean.getHeapMemoryUsage().getUsed());
+  }
+
+  void report(PrintStream out, int recorderCount, MetricRegistry backendMetrics) {
+    sampleHeap();
+    long recordingNanos = lastProfileEnd.get() - firstProfileStart.get();
+    double recordingSecs = recordingNanos > 0 ? recordingNanos / (double) TimeUnit.SECONDS.toNanos(1) : Double.NaN;
+
+    out.println("recorders:            " + recorderCount);
+    out.println("associations:         " + associations.get() + " (retried " + associationFailures.get() + ")");
+    out.println("polls:                " + polls.get() + " (failed " + pollFailures.get() + ")");
+    Snapshot latency = pollLatencyMicros.getSnapshot();
+    out.printf("poll latency (ms):    p50=%.2f p90=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+        latency.getMedian() / 1000, latency.getValue(0.9) / 1000, latency.get99thPercentile() / 1000,
+        latency.get999thPercentile() / 1000, latency.getMax() / 1000.0);
+    out.println("work assignments:     " + assignments.get() + " received, " + Math.max(0, recorderCount - assignments.get())
+        + " recorders without work");
+    out.println("scheduling misses:    " + sum(backendMetrics, MetricName.WA_Scheduling_Miss)
+        + " (poll window misses " + sum(backendMetrics, MetricName.Poll_Window_Miss)
+        + ", profile window misses " + sum(backendMetrics, MetricName.Profile_Window_Miss) + ")");
+    out.println("profiles:             " + profilesStarted.get() + " started, " + profilesCompleted.get() + " completed, "
+        + profilesFailed.get() + " failed");
+    out.println("admission:            " + sum(backendMetrics, MetricName.Profile_Admission_Reject) + " rejected, "
+        + sum(backendMetrics, MetricName.Profile_Admission_Throttle) + " throttled");
+    out.println("wse:                  " + wseSent.get() + " sent, " + wseStalled.get() + " stalled on backpressure");
+    out.printf("ingest throughput:    %.2f MB/s sent, %.2f MB/s acknowledged over %.1f s%n",
+        bytesSent.get() / BYTES_IN_MB / recordingSecs, bytesAcknowledged.get() / BYTES_IN_MB / recordingSecs, recordingSecs);
+    out.printf("sample throughput:    %.0f samples/s sent, %.0f samples/s acknowledged%n",
+        samplesSent.get() / recordingSecs, samplesAcknowledged.get() / recordingSecs);
+    out.printf("heap (MB):            max used=%.1f committed=%.1f max=%.1f%n", maxHeapUsed.get() / BYTES_IN_MB,
+        memoryBean.getHeapMemoryUsage().getCommitted() / BYTES_IN_MB, memoryBean.getHeapMemoryUsage().getMax() / BYTES_IN_MB);
+    out.println("gc:                   " + (gcCount() - gcCountAtStart) + " collections, " + (gcTimeMs() - gcTimeMsAtStart) + " ms");
+  }
+
+  /**
+   * Sums counts of backend metrics of all process groups / recorders, which are suffixed to the metric name
+   */
+  private static long sum(MetricRegistry registry, MetricName metricName) {
+    long count = 0;
+    for (Map.Entry<String, Metric> metric : registry.getMetrics().entrySet()) {
+      if (metric.getKey().startsWith(metricName.get()) && metric.getValue() instanceof Counting) {
+        count += ((Counting) metric.getValue()).getCount();
+      }
+    }
+    return count;
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gcBean.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcTimeMs() {
+    long timeMs = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      timeMs += Math.max(0, gcBean.getCollectionTime());
+    }
+    return timeMs;
+  }
+}
@@ -0,0 +1,90 @@
+package fk.prof.benchmarks.loadgen;
+
+import fk.prof.backend.BackendManager;
+import fk.prof.backend.ConfigManager;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.apache.curator.test.TestingServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backend instances launched in this process against an in-process zookeeper. Instances are launched from the same configuration,
+ * with backend id and ports offset by index of the instance. Instance elected leader stops serving recorders, as a deployed leader
+ * does, so one instance more than the required number of backends is launched.
+ */
+class LocalBackendCluster {
+  private static final Logger logger = LoggerFactory.getLogger(LocalBackendCluster.class);
+
+  static final String LOCALHOST = "127.0.0.1";
+
+  private final TestingServer zookeeper;
+  private final List<BackendManager> instances = new ArrayList<>();
+  private final List<Integer> backendPorts = new ArrayList<>();
+  private final List<Integer> leaderPorts = new ArrayList<>();
+
+  LocalBackendCluster(JsonObject config, int backendCount) throws Exception {
+    zookeeper = new TestingServer();
+    for (int i = 0; i <= backendCount; i++) {
+      JsonObject instanceConfig = config.copy();
+      instanceConfig.put("backend.id", config.getInteger("backend.id") + i);
+      // instances, and recorders talking to them, are all local
+      instanceConfig.put("ip.address", LOCALHOST);
+      instanceConfig.getJsonObject("curatorOptions").put("connection.url", zookeeper.getConnectString());
+      backendPorts.add(offsetPort(instanceConfig.getJsonObject("backend.http.server"), i));
+      leaderPorts.add(offsetPort(instanceConfig.getJsonObject("leader.http.server"), i));
+      instances.add(new BackendManager(ConfigManager.loadConfig(instanceConfig)));
+    }
+  }
+
+  Future<Void> launch() {
+    List<Future> launched = new ArrayList<>();
+    for (BackendManager instance : instances) {
+      launched.add(instance.launch());
+    }
+    Future<Void> result = Future.future();
+    CompositeFuture.all(launched).setHandler(ar -> {
+      if (ar.succeeded()) {
+        result.complete();
+      } else {
+        result.fail(ar.cause());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @return ports of backend http servers of all instances, the one of leader is not serving
+   */
+  List<Integer> getBackendPorts() {
+    return backendPorts;
+  }
+
+  /**
+   * @return ports of leader http servers of all instances, only the one of leader is serving
+   */
+  List<Integer> getLeaderPorts() {
+    return leaderPorts;
+  }
+
+  void close() {
+    for (BackendManager instance : instances) {
+      instance.close();
+    }
+    try {
+      zookeeper.close();
+    } catch (Exception ex) {
+      logger.error("Error stopping zookeeper", ex);
+    }
+  }
+
+  private static int offsetPort(JsonObject httpServerConfig, int offset) {
+    int port = httpServerConfig.getInteger("port") + offset;
+    httpServerConfig.put("port", port);
+    return port;
+  }
+}
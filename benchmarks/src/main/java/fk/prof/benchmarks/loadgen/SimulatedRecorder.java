@@ -0,0 +1,295 @@
+package fk.prof.benchmarks.loadgen;
+
+import fk.prof.backend.http.ApiPathConstants;
+import fk.prof.backend.util.ProtoUtil;
+import fk.prof.benchmarks.PayloadGenerator;
+import fk.prof.benchmarks.WeightedDistribution;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import recording.Recorder;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Speaks the recorder protocol with backends: associates with a backend, polls it periodically and on receiving a work assignment,
+ * streams a profile to it for the assigned duration, as recorder does. Wse of the profile are picked in order from a pool of
+ * serialized wse and written at the rate at which recorder would have flushed them, in chunks of sizes drawn from a distribution.
+ * All interactions happen on the event loop of the recorder's http client.
+ */
+class SimulatedRecorder {
+  private static final Logger logger = LoggerFactory.getLogger(SimulatedRecorder.class);
+  private static final byte[] END_MARKER = new byte[] {0};
+
+  private final Vertx vertx;
+  private final LoadGenerator.Settings settings;
+  private final Recorder.RecorderInfo.Builder recorderInfo;
+  private final List<Integer> associationPorts;
+  private final List<byte[]> wsePool;
+  private final WeightedDistribution chunkSizes;
+  private final LoadStats stats;
+  private final Random random;
+  private final long startedAt = System.nanoTime();
+
+  private HttpClient httpClient;
+  private Recorder.AssignedBackend assignedBackend;
+  private int associationAttempts;
+  private long pollTimerId = -1;
+  private boolean pollInFlight = false;
+  private Recorder.WorkResponse workLastIssued = Recorder.WorkResponse.newBuilder()
+      .setWorkId(0).setWorkState(Recorder.WorkResponse.WorkState.complete)
+      .setWorkResult(Recorder.WorkResponse.WorkResult.success).setElapsedTime(0).build();
+  private volatile boolean done = false;
+
+  SimulatedRecorder(Vertx vertx, LoadGenerator.Settings settings, int index, Recorder.ProcessGroup processGroup,
+                    List<Integer> associationPorts, List<byte[]> wsePool, LoadStats stats) {
+    this.vertx = vertx;
+    this.settings = settings;
+    this.associationPorts = associationPorts;
+    this.associationAttempts = index;
+    this.wsePool = wsePool;
+    this.chunkSizes = new WeightedDistribution(settings.chunkSizes);
+    this.stats = stats;
+    this.random = new Random(index);
+    String id = String.valueOf(index);
+    this.recorderInfo = Recorder.RecorderInfo.newBuilder()
+        .setIp("10.0.0." + id).setHostname("recorder-" + id)
+        .setAppId(processGroup.getAppId()).setCluster(processGroup.getCluster()).setProcName(processGroup.getProcName())
+        .setInstanceGrp("load").setInstanceId(id).setVmId(id).setZone("local").setInstanceType("simulated")
+        .setRecorderVersion(1).setRecorderUptime(0).setRecorderTick(0)
+        .setLocalTime(now())
+        .setCapabilities(Recorder.RecorderCapabilities.newBuilder().setCanCpuSample(true));
+  }
+
+  /**
+   * Starts after a random delay within a poll interval, so that recorders do not poll in lockstep
+   */
+  void start() {
+    httpClient = vertx.createHttpClient(new HttpClientOptions().setKeepAlive(true).setMaxPoolSize(2));
+    vertx.setTimer(1 + random.nextInt(settings.pollIntervalSecs * 1000), timerId -> associate());
+  }
+
+  void stop() {
+    done = true;
+    if (pollTimerId != -1) {
+      vertx.cancelTimer(pollTimerId);
+    }
+    if (httpClient != null) {
+      httpClient.close();
+    }
+  }
+
+  /**
+   * @return true once the recorder is done with its profile, successfully or otherwise
+   */
+  boolean isDone() {
+    return done;
+  }
+
+  private void associate() {
+    if (done) {
+      return;
+    }
+    // association requests are spread across backends, as a load balancer in front of them would
+    int associationPort = associationPorts.get(associationAttempts++ % associationPorts.size());
+    HttpClientRequest request = httpClient.post(associationPort, LocalBackendCluster.LOCALHOST, ApiPathConstants.BACKEND_POST_ASSOCIATION, response ->
+        response.bodyHandler(body -> {
+          if (response.statusCode() == 200) {
+            try {
+              assignedBackend = ProtoUtil.buildProtoFromBuffer(Recorder.AssignedBackend.parser(), body);
+              stats.associations.incrementAndGet();
+              pollTimerId = vertx.setPeriodic(settings.pollIntervalSecs * 1000, timerId -> poll());
+              return;
+            } catch (IOException ex) {
+              logger.error("Invalid association response", ex);
+            }
+          }
+          retryAssociation();
+        }));
+    request.exceptionHandler(ex -> retryAssociation());
+    request.end(Buffer.buffer(recorderInfo.setLocalTime(now()).build().toByteArray()));
+  }
+
+  /**
+   * Backends respond with 400 until leader has received enough load reports from them, and the instance elected leader does not serve
+   * recorders, association is retried with the next backend after a poll interval
+   */
+  private void retryAssociation() {
+    stats.associationFailures.incrementAndGet();
+    vertx.setTimer(settings.pollIntervalSecs * 1000, timerId -> associate());
+  }
+
+  private void poll() {
+    if (done || pollInFlight) {
+      return;
+    }
+    pollInFlight = true;
+    long pollStart = System.nanoTime();
+    Recorder.PollReq pollReq = Recorder.PollReq.newBuilder()
+        .setRecorderInfo(recorderInfo
+            .setLocalTime(now())
+            .setRecorderTick(recorderInfo.getRecorderTick() + 1)
+            .setRecorderUptime((int) ((System.nanoTime() - startedAt) / 1000_000_000L)))
+        .setWorkLastIssued(workLastIssued)
+        .build();
+
+    HttpClientRequest request = httpClient.post(assignedBackend.getPort(), assignedBackend.getHost(), ApiPathConstants.BACKEND_POST_POLL,
+        response -> response.bodyHandler(body -> {
+          pollInFlight = false;
+          stats.polls.incrementAndGet();
+          stats.pollLatencyMicros.update((System.nanoTime() - pollStart) / 1000);
+          if (response.statusCode() != 200) {
+            stats.pollFailures.incrementAndGet();
+            return;
+          }
+          try {
+            Recorder.PollRes pollRes = ProtoUtil.buildProtoFromBuffer(Recorder.PollRes.parser(), body);
+            if (pollRes.hasAssignment() && pollRes.getAssignment().getWorkId() != workLastIssued.getWorkId()) {
+              accept(pollRes.getAssignment(), pollRes.getControllerId(), pollRes.getControllerVersion());
+            }
+          } catch (IOException ex) {
+            stats.pollFailures.incrementAndGet();
+            logger.error("Invalid poll response", ex);
+          }
+        }));
+    request.exceptionHandler(ex -> {
+      pollInFlight = false;
+      stats.polls.incrementAndGet();
+      stats.pollFailures.incrementAndGet();
+    });
+    request.end(Buffer.buffer(pollReq.toByteArray()));
+  }
+
+  private void accept(Recorder.WorkAssignment assignment, int controllerId, int controllerVersion) {
+    stats.assignments.incrementAndGet();
+    workLastIssued = workResponse(assignment.getWorkId(), Recorder.WorkResponse.WorkState.pre_start,
+        Recorder.WorkResponse.WorkResult.unknown, 0);
+    Recorder.RecordingHeader recordingHeader = Recorder.RecordingHeader.newBuilder()
+        .setRecorderVersion(recorderInfo.getRecorderVersion())
+        .setControllerId(controllerId)
+        .setControllerVersion(controllerVersion)
+        .setWorkAssignment(assignment)
+        .build();
+    vertx.setTimer(Math.max(1, assignment.getDelay() * 1000), timerId -> record(recordingHeader));
+  }
+
+  private void record(Recorder.RecordingHeader recordingHeader) {
+    if (!done) {
+      new Recording(recordingHeader).start();
+    }
+  }
+
+  /**
+   * A profile being streamed to the backend
+   */
+  private class Recording {
+    private final Recorder.RecordingHeader recordingHeader;
+    private final long workId;
+    private final long startedAt = System.nanoTime();
+    private final long endsAt;
+    private HttpClientRequest request;
+    private long flushTimerId = -1;
+    private int nextWse = 0;
+    private long bytes = 0, samples = 0;
+    private boolean ended = false;
+
+    Recording(Recorder.RecordingHeader recordingHeader) {
+      this.recordingHeader = recordingHeader;
+      this.workId = recordingHeader.getWorkAssignment().getWorkId();
+      this.endsAt = startedAt + recordingHeader.getWorkAssignment().getDuration() * 1000_000_000L;
+    }
+
+    void start() {
+      workLastIssued = workResponse(workId, Recorder.WorkResponse.WorkState.running, Recorder.WorkResponse.WorkResult.unknown, 0);
+      stats.profileStarted();
+
+      request = httpClient.post(assignedBackend.getPort(), assignedBackend.getHost(), ApiPathConstants.AGGREGATOR_POST_PROFILE,
+          response -> response.bodyHandler(body -> {
+            if (response.statusCode() != 200 && logger.isDebugEnabled()) {
+              logger.debug("Profile for work_id=" + workId + " failed with status=" + response.statusCode() + ", " + body);
+            }
+            end(response.statusCode() == 200);
+          }));
+      request.exceptionHandler(ex -> end(false));
+      request.setChunked(true);
+      try {
+        write(PayloadGenerator.serialize(recordingHeader));
+      } catch (IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+
+      long flushIntervalMs = Math.max(1, 1000L * settings.samplesPerWse / settings.samplesPerSec);
+      flushTimerId = vertx.setPeriodic(flushIntervalMs, timerId -> flush());
+    }
+
+    private void flush() {
+      if (System.nanoTime() >= endsAt || done) {
+        stopFlushing();
+        write(END_MARKER);
+        request.end();
+        return;
+      }
+      // recorder would block on a full socket, profile is not allowed to buffer unboundedly in the client either
+      if (request.writeQueueFull()) {
+        stats.wseStalled.incrementAndGet();
+        return;
+      }
+      write(wsePool.get(nextWse));
+      // pool is cycled from its first wse, which carries indexed data of all methods and traces it refers to
+      nextWse = (nextWse + 1) % wsePool.size();
+      samples += settings.samplesPerWse;
+      stats.wseSent.incrementAndGet();
+      stats.samplesSent.addAndGet(settings.samplesPerWse);
+    }
+
+    private void write(byte[] payload) {
+      for (int offset = 0; offset < payload.length; ) {
+        int length = Math.min(chunkSizes.next(random), payload.length - offset);
+        request.write(Buffer.buffer(length).appendBytes(payload, offset, length));
+        offset += length;
+      }
+      bytes += payload.length;
+      stats.bytesSent.addAndGet(payload.length);
+    }
+
+    private void stopFlushing() {
+      if (flushTimerId != -1) {
+        vertx.cancelTimer(flushTimerId);
+        flushTimerId = -1;
+      }
+    }
+
+    private void end(boolean completed) {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      stopFlushing();
+      stats.profileEnded(completed, bytes, samples);
+      workLastIssued = workResponse(workId, Recorder.WorkResponse.WorkState.complete,
+          completed ? Recorder.WorkResponse.WorkResult.success : Recorder.WorkResponse.WorkResult.failure,
+          (int) ((System.nanoTime() - startedAt) / 1000_000_000L));
+      // next poll reports completion of work, after which the recorder is done
+      vertx.setTimer(settings.pollIntervalSecs * 1000L, timerId -> done = true);
+    }
+  }
+
+  private static Recorder.WorkResponse workResponse(long workId, Recorder.WorkResponse.WorkState state,
+                                                    Recorder.WorkResponse.WorkResult result, int elapsedSecs) {
+    return Recorder.WorkResponse.newBuilder()
+        .setWorkId(workId).setWorkState(state).setWorkResult(result).setElapsedTime(elapsedSecs)
+        .build();
+  }
+
+  private static String now() {
+    return LocalDateTime.now(Clock.systemUTC()).toString();
+  }
+}
@@ -8,6 +8,7 @@ public enum MetricName {
 
   AW_State_Transition_Failure("aw.state.transition.failure"),
   AW_CpuSampling_Aggregation_Failure("aw.cpusampling.agg.failure"),
+  AW_CpuSampling_Child_Contention("aw.cpusampling.child.contention"),
   AW_Active_Count("aw.active.count"),
   AW_Work_Success("aw.work.success"),
   AW_Work_Failure("aw.work.failure"),
@@ -25,6 +26,8 @@ public enum MetricName {
   AW_Store_Failure("aw.store.failure"),
   AW_BuffPool_Borrow("aw.buffpool.borrow"),
   AW_Buffpool_Failure("aw.buffpool.failure"),
+  AW_BuffPool_Bytes_Held("aw.buffpool.bytes.held"),
+  AW_BuffPool_Bytes_Used("aw.buffpool.bytes.used"),
 
   Backend_Unknown_Leader_Request("backend.unknown.leader.request"),
   Backend_Self_Leader_Request("backend.self.leader.request"),
@@ -44,6 +47,16 @@ public enum MetricName {
   Profile_Window_Miss("profile.window.miss"),
   Profile_Wse_Size("profile.wse.size"),
   Profile_Header_Size("profile.header.size"),
+  Profile_Stack_Cache_Hit("profile.stack.cache.hit"),
+  Profile_Stack_Cache_Miss("profile.stack.cache.miss"),
+  Profile_Pipeline_Depth("profile.pipeline.depth"),
+  Profile_Pipeline_Queued("profile.pipeline.queued"),
+  Profile_Pipeline_Handoff("profile.pipeline.handoff"),
+  Profile_Pipeline_Pause("profile.pipeline.pause"),
+  Profile_Admission_Active("profile.admission.active"),
+  Profile_Admission_Buffered("profile.admission.buffered"),
+  Profile_Admission_Reject("profile.admission.reject"),
+  Profile_Admission_Throttle("profile.admission.throttle"),
 
   Recorder_Poll_Complete("recorder.poll.complete"),
   Recorder_Poll_Reset("recorder.poll.reset"),
@@ -1,13 +1,99 @@
 #include "checksum.hh"
+#include <atomic>
 #include <cassert>
 #include <zlib.h>
 
+#if defined(__x86_64__)
+#include <nmmintrin.h>
+#endif
+
+namespace {
+    const std::uint32_t CRC32C_POLY_REFLECTED = 0x82F63B78;
+
+    struct Crc32cTable {
+        std::uint32_t t[256];
+
+        Crc32cTable() {
+            for (std::uint32_t i = 0; i < 256; i++) {
+                std::uint32_t crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) ? (crc >> 1) ^ CRC32C_POLY_REFLECTED : crc >> 1;
+                }
+                t[i] = crc;
+            }
+        }
+    };
+
+    std::uint32_t crc32c_sw(std::uint32_t crc, const std::uint8_t *buf, std::uint32_t len) {
+        static const Crc32cTable table;
+        for (std::uint32_t i = 0; i < len; i++) {
+            crc = (crc >> 8) ^ table.t[(crc ^ buf[i]) & 0xff];
+        }
+        return crc;
+    }
+
+#if defined(__x86_64__)
+    __attribute__((target("sse4.2")))
+    std::uint32_t crc32c_hw(std::uint32_t crc, const std::uint8_t *buf, std::uint32_t len) {
+        std::uint64_t crc64 = crc;
+        for (; len >= 8; buf += 8, len -= 8) {
+            std::uint64_t word;
+            __builtin_memcpy(&word, buf, 8);
+            crc64 = _mm_crc32_u64(crc64, word);
+        }
+        std::uint32_t crc32 = static_cast<std::uint32_t>(crc64);
+        for (; len > 0; buf++, len--) {
+            crc32 = _mm_crc32_u8(crc32, *buf);
+        }
+        return crc32;
+    }
+
+    bool has_sse42() {
+        static const bool supported = __builtin_cpu_supports("sse4.2");
+        return supported;
+    }
+#endif
+
+    std::atomic<bool> crc32c_hw_enabled(true);
+
+    bool use_crc32c_hw() {
+#if defined(__x86_64__)
+        return has_sse42() && crc32c_hw_enabled.load(std::memory_order_relaxed);
+#else
+        return false;
+#endif
+    }
+
+    std::uint32_t crc32c(std::uint32_t crc, const std::uint8_t *buf, std::uint32_t len) {
+        // value is kept finalized (inverted) between calls, so that chksum can be called incrementally, same as adler32
+        crc = ~crc;
+#if defined(__x86_64__)
+        if (use_crc32c_hw()) {
+            return ~crc32c_hw(crc, buf, len);
+        }
+#endif
+        return ~crc32c_sw(crc, buf, len);
+    }
+}
+
+void Checksum::set_crc32c_hw_enabled(bool enabled) {
+    crc32c_hw_enabled.store(enabled, std::memory_order_relaxed);
+}
+
+bool Checksum::is_crc32c_hw_used() {
+    return use_crc32c_hw();
+}
+
 void Checksum::reset() {
-    adler = ::adler32(0, Z_NULL, 0);
+    value = (type == Type::crc32c) ? 0 : ::adler32(0, Z_NULL, 0);
 }
 
 uint32_t Checksum::chksum(const std::uint8_t *buf, uint32_t len) {
-    adler = ::adler32(adler, buf, len);
-    assert(!(adler >> 32));
-    return adler;
+    if (type == Type::crc32c) {
+        value = crc32c(static_cast<std::uint32_t>(value), buf, len);
+    } else {
+        value = ::adler32(value, buf, len);
+    }
+    assert(!(value >> 32));
+    return value;
 }
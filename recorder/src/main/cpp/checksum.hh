@@ -4,16 +4,30 @@
 #define CHECKSUM_H
 
 class Checksum {
+public:
+    // matches recording::ChecksumType advertised in RecordingHeader
+    enum class Type { adler32 = 0, crc32c = 1 };
+
 private:
-    std::uint64_t adler;
-    
+    Type type;
+    std::uint64_t value;
+
 public:
-    Checksum() { reset(); }
+    Checksum(Type _type = Type::adler32) : type(_type) { reset(); }
     
     ~Checksum() {}
     
     uint32_t chksum(const std::uint8_t *buf, uint32_t len);
 
     void reset();
+
+    Type get_type() const { return type; }
+
+    // crc32c uses the sse4.2 crc32 instruction when the cpu supports it, and a table driven fallback otherwise. Disabling the
+    // instruction makes crc32c fall back to the table even on cpus which support it, so that tests exercise both paths on any host.
+    static void set_crc32c_hw_enabled(bool enabled);
+
+    // true if crc32c is currently computed with the sse4.2 crc32 instruction
+    static bool is_crc32c_hw_used();
 };
 #endif
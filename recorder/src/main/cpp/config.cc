@@ -76,6 +76,7 @@ std::ostream& operator<<(std::ostream& os, const ConfigurationOptions* config) {
     PRINT_FIELD(rpc_timeout, false);
     PRINT_FIELD(slow_tx_tolerance, false);
     PRINT_FIELD(tx_ring_sz, false);
+    PRINT_FIELD(wse_crc32c, false);
     PRINT_FIELD(stats_syslog_tag, true);
     os << " }";
     return os;
@@ -151,6 +152,9 @@ void ConfigurationOptions::load(const char* options) {
                 slow_tx_tolerance = atof(value);
             } else if (strstr(key, "tx_ring_sz") == key) {
                 tx_ring_sz = static_cast<std::uint32_t>(atoi(value));
+            } else if (strstr(key, "wse_crc32c") == key) {
+                wse_crc32c = ((strlen(value) == 1) || (value[1] == ',')) &&
+                    ((value[0] == 'y') || (value[0] == 'Y'));
             } else if (strstr(key, "stats_syslog_tag") == key) {
                 stats_syslog_tag = safe_copy_string(value, next);
             } else {
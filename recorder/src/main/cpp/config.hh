@@ -53,6 +53,8 @@ struct ConfigurationOptions {
     double slow_tx_tolerance;
     std::uint32_t tx_ring_sz;
 
+    bool wse_crc32c;
+
     char* stats_syslog_tag;
 
     ConfigurationOptions(const char* options) :
@@ -76,6 +78,7 @@ struct ConfigurationOptions {
         rpc_timeout(10),
         slow_tx_tolerance(1.5),
         tx_ring_sz(1024 * 1024),
+        wse_crc32c(false),
         stats_syslog_tag(nullptr) {
 
         load(options);
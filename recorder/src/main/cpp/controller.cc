@@ -463,12 +463,13 @@ void http_raw_writer_runnable(jvmtiEnv *jvmti_env, JNIEnv *jni_env, void *arg) {
     rpw->run();
 }
 
-void populate_recording_header(recording::RecordingHeader& rh, const recording::WorkAssignment& w, std::uint32_t controller_id, std::uint32_t controller_version) {
+void populate_recording_header(recording::RecordingHeader& rh, const recording::WorkAssignment& w, std::uint32_t controller_id, std::uint32_t controller_version, bool wse_crc32c) {
     rh.set_recorder_version(RECORDER_VERION);
     rh.set_controller_version(controller_version);
     rh.set_controller_id(controller_id);
     recording::WorkAssignment* wa = rh.mutable_work_assignment();
     *wa = w;
+    rh.set_wse_checksum_type(wse_crc32c ? recording::ChecksumType::crc32c : recording::ChecksumType::adler32);
 }
 
 void Controller::issue_work(const std::string& host, const std::uint32_t port, std::uint32_t controller_id, std::uint32_t controller_version) {
@@ -491,7 +492,7 @@ void Controller::issue_work(const std::string& host, const std::uint32_t port, s
                         std::shared_ptr<HttpRawProfileWriter> raw_writer(new HttpRawProfileWriter(jvm, jvmti, host, port, raw_writer_ring, cancel_work, tx_timeout));
                         writer.reset(new ProfileWriter(raw_writer, buff));
                         recording::RecordingHeader rh;
-                        populate_recording_header(rh, w, controller_id, controller_version);
+                        populate_recording_header(rh, w, controller_id, controller_version, cfg.wse_crc32c);
                         writer->write_header(rh);
 
                         for (auto i = 0; i < w.work_size(); i++) {
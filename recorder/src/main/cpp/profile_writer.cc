@@ -43,17 +43,19 @@ void ProfileWriter::write_header(const recording::RecordingHeader& rh) {
     ensure_freebuff(rh);
     write_unchecked(DATA_ENCODING_VERSION);
     write_unchecked_obj(rh);
-    auto csum = chksum.chksum(data.buff, data.write_end);
+    auto csum = header_chksum.chksum(data.buff, data.write_end);
     write_unchecked(csum);
+    //header is always checksummed with adler32, wse use the type it advertises
+    wse_chksum = Checksum(rh.wse_checksum_type() == recording::ChecksumType::crc32c ? Checksum::Type::crc32c : Checksum::Type::adler32);
 }
 
 void ProfileWriter::append_wse(const recording::Wse& e) {
     ensure_freebuff(e);
     auto old_offset = data.write_end;
     write_unchecked_obj(e);
-    chksum.reset();
+    wse_chksum.reset();
     auto data_sz = data.write_end - old_offset;
-    auto csum = chksum.chksum(data.buff + old_offset, data_sz);
+    auto csum = wse_chksum.chksum(data.buff + old_offset, data_sz);
     write_unchecked(csum);
 }
 
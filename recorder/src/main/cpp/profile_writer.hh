@@ -24,7 +24,8 @@ private:
     static const std::uint32_t MIN_FREE_BUFF = 64;
 
     std::shared_ptr<RawWriter> w;
-    Checksum chksum;
+    Checksum header_chksum;
+    Checksum wse_chksum;
     Buff &data;
     bool header_written;
 
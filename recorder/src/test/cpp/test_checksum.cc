@@ -4,7 +4,10 @@
 #include <cstdint>
 #include "fixtures.hh"
 #include "test.hh"
+#include <random>
 #include "../../main/cpp/checksum.hh"
+#include "../../main/cpp/profile_writer.hh"
+#include <google/protobuf/io/coded_stream.h>
 
 TEST(Adler32_calculation_simple) {
     Checksum c;
@@ -19,4 +22,123 @@ TEST(Adler32_calculation_simple) {
     CHECK_EQUAL(0x6060209, adler);
 }
 
+TEST(Crc32c_calculation_simple) {
+    // table driven fallback first, as on a cpu without sse4.2, then sse4.2 crc32 instruction if this cpu supports it
+    for (bool hw : {false, true}) {
+        Checksum::set_crc32c_hw_enabled(hw);
+        Checksum c(Checksum::Type::crc32c);
+        std::uint8_t check[] = {'1', '2', '3', '4', '5', '6', '7', '8', '9'};
+        CHECK_EQUAL(0xE3069283, c.chksum(check, 9));
+        c.reset();
+        c.chksum(check, 1);
+        c.chksum(check + 1, 2);
+        CHECK_EQUAL(0xE3069283, c.chksum(check + 3, 6));
+        c.reset();
+        std::uint8_t zeros[32] = {0};
+        CHECK_EQUAL(0x8A9136AA, c.chksum(zeros, 32));
+    }
+    Checksum::set_crc32c_hw_enabled(true);
+}
+
+TEST(Crc32c_table_fallback_is_used_when_crc32_instruction_is_disabled) {
+    Checksum::set_crc32c_hw_enabled(false);
+    CHECK(! Checksum::is_crc32c_hw_used());
+    Checksum::set_crc32c_hw_enabled(true);
+}
+
+TEST(Crc32c_table_fallback_matches_crc32_instruction__for_all_lengths_and_alignments) {
+    Checksum::set_crc32c_hw_enabled(true);
+    if (! Checksum::is_crc32c_hw_used()) {
+        std::cout << "cpu does not support sse4.2, only table driven crc32c is tested\n";
+        return;
+    }
+
+    std::mt19937 rnd(42);
+    std::uint8_t buf[128];
+    for (auto& b : buf) b = static_cast<std::uint8_t>(rnd());
+
+    Checksum hw(Checksum::Type::crc32c), sw(Checksum::Type::crc32c);
+    for (std::uint32_t offset = 0; offset < 8; offset++) {
+        for (std::uint32_t len = 0; len + offset <= sizeof(buf); len++) {
+            hw.reset();
+            sw.reset();
+            auto hw_csum = hw.chksum(buf + offset, len);
+            Checksum::set_crc32c_hw_enabled(false);
+            // split in two to cover incremental checksum across the word and byte loops
+            sw.chksum(buf + offset, len / 3);
+            auto sw_csum = sw.chksum(buf + offset + len / 3, len - len / 3);
+            Checksum::set_crc32c_hw_enabled(true);
+            CHECK_EQUAL(hw_csum, sw_csum);
+        }
+    }
+}
+
+struct VectorRawWriter : public RawWriter {
+    std::vector<std::uint8_t> bytes;
 
+    VectorRawWriter() : RawWriter() {}
+    virtual ~VectorRawWriter() {}
+
+    void write_unbuffered(const std::uint8_t* data, std::uint32_t sz, std::uint32_t offset) {
+        bytes.insert(bytes.end(), data + offset, data + offset + sz);
+    }
+};
+
+TEST(ProfileWriter__should_checksum_header_with_adler32__and_wse_with_crc32c_when_negotiated) {
+    auto raw_w = std::make_shared<VectorRawWriter>();
+    {
+        Buff buff;
+        ProfileWriter pw(raw_w, buff);
+
+        recording::RecordingHeader rh;
+        rh.set_recorder_version(1);
+        rh.set_controller_version(2);
+        rh.set_controller_id(3);
+        auto wa = rh.mutable_work_assignment();
+        wa->set_work_id(10);
+        wa->set_description("crc32c");
+        wa->set_issue_time("2017-01-01T00:00:00");
+        wa->set_duration(60);
+        wa->set_delay(0);
+        wa->add_work()->set_w_type(recording::WorkType::cpu_sample_work);
+        rh.set_wse_checksum_type(recording::ChecksumType::crc32c);
+        pw.write_header(rh);
+
+        recording::Wse wse;
+        wse.set_w_type(recording::WorkType::cpu_sample_work);
+        wse.mutable_cpu_sample_entry()->add_stack_sample()->set_start_offset_micros(5);
+        wse.mutable_cpu_sample_entry()->mutable_stack_sample(0)->set_snipped(false);
+        pw.append_wse(wse);
+    }
+
+    auto data = raw_w->bytes.data();
+    google::protobuf::io::CodedInputStream cis(data, raw_w->bytes.size());
+    std::uint32_t version, len, csum;
+    CHECK(cis.ReadVarint32(&version));
+    CHECK(cis.ReadVarint32(&len));
+    recording::RecordingHeader rh;
+    auto lim = cis.PushLimit(len);
+    CHECK(rh.ParseFromCodedStream(&cis));
+    cis.PopLimit(lim);
+    auto pos = cis.CurrentPosition();
+    CHECK(cis.ReadVarint32(&csum));
+    Checksum adler;
+    CHECK_EQUAL(adler.chksum(data, pos), csum);
+    CHECK_EQUAL(recording::ChecksumType::crc32c, rh.wse_checksum_type());
+
+    auto wse_start = cis.CurrentPosition();
+    CHECK(cis.ReadVarint32(&len));
+    recording::Wse wse;
+    lim = cis.PushLimit(len);
+    CHECK(wse.ParseFromCodedStream(&cis));
+    cis.PopLimit(lim);
+    pos = cis.CurrentPosition();
+    CHECK(cis.ReadVarint32(&csum));
+    for (bool hw : {false, true}) {
+        Checksum::set_crc32c_hw_enabled(hw);
+        Checksum crc32c(Checksum::Type::crc32c);
+        CHECK_EQUAL(crc32c.chksum(data + wse_start, pos - wse_start), csum);
+    }
+    Checksum::set_crc32c_hw_enabled(true);
+    CHECK_EQUAL(5, wse.cpu_sample_entry().stack_sample(0).start_offset_micros());
+}
@@ -32,6 +32,7 @@ TEST(ParsesAllOptions) {
                     "rpc_timeout=7,"
                     "slow_tx_tolerance=1.25,"
                     "tx_ring_sz=102400,"
+                    "wse_crc32c=y,"
                     "stats_syslog_tag=foo");
     
     ConfigurationOptions options(str.c_str());
@@ -59,6 +60,7 @@ TEST(ParsesAllOptions) {
     CHECK_EQUAL(7, options.rpc_timeout);
     CHECK_EQUAL(1.25, options.slow_tx_tolerance);
     CHECK_EQUAL(102400, options.tx_ring_sz);
+    CHECK_EQUAL(true, options.wse_crc32c);
     CHECK_EQUAL("foo", options.stats_syslog_tag);
     CHECK_EQUAL(true, options.valid());
 
@@ -155,6 +157,7 @@ TEST(DefaultAppropriately) {
     CHECK_EQUAL(10, options.rpc_timeout);
     CHECK_EQUAL(1.5, options.slow_tx_tolerance);
     CHECK_EQUAL(1024 * 1024, options.tx_ring_sz);
+    CHECK_EQUAL(false, options.wse_crc32c);
     CHECK_EQUAL("bar", options.stats_syslog_tag);
     CHECK_EQUAL(true, options.valid());
 }
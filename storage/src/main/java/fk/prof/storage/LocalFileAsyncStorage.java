@@ -0,0 +1,201 @@
+package fk.prof.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+/**
+ * AsyncStorage impl backed by the local filesystem. It uses an executorService to offload the io.
+ * <p>
+ * Path of an object is resolved against the base directory, so objects are laid out in directories the same way as their paths are
+ * split by "/", e.g. the way {@code AggregatedProfileNamingStrategy} names files. Listing mirrors S3: prefix of a path is matched
+ * against names of entries in its directory, and a non recursive listing returns sub directories as prefixes ending in "/".
+ * <p>
+ * Objects are written to a hidden temporary file which is renamed to the path atomically once complete, so that readers and listings
+ * never see partially written objects. Objects are read by memory mapping the file.
+ */
+public class LocalFileAsyncStorage implements AsyncStorage {
+    private static final String DELIMITER = "/";
+    private static final String TEMP_FILE_PREFIX = ".";
+    private static Logger LOGGER = LoggerFactory.getLogger(LocalFileAsyncStorage.class);
+
+    private final Path baseDir;
+    private final ExecutorService executorService;
+
+    public LocalFileAsyncStorage(Path baseDir, ExecutorService executorService) {
+        this.baseDir = baseDir.toAbsolutePath().normalize();
+        this.executorService = executorService;
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+        return CompletableFuture.runAsync(() -> {
+            Path file = resolve(path);
+            Path tempFile = file.resolveSibling(TEMP_FILE_PREFIX + file.getFileName() + "." + UUID.randomUUID());
+            try {
+                Files.createDirectories(file.getParent());
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                     ReadableByteChannel src = Channels.newChannel(content)) {
+                    long written = 0;
+                    while(written < length) {
+                        long count = channel.transferFrom(src, written, length - written);
+                        if(count <= 0) {
+                            break;
+                        }
+                        written += count;
+                    }
+                    if(written != length) {
+                        throw new StorageException("Content of " + written + " bytes is shorter than length: " + length + " for path: " + path);
+                    }
+                }
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                deleteQuietly(tempFile);
+                throw new StorageException("Unexpected error during write of path: " + path, ex);
+            } catch (RuntimeException ex) {
+                deleteQuietly(tempFile);
+                throw ex;
+            } finally {
+                try {
+                    content.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close inputStream for path: {}", path, e);
+                }
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path) {
+        return CompletableFuture.supplyAsync(() -> {
+            Path file = resolve(path);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if(size > Integer.MAX_VALUE) {
+                    // too large to map as a single buffer
+                    return Files.newInputStream(file);
+                }
+                // mapping stays valid after the channel is closed
+                return new MappedFileInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            } catch (NoSuchFileException ex) {
+                throw new ObjectNotFoundException("No such file: " + path, ex);
+            } catch (IOException ex) {
+                LOGGER.error("Read failed: {}", path, ex);
+                throw new StorageException("Unexpected error during read of path: " + path, ex);
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
+        return CompletableFuture.supplyAsync(() -> {
+            int dirEnd = prefixPath.lastIndexOf(DELIMITER);
+            String dirPath = dirEnd == -1 ? "" : prefixPath.substring(0, dirEnd + 1);
+            String namePrefix = prefixPath.substring(dirEnd + 1);
+            Path dir = resolve(dirPath);
+
+            Set<String> allObjects = new HashSet<>();
+            if(!Files.isDirectory(dir)) {
+                return allObjects;
+            }
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, entry -> isVisible(entry) && entry.getFileName().toString().startsWith(namePrefix))) {
+                for(Path entry: entries) {
+                    String entryPath = dirPath + entry.getFileName();
+                    if(!Files.isDirectory(entry)) {
+                        allObjects.add(entryPath);
+                    }
+                    else if(!recursive) {
+                        // folders in current dir, same as common prefixes of S3
+                        allObjects.add(entryPath + DELIMITER);
+                    }
+                    else {
+                        try (Stream<Path> files = Files.walk(entry)) {
+                            files.filter(file -> isVisible(file) && Files.isRegularFile(file))
+                                .forEach(file -> allObjects.add(toPath(file)));
+                        }
+                    }
+                }
+                return allObjects;
+            } catch (IOException | UncheckedIOException ex) {
+                LOGGER.error("List failed: {}, isRecursive: {}", prefixPath, recursive, ex);
+                throw new StorageException("Unexpected error during listing of prefix: " + prefixPath, ex);
+            }
+        }, executorService);
+    }
+
+    private Path resolve(String path) {
+        Path resolved = baseDir.resolve(path).normalize();
+        if(!resolved.startsWith(baseDir)) {
+            throw new IllegalArgumentException("path: " + path + " is outside of the base directory");
+        }
+        return resolved;
+    }
+
+    private String toPath(Path file) {
+        return baseDir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), DELIMITER);
+    }
+
+    private static boolean isVisible(Path entry) {
+        return !entry.getFileName().toString().startsWith(TEMP_FILE_PREFIX);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete temporary file: {}", file, e);
+        }
+    }
+
+    private static class MappedFileInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        MappedFileInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len == 0) {
+                return 0;
+            }
+            if(!buf.hasRemaining()) {
+                return -1;
+            }
+            int bytesToRead = Math.min(buf.remaining(), len);
+            buf.get(b, off, bytesToRead);
+            return bytesToRead;
+        }
+
+        @Override
+        public long skip(long n) {
+            int bytesToSkip = (int) Math.max(0, Math.min(buf.remaining(), n));
+            buf.position(buf.position() + bytesToSkip);
+            return bytesToSkip;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
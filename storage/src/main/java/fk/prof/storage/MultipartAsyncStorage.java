@@ -0,0 +1,59 @@
+package fk.prof.storage;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link AsyncStorage} which can store an object in parts uploaded independently of each other, and fetch byte ranges of an object.
+ * Exceptions are to be mapped to {@link StorageException} by the implementation, same as {@link AsyncStorage}.
+ */
+public interface MultipartAsyncStorage extends AsyncStorage {
+
+    /**
+     * @return minimum size in bytes of every part of a multipart upload but the last
+     */
+    long getMinPartSize();
+
+    /**
+     * Starts a multipart upload of an object to the specified path. The object is not visible until the upload is completed.
+     * @param path path where the object is to be stored
+     * @return Future for the id of the upload
+     */
+    CompletableFuture<String> initiateMultipartAsync(String path);
+
+    /**
+     * Uploads a part of a multipart upload. Parts may be uploaded concurrently and in any order.
+     * @param partNumber position of the part in the object, starting from 1
+     * @param content the content as inputstream, closed once the part is uploaded
+     * @return Future for the tag of the uploaded part, required to complete the upload
+     */
+    CompletableFuture<String> uploadPartAsync(String path, String uploadId, int partNumber, InputStream content, long length);
+
+    /**
+     * Completes a multipart upload, making the object with all parts in order visible at the path.
+     * @param partTags tags of the uploaded parts, in order of their part numbers
+     */
+    CompletableFuture<Void> completeMultipartAsync(String path, String uploadId, List<String> partTags);
+
+    /**
+     * Discards a multipart upload along with its uploaded parts.
+     */
+    CompletableFuture<Void> abortMultipartAsync(String path, String uploadId);
+
+    /**
+     * @return Future for the length in bytes of the object at the path. Completes exceptionally with {@link ObjectNotFoundException} if
+     * there is no object at the path. Cancelling the future may skip the lookup
+     */
+    CompletableFuture<Long> lengthAsync(String path);
+
+    /**
+     * Retrieves a byte range of the object at the specified path. Content of the range is read fully before the future completes, so
+     * that ranges fetched concurrently are also transferred concurrently. Nothing needs to be released if the future is cancelled, and
+     * cancelling may skip the fetch.
+     * @param offset offset of the first byte of the range
+     * @param length length of the range
+     * @return Future object for the content of the range
+     */
+    CompletableFuture<InputStream> fetchAsync(String path, long offset, long length);
+}
@@ -3,26 +3,30 @@ package fk.prof.storage;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.*;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 /**
  * AsyncStorage impl backed by S3 Object store. It uses an executorService to offload the request.
  * @author gaurav.ashok
  */
-public class S3AsyncStorage implements AsyncStorage {
+public class S3AsyncStorage implements MultipartAsyncStorage {
     private static final String DELIMITER = "/";
+    private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
     private static Logger LOGGER = LoggerFactory.getLogger(S3AsyncStorage.class);
     private static String NO_SUCH_KEY = "NoSuchKey";
     private static String NO_SUCH_BUCKET = "NoSuchBucket";
@@ -119,6 +123,146 @@ public class S3AsyncStorage implements AsyncStorage {
         }, executorService);
     }
 
+    @Override
+    public long getMinPartSize() {
+        return MIN_PART_SIZE;
+    }
+
+    @Override
+    public CompletableFuture<String> initiateMultipartAsync(String path) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.initiateMultipartUpload(new InitiateMultipartUploadRequest(objectPath.bucket, objectPath.fileName)).getUploadId();
+            } catch (AmazonServiceException svcEx) {
+                LOGGER.error("S3 initiateMultipartUpload failed: {}", path, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 initiateMultipartUpload failed: {}", path, clientEx);
+                throw mapClientException(clientEx);
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<String> uploadPartAsync(String path, String uploadId, int partNumber, InputStream content, long length) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                UploadPartRequest request = new UploadPartRequest().withBucketName(objectPath.bucket).withKey(objectPath.fileName)
+                    .withUploadId(uploadId).withPartNumber(partNumber).withInputStream(content).withPartSize(length);
+                return client.uploadPart(request).getETag();
+            } catch (AmazonClientException e) {
+                throw mapClientException(e);
+            } catch (Exception ex) {
+                throw new StorageException("Unexpected error during S3 uploadPart: " + partNumber + " for path: " + path, ex);
+            } finally {
+                try {
+                    content.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close inputStream for path: {}, part: {}", path, partNumber, e);
+                }
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<Void> completeMultipartAsync(String path, String uploadId, List<String> partTags) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return CompletableFuture.runAsync(() -> {
+            List<PartETag> partETags = new ArrayList<>(partTags.size());
+            for (int i = 0; i < partTags.size(); i++) {
+                partETags.add(new PartETag(i + 1, partTags.get(i)));
+            }
+            try {
+                client.completeMultipartUpload(new CompleteMultipartUploadRequest(objectPath.bucket, objectPath.fileName, uploadId, partETags));
+            } catch (AmazonServiceException svcEx) {
+                LOGGER.error("S3 completeMultipartUpload failed: {}", path, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 completeMultipartUpload failed: {}", path, clientEx);
+                throw mapClientException(clientEx);
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<Void> abortMultipartAsync(String path, String uploadId) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(objectPath.bucket, objectPath.fileName, uploadId));
+            } catch (AmazonServiceException svcEx) {
+                LOGGER.error("S3 abortMultipartUpload failed: {}", path, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 abortMultipartUpload failed: {}", path, clientEx);
+                throw mapClientException(clientEx);
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<Long> lengthAsync(String path) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return supplyCancellableAsync(() -> {
+            try {
+                return client.getObjectMetadata(objectPath.bucket, objectPath.fileName).getContentLength();
+            } catch (AmazonServiceException svcEx) {
+                // metadata of a non existent object is a 404 without error code
+                if (svcEx.getStatusCode() == 404) {
+                    throw new ObjectNotFoundException(NO_SUCH_KEY + ": " + svcEx.getMessage(), svcEx);
+                }
+                LOGGER.error("S3 getObjectMetadata failed: {}", path, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 getObjectMetadata failed: {}", path, clientEx);
+                throw mapClientException(clientEx);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path, long offset, long length) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return supplyCancellableAsync(() -> {
+            GetObjectRequest request = new GetObjectRequest(objectPath.bucket, objectPath.fileName).withRange(offset, offset + length - 1);
+            try (InputStream content = client.getObject(request).getObjectContent()) {
+                byte[] bytes = new byte[(int) length];
+                ByteStreams.readFully(content, bytes);
+                return new ByteArrayInputStream(bytes);
+            } catch (AmazonServiceException svcEx) {
+                LOGGER.error("S3 getObject failed: {}, range: {}+{}", path, offset, length, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 getObject failed: {}, range: {}+{}", path, offset, length, clientEx);
+                throw mapClientException(clientEx);
+            } catch (IOException ex) {
+                throw new StorageException("Unexpected error during S3 GET for path: " + path + ", range: " + offset + "+" + length, ex, true);
+            }
+        });
+    }
+
+    /**
+     * Like {@link CompletableFuture#supplyAsync(Supplier, java.util.concurrent.Executor)}, except that the request is not made at all if
+     * the returned future gets cancelled while the task is queued in the executor.
+     */
+    private <T> CompletableFuture<T> supplyCancellableAsync(Supplier<T> supplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executorService.execute(() -> {
+            if(future.isCancelled()) {
+                return;
+            }
+            try {
+                future.complete(supplier.get());
+            }
+            catch (Throwable ex) {
+                future.completeExceptionally(ex instanceof CompletionException ? ex : new CompletionException(ex));
+            }
+        });
+        return future;
+    }
+
     private StorageException mapClientException(AmazonClientException ex) {
         return new StorageException(ex.getMessage(), ex, ex.isRetryable());
     }
@@ -1,5 +1,6 @@
 package fk.prof.storage.buffer;
 
+import com.codahale.metrics.Counter;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -7,33 +8,49 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * InputStream wrapper for ByteBuffer.
+ * InputStream wrapper for ByteBuffers, reading them one after the other. Every buffer is returned to the pool as soon as it is read
+ * fully, and the rest of them on close.
  * @author gaurav.ashok
  */
 public class ByteBufferInputStream extends InputStream {
     private static final Logger LOGGER = LoggerFactory.getLogger(ByteBufferInputStream.class);
     private final GenericObjectPool<ByteBuffer> bufferPool;
-    private final ByteBuffer buf;
+    private final List<ByteBuffer> bufs;
+    private final Counter ctrBytesUsed;
+    // index of the buffer being read. Buffers before it are already returned.
+    private int current = 0;
     private boolean closed = false;
 
     public ByteBufferInputStream(GenericObjectPool<ByteBuffer> bufferPool, ByteBuffer buf) {
-        this.buf = buf;
+        this(bufferPool, Collections.singletonList(buf), new Counter());
+    }
+
+    /**
+     * @param ctrBytesUsed decremented by the content length of every buffer returned to the pool.
+     */
+    public ByteBufferInputStream(GenericObjectPool<ByteBuffer> bufferPool, List<ByteBuffer> bufs, Counter ctrBytesUsed) {
+        this.bufs = bufs;
         this.bufferPool = bufferPool;
+        this.ctrBytesUsed = ctrBytesUsed;
     }
 
     @Override
     public int read() throws IOException {
-        if(buf.remaining() > 0) {
-            return buf.get();
+        ByteBuffer buf = currentBuf();
+        if(buf != null) {
+            return buf.get() & 0xFF;
         }
         return -1;
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if(buf.remaining() > 0) {
+        ByteBuffer buf = currentBuf();
+        if(buf != null) {
             int bytesToRead = Math.min(buf.remaining(), len);
             buf.get(b, off, bytesToRead);
             return bytesToRead;
@@ -43,7 +60,12 @@ public class ByteBufferInputStream extends InputStream {
 
     @Override
     public int available() throws IOException {
-        int remaining = buf.remaining();
+        int remaining = 0;
+        synchronized (this) {
+            for(int i = current; i < bufs.size() && !closed; ++i) {
+                remaining += bufs.get(i).remaining();
+            }
+        }
         // if there are no bytes remaining, its eof, so return -1.
         return remaining > 0 ? remaining : -1;
     }
@@ -53,9 +75,35 @@ public class ByteBufferInputStream extends InputStream {
         LOGGER.debug("returning buffer to bufferPool");
         synchronized (this) {
             if(!closed) {
-                bufferPool.returnObject(buf);
+                while(current < bufs.size()) {
+                    returnBuf(bufs.get(current++));
+                }
                 closed = true;
             }
         }
     }
+
+    /**
+     * @return buffer with bytes remaining to be read, after returning the buffers read fully. null if all are read.
+     */
+    private synchronized ByteBuffer currentBuf() {
+        while(!closed && current < bufs.size()) {
+            ByteBuffer buf = bufs.get(current);
+            if(buf.remaining() > 0) {
+                return buf;
+            }
+            // keep the last buffer till close, same as when there is a single buffer
+            if(current == bufs.size() - 1) {
+                return null;
+            }
+            returnBuf(buf);
+            ++current;
+        }
+        return null;
+    }
+
+    private void returnBuf(ByteBuffer buf) {
+        ctrBytesUsed.dec(buf.limit());
+        bufferPool.returnObject(buf);
+    }
 }
@@ -0,0 +1,86 @@
+package fk.prof.storage.buffer;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * Read-ahead settings of {@link StorageBackedInputStream}, along with the metrics to record its effectiveness into. An instance is
+ * meant to be shared by all streams reading from a storage.
+ * <p>
+ * {@code depth} is the number of fetches kept in flight ahead of the one being read, i.e. parts of a file stored as multiple objects,
+ * or ranges of a file stored as a single object. {@code budgetBytes} bounds the content fetched ahead by a stream, so that reading
+ * files with large parts does not hold as many of them in memory.
+ */
+public class ReadAhead {
+
+    public static final int DEFAULT_DEPTH = 4;
+    public static final long DEFAULT_BUDGET_BYTES = 32 * 1024 * 1024;
+    public static final int DEFAULT_RANGE_SIZE = 4 * 1024 * 1024;
+
+    public static final ReadAhead DEFAULT = new ReadAhead(DEFAULT_DEPTH, DEFAULT_BUDGET_BYTES, DEFAULT_RANGE_SIZE);
+
+    private final int depth;
+    private final long budgetBytes;
+    private final int rangeSize;
+
+    // fetches issued ahead, which were complete / yet to complete when they were to be read.
+    private final Meter mtrPrefetchHit;
+    private final Meter mtrPrefetchMiss;
+    // time spent by readers waiting on the storage
+    private final Timer tmrFetchStall;
+
+    public ReadAhead(int depth, long budgetBytes, int rangeSize) {
+        this(depth, budgetBytes, rangeSize, new Meter(), new Meter(), new Timer());
+    }
+
+    public ReadAhead(int depth, long budgetBytes, int rangeSize, Meter mtrPrefetchHit, Meter mtrPrefetchMiss, Timer tmrFetchStall) {
+        if(depth < 0 || budgetBytes < 0 || rangeSize <= 0) {
+            throw new IllegalArgumentException("depth and budget cannot be negative and range size has to be positive");
+        }
+        this.depth = depth;
+        this.budgetBytes = budgetBytes;
+        this.rangeSize = rangeSize;
+        this.mtrPrefetchHit = mtrPrefetchHit;
+        this.mtrPrefetchMiss = mtrPrefetchMiss;
+        this.tmrFetchStall = tmrFetchStall;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public int getRangeSize() {
+        return rangeSize;
+    }
+
+    /**
+     * @param fetchSize size in bytes of each fetch, 0 if not known yet
+     * @return number of fetches to keep in flight ahead of the one being read. While the size is not known, a single fetch is issued
+     * ahead.
+     */
+    int fetchesAhead(long fetchSize) {
+        if(depth == 0) {
+            return 0;
+        }
+        if(fetchSize <= 0) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(depth, budgetBytes / fetchSize));
+    }
+
+    public Meter getMtrPrefetchHit() {
+        return mtrPrefetchHit;
+    }
+
+    public Meter getMtrPrefetchMiss() {
+        return mtrPrefetchMiss;
+    }
+
+    public Timer getTmrFetchStall() {
+        return tmrFetchStall;
+    }
+}
@@ -1,7 +1,10 @@
 package fk.prof.storage.buffer;
 
+import com.codahale.metrics.Timer;
+import com.google.common.io.CountingInputStream;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.storage.FileNamingStrategy;
+import fk.prof.storage.MultipartAsyncStorage;
 import fk.prof.storage.ObjectNotFoundException;
 import fk.prof.storage.StorageException;
 import org.slf4j.Logger;
@@ -11,6 +14,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Exchanger;
 import java.util.concurrent.ExecutionException;
@@ -19,8 +24,15 @@ import java.util.concurrent.Future;
 /**
  * InputStream implementation which is backed by a {@link AsyncStorage} to fetch content
  * from a location. This impl has a notion of file parts i.e. the complete file is broken
- * into multiple parts. When it finishes reading from part 'k' it requests for the next part 'k+1'.
+ * into multiple parts. Parts are read in order, with the next few parts being fetched ahead
+ * as per {@link ReadAhead} while the current one is being read.
  * Any exception thrown by the {@link AsyncStorage} is thrown back to the user as IOException.
+ * <p>
+ * If the storage is a {@link MultipartAsyncStorage}, every part is fetched in ranges of {@link ReadAhead#getRangeSize()} bytes instead.
+ * Parts written as a single object by multipart upload are fetched this way in parallel, while files written as multiple parts remain
+ * readable. Length of the next part is looked up ahead as well, so read-ahead is not interrupted at the boundary of parts.
+ * <p>
+ * When the stream is closed, ranges and lengths being fetched are cancelled, while parts being fetched are closed once fetched.
  *
  * @see StorageBackedOutputStream
  * @author gaurav.ashok
@@ -31,24 +43,40 @@ public class StorageBackedInputStream extends InputStream {
 
     private AsyncStorage storage;
     private FileNamingStrategy fileNameStrategy;
+    private final ReadAhead readAhead;
 
     private InputStream buf;
     private int part;
 
     private boolean eof;
 
-    /* variable to hold a future object in case the current thread gets interrupted while waiting on the
-     * storage.
+    /* fetches in order of their content, head being the one to be read next. A fetch stays in the queue in case the current
+     * thread gets interrupted while waiting on the storage.
      */
-    private CompletableFuture<InputStream> futureInputStream;
+    private final Deque<Fetch> fetches = new ArrayDeque<>();
+
+    // size of the largest part read so far, to keep parts fetched ahead within budget
+    private long largestPartSize;
+
+    // state of the part being fetched in ranges, when fetched in ranges
+    private CompletableFuture<Long> futurePartLength;
+    private int partsFound;
+    private boolean noMoreParts;
+    private String partFileName;
+    private long partLength;
+    private long nextRangeOffset;
 
     public StorageBackedInputStream(AsyncStorage storage, FileNamingStrategy fileNameStrategy) {
+        this(storage, fileNameStrategy, ReadAhead.DEFAULT);
+    }
+
+    public StorageBackedInputStream(AsyncStorage storage, FileNamingStrategy fileNameStrategy, ReadAhead readAhead) {
         this.storage = storage;
         this.fileNameStrategy = fileNameStrategy;
+        this.readAhead = readAhead;
 
         this.part = 0;
         this.eof = false;
-        this.futureInputStream = null;
     }
 
     @Override
@@ -61,7 +89,15 @@ public class StorageBackedInputStream extends InputStream {
             return -1;
         }
 
-        return buf.read();
+        int c;
+        // move on to the next part if current one is exhausted
+        while((c = buf.read()) == -1) {
+            fetchAndSwapBuffer();
+            if(eof) {
+                return -1;
+            }
+        }
+        return c;
     }
 
     @Override
@@ -107,30 +143,33 @@ public class StorageBackedInputStream extends InputStream {
     }
 
     private void fetchAndSwapBuffer() throws IOException {
-        String nextFileName = fileNameStrategy.getFileName(part);
+        if(storage instanceof MultipartAsyncStorage) {
+            fetchAndSwapRange();
+            return;
+        }
+
         if(buf != null) {
+            largestPartSize = Math.max(largestPartSize, ((CountingInputStream) buf).getCount());
             buf.close();
         }
         buf = null;
 
-        if(futureInputStream == null) {
-            futureInputStream = storage.fetchAsync(nextFileName);
-        }
-
+        fetchParts();
+        String nextFileName = fileNameStrategy.getFileName(part);
         try {
-            buf = futureInputStream.get();
+            buf = new CountingInputStream(await(fetches.peek()));
+            fetches.poll();
             part++;
-            futureInputStream = null;
+            fetchParts();
         }
         catch (InterruptedException e) {
             throw new InterruptedIOException(e.getMessage());
         }
         catch (ExecutionException e) {
             if(e.getCause() instanceof ObjectNotFoundException) {
-                // mark eof
+                // mark eof. parts fetched ahead of this one do not exist either.
                 eof = true;
-                buf = null;
-                futureInputStream = null;
+                cancelFetches();
 
                 // specific check to throw only in case the first part is not available.
                 if(part == 0) {
@@ -146,6 +185,144 @@ public class StorageBackedInputStream extends InputStream {
         }
     }
 
+    private void fetchParts() {
+        int nextPart = part + fetches.size();
+        while(fetches.size() < readAhead.fetchesAhead(largestPartSize) + (buf == null ? 1 : 0)) {
+            // no point fetching beyond a part known to be missing
+            if(!fetches.isEmpty() && fetches.peekLast().future.isCompletedExceptionally()) {
+                return;
+            }
+            addFetch(storage.fetchAsync(fileNameStrategy.getFileName(nextPart++)), false);
+        }
+    }
+
+    private void fetchAndSwapRange() throws IOException {
+        if(buf != null) {
+            buf.close();
+        }
+        buf = null;
+
+        MultipartAsyncStorage rangedStorage = (MultipartAsyncStorage) storage;
+        fetchRanges(rangedStorage);
+        while(fetches.isEmpty()) {
+            if(noMoreParts) {
+                eof = true;
+                // specific check to throw only in case the first part is not available.
+                if(partsFound == 0) {
+                    final String msg = "File: " + fileNameStrategy.getFileName(0) + " could not be found";
+                    LOGGER.error(msg);
+                    throw new FileNotFoundException(msg);
+                }
+                return;
+            }
+            resolvePartLength(rangedStorage, true);
+            fetchRanges(rangedStorage);
+        }
+
+        try {
+            buf = await(fetches.peek());
+            fetches.poll();
+            fetchRanges(rangedStorage);
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+        catch (ExecutionException e) {
+            LOGGER.error("Unexpected error while fetching range of file: {}", partFileName, e);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Issues ranges of the current part, moving on to next parts as their lengths get known, till there are enough ranges in flight.
+     */
+    private void fetchRanges(MultipartAsyncStorage rangedStorage) throws IOException {
+        int maxFetches = readAhead.fetchesAhead(readAhead.getRangeSize()) + (buf == null ? 1 : 0);
+        while(fetches.size() < maxFetches) {
+            if(nextRangeOffset < partLength) {
+                long length = Math.min(readAhead.getRangeSize(), partLength - nextRangeOffset);
+                addFetch(rangedStorage.fetchAsync(partFileName, nextRangeOffset, length), true);
+                nextRangeOffset += length;
+            }
+            else if(noMoreParts || !resolvePartLength(rangedStorage, false)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Looks up the length of the next part, making it the part to fetch ranges from.
+     * @param wait whether to wait for the lookup to complete
+     * @return false if the lookup is not complete yet
+     */
+    private boolean resolvePartLength(MultipartAsyncStorage rangedStorage, boolean wait) throws IOException {
+        String nextFileName = fileNameStrategy.getFileName(partsFound);
+        if(futurePartLength == null) {
+            futurePartLength = rangedStorage.lengthAsync(nextFileName);
+        }
+        if(!wait && !futurePartLength.isDone()) {
+            return false;
+        }
+
+        try {
+            partLength = awaitStorage(futurePartLength);
+            partFileName = nextFileName;
+            nextRangeOffset = 0;
+            partsFound++;
+            futurePartLength = null;
+            return true;
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof ObjectNotFoundException) {
+                futurePartLength = null;
+                noMoreParts = true;
+                return true;
+            }
+            // left as is, so that the failure is thrown again if the lookup is waited upon
+            if(!wait) {
+                return false;
+            }
+            LOGGER.error("Unexpected error while fetching length of file: {}", nextFileName, e);
+            throw new IOException(e);
+        }
+    }
+
+    private void addFetch(CompletableFuture<InputStream> future, boolean cancellable) {
+        // anything fetched while there is content yet to be read, is fetched ahead
+        fetches.add(new Fetch(future, buf != null || !fetches.isEmpty(), cancellable));
+    }
+
+    private InputStream await(Fetch fetch) throws InterruptedException, ExecutionException {
+        if(fetch.ahead && !fetch.counted) {
+            fetch.counted = true;
+            (fetch.future.isDone() ? readAhead.getMtrPrefetchHit() : readAhead.getMtrPrefetchMiss()).mark();
+        }
+        return awaitStorage(fetch.future);
+    }
+
+    private <T> T awaitStorage(CompletableFuture<T> future) throws InterruptedException, ExecutionException {
+        if(future.isDone()) {
+            return future.get();
+        }
+        try (Timer.Context ignored = readAhead.getTmrFetchStall().time()) {
+            return future.get();
+        }
+    }
+
+    private void cancelFetches() {
+        for(Fetch fetch: fetches) {
+            cancelOrClose(fetch);
+        }
+        fetches.clear();
+        if(futurePartLength != null) {
+            futurePartLength.cancel(false);
+            futurePartLength = null;
+        }
+    }
+
     @Override
     public int available() throws IOException {
         if(buf == null) {
@@ -167,17 +344,39 @@ public class StorageBackedInputStream extends InputStream {
         if(buf != null) {
             buf.close();
         }
-        if(futureInputStream != null) {
-            futureInputStream.whenCompleteAsync((is, error) -> {
-                if(is != null) {
-                    try {
-                        is.close();
-                    }
-                    catch (IOException e) {
-                        LOGGER.error("couldn't close future stream", e);
-                    }
+        cancelFetches();
+    }
+
+    /**
+     * Cancels the fetch if it is cancellable and not complete yet. Otherwise closes the fetched content whenever it is available.
+     */
+    private static void cancelOrClose(Fetch fetch) {
+        if(fetch.cancellable && fetch.future.cancel(false)) {
+            return;
+        }
+        fetch.future.whenCompleteAsync((is, error) -> {
+            if(is != null) {
+                try {
+                    is.close();
                 }
-            });
+                catch (IOException e) {
+                    LOGGER.error("couldn't close future stream", e);
+                }
+            }
+        });
+    }
+
+    private static class Fetch {
+        final CompletableFuture<InputStream> future;
+        final boolean ahead;
+        // content of a cancelled fetch should not need to be released
+        final boolean cancellable;
+        boolean counted;
+
+        Fetch(CompletableFuture<InputStream> future, boolean ahead, boolean cancellable) {
+            this.future = future;
+            this.ahead = ahead;
+            this.cancellable = cancellable;
         }
     }
-}
\ No newline at end of file
+}
@@ -6,6 +6,7 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.storage.FileNamingStrategy;
+import fk.prof.storage.MultipartAsyncStorage;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,12 +14,28 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
 
 /**
  * OutputStream implementation which is backed by a {@link AsyncStorage}.
  * Every {@code partSize} chunk of the bytes will be written to the storage.
  * The target path of the chunk will be decided by the {@link FileNamingStrategy}.
+ * <p>
+ * Chunks are buffered in buffers borrowed from the pool as and when needed, so a chunk can span many small buffers. Content smaller
+ * than {@code partSize} then holds only as many buffers as it needs. Buffers are returned to the pool as soon as they are read while
+ * being written to the storage.
+ * <p>
+ * If the storage is a {@link MultipartAsyncStorage} and buffers are large enough to be parts, chunks are instead uploaded as parts of
+ * a single object at the path of the first chunk, as soon as they are filled. Content which fits in a single buffer is stored without
+ * a multipart upload. Either way readers which fetch chunks one after the other read the object as the only chunk.
+ * <p>
+ * Streams sharing a pool can be given permits to buffer a part, shared among them as well. A permit is acquired before the first buffer
+ * of a part is borrowed and released once the part is taken for storing. With no more permits than parts which fit in the pool, streams
+ * buffering a part can always complete it, instead of all of them waiting on each other for the buffers they hold.
  *
  * @see StorageBackedInputStream
  * @author gaurav.ashok
@@ -31,15 +48,26 @@ public class StorageBackedOutputStream extends OutputStream {
     private FileNamingStrategy fileNameStrategy;
     private GenericObjectPool<ByteBuffer> bufferPool;
 
+    private int partSize;
+
     private int part;
+    // buffers holding the current chunk, buf being the last of them
+    private final List<ByteBuffer> partBuffers = new ArrayList<>();
+    private int bytesInPartBuffers;
     private ByteBuffer buf;
+    private MultipartUpload multipartUpload;
+
+    private final Semaphore partPermits;
+    private boolean partPermitHeld = false;
 
     private final Histogram histBytesWritten;
     private final Meter mtrWriteFailure;
     private final Timer tmrBuffPoolBorrow;
     private final Counter ctrBuffPoolFailures;
+    private final Counter ctrBuffPoolBytesUsed;
 
     /**
+     * Every buffer borrowed from the pool is stored as a chunk.
      * @param bufferPool pool from which the buffer will be borrowed for buffering.
      * @param storage AsyncStorage object.
      * @param fileNameStrategy decides the fileName from the part no.
@@ -51,16 +79,61 @@ public class StorageBackedOutputStream extends OutputStream {
                                      Meter mtrWriteFailure,
                                      Timer tmrBuffPoolBorrow,
                                      Counter ctrBuffPoolFailures) {
+        this(bufferPool, 0, storage, fileNameStrategy, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures, new Counter());
+    }
+
+    /**
+     * @param bufferPool pool from which the buffers will be borrowed for buffering.
+     * @param partSize size in bytes of the chunks to store. 0 to store every buffer as a chunk.
+     * @param storage AsyncStorage object.
+     * @param fileNameStrategy decides the fileName from the part no.
+     * @param ctrBuffPoolBytesUsed counts bytes held in buffers filled with content, until the buffers are returned to the pool.
+     */
+    public StorageBackedOutputStream(GenericObjectPool<ByteBuffer> bufferPool,
+                                     int partSize,
+                                     AsyncStorage storage,
+                                     FileNamingStrategy fileNameStrategy,
+                                     Histogram histBytesWritten,
+                                     Meter mtrWriteFailure,
+                                     Timer tmrBuffPoolBorrow,
+                                     Counter ctrBuffPoolFailures,
+                                     Counter ctrBuffPoolBytesUsed) {
+        this(bufferPool, partSize, null, storage, fileNameStrategy, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures,
+            ctrBuffPoolBytesUsed);
+    }
+
+    /**
+     * @param bufferPool pool from which the buffers will be borrowed for buffering.
+     * @param partSize size in bytes of the chunks to store. 0 to store every buffer as a chunk.
+     * @param partPermits permits to buffer a chunk, shared by streams sharing the pool. Should not be more than the chunks which fit in
+     *                    the pool. null if chunks are buffered without permits.
+     * @param storage AsyncStorage object.
+     * @param fileNameStrategy decides the fileName from the part no.
+     * @param ctrBuffPoolBytesUsed counts bytes held in buffers filled with content, until the buffers are returned to the pool.
+     */
+    public StorageBackedOutputStream(GenericObjectPool<ByteBuffer> bufferPool,
+                                     int partSize,
+                                     Semaphore partPermits,
+                                     AsyncStorage storage,
+                                     FileNamingStrategy fileNameStrategy,
+                                     Histogram histBytesWritten,
+                                     Meter mtrWriteFailure,
+                                     Timer tmrBuffPoolBorrow,
+                                     Counter ctrBuffPoolFailures,
+                                     Counter ctrBuffPoolBytesUsed) {
         this.storage = storage;
         this.fileNameStrategy = fileNameStrategy;
         this.part = 0;
         this.bufferPool = bufferPool;
+        this.partSize = partSize;
+        this.partPermits = partPermits;
         this.buf = null;
 
         this.histBytesWritten = histBytesWritten;
         this.mtrWriteFailure = mtrWriteFailure;
         this.tmrBuffPoolBorrow = tmrBuffPoolBorrow;
         this.ctrBuffPoolFailures = ctrBuffPoolFailures;
+        this.ctrBuffPoolBytesUsed = ctrBuffPoolBytesUsed;
     }
 
     @Override
@@ -100,8 +173,19 @@ public class StorageBackedOutputStream extends OutputStream {
 
     private void storeAndSwapBuffer() throws IOException {
         if(buf != null) {
-            writeBufToStorage();
-            ++part;
+            // buffer is full
+            bytesInPartBuffers += buf.position();
+            ctrBuffPoolBytesUsed.inc(buf.position());
+
+            if(bytesInPartBuffers >= partSize) {
+                if(canUploadInParts()) {
+                    uploadBufAsPart();
+                }
+                else {
+                    writeBufToStorage();
+                }
+                ++part;
+            }
         }
 
         try {
@@ -110,8 +194,22 @@ public class StorageBackedOutputStream extends OutputStream {
                 if(LOGGER.isDebugEnabled()) {
                     LOGGER.debug("acquiring buffer for file: {}. bufferpool.active: {}", fileNameStrategy.getFileName(0), bufferPool.getNumActive());
                 }
+                if(partBuffers.isEmpty()) {
+                    acquirePartPermit();
+                }
                 buf = bufferPool.borrowObject();
             }
+            if(partSize <= 0) {
+                partSize = buf.capacity();
+            }
+            // buffer spans till the end of chunk at most
+            buf.limit(Math.min(buf.capacity(), partSize - bytesInPartBuffers));
+            partBuffers.add(buf);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ctrBuffPoolFailures.inc();
+            throw new IOException("Interrupted while waiting for permit to buffer part", e);
         }
         catch (NoSuchElementException | IllegalStateException e) {
             ctrBuffPoolFailures.inc();
@@ -134,24 +232,72 @@ public class StorageBackedOutputStream extends OutputStream {
     @Override
     public void close() throws IOException {
         if(buf != null) {
-            if(buf.position() > 0) {
-                writeBufToStorage();
-            }
-            else {
+            if(buf.position() == 0) {
                 if(LOGGER.isDebugEnabled()) {
                     LOGGER.debug("returning buffer on close: {}", fileNameStrategy.getFileName(0));
                 }
+                partBuffers.remove(partBuffers.size() - 1);
                 bufferPool.returnObject(buf);
             }
+            else {
+                bytesInPartBuffers += buf.position();
+                ctrBuffPoolBytesUsed.inc(buf.position());
+            }
+
+            if(bytesInPartBuffers > 0) {
+                if(multipartUpload != null) {
+                    uploadBufAsPart();
+                }
+                else {
+                    writeBufToStorage();
+                }
+            }
+            buf = null;
+        }
+        else if(!partBuffers.isEmpty()) {
+            // borrow of next buffer failed, content buffered so far cannot be stored
+            takePartBuffers().close();
+        }
+        // permit acquired for a buffer which was returned unused, or for a borrow which failed
+        releasePartPermit();
+        if(multipartUpload != null) {
+            multipartUpload.complete();
+            multipartUpload = null;
         }
     }
 
+    private void acquirePartPermit() throws InterruptedException {
+        if(partPermits != null && !partPermitHeld) {
+            partPermits.acquire();
+            partPermitHeld = true;
+        }
+    }
+
+    private void releasePartPermit() {
+        if(partPermitHeld) {
+            partPermits.release();
+            partPermitHeld = false;
+        }
+    }
+
+    private boolean canUploadInParts() {
+        return multipartUpload != null
+            || (storage instanceof MultipartAsyncStorage && partSize >= ((MultipartAsyncStorage) storage).getMinPartSize());
+    }
+
+    private void uploadBufAsPart() {
+        if(multipartUpload == null) {
+            multipartUpload = new MultipartUpload((MultipartAsyncStorage) storage, fileNameStrategy.getFileName(0));
+        }
+
+        long contentLength = bytesInPartBuffers;
+        multipartUpload.uploadPart(takePartBuffers(), contentLength);
+    }
+
     private void writeBufToStorage() {
-        long contentLength = buf.position();
-        // prepare for reading
-        buf.flip();
+        long contentLength = bytesInPartBuffers;
         storage.storeAsync(fileNameStrategy.getFileName(part),
-            new ByteBufferInputStream(bufferPool, buf), contentLength)
+            takePartBuffers(), contentLength)
             .whenCompleteAsync((v, th) -> {
                 if(th != null) {
                     this.mtrWriteFailure.mark();
@@ -161,4 +307,77 @@ public class StorageBackedOutputStream extends OutputStream {
                 }
             });
     }
-}
\ No newline at end of file
+
+    /**
+     * @return stream over the content of the current chunk, which returns buffers to the pool as they are read
+     */
+    private ByteBufferInputStream takePartBuffers() {
+        List<ByteBuffer> buffers = new ArrayList<>(partBuffers);
+        for(ByteBuffer buffer: buffers) {
+            // prepare for reading
+            buffer.flip();
+        }
+        partBuffers.clear();
+        bytesInPartBuffers = 0;
+        // buffers of the part are returned to the pool without any more borrows by this stream
+        releasePartPermit();
+        return new ByteBufferInputStream(bufferPool, buffers, ctrBuffPoolBytesUsed);
+    }
+
+    /**
+     * Upload of chunks as parts of a single object. Parts are uploaded as soon as the upload is initiated, without waiting on each other.
+     * The upload is completed once all parts are uploaded, or aborted if any of them fails.
+     */
+    private class MultipartUpload {
+        private final MultipartAsyncStorage storage;
+        private final String path;
+        private final CompletableFuture<String> uploadId;
+        private final List<CompletableFuture<String>> partTags = new ArrayList<>();
+
+        MultipartUpload(MultipartAsyncStorage storage, String path) {
+            this.storage = storage;
+            this.path = path;
+            this.uploadId = storage.initiateMultipartAsync(path);
+        }
+
+        void uploadPart(ByteBufferInputStream content, long contentLength) {
+            int partNumber = partTags.size() + 1;
+            CompletableFuture<String> partTag = uploadId.thenCompose(id -> storage.uploadPartAsync(path, id, partNumber, content, contentLength));
+            partTag.whenComplete((tag, th) -> {
+                if(th != null) {
+                    // part may have failed even before reaching storage, buffer has to be returned here then
+                    try {
+                        content.close();
+                    }
+                    catch (IOException e) {
+                        LOGGER.error("Failed to close part: {} of file: {}", partNumber, path, e);
+                    }
+                }
+                else {
+                    histBytesWritten.update(contentLength);
+                }
+            });
+            partTags.add(partTag);
+        }
+
+        void complete() {
+            CompletableFuture.allOf(partTags.toArray(new CompletableFuture[partTags.size()]))
+                .thenCompose(v -> {
+                    List<String> tags = new ArrayList<>(partTags.size());
+                    for(CompletableFuture<String> partTag: partTags) {
+                        tags.add(partTag.join());
+                    }
+                    return storage.completeMultipartAsync(path, uploadId.join(), tags);
+                })
+                .whenComplete((v, th) -> {
+                    if(th != null) {
+                        mtrWriteFailure.mark();
+                        LOGGER.error("S3 multipart upload failed for file_strategy=" + fileNameStrategy, th);
+                        if(!uploadId.isCompletedExceptionally()) {
+                            storage.abortMultipartAsync(path, uploadId.join());
+                        }
+                    }
+                });
+        }
+    }
+}
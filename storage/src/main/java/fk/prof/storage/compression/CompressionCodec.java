@@ -0,0 +1,225 @@
+package fk.prof.storage.compression;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import fk.prof.storage.StreamTransformer;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression codecs for stored files. Streams compressed by a codec start with a header identifying the codec, so that readers can
+ * detect it with {@link #detect(PushbackInputStream)}. Gzip streams are self describing and are written without the header, which keeps
+ * files written before codecs were introduced, and gzip files written now, readable by all readers.
+ * <p>
+ * Header is {@link #HEADER_MAGIC} followed by a byte holding the id of the codec.
+ */
+public enum CompressionCodec {
+
+    GZIP("gzip", 1) {
+        @Override
+        protected OutputStream encode(OutputStream out) throws IOException {
+            return StreamTransformer.zip(out);
+        }
+
+        @Override
+        protected InputStream decode(InputStream in) throws IOException {
+            return StreamTransformer.unzip(in);
+        }
+    },
+
+    /**
+     * zlib format at the fastest compression level. Trades compression ratio for considerably less cpu than gzip when compressing.
+     */
+    DEFLATE("deflate", 2) {
+        @Override
+        protected OutputStream encode(OutputStream out) throws IOException {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            return new DeflaterOutputStream(out, deflater, StreamTransformer.DEFAULT_PIPE_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        // deflater is not owned by the stream, release its native memory here
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        protected InputStream decode(InputStream in) throws IOException {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, StreamTransformer.DEFAULT_PIPE_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    },
+
+    NONE("none", 3) {
+        @Override
+        protected OutputStream encode(OutputStream out) throws IOException {
+            return out;
+        }
+
+        @Override
+        protected InputStream decode(InputStream in) throws IOException {
+            return in;
+        }
+    },
+
+    /**
+     * LZ4 frame format with independent blocks of 64KB. Fastest of the codecs in both directions, at a lower compression ratio than gzip.
+     */
+    LZ4("lz4", 4) {
+        @Override
+        protected OutputStream encode(OutputStream out) throws IOException {
+            return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+        }
+
+        @Override
+        protected InputStream decode(InputStream in) throws IOException {
+            return new LZ4FrameInputStream(in);
+        }
+    },
+
+    /**
+     * Zstandard at its default level. Compression ratio close to gzip at a fraction of its cpu.
+     */
+    ZSTD("zstd", 5) {
+        @Override
+        protected OutputStream encode(OutputStream out) throws IOException {
+            return new ZstdOutputStream(out);
+        }
+
+        @Override
+        protected InputStream decode(InputStream in) throws IOException {
+            return new ZstdInputStream(in);
+        }
+    };
+
+    public static final int HEADER_MAGIC = 0xFCC5;
+    public static final int HEADER_LENGTH = 3;
+
+    private final String name;
+    private final int id;
+
+    CompressionCodec(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Writes the header, unless codec is gzip, and returns a stream compressing whatever is written to it. Closing the returned stream
+     * closes the underlying stream.
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        if(this != GZIP) {
+            out.write(HEADER_MAGIC >>> 8);
+            out.write(HEADER_MAGIC & 0xFF);
+            out.write(id);
+        }
+        return encode(out);
+    }
+
+    /**
+     * Reads the header, unless codec is gzip, and returns a stream decompressing the rest of the underlying stream.
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        if(this != GZIP) {
+            byte[] header = new byte[HEADER_LENGTH];
+            if(readHeader(in, header) != HEADER_LENGTH || fromHeader(header) != this) {
+                throw new IOException("Expected header of " + name + " codec");
+            }
+        }
+        return decode(in);
+    }
+
+    public byte[] compress(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream cout = compress(out)) {
+            cout.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    protected abstract OutputStream encode(OutputStream out) throws IOException;
+
+    protected abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * @throws IllegalArgumentException if there is no codec with the name
+     */
+    public static CompressionCodec forName(String name) {
+        for(CompressionCodec codec: values()) {
+            if(codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression codec: " + name);
+    }
+
+    /**
+     * Peeks at the start of the stream to detect the codec it was compressed with. Nothing is consumed from the stream.
+     * @param in stream with a pushback buffer of at least {@link #HEADER_LENGTH} bytes
+     * @return codec or null if the stream is not compressed by any of the codecs
+     */
+    public static CompressionCodec detect(PushbackInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int read = readHeader(in, header);
+        in.unread(header, 0, read);
+
+        if(read >= 2 && (Byte.toUnsignedInt(header[0]) | (Byte.toUnsignedInt(header[1]) << 8)) == GZIPInputStream.GZIP_MAGIC) {
+            return GZIP;
+        }
+        return read == HEADER_LENGTH ? fromHeader(header) : null;
+    }
+
+    private static CompressionCodec fromHeader(byte[] header) {
+        if(((Byte.toUnsignedInt(header[0]) << 8) | Byte.toUnsignedInt(header[1])) != HEADER_MAGIC) {
+            return null;
+        }
+        for(CompressionCodec codec: values()) {
+            if(codec != GZIP && codec.id == Byte.toUnsignedInt(header[2])) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static int readHeader(InputStream in, byte[] header) throws IOException {
+        int read = 0;
+        while(read < header.length) {
+            int count = in.read(header, read, header.length - read);
+            if(count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+}
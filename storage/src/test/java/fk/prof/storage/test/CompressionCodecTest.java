@@ -0,0 +1,96 @@
+package fk.prof.storage.test;
+
+import fk.prof.storage.compression.CompressionCodec;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests round trip and detection of {@link CompressionCodec}s.
+ */
+public class CompressionCodecTest {
+
+    private final byte[] content = content(100000);
+
+    @Test
+    public void testCompress_shouldDecompressToSameBytesWithDetectedCodec() throws IOException {
+        for(CompressionCodec codec: CompressionCodec.values()) {
+            PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(codec.compress(content)), CompressionCodec.HEADER_LENGTH);
+
+            assertEquals(codec, CompressionCodec.detect(in));
+            try (InputStream din = codec.decompress(in)) {
+                assertArrayEquals(codec.getName(), content, readAll(din));
+            }
+        }
+    }
+
+    @Test
+    public void testDetect_shouldDetectGzipWrittenWithoutCodecs() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream zout = new GZIPOutputStream(out)) {
+            zout.write(content);
+        }
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(out.toByteArray()), CompressionCodec.HEADER_LENGTH);
+
+        assertEquals(CompressionCodec.GZIP, CompressionCodec.detect(in));
+        assertArrayEquals(content, readAll(CompressionCodec.GZIP.decompress(in)));
+    }
+
+    @Test
+    public void testDetect_shouldNotConsumeStreamOfUnknownFormat() throws IOException {
+        byte[] bytes = new byte[] {(byte) 0xC2, 0x17, 0x01, 0x02};
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(bytes), CompressionCodec.HEADER_LENGTH);
+
+        assertNull(CompressionCodec.detect(in));
+        assertArrayEquals(bytes, readAll(in));
+
+        PushbackInputStream shortIn = new PushbackInputStream(new ByteArrayInputStream(new byte[] {0x01}), CompressionCodec.HEADER_LENGTH);
+        assertNull(CompressionCodec.detect(shortIn));
+        assertEquals(0x01, shortIn.read());
+    }
+
+    @Test
+    public void testForName() {
+        assertEquals(CompressionCodec.GZIP, CompressionCodec.forName("gzip"));
+        assertEquals(CompressionCodec.DEFLATE, CompressionCodec.forName("deflate"));
+        assertEquals(CompressionCodec.NONE, CompressionCodec.forName("none"));
+        assertEquals(CompressionCodec.LZ4, CompressionCodec.forName("lz4"));
+        assertEquals(CompressionCodec.ZSTD, CompressionCodec.forName("zstd"));
+        try {
+            CompressionCodec.forName("zip");
+            fail("unknown codec should not be resolved");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] content(int size) {
+        // compressible content: few distinct words
+        String[] words = {"java.lang.Thread.run ", "com.example.Service.handle ", "io.netty.Channel.read ", "sun.misc.Unsafe.park "};
+        Random random = new Random(7);
+        StringBuilder builder = new StringBuilder(size);
+        while(builder.length() < size) {
+            builder.append(words[random.nextInt(words.length)]);
+        }
+        return builder.substring(0, size).getBytes();
+    }
+}
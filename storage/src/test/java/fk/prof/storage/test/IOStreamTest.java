@@ -7,7 +7,9 @@ import com.codahale.metrics.Timer;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.storage.FileNamingStrategy;
 import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.buffer.ByteBufferInputStream;
 import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.buffer.ReadAhead;
 import fk.prof.storage.buffer.StorageBackedInputStream;
 import fk.prof.storage.buffer.StorageBackedOutputStream;
 import org.apache.commons.pool2.impl.GenericObjectPool;
@@ -21,6 +23,8 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.*;
 
 import static org.junit.Assert.*;
@@ -84,6 +88,120 @@ public class IOStreamTest {
         }
     }
 
+    @Test
+    public void testOutputStream_shouldBufferChunksInSmallerBuffersOfPool() throws Exception {
+        GenericObjectPool<ByteBuffer> smallBufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(5, false), poolConfig);
+        Counter ctrBytesUsed = new Counter();
+        OutputStream os = new StorageBackedOutputStream(smallBufferPool, partSize, storage, fileName, mock(Histogram.class), mock(Meter.class),
+            mock(Timer.class), mock(Counter.class), ctrBytesUsed);
+
+        // content smaller than a chunk holds only the buffers it needs
+        os.write(content.getBytes(), 0, 7);
+        assertEquals(2, smallBufferPool.getNumActive());
+
+        os.write(content.getBytes(), 7, contentSize - 7);
+        os.close();
+
+        verify(storage, times(contentSize/partSize)).storeAsync(any(), any(), eq(13L));
+        verify(storage, times(1)).storeAsync(any(), any(), eq(5L));
+        for(int i = 0; i <= contentSize/partSize; ++i) {
+            assertEquals(content.substring(i * partSize, Math.min((i + 1) * partSize, contentSize)), storage.writtenContent.get(fileName.getFileName(i)));
+        }
+
+        // all buffers are returned once stored
+        assertEquals(0, smallBufferPool.getNumActive());
+        assertEquals(0, ctrBytesUsed.getCount());
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStreams_shouldWaitForPartPermitInsteadOfBuffersHeldByEachOther() throws Exception {
+        // pool fits a single part of 3 buffers
+        GenericObjectPoolConfig onePartPoolConfig = new GenericObjectPoolConfig();
+        onePartPoolConfig.setMaxTotal(3);
+        GenericObjectPool<ByteBuffer> onePartPool = new GenericObjectPool<>(new ByteBufferPoolFactory(5, false), onePartPoolConfig);
+        Semaphore partPermits = new Semaphore(1);
+        FileNamingStrategy otherFileName = part -> "other_" + part;
+
+        OutputStream first = new StorageBackedOutputStream(onePartPool, partSize, partPermits, storage, fileName, mock(Histogram.class),
+            mock(Meter.class), mock(Timer.class), mock(Counter.class), new Counter());
+        OutputStream second = new StorageBackedOutputStream(onePartPool, partSize, partPermits, storage, otherFileName, mock(Histogram.class),
+            mock(Meter.class), mock(Timer.class), mock(Counter.class), new Counter());
+
+        first.write(content.getBytes(), 0, 7);
+        CompletableFuture<Void> secondWritten = CompletableFuture.runAsync(() -> {
+            try {
+                second.write(content.getBytes(), 0, partSize);
+                second.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // second waits for the permit held by first, without taking any of the buffers first needs to complete its part
+        Thread.sleep(100);
+        assertFalse(secondWritten.isDone());
+        assertEquals(2, onePartPool.getNumActive());
+
+        first.write(content.getBytes(), 7, partSize - 7);
+        first.close();
+        secondWritten.get();
+
+        assertEquals(content.substring(0, partSize), storage.writtenContent.get(fileName.getFileName(0)));
+        assertEquals(content.substring(0, partSize), storage.writtenContent.get(otherFileName.getFileName(0)));
+        assertEquals(0, onePartPool.getNumActive());
+        assertEquals(1, partPermits.availablePermits());
+    }
+
+    @Test
+    public void testOutputStreamClose_shouldReturnBuffersAndPermitIfBorrowFailed() throws Exception {
+        GenericObjectPoolConfig twoBufferPoolConfig = new GenericObjectPoolConfig();
+        twoBufferPoolConfig.setMaxTotal(2);
+        twoBufferPoolConfig.setBlockWhenExhausted(false);
+        GenericObjectPool<ByteBuffer> twoBufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(5, false), twoBufferPoolConfig);
+        Semaphore partPermits = new Semaphore(1);
+
+        OutputStream os = new StorageBackedOutputStream(twoBufferPool, partSize, partPermits, storage, fileName, mock(Histogram.class),
+            mock(Meter.class), mock(Timer.class), mock(Counter.class), new Counter());
+        try {
+            os.write(content.getBytes(), 0, partSize);
+            fail("borrow of third buffer should fail");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        os.close();
+
+        assertEquals(0, twoBufferPool.getNumActive());
+        assertEquals(1, partPermits.availablePermits());
+        assertTrue(storage.writtenContent.isEmpty());
+    }
+
+    @Test
+    public void testByteBufferInputStream_shouldReturnBuffersAsTheyAreRead() throws Exception {
+        GenericObjectPool<ByteBuffer> smallBufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(2, false), poolConfig);
+        ByteBuffer first = smallBufferPool.borrowObject();
+        ByteBuffer second = smallBufferPool.borrowObject();
+        first.put((byte) 1).put((byte) 0xFF).flip();
+        second.put((byte) 3).flip();
+        Counter ctrBytesUsed = new Counter();
+        ctrBytesUsed.inc(3);
+
+        InputStream in = new ByteBufferInputStream(smallBufferPool, Arrays.asList(first, second), ctrBytesUsed);
+        assertEquals(1, in.read());
+        assertEquals(0xFF, in.read());
+        assertEquals(2, smallBufferPool.getNumActive());
+
+        assertEquals(3, in.read());
+        assertEquals(1, smallBufferPool.getNumActive());
+        assertEquals(1, ctrBytesUsed.getCount());
+        assertEquals(-1, in.read());
+
+        in.close();
+        assertEquals(0, smallBufferPool.getNumActive());
+        assertEquals(0, ctrBytesUsed.getCount());
+    }
+
     @Test
     public void testInputStream_shouldReadAllContentFromChunkedStorage() throws Exception {
         // init the storage
@@ -95,7 +213,10 @@ public class IOStreamTest {
 
         assertEquals(contentSize, bytesRead);
 
-        verify(storage, times(storage.writtenContent.size())).fetch(any());
+        // parts after the last one may have been fetched ahead, but every part is fetched only once
+        for(int i = 0; i < storage.writtenContent.size(); ++i) {
+            verify(storage, times(1)).fetch(fileName.getFileName(i));
+        }
         // verify the read content
         assertEquals(content, new String(bytes, StandardCharsets.UTF_8));
     }
@@ -148,6 +269,8 @@ public class IOStreamTest {
         InputStream spyContent1 = spy(strAsInputStream(content));
         InputStream spyContent2 = spy(strAsInputStream(content));
 
+        // parts fetched ahead after the first one do not exist
+        when(storage.fetchAsync(argThat(path -> !"0".equals(path) && !"1".equals(path)))).thenReturn(notFound());
         when(storage.fetchAsync("0")).thenReturn(CompletableFuture.completedFuture(spyContent1));
         when(storage.fetchAsync("1")).thenReturn(CompletableFuture.supplyAsync(() -> {
             // create a task, that interrupts main thread while waiting on the delayed response
@@ -190,6 +313,70 @@ public class IOStreamTest {
         verifyNoMoreInteractions(spyContent1, spyContent2);
     }
 
+    @Test(timeout = 5000)
+    public void testInputStream_shouldFetchPartsAheadWithinBudget() throws Exception {
+        AsyncStorage storage = mock(AsyncStorage.class);
+        Map<String, CompletableFuture<InputStream>> parts = new ConcurrentHashMap<>();
+        when(storage.fetchAsync(any())).thenAnswer(invocation -> parts.computeIfAbsent(invocation.getArgument(0), k -> new CompletableFuture<>()));
+
+        // budget of 2 parts
+        ReadAhead readAhead = new ReadAhead(3, 2 * partSize, partSize);
+        byte[] bytes = new byte[partSize];
+        try (InputStream in = new StorageBackedInputStream(storage, fileName, readAhead)) {
+            completePart(parts, 0);
+            assertEquals(content.charAt(0), in.read());
+
+            // size of parts is not known yet, so only the next part is fetched ahead
+            verify(storage).fetchAsync("1");
+            verify(storage, never()).fetchAsync("2");
+
+            completePart(parts, 1);
+            assertEquals(partSize - 1, in.read(bytes, 0, partSize - 1));
+            assertEquals(content.charAt(partSize), in.read());
+
+            // 2 parts ahead of the part 1 are within budget
+            verify(storage).fetchAsync("3");
+            verify(storage, never()).fetchAsync("4");
+            assertEquals(1, readAhead.getMtrPrefetchHit().getCount());
+
+            // reader stalls on part 2
+            Executors.newSingleThreadScheduledExecutor().schedule(() -> completePart(parts, 2), 50, TimeUnit.MILLISECONDS);
+            assertEquals(partSize - 1, in.read(bytes, 0, partSize - 1));
+            assertEquals(content.charAt(2 * partSize), in.read());
+
+            assertEquals(1, readAhead.getMtrPrefetchMiss().getCount());
+            assertEquals(1, readAhead.getTmrFetchStall().getCount());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testInputStreamClose_shouldCloseContentOfPartsFetchedAhead() throws Exception {
+        AsyncStorage storage = mock(AsyncStorage.class);
+        CompletableFuture<InputStream> part1 = new CompletableFuture<>();
+        when(storage.fetchAsync("0")).thenReturn(CompletableFuture.completedFuture(strAsInputStream(content)));
+        when(storage.fetchAsync("1")).thenReturn(part1);
+
+        InputStream in = new StorageBackedInputStream(storage, fileName);
+        in.read();
+        in.close();
+
+        InputStream spyContent = spy(strAsInputStream(content));
+        part1.complete(spyContent);
+        verify(spyContent, timeout(1000)).close();
+    }
+
+    private void completePart(Map<String, CompletableFuture<InputStream>> parts, int part) {
+        String name = fileName.getFileName(part);
+        parts.computeIfAbsent(name, k -> new CompletableFuture<>())
+            .complete(strAsInputStream(content.substring(part * partSize, (part + 1) * partSize)));
+    }
+
+    private CompletableFuture<InputStream> notFound() {
+        CompletableFuture<InputStream> future = new CompletableFuture<>();
+        future.completeExceptionally(new ObjectNotFoundException("not found"));
+        return future;
+    }
+
     private void initStorage() {
         for(int i = 0; i < contentSize/partSize; ++i) {
             String chunkedContent = content.substring(i * partSize, (i + 2) * partSize > contentSize ? contentSize : (i + 1) * partSize);
@@ -0,0 +1,163 @@
+package fk.prof.storage.test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import fk.prof.storage.FileNamingStrategy;
+import fk.prof.storage.LocalFileAsyncStorage;
+import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.StorageException;
+import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.buffer.StorageBackedInputStream;
+import fk.prof.storage.buffer.StorageBackedOutputStream;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests {@link LocalFileAsyncStorage} against a temporary directory.
+ */
+public class LocalFileAsyncStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executorService;
+    private LocalFileAsyncStorage storage;
+
+    @Before
+    public void setUp() {
+        executorService = Executors.newFixedThreadPool(2);
+        storage = new LocalFileAsyncStorage(folder.getRoot().toPath(), executorService);
+    }
+
+    @After
+    public void tearDown() {
+        executorService.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void testStoreAndFetch_shouldReturnStoredContent() throws Exception {
+        store("profiles/v0001/app/cluster/proc/2017-03-01T07:00:00/0000", "some content");
+
+        assertEquals("some content", fetch("profiles/v0001/app/cluster/proc/2017-03-01T07:00:00/0000"));
+
+        // overwrite
+        store("profiles/v0001/app/cluster/proc/2017-03-01T07:00:00/0000", "other");
+        assertEquals("other", fetch("profiles/v0001/app/cluster/proc/2017-03-01T07:00:00/0000"));
+    }
+
+    @Test(timeout = 5000)
+    public void testFetch_shouldFailWithObjectNotFoundForMissingFile() throws Exception {
+        try {
+            storage.fetchAsync("profiles/missing").get();
+            fail("should have failed");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ObjectNotFoundException);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testStore_shouldNotLeaveFileIfContentIsShort() throws Exception {
+        try {
+            storage.storeAsync("profiles/short", new ByteArrayInputStream(new byte[10]), 20).get();
+            fail("should have failed");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StorageException);
+        }
+
+        assertEquals(0, Files.list(folder.getRoot().toPath().resolve("profiles")).count());
+        assertTrue(storage.listAsync("profiles/", true).get().isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void testList_shouldMirrorS3Listing() throws Exception {
+        store("profiles/v0001/app1/cluster/proc/2017-03-01T07:00:00/0000", "a");
+        store("profiles/v0001/app1/cluster/proc/2017-03-01T07:00:00/0001", "b");
+        store("profiles/v0001/app1/cluster/proc/2017-03-02T07:00:00/0000", "c");
+        store("profiles/v0001/app2/cluster/proc/2017-03-01T07:00:00/0000", "d");
+        store("profiles/v0001/file", "e");
+
+        // non recursive listing has sub directories as prefixes
+        assertEquals(new HashSet<>(Arrays.asList("profiles/v0001/app1/", "profiles/v0001/app2/", "profiles/v0001/file")),
+            storage.listAsync("profiles/v0001/", false).get());
+        assertEquals(new HashSet<>(Arrays.asList("profiles/v0001/app1/", "profiles/v0001/app2/")),
+            storage.listAsync("profiles/v0001/app", false).get());
+
+        // recursive listing with prefix not being a directory
+        assertEquals(new HashSet<>(Arrays.asList("profiles/v0001/app1/cluster/proc/2017-03-01T07:00:00/0000",
+            "profiles/v0001/app1/cluster/proc/2017-03-01T07:00:00/0001")),
+            storage.listAsync("profiles/v0001/app1/cluster/proc/2017-03-01", true).get());
+
+        assertTrue(storage.listAsync("profiles/v0002/", true).get().isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void testIOStreams_shouldReadWhatIsWrittenInParts() throws Exception {
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        GenericObjectPool<ByteBuffer> pool = new GenericObjectPool<>(new ByteBufferPoolFactory(13, true), poolConfig);
+        FileNamingStrategy fileName = part -> String.format("profiles/file/%04d", part);
+
+        byte[] content = new byte[100];
+        for(int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (i * 7);
+        }
+        try (OutputStream out = new StorageBackedOutputStream(pool, storage, fileName, mock(Histogram.class), mock(Meter.class),
+            mock(Timer.class), mock(Counter.class))) {
+            out.write(content);
+        }
+        while(pool.getNumActive() > 0) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(content.length / 13 + 1, storage.listAsync("profiles/file/", false).get().size());
+        try (InputStream in = new StorageBackedInputStream(storage, fileName)) {
+            assertArrayEquals(content, readAll(in));
+        }
+    }
+
+    private void store(String path, String content) throws Exception {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        storage.storeAsync(path, new ByteArrayInputStream(bytes), bytes.length).get();
+    }
+
+    private String fetch(String path) throws Exception {
+        try (InputStream in = storage.fetchAsync(path).get()) {
+            return new String(readAll(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8];
+        int read;
+        while((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
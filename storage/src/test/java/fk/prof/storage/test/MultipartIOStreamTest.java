@@ -0,0 +1,205 @@
+package fk.prof.storage.test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import fk.prof.storage.FileNamingStrategy;
+import fk.prof.storage.StorageException;
+import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.buffer.ReadAhead;
+import fk.prof.storage.buffer.StorageBackedInputStream;
+import fk.prof.storage.buffer.StorageBackedOutputStream;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests {@link StorageBackedOutputStream} and {@link StorageBackedInputStream} with a storage supporting multipart uploads and ranged
+ * fetches.
+ */
+public class MultipartIOStreamTest {
+
+    Util.MultipartStringStorage storage;
+
+    FileNamingStrategy fileName = new Util.TrivialFileNameStrategy();
+
+    final int partSize = 13; // weird size in bytes
+
+    // some content of 200 bytes
+    final String content = "27zu6ozrh553p62j5e598xtioyy8bm83cmulyyev9sgf4jljluk8nb21fjd3g1iul2jefvj03masosngk2zw0rp2xtkb" +
+            "29i9a8swogo98lryqyigeuwsvk76z6qhfhcpkr8agk3fm8m0di591yuetua4x5yiv8itpfl4la9iafk40rapb6uibqpa3lt0t3wujutbx5nl";
+    final int contentSize = content.length();
+
+    GenericObjectPoolConfig poolConfig;
+    GenericObjectPool<ByteBuffer> pool;
+
+    @Before
+    public void setBefore() {
+        storage = spy(new Util.MultipartStringStorage(partSize));
+
+        poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(20);
+        poolConfig.setMaxIdle(20);
+        poolConfig.setMinIdle(0);
+        pool = new GenericObjectPool<>(new ByteBufferPoolFactory(partSize, false), poolConfig);
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream_shouldUploadChunksAsPartsOfSingleObject() throws Exception {
+        try (OutputStream os = newOutputStream()) {
+            os.write(content.getBytes());
+        }
+        awaitBuffersReturned();
+
+        verify(storage, times(1)).initiateMultipartAsync(fileName.getFileName(0));
+        verify(storage, times(contentSize / partSize)).uploadPartAsync(eq(fileName.getFileName(0)), any(), anyInt(), any(), eq(13L));
+        verify(storage, times(1)).uploadPartAsync(eq(fileName.getFileName(0)), any(), eq(contentSize / partSize + 1), any(), eq(5L));
+        verify(storage, never()).storeAsync(any(), any(), anyLong());
+        verify(storage, never()).abortMultipartAsync(any(), any());
+
+        assertEquals(1, storage.writtenContent.size());
+        assertEquals(content, storage.writtenContent.get(fileName.getFileName(0)));
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream_shouldUploadPartsBufferedInSmallerBuffers() throws Exception {
+        pool = new GenericObjectPool<>(new ByteBufferPoolFactory(5, false), poolConfig);
+        try (OutputStream os = new StorageBackedOutputStream(pool, partSize, storage, fileName, mock(Histogram.class), mock(Meter.class),
+            mock(Timer.class), mock(Counter.class), new Counter())) {
+            os.write(content.getBytes());
+        }
+        awaitBuffersReturned();
+
+        verify(storage, times(contentSize / partSize)).uploadPartAsync(eq(fileName.getFileName(0)), any(), anyInt(), any(), eq(13L));
+        assertEquals(content, storage.writtenContent.get(fileName.getFileName(0)));
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream_shouldStoreContentFittingSingleBufferWithoutMultipartUpload() throws Exception {
+        try (OutputStream os = newOutputStream()) {
+            os.write(content.getBytes(), 0, 10);
+        }
+
+        verify(storage, never()).initiateMultipartAsync(any());
+        verify(storage, times(1)).storeAsync(eq(fileName.getFileName(0)), any(), eq(10L));
+        assertEquals(content.substring(0, 10), storage.writtenContent.get(fileName.getFileName(0)));
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream_shouldStoreChunksAsObjectsIfBuffersAreSmallerThanMinPartSize() throws Exception {
+        storage = spy(new Util.MultipartStringStorage(partSize + 1));
+        try (OutputStream os = newOutputStream()) {
+            os.write(content.getBytes());
+        }
+
+        verify(storage, never()).initiateMultipartAsync(any());
+        assertEquals(contentSize / partSize + 1, storage.writtenContent.size());
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream_shouldAbortUploadIfAnyPartFails() throws Exception {
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new StorageException("failed"));
+        doReturn(failed).when(storage).uploadPartAsync(any(), any(), eq(3), any(), anyLong());
+
+        try (OutputStream os = newOutputStream()) {
+            os.write(content.getBytes());
+        }
+        awaitBuffersReturned();
+
+        verify(storage, never()).completeMultipartAsync(any(), any(), any());
+        verify(storage, timeout(1000)).abortMultipartAsync(eq(fileName.getFileName(0)), any());
+        assertTrue(storage.writtenContent.isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void testInputStream_shouldReadObjectInParallelRanges() throws Exception {
+        storage.writtenContent.put(fileName.getFileName(0), content);
+
+        int rangeSize = 7;
+        byte[] bytes = new byte[contentSize + 10];
+        try (InputStream is = new StorageBackedInputStream(storage, fileName, new ReadAhead(2, Long.MAX_VALUE, rangeSize))) {
+            assertEquals(contentSize, readFully(is, bytes));
+        }
+
+        assertEquals(content, new String(bytes, 0, contentSize, StandardCharsets.UTF_8));
+        verify(storage, times((contentSize + rangeSize - 1) / rangeSize)).fetchAsync(eq(fileName.getFileName(0)), anyLong(), anyLong());
+        verify(storage, never()).fetchAsync(any());
+    }
+
+    @Test(timeout = 5000)
+    public void testInputStream_shouldReadFilesStoredAsMultipleObjects() throws Exception {
+        storage = spy(new Util.MultipartStringStorage(partSize + 1));
+        try (OutputStream os = newOutputStream()) {
+            os.write(content.getBytes());
+        }
+
+        byte[] bytes = new byte[contentSize];
+        try (InputStream is = new StorageBackedInputStream(storage, fileName, new ReadAhead(1, Long.MAX_VALUE, 5))) {
+            assertEquals(contentSize, readFully(is, bytes));
+            assertEquals(-1, is.read());
+        }
+        assertEquals(content, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout = 5000)
+    public void testInputStream_shouldThrowFileNotFoundIfFirstPartIsMissing() throws Exception {
+        try (InputStream is = new StorageBackedInputStream(storage, fileName, new ReadAhead(1, Long.MAX_VALUE, 5))) {
+            is.read();
+            fail("should have thrown FileNotFoundException");
+        }
+        catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testInputStream_shouldFetchRangesAheadWithinBudgetAndCancelThemOnClose() throws Exception {
+        storage.writtenContent.put(fileName.getFileName(0), content);
+        CompletableFuture<InputStream> pendingRange = new CompletableFuture<>();
+        doReturn(pendingRange).when(storage).fetchAsync(eq(fileName.getFileName(0)), eq(7L), anyLong());
+
+        // budget of 2 ranges ahead
+        InputStream is = new StorageBackedInputStream(storage, fileName, new ReadAhead(4, 14, 7));
+        assertEquals(content.charAt(0), is.read());
+
+        verify(storage).fetchAsync(fileName.getFileName(0), 14, 7);
+        verify(storage, never()).fetchAsync(fileName.getFileName(0), 21, 7);
+
+        is.close();
+        assertTrue(pendingRange.isCancelled());
+    }
+
+    private OutputStream newOutputStream() {
+        return new StorageBackedOutputStream(pool, storage, fileName, mock(Histogram.class), mock(Meter.class), mock(Timer.class), mock(Counter.class));
+    }
+
+    private void awaitBuffersReturned() throws InterruptedException {
+        while (pool.getNumActive() > 0 || !storage.uploadedParts.isEmpty()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] bytes) throws IOException {
+        int total = 0;
+        int read;
+        while (total < bytes.length && (read = in.read(bytes, total, bytes.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -2,13 +2,16 @@ package fk.prof.storage.test;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
+import fk.prof.storage.ObjectNotFoundException;
 import fk.prof.storage.S3AsyncStorage;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -58,6 +61,44 @@ public class S3StorageTest {
         Assert.assertEquals(2, result.size());
     }
 
+    @Test
+    public void testCompleteMultipart_shouldNumberPartsInOrderOfTags() throws Exception {
+        ExecutorService execSvc = Executors.newSingleThreadExecutor();
+        AmazonS3 client = Mockito.mock(AmazonS3.class);
+
+        S3AsyncStorage storage = new S3AsyncStorage(client, execSvc, 500);
+        storage.completeMultipartAsync(baseS3Bucket + "/file/0000", "upload1", Arrays.asList("tagA", "tagB")).get();
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> request = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(client).completeMultipartUpload(request.capture());
+        Assert.assertEquals(baseS3Bucket, request.getValue().getBucketName());
+        Assert.assertEquals("file/0000", request.getValue().getKey());
+        Assert.assertEquals("upload1", request.getValue().getUploadId());
+        Assert.assertEquals(2, request.getValue().getPartETags().size());
+        Assert.assertEquals(1, request.getValue().getPartETags().get(0).getPartNumber());
+        Assert.assertEquals("tagA", request.getValue().getPartETags().get(0).getETag());
+        Assert.assertEquals(2, request.getValue().getPartETags().get(1).getPartNumber());
+        Assert.assertEquals("tagB", request.getValue().getPartETags().get(1).getETag());
+    }
+
+    @Test
+    public void testLength_shouldFailWithObjectNotFoundForMissingObject() throws Exception {
+        ExecutorService execSvc = Executors.newSingleThreadExecutor();
+        AmazonS3 client = Mockito.mock(AmazonS3.class);
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        Mockito.when(client.getObjectMetadata(baseS3Bucket, "file/0001")).thenThrow(notFound);
+
+        S3AsyncStorage storage = new S3AsyncStorage(client, execSvc, 500);
+        try {
+            storage.lengthAsync(baseS3Bucket + "/file/0001").get();
+            Assert.fail("length of missing object should fail");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ObjectNotFoundException);
+        }
+    }
+
     private void mockTruncatedResponse(AmazonS3 client, int takeTimeInSec) {
         S3ObjectSummary summary1 = getObjSummary("file/1");
         S3ObjectSummary summary2 = getObjSummary("file/2");
@@ -3,6 +3,7 @@ package fk.prof.storage.test;
 import com.amazonaws.util.IOUtils;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.storage.FileNamingStrategy;
+import fk.prof.storage.MultipartAsyncStorage;
 import fk.prof.storage.ObjectNotFoundException;
 import fk.prof.storage.StorageException;
 
@@ -11,9 +12,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author gaurav.ashok
@@ -67,4 +71,87 @@ class Util {
             return null;
         }
     }
+
+    /**
+     * Stores parts of multipart uploads in memory until the upload is completed. Parts are uploaded asynchronously.
+     */
+    public static class MultipartStringStorage extends StringStorage implements MultipartAsyncStorage {
+
+        private final long minPartSize;
+        private final AtomicInteger uploadIds = new AtomicInteger();
+        Map<String, Map<Integer, String>> uploadedParts = new ConcurrentHashMap<>();
+
+        public MultipartStringStorage(long minPartSize) {
+            this.minPartSize = minPartSize;
+        }
+
+        @Override
+        public long getMinPartSize() {
+            return minPartSize;
+        }
+
+        @Override
+        public CompletableFuture<String> initiateMultipartAsync(String path) {
+            String uploadId = path + "#" + uploadIds.incrementAndGet();
+            uploadedParts.put(uploadId, new ConcurrentHashMap<>());
+            return CompletableFuture.completedFuture(uploadId);
+        }
+
+        @Override
+        public CompletableFuture<String> uploadPartAsync(String path, String uploadId, int partNumber, InputStream content, long length) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    uploadedParts.get(uploadId).put(partNumber, IOUtils.toString(content));
+                    return "tag" + partNumber;
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                finally {
+                    try {
+                        content.close();
+                    } catch (Exception ignored) {
+                    }
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> completeMultipartAsync(String path, String uploadId, List<String> partTags) {
+            Map<Integer, String> parts = uploadedParts.remove(uploadId);
+            StringBuilder object = new StringBuilder();
+            for(int i = 0; i < partTags.size(); i++) {
+                if(!("tag" + (i + 1)).equals(partTags.get(i))) {
+                    throw new IllegalArgumentException("unexpected tag for part: " + (i + 1));
+                }
+                object.append(parts.get(i + 1));
+            }
+            writtenContent.put(path, object.toString());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> abortMultipartAsync(String path, String uploadId) {
+            uploadedParts.remove(uploadId);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Long> lengthAsync(String path) {
+            return CompletableFuture.supplyAsync(() -> (long) fetchRange(path, 0, Integer.MAX_VALUE).length());
+        }
+
+        @Override
+        public CompletableFuture<InputStream> fetchAsync(String path, long offset, long length) {
+            return CompletableFuture.supplyAsync(() -> new ByteArrayInputStream(fetchRange(path, offset, length).getBytes()));
+        }
+
+        String fetchRange(String path, long offset, long length) throws StorageException {
+            if(writtenContent.containsKey(path)) {
+                String object = writtenContent.get(path);
+                return object.substring((int) offset, (int) Math.min(object.length(), offset + length));
+            }
+            throw new ObjectNotFoundException("object not found");
+        }
+    }
 }
@@ -2,12 +2,14 @@ package fk.prof.userapi;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import fk.prof.storage.buffer.ReadAhead;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.VertxOptions;
 import io.vertx.core.json.JsonObject;
 
 import javax.validation.Valid;
 import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.Map;
 
@@ -49,6 +51,10 @@ public class Configuration {
     @JsonProperty("aggregatedProfiles.baseDir")
     private String profilesBaseDir;
 
+    @Valid
+    @JsonProperty("profile.cache")
+    private ProfileCacheConfig profileCacheConfig = new ProfileCacheConfig();
+
     public VertxOptions getVertxOptions() {
         return vertxOptions;
     }
@@ -85,6 +91,10 @@ public class Configuration {
         return profilesBaseDir;
     }
 
+    public ProfileCacheConfig getProfileCacheConfig() {
+        return profileCacheConfig;
+    }
+
     private void setVertxOptions(Map<String, Object> vertxOptionsMap) {
         this.vertxOptions = new VertxOptions(new JsonObject(vertxOptionsMap));
     }
@@ -121,23 +131,122 @@ public class Configuration {
     }
 
     public static class StorageConfig {
+        public static final String TYPE_S3 = "s3";
+        public static final String TYPE_LOCAL = "local";
+
+        /* s3 or local. Config of the selected storage is required */
         @NotNull
+        @JsonProperty("type")
+        private String type = TYPE_S3;
+
         @Valid
         @JsonProperty("s3")
         private S3Config s3Config;
 
+        @Valid
+        @JsonProperty("local")
+        private LocalConfig localConfig;
+
         @NotNull
         @Valid
         @JsonProperty("thread.pool")
         private FixedSizeThreadPoolConfig tpConfig;
 
+        @Valid
+        @JsonProperty("read.ahead")
+        private ReadAheadConfig readAheadConfig = new ReadAheadConfig();
+
+        public String getType() {
+            return type;
+        }
+
         public S3Config getS3Config() {
             return s3Config;
         }
 
+        public LocalConfig getLocalConfig() {
+            return localConfig;
+        }
+
         public FixedSizeThreadPoolConfig getTpConfig() {
             return tpConfig;
         }
+
+        public ReadAheadConfig getReadAheadConfig() {
+            return readAheadConfig;
+        }
+
+        @AssertTrue(message = "config of the selected storage type is required")
+        private boolean isTypeConfigured() {
+            return (TYPE_S3.equals(type) && s3Config != null) || (TYPE_LOCAL.equals(type) && localConfig != null);
+        }
+    }
+
+    /**
+     * Profile cache bounds. Disk tier of the cache holds decoded profiles evicted from heap, and is disabled if its directory is not set.
+     */
+    public static class ProfileCacheConfig {
+        @Min(1)
+        @JsonProperty("heap.max.mb")
+        private Integer heapMaxMB = 512;
+
+        @JsonProperty("disk.dir")
+        private String diskDir;
+
+        @Min(0)
+        @JsonProperty("disk.max.mb")
+        private Integer diskMaxMB = 2048;
+
+        public Integer getHeapMaxMB() {
+            return heapMaxMB;
+        }
+
+        public String getDiskDir() {
+            return diskDir;
+        }
+
+        public Integer getDiskMaxMB() {
+            return diskMaxMB;
+        }
+    }
+
+    public static class LocalConfig {
+        @NotNull
+        @JsonProperty("base.dir")
+        private String baseDir;
+
+        public String getBaseDir() {
+            return baseDir;
+        }
+    }
+
+    /**
+     * Fetches kept in flight ahead of the one being read while loading a profile, bounded by the bytes they may hold.
+     */
+    public static class ReadAheadConfig {
+        @Min(0)
+        @JsonProperty("depth")
+        private Integer depth = ReadAhead.DEFAULT_DEPTH;
+
+        @Min(0)
+        @JsonProperty("budget.bytes")
+        private Long budgetBytes = ReadAhead.DEFAULT_BUDGET_BYTES;
+
+        @Min(1)
+        @JsonProperty("range.size.bytes")
+        private Integer rangeSizeBytes = ReadAhead.DEFAULT_RANGE_SIZE;
+
+        public Integer getDepth() {
+            return depth;
+        }
+
+        public Long getBudgetBytes() {
+            return budgetBytes;
+        }
+
+        public Integer getRangeSizeBytes() {
+            return rangeSizeBytes;
+        }
     }
 
     public static class S3Config {
@@ -209,6 +318,9 @@ public class Configuration {
 
     @AssertTrue(message = "request timeout must be greater than listObject timeout")
     private boolean isListTimeoutValid() {
+        if(storageConfig.s3Config == null) {
+            return true;
+        }
         Long requestTimeout = httpConfig.requestTimeout;
         Long ListObjectTimeout = storageConfig.s3Config.listObjectsTimeoutMs;
         return requestTimeout > ListObjectTimeout;
@@ -0,0 +1,121 @@
+package fk.prof.userapi;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.userapi.model.StacktraceTreeIterable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes serialized {@link AggregatedProfileModel.FrameNodeList}s straight into the arrays of a {@link StacktraceTreeIterable},
+ * without building a FrameNode message per node.
+ */
+public class StacktraceTreeDecoder {
+    private static final int FRAME_NODE_LIST_FRAME_NODES = AggregatedProfileModel.FrameNodeList.FRAMENODES_FIELD_NUMBER;
+    private static final int FRAME_NODE_METHOD_ID = AggregatedProfileModel.FrameNode.METHODID_FIELD_NUMBER;
+    private static final int FRAME_NODE_CHILD_COUNT = AggregatedProfileModel.FrameNode.CHILDCOUNT_FIELD_NUMBER;
+    private static final int FRAME_NODE_LINE_NO = AggregatedProfileModel.FrameNode.LINENO_FIELD_NUMBER;
+    private static final int FRAME_NODE_CPU_SAMPLING_PROPS = AggregatedProfileModel.FrameNode.CPUSAMPLINGPROPS_FIELD_NUMBER;
+    private static final int CPU_SAMPLING_PROPS_ON_CPU = AggregatedProfileModel.CPUSamplingNodeProps.ONCPUSAMPLES_FIELD_NUMBER;
+    private static final int CPU_SAMPLING_PROPS_ON_STACK = AggregatedProfileModel.CPUSamplingNodeProps.ONSTACKSAMPLES_FIELD_NUMBER;
+
+    /**
+     * Decodes delimited FrameNodeLists of a tree serialized in dfs manner, till all of its nodes are read.
+     * @param in positioned at the start of the tree. Only the bytes of the tree are read from it.
+     */
+    public static StacktraceTreeIterable decode(InputStream in) throws IOException {
+        StacktraceTreeIterable.Builder builder = new StacktraceTreeIterable.Builder();
+        int nodeCount = 1; // for root node
+        byte[] buf = new byte[0];
+        do {
+            int size = Deserializer.readVariantInt32(in);
+            if(buf.length < size) {
+                buf = new byte[size];
+            }
+            ByteStreams.readFully(in, buf, 0, size);
+            nodeCount += decodeFrameNodeList(CodedInputStream.newInstance(buf, 0, size), builder);
+        } while(builder.getFrameNodeCount() < nodeCount && builder.getFrameNodeCount() > 0);
+
+        return builder.build();
+    }
+
+    /**
+     * Decodes a FrameNodeList till end of input, adding its nodes to the builder.
+     * @return sum of child count of the decoded nodes
+     */
+    public static int decodeFrameNodeList(CodedInputStream in, StacktraceTreeIterable.Builder builder) throws IOException {
+        int childCount = 0;
+        int tag;
+        while((tag = in.readTag()) != 0) {
+            if(WireFormat.getTagFieldNumber(tag) == FRAME_NODE_LIST_FRAME_NODES) {
+                int oldLimit = in.pushLimit(in.readRawVarint32());
+                childCount += decodeFrameNode(in, builder);
+                in.popLimit(oldLimit);
+            }
+            else if(!in.skipField(tag)) {
+                break;
+            }
+        }
+        return childCount;
+    }
+
+    private static int decodeFrameNode(CodedInputStream in, StacktraceTreeIterable.Builder builder) throws IOException {
+        int methodId = 0, childCount = 0, lineNo = 0;
+        boolean methodIdDecoded = false, childCountDecoded = false;
+        long samples = 0;
+        int tag;
+        while((tag = in.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if(field == FRAME_NODE_METHOD_ID) {
+                methodId = in.readUInt32();
+                methodIdDecoded = true;
+            }
+            else if(field == FRAME_NODE_CHILD_COUNT) {
+                childCount = in.readUInt32();
+                childCountDecoded = true;
+            }
+            else if(field == FRAME_NODE_LINE_NO) {
+                lineNo = in.readUInt32();
+            }
+            else if(field == FRAME_NODE_CPU_SAMPLING_PROPS) {
+                int oldLimit = in.pushLimit(in.readRawVarint32());
+                samples = decodeCpuSamplingProps(in);
+                in.popLimit(oldLimit);
+            }
+            else if(!in.skipField(tag)) {
+                break;
+            }
+        }
+
+        if(!methodIdDecoded || !childCountDecoded) {
+            throw new InvalidProtocolBufferException("Message missing required fields: methodId, childCount");
+        }
+        builder.addFrameNode(methodId, childCount, lineNo, (int) (samples >>> 32), (int) samples);
+        return childCount;
+    }
+
+    /**
+     * @return onStack samples in the higher and onCpu samples in the lower 32 bits
+     */
+    private static long decodeCpuSamplingProps(CodedInputStream in) throws IOException {
+        int onStackSamples = 0, onCpuSamples = 0;
+        int tag;
+        while((tag = in.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if(field == CPU_SAMPLING_PROPS_ON_CPU) {
+                onCpuSamples = in.readUInt32();
+            }
+            else if(field == CPU_SAMPLING_PROPS_ON_STACK) {
+                onStackSamples = in.readUInt32();
+            }
+            else if(!in.skipField(tag)) {
+                break;
+            }
+        }
+        return ((long) onStackSamples << 32) | (onCpuSamples & 0xFFFFFFFFL);
+    }
+}
@@ -11,8 +11,12 @@ import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.base.Preconditions;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.LocalFileAsyncStorage;
 import fk.prof.storage.S3AsyncStorage;
 import fk.prof.storage.S3ClientFactory;
+import fk.prof.storage.buffer.ReadAhead;
+import fk.prof.storage.buffer.StorageBackedInputStream;
+import fk.prof.userapi.api.ProfileDiskCache;
 import fk.prof.userapi.api.ProfileStoreAPI;
 import fk.prof.userapi.api.ProfileStoreAPIImpl;
 import fk.prof.userapi.deployer.VerticleDeployer;
@@ -30,6 +34,8 @@ import io.vertx.ext.dropwizard.DropwizardMetricsOptions;
 import io.vertx.ext.dropwizard.Match;
 import io.vertx.ext.dropwizard.MatchType;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.concurrent.*;
 
 public class UserapiManager {
@@ -77,7 +83,16 @@ public class UserapiManager {
         registerSerializers(Json.mapper);
         registerSerializers(Json.prettyMapper);
 
-        ProfileStoreAPI profileStoreAPI = new ProfileStoreAPIImpl(vertx, this.storage, config.getProfileRetentionDurationMin(), config.getProfileLoadTimeout(), config.getVertxWorkerPoolSize());
+        ProfileDiskCache diskCache;
+        try {
+            diskCache = buildProfileDiskCache();
+        } catch (IOException e) {
+            result.fail(e);
+            return result;
+        }
+
+        ProfileStoreAPI profileStoreAPI = new ProfileStoreAPIImpl(vertx, this.storage, config.getProfileRetentionDurationMin(), config.getProfileLoadTimeout(), config.getVertxWorkerPoolSize(),
+            buildReadAhead(), config.getProfileCacheConfig().getHeapMaxMB() * 1024L * 1024L, diskCache);
         VerticleDeployer userapiHttpVerticleDeployer = new UserapiHttpVerticleDeployer(vertx, config, profileStoreAPI);
 
         userapiHttpVerticleDeployer.deploy().setHandler(verticleDeployCompositeResult -> {
@@ -113,12 +128,34 @@ public class UserapiManager {
                 new AbortPolicy("storageExectorSvc", threadPoolRejectionsMtr)),
             metricRegistry, "executors.fixed_thread_pool.storage");
 
-        Configuration.S3Config s3Config = config.getStorageConfig().getS3Config();
-        this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
-            storageExecSvc, s3Config.getListObjectsTimeoutMs());
+        Configuration.StorageConfig storageConfig = config.getStorageConfig();
+        if(Configuration.StorageConfig.TYPE_LOCAL.equals(storageConfig.getType())) {
+            this.storage = new LocalFileAsyncStorage(Paths.get(storageConfig.getLocalConfig().getBaseDir()), storageExecSvc);
+        }
+        else {
+            Configuration.S3Config s3Config = storageConfig.getS3Config();
+            this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
+                storageExecSvc, s3Config.getListObjectsTimeoutMs());
+        }
     }
 
 
+    private ReadAhead buildReadAhead() {
+        Configuration.ReadAheadConfig readAheadConfig = config.getStorageConfig().getReadAheadConfig();
+        return new ReadAhead(readAheadConfig.getDepth(), readAheadConfig.getBudgetBytes(), readAheadConfig.getRangeSizeBytes(),
+            metricRegistry.meter(MetricRegistry.name(StorageBackedInputStream.class, "prefetch.hit")),
+            metricRegistry.meter(MetricRegistry.name(StorageBackedInputStream.class, "prefetch.miss")),
+            metricRegistry.timer(MetricRegistry.name(StorageBackedInputStream.class, "fetch.stall")));
+    }
+
+    private ProfileDiskCache buildProfileDiskCache() throws IOException {
+        Configuration.ProfileCacheConfig profileCacheConfig = config.getProfileCacheConfig();
+        if(profileCacheConfig.getDiskDir() == null) {
+            return null;
+        }
+        return new ProfileDiskCache(Paths.get(profileCacheConfig.getDiskDir()), profileCacheConfig.getDiskMaxMB() * 1024L * 1024L);
+    }
+
     private MetricsOptions buildMetricsOptions() {
         return new DropwizardMetricsOptions()
             .setEnabled(true)
@@ -0,0 +1,62 @@
+package fk.prof.userapi.api;
+
+import com.google.common.cache.Weigher;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.userapi.model.AggregatedCpuSamplesData;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Weighs a profile by an estimate of the bytes it retains in heap, so that the profile cache can be bounded by memory rather than by
+ * count of profiles. Frame nodes and method names make up the bulk of a profile, the rest of its messages are estimated from their
+ * serialized size.
+ */
+public class AggregatedProfileInfoWeigher implements Weigher<String, AggregatedProfileInfo> {
+
+    // an int per field of the node and one for its subtree size, in the arrays of StacktraceTreeIterable
+    static final int BYTES_PER_FRAME_NODE = 6 * 4;
+    // String and its char array headers, hash and the reference to it in the list. 2 bytes per char on top of it.
+    static final int BYTES_PER_METHOD_NAME = 48;
+    // parsed messages take up a few times their serialized size
+    static final int PROTO_EXPANSION_FACTOR = 4;
+
+    @Override
+    public int weigh(String fileName, AggregatedProfileInfo profile) {
+        return (int) Math.min(Integer.MAX_VALUE, estimateRetainedBytes(profile));
+    }
+
+    static long estimateRetainedBytes(AggregatedProfileInfo profile) {
+        long bytes = PROTO_EXPANSION_FACTOR * profile.getHeader().getSerializedSize();
+        for (AggregatedProfileModel.TraceCtxDetail traceDetail : profile.getTraceDetails()) {
+            bytes += PROTO_EXPANSION_FACTOR * traceDetail.getSerializedSize();
+        }
+        for (AggregatedProfileModel.ProfileWorkInfo workInfo : profile.getProfiles()) {
+            bytes += PROTO_EXPANSION_FACTOR * workInfo.getSerializedSize();
+        }
+
+        Set<List<String>> methodLookups = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (String trace : profile.getTraces()) {
+            bytes += BYTES_PER_METHOD_NAME + 2 * trace.length();
+
+            AggregatedSamplesPerTraceCtx samples = profile.getAggregatedSamples(trace);
+            if (samples == null) {
+                continue;
+            }
+            if (samples.getAggregatedSamples() instanceof AggregatedCpuSamplesData) {
+                bytes += (long) BYTES_PER_FRAME_NODE * ((AggregatedCpuSamplesData) samples.getAggregatedSamples()).getFrameNodes().getFrameNodeCount();
+            }
+            // traces of a profile usually share the method lookup, so it is counted once
+            if (methodLookups.add(samples.getMethodLookup())) {
+                for (String method : samples.getMethodLookup()) {
+                    bytes += BYTES_PER_METHOD_NAME + 2 * method.length();
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -7,13 +7,18 @@ import fk.prof.aggregation.model.AggregationWindowSerializer;
 import fk.prof.aggregation.model.AggregationWindowSummarySerializer;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.buffer.ReadAhead;
 import fk.prof.storage.buffer.StorageBackedInputStream;
+import fk.prof.storage.compression.CompressionCodec;
 import fk.prof.userapi.Deserializer;
+import fk.prof.userapi.StacktraceTreeDecoder;
 import fk.prof.userapi.model.*;
 import io.vertx.core.Future;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -21,7 +26,6 @@ import java.util.Map;
 import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.Checksum;
-import java.util.zip.GZIPInputStream;
 
 /**
  * @author gaurav.ashok
@@ -29,9 +33,15 @@ import java.util.zip.GZIPInputStream;
 public class AggregatedProfileLoader {
 
     private AsyncStorage asyncStorage;
+    private ReadAhead readAhead;
 
     public AggregatedProfileLoader(AsyncStorage asyncStorage) {
+        this(asyncStorage, ReadAhead.DEFAULT);
+    }
+
+    public AggregatedProfileLoader(AsyncStorage asyncStorage, ReadAhead readAhead) {
         this.asyncStorage = asyncStorage;
+        this.readAhead = readAhead;
     }
 
     public void load(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename) {
@@ -40,11 +50,19 @@ public class AggregatedProfileLoader {
             return;
         }
 
-        InputStream in = new StorageBackedInputStream(asyncStorage, filename);
+        PushbackInputStream pin = new PushbackInputStream(new StorageBackedInputStream(asyncStorage, filename, readAhead), CompressionCodec.HEADER_LENGTH);
+        InputStream in = pin;
 
         try {
-            in = new GZIPInputStream(in);
-            loadFromInputStream(future, filename, in);
+            // files in sequential format are compressed as a whole, while blocks of files in block format are compressed individually
+            CompressionCodec codec = CompressionCodec.detect(pin);
+            if(codec != null) {
+                in = codec.decompress(in);
+                loadFromInputStream(future, filename, in);
+            }
+            else {
+                loadFromBlocks(future, filename, in);
+            }
         }
         catch (IOException e) {
             future.fail(e);
@@ -70,10 +88,16 @@ public class AggregatedProfileLoader {
             return;
         }
 
-        InputStream in = new StorageBackedInputStream(asyncStorage, filename);
+        PushbackInputStream pin = new PushbackInputStream(new StorageBackedInputStream(asyncStorage, filename, readAhead), CompressionCodec.HEADER_LENGTH);
+        InputStream in = pin;
 
         try {
-            in = new GZIPInputStream(in);
+            CompressionCodec codec = CompressionCodec.detect(pin);
+            if(codec == null) {
+                future.fail("Unknown compression of file");
+                return;
+            }
+            in = codec.decompress(in);
             loadSummaryFromInputStream(future, filename, in);
         }
         catch (IOException e) {
@@ -103,24 +127,7 @@ public class AggregatedProfileLoader {
                 return;
             }
 
-            // read header
-            AggregatedProfileModel.Header parsedHeader = Deserializer.readCheckedDelimited(AggregatedProfileModel.Header.parser(), cin, "header");
-
-            // read traceCtx list
-            AggregatedProfileModel.TraceCtxNames traceNames = Deserializer.readCheckedDelimited(AggregatedProfileModel.TraceCtxNames.parser(), cin, "traceNames");
-            AggregatedProfileModel.TraceCtxDetailList traceDetails = Deserializer.readCheckedDelimited(AggregatedProfileModel.TraceCtxDetailList.parser(), cin, "traceDetails");
-
-            // read profiles summary
-            checksumReset(checksum);
-            List<AggregatedProfileModel.ProfileWorkInfo> profiles = new ArrayList<>();
-            int size = 0;
-            while ((size = Deserializer.readVariantInt32(cin)) != 0) {
-                profiles.add(AggregatedProfileModel.ProfileWorkInfo.parseFrom(ByteStreams.limit(cin, size)));
-            }
-            checksumVerify((int) checksum.getValue(), Deserializer.readVariantInt32(in), "checksum error profileWorkInfo");
-
-            // read method lookup table
-            AggregatedProfileModel.MethodLookUp methodLookUp = Deserializer.readCheckedDelimited(AggregatedProfileModel.MethodLookUp.parser(), cin, "methodLookup");
+            Summary summary = readSummary(cin, in);
 
             // read work specific samples
             Map<String, AggregatedSamplesPerTraceCtx> samplesPerTrace = new HashMap<>();
@@ -128,9 +135,11 @@ public class AggregatedProfileLoader {
             checksumReset(checksum);
             switch (filename.workType) {
                 case cpu_sample_work:
-                    for (String traceName : traceNames.getNameList()) {
+                    // method lookup is shared by all traces
+                    List<String> methodLookup = AggregatedSamplesPerTraceCtx.convertMethodLookup(summary.methodLookUp);
+                    for (String traceName : summary.traceNames.getNameList()) {
                         samplesPerTrace.put(traceName,
-                                new AggregatedSamplesPerTraceCtx(methodLookUp, new AggregatedCpuSamplesData(parseStacktraceTree(cin))));
+                                new AggregatedSamplesPerTraceCtx(methodLookup, new AggregatedCpuSamplesData(parseStacktraceTree(cin))));
                     }
                     break;
                 default:
@@ -139,15 +148,82 @@ public class AggregatedProfileLoader {
 
             checksumVerify((int) checksum.getValue(), Deserializer.readVariantInt32(in), "checksum error " + filename.workType.name() + " aggregated samples");
 
-            AggregatedProfileInfo profileInfo = new AggregatedProfileInfo(parsedHeader, traceNames, traceDetails, profiles, samplesPerTrace);
-
-            future.complete(profileInfo);
+            future.complete(summary.toProfileInfo(samplesPerTrace));
         }
         catch (IOException e) {
             future.fail(e);
         }
     }
 
+    // leaving it as protected so that logic can be directly tested.
+    protected void loadFromBlocks(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename, InputStream in) {
+
+        Adler32 checksum = new Adler32();
+        try {
+            CheckedInputStream cin = new CheckedInputStream(in, checksum);
+
+            int magicNum = Deserializer.readVariantInt32(cin);
+
+            if (magicNum != AggregationWindowSerializer.AGGREGATION_FILE_MAGIC_NUM) {
+                future.fail("Unknown file. Unexpected first 4 bytes");
+                return;
+            }
+
+            if (Deserializer.readVariantInt32(cin) != AggregationWindowSerializer.BLOCK_FORMAT_VERSION) {
+                future.fail("file format version is not supported");
+                return;
+            }
+
+            // read block index
+            checksumReset(checksum);
+            int blockCount = Deserializer.readVariantInt32(cin);
+            // first block is always present, it has the summary
+            if (blockCount < 1) {
+                future.fail("Invalid count of blocks: " + blockCount);
+                return;
+            }
+            BlockIndexEntry[] blockIndex = new BlockIndexEntry[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blockIndex[i] = new BlockIndexEntry(Deserializer.readVariantInt32(cin), Deserializer.readVariantInt32(cin), Deserializer.readVariantInt32(cin));
+                if (blockIndex[i].compressedLength < 0 || blockIndex[i].uncompressedLength < 0) {
+                    future.fail("Invalid length of block: " + i);
+                    return;
+                }
+            }
+            checksumVerify((int) checksum.getValue(), Deserializer.readVariantInt32(in), "checksum error block index");
+
+            // first block has the summary and method lookup
+            InputStream summaryBlock = readBlock(in, blockIndex[0], "summary");
+            Summary summary = readSummary(new CheckedInputStream(summaryBlock, new Adler32()), summaryBlock);
+
+            // read work specific samples, a block per trace
+            Map<String, AggregatedSamplesPerTraceCtx> samplesPerTrace = new HashMap<>();
+
+            switch (filename.workType) {
+                case cpu_sample_work:
+                    if (blockCount != summary.traceNames.getNameCount() + 1) {
+                        future.fail("Unexpected count of blocks: " + blockCount + " for traces: " + summary.traceNames.getNameCount());
+                        return;
+                    }
+                    int index = 1;
+                    List<String> methodLookup = AggregatedSamplesPerTraceCtx.convertMethodLookup(summary.methodLookUp);
+                    for (String traceName : summary.traceNames.getNameList()) {
+                        samplesPerTrace.put(traceName, new AggregatedSamplesPerTraceCtx(methodLookup,
+                                new AggregatedCpuSamplesData(parseStacktraceTree(readBlock(in, blockIndex[index++], traceName)))));
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            future.complete(summary.toProfileInfo(samplesPerTrace));
+        }
+        catch (Exception e) {
+            // a corrupt block can fail in decompression or decoding of its contents as well, not only while reading it
+            future.fail(e);
+        }
+    }
+
     // leaving it as protected so that logic can be directly tested.
     protected void loadSummaryFromInputStream(Future<AggregationWindowSummary> future, AggregatedProfileNamingStrategy filename, InputStream in) {
         Adler32 checksum = new Adler32();
@@ -192,6 +268,59 @@ public class AggregatedProfileLoader {
         }
     }
 
+    /**
+     * Reads header, traces, profiles summary and method lookup
+     */
+    private Summary readSummary(CheckedInputStream cin, InputStream in) throws IOException {
+        Checksum checksum = cin.getChecksum();
+
+        // read header
+        AggregatedProfileModel.Header parsedHeader = Deserializer.readCheckedDelimited(AggregatedProfileModel.Header.parser(), cin, "header");
+
+        // read traceCtx list
+        AggregatedProfileModel.TraceCtxNames traceNames = Deserializer.readCheckedDelimited(AggregatedProfileModel.TraceCtxNames.parser(), cin, "traceNames");
+        AggregatedProfileModel.TraceCtxDetailList traceDetails = Deserializer.readCheckedDelimited(AggregatedProfileModel.TraceCtxDetailList.parser(), cin, "traceDetails");
+
+        // read profiles summary
+        checksumReset(checksum);
+        List<AggregatedProfileModel.ProfileWorkInfo> profiles = new ArrayList<>();
+        int size = 0;
+        while ((size = Deserializer.readVariantInt32(cin)) != 0) {
+            profiles.add(AggregatedProfileModel.ProfileWorkInfo.parseFrom(ByteStreams.limit(cin, size)));
+        }
+        checksumVerify((int) checksum.getValue(), Deserializer.readVariantInt32(in), "checksum error profileWorkInfo");
+
+        // read method lookup table
+        AggregatedProfileModel.MethodLookUp methodLookUp = Deserializer.readCheckedDelimited(AggregatedProfileModel.MethodLookUp.parser(), cin, "methodLookup");
+
+        return new Summary(parsedHeader, traceNames, traceDetails, profiles, methodLookUp);
+    }
+
+    /**
+     * Reads next block from the stream and returns its uncompressed bytes
+     */
+    private InputStream readBlock(InputStream in, BlockIndexEntry blockIndexEntry, String tag) throws IOException {
+        byte[] compressed = new byte[blockIndexEntry.compressedLength];
+        ByteStreams.readFully(in, compressed);
+
+        PushbackInputStream pin = new PushbackInputStream(new ByteArrayInputStream(compressed), CompressionCodec.HEADER_LENGTH);
+        CompressionCodec codec = CompressionCodec.detect(pin);
+        if(codec == null) {
+            throw new IOException("Unknown compression of block " + tag);
+        }
+
+        byte[] uncompressed = new byte[blockIndexEntry.uncompressedLength];
+        try (InputStream zin = codec.decompress(pin)) {
+            ByteStreams.readFully(zin, uncompressed);
+        }
+
+        Checksum checksum = new Adler32();
+        checksum.update(uncompressed, 0, uncompressed.length);
+        checksumVerify((int) checksum.getValue(), blockIndexEntry.checksum, "checksum error block " + tag);
+
+        return new ByteArrayInputStream(uncompressed);
+    }
+
     private void checksumReset(Checksum checksum) {
         checksum.reset();
     }
@@ -202,18 +331,39 @@ public class AggregatedProfileLoader {
 
     private StacktraceTreeIterable parseStacktraceTree(InputStream in) throws IOException {
         // tree is serialized in DFS manner. First node being the root.
-        int nodeCount = 1; // for root node
-        int parsedNodeCount = 0;
-        List<AggregatedProfileModel.FrameNodeList> parsedFrameNodes = new ArrayList<>();
-        do {
-            AggregatedProfileModel.FrameNodeList frameNodeList = AggregatedProfileModel.FrameNodeList.parseDelimitedFrom(in);
-            for(AggregatedProfileModel.FrameNode node: frameNodeList.getFrameNodesList()) {
-                nodeCount += node.getChildCount();
-            }
-            parsedNodeCount += frameNodeList.getFrameNodesCount();
-            parsedFrameNodes.add(frameNodeList);
-        } while(parsedNodeCount < nodeCount && parsedNodeCount > 0);
-
-        return new StacktraceTreeIterable(parsedFrameNodes);
+        return StacktraceTreeDecoder.decode(in);
+    }
+
+    private static class BlockIndexEntry {
+        final int compressedLength;
+        final int uncompressedLength;
+        final int checksum;
+
+        BlockIndexEntry(int compressedLength, int uncompressedLength, int checksum) {
+            this.compressedLength = compressedLength;
+            this.uncompressedLength = uncompressedLength;
+            this.checksum = checksum;
+        }
+    }
+
+    private static class Summary {
+        final AggregatedProfileModel.Header header;
+        final AggregatedProfileModel.TraceCtxNames traceNames;
+        final AggregatedProfileModel.TraceCtxDetailList traceDetails;
+        final List<AggregatedProfileModel.ProfileWorkInfo> profiles;
+        final AggregatedProfileModel.MethodLookUp methodLookUp;
+
+        Summary(AggregatedProfileModel.Header header, AggregatedProfileModel.TraceCtxNames traceNames, AggregatedProfileModel.TraceCtxDetailList traceDetails,
+                List<AggregatedProfileModel.ProfileWorkInfo> profiles, AggregatedProfileModel.MethodLookUp methodLookUp) {
+            this.header = header;
+            this.traceNames = traceNames;
+            this.traceDetails = traceDetails;
+            this.profiles = profiles;
+            this.methodLookUp = methodLookUp;
+        }
+
+        AggregatedProfileInfo toProfileInfo(Map<String, AggregatedSamplesPerTraceCtx> samplesPerTrace) {
+            return new AggregatedProfileInfo(header, traceNames, traceDetails, profiles, samplesPerTrace);
+        }
     }
 }
@@ -0,0 +1,315 @@
+package fk.prof.userapi.api;
+
+import com.google.common.hash.Hashing;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.userapi.StacktraceTreeDecoder;
+import fk.prof.userapi.model.AggregatedCpuSamplesData;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamples;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+import fk.prof.userapi.model.StacktraceTreeIterable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Second tier of the profile cache, below the heap cache of {@link ProfileStoreAPIImpl}. It keeps decoded profiles as files in a
+ * local directory, so that a profile evicted from heap, or requested after a restart, is read from a local file instead of being
+ * fetched from the storage, decompressed and verified again.
+ * <p>
+ * A profile is stored uncompressed, with the method names already converted to java signatures and shared by all the traces, and is
+ * read by memory mapping the file. Files are evicted in least recently used order once their total size exceeds {@code maxBytes}.
+ * <p>
+ * The cache is best effort: failures are logged and reported as misses. Calls do blocking io, so are meant to be made from worker
+ * threads.
+ */
+public class ProfileDiskCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProfileDiskCache.class);
+
+    private static final int DECODED_FILE_MAGIC_NUM = 0x0DEC0DED;
+    private static final int DECODED_FILE_VERSION = 1;
+    private static final String FILE_SUFFIX = ".profile";
+    private static final String TEMP_FILE_PREFIX = ".";
+    // frame nodes of a trace are written in lists of at most this size
+    private static final int FRAME_NODES_PER_LIST = 4096;
+
+    private final Path dir;
+    private final long maxBytes;
+
+    // file name -> size of files in the cache, in least recently used order
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public ProfileDiskCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(dir);
+        loadExistingFiles();
+    }
+
+    /**
+     * @param key file name of the profile in the storage
+     * @return the cached profile, or null if it is not cached
+     */
+    public AggregatedProfileInfo get(String key) {
+        String fileName = toFileName(key);
+        synchronized (this) {
+            if(!files.containsKey(fileName)) {
+                return null;
+            }
+            // marks it as recently used
+            files.get(fileName);
+        }
+
+        Path file = dir.resolve(fileName);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // contents are copied out of the mapping while decoding, so the mapping is not referenced beyond this call
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            AggregatedProfileInfo profile = decode(CodedInputStream.newInstance(buf), key);
+            if(profile == null) {
+                LOGGER.warn("Discarding cached profile file: {} of unexpected format for: {}", fileName, key);
+                remove(fileName);
+                return null;
+            }
+            touch(file);
+            return profile;
+        }
+        catch (NoSuchFileException e) {
+            remove(fileName);
+            return null;
+        }
+        catch (IOException | RuntimeException e) {
+            LOGGER.error("Failed to read cached profile file: {} for: {}", fileName, key, e);
+            remove(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the profile to a temporary file and renames it, so that a partially written profile is never read.
+     */
+    public void put(String key, AggregatedProfileInfo profile) {
+        String fileName = toFileName(key);
+        Path file = dir.resolve(fileName);
+        Path tempFile = dir.resolve(TEMP_FILE_PREFIX + fileName + "." + UUID.randomUUID());
+
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.CREATE_NEW))) {
+                CodedOutputStream cout = CodedOutputStream.newInstance(out);
+                encode(cout, key, profile);
+                cout.flush();
+            }
+            long size = Files.size(tempFile);
+            if(size > maxBytes || size > Integer.MAX_VALUE) {
+                // too large to be cached, or to be mapped as a single buffer
+                Files.delete(tempFile);
+                return;
+            }
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            added(fileName, size);
+        }
+        catch (IOException | RuntimeException e) {
+            LOGGER.error("Failed to cache profile: {} in file: {}", key, fileName, e);
+            deleteQuietly(tempFile);
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void encode(CodedOutputStream cout, String key, AggregatedProfileInfo profile) throws IOException {
+        cout.writeUInt32NoTag(DECODED_FILE_MAGIC_NUM);
+        cout.writeUInt32NoTag(DECODED_FILE_VERSION);
+        cout.writeStringNoTag(key);
+
+        cout.writeMessageNoTag(profile.getHeader());
+
+        List<String> traces = new ArrayList<>();
+        profile.getTraces().forEach(traces::add);
+        cout.writeMessageNoTag(AggregatedProfileModel.TraceCtxNames.newBuilder().addAllName(traces).build());
+        cout.writeMessageNoTag(AggregatedProfileModel.TraceCtxDetailList.newBuilder().addAllTraceCtx(profile.getTraceDetails()).build());
+
+        List<AggregatedProfileModel.ProfileWorkInfo> profiles = new ArrayList<>();
+        profile.getProfiles().forEach(profiles::add);
+        cout.writeUInt32NoTag(profiles.size());
+        for(AggregatedProfileModel.ProfileWorkInfo workInfo: profiles) {
+            cout.writeMessageNoTag(workInfo);
+        }
+
+        // method lookup of the first trace is shared by all of them
+        List<String> methodLookup = Collections.emptyList();
+        for(String trace: traces) {
+            AggregatedSamplesPerTraceCtx samples = profile.getAggregatedSamples(trace);
+            if(samples != null) {
+                methodLookup = samples.getMethodLookup();
+                break;
+            }
+        }
+        cout.writeMessageNoTag(AggregatedProfileModel.MethodLookUp.newBuilder().addAllFqdn(methodLookup).build());
+
+        // cpu samples of each trace, in the order of traces. Count of lists is -1 if a trace has no cpu samples.
+        for(int traceIdx = 0; traceIdx < traces.size(); ++traceIdx) {
+            AggregatedSamplesPerTraceCtx samples = profile.getAggregatedSamples(traces.get(traceIdx));
+            AggregatedSamples aggregatedSamples = samples != null ? samples.getAggregatedSamples() : null;
+            if(!(aggregatedSamples instanceof AggregatedCpuSamplesData)) {
+                cout.writeInt32NoTag(-1);
+                continue;
+            }
+
+            StacktraceTreeIterable frameNodes = ((AggregatedCpuSamplesData) aggregatedSamples).getFrameNodes();
+            int nodeCount = frameNodes.getFrameNodeCount();
+            cout.writeInt32NoTag((nodeCount + FRAME_NODES_PER_LIST - 1) / FRAME_NODES_PER_LIST);
+
+            AggregatedProfileModel.FrameNodeList.Builder builder = AggregatedProfileModel.FrameNodeList.newBuilder().setTraceCtxIdx(traceIdx);
+            for(AggregatedProfileModel.FrameNode node: frameNodes) {
+                builder.addFrameNodes(node);
+                if(builder.getFrameNodesCount() == FRAME_NODES_PER_LIST) {
+                    cout.writeMessageNoTag(builder.build());
+                    builder.clearFrameNodes();
+                }
+            }
+            if(builder.getFrameNodesCount() > 0) {
+                cout.writeMessageNoTag(builder.build());
+            }
+        }
+    }
+
+    /**
+     * @return decoded profile, or null if the file is not of expected format or is of another key
+     */
+    private AggregatedProfileInfo decode(CodedInputStream cin, String key) throws IOException {
+        ExtensionRegistryLite registry = ExtensionRegistryLite.getEmptyRegistry();
+        cin.setSizeLimit(Integer.MAX_VALUE);
+
+        if(cin.readRawVarint32() != DECODED_FILE_MAGIC_NUM || cin.readRawVarint32() != DECODED_FILE_VERSION || !key.equals(cin.readStringRequireUtf8())) {
+            return null;
+        }
+
+        AggregatedProfileModel.Header header = cin.readMessage(AggregatedProfileModel.Header.parser(), registry);
+        AggregatedProfileModel.TraceCtxNames traceNames = cin.readMessage(AggregatedProfileModel.TraceCtxNames.parser(), registry);
+        AggregatedProfileModel.TraceCtxDetailList traceDetails = cin.readMessage(AggregatedProfileModel.TraceCtxDetailList.parser(), registry);
+
+        int profileCount = cin.readRawVarint32();
+        List<AggregatedProfileModel.ProfileWorkInfo> profiles = new ArrayList<>(profileCount);
+        for(int i = 0; i < profileCount; ++i) {
+            profiles.add(cin.readMessage(AggregatedProfileModel.ProfileWorkInfo.parser(), registry));
+        }
+
+        List<String> methodLookup = cin.readMessage(AggregatedProfileModel.MethodLookUp.parser(), registry).getFqdnList();
+
+        Map<String, AggregatedSamplesPerTraceCtx> samplesPerTrace = new HashMap<>();
+        for(String traceName: traceNames.getNameList()) {
+            int listCount = cin.readInt32();
+            if(listCount < 0) {
+                continue;
+            }
+            StacktraceTreeIterable.Builder frameNodes = new StacktraceTreeIterable.Builder();
+            for(int i = 0; i < listCount; ++i) {
+                int oldLimit = cin.pushLimit(cin.readRawVarint32());
+                StacktraceTreeDecoder.decodeFrameNodeList(cin, frameNodes);
+                cin.popLimit(oldLimit);
+            }
+            samplesPerTrace.put(traceName, new AggregatedSamplesPerTraceCtx(methodLookup, new AggregatedCpuSamplesData(frameNodes.build())));
+        }
+
+        return new AggregatedProfileInfo(header, traceNames, traceDetails, profiles, samplesPerTrace);
+    }
+
+    /**
+     * Picks up files cached before a restart, in order of their last modified time, and deletes leftover temporary files.
+     */
+    private void loadExistingFiles() throws IOException {
+        List<Path> existing = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(dir)) {
+            entries.forEach(existing::add);
+        }
+
+        Map<Path, BasicFileAttributes> attrs = new HashMap<>();
+        for(Path entry: existing) {
+            String name = entry.getFileName().toString();
+            if(name.startsWith(TEMP_FILE_PREFIX)) {
+                deleteQuietly(entry);
+            }
+            else if(name.endsWith(FILE_SUFFIX)) {
+                attrs.put(entry, Files.readAttributes(entry, BasicFileAttributes.class));
+            }
+        }
+
+        attrs.entrySet().stream()
+            .sorted(Comparator.comparing(e -> e.getValue().lastModifiedTime()))
+            .forEach(e -> added(e.getKey().getFileName().toString(), e.getValue().size()));
+    }
+
+    /**
+     * Last modified time of files is the order in which they are picked up after a restart, so it is updated on every read to keep
+     * the order least recently used, rather than least recently written.
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e) {
+            LOGGER.warn("Failed to update last modified time of file: {}", file, e);
+        }
+    }
+
+    private void added(String fileName, long size) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long prevSize = files.put(fileName, size);
+            totalBytes += size - (prevSize != null ? prevSize : 0);
+
+            Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+            while(totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if(eldest.getKey().equals(fileName)) {
+                    continue;
+                }
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        evicted.forEach(name -> deleteQuietly(dir.resolve(name)));
+    }
+
+    private void remove(String fileName) {
+        synchronized (this) {
+            Long size = files.remove(fileName);
+            if(size != null) {
+                totalBytes -= size;
+            }
+        }
+        deleteQuietly(dir.resolve(fileName));
+    }
+
+    static String toFileName(String key) {
+        // keys are paths in the storage, which can be longer than allowed for a file name
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString() + FILE_SUFFIX;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            LOGGER.error("Failed to delete file: {}", file, e);
+        }
+    }
+}
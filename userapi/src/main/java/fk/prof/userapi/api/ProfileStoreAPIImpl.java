@@ -1,11 +1,17 @@
 package fk.prof.userapi.api;
 
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.io.BaseEncoding;
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.buffer.ReadAhead;
+import fk.prof.userapi.UserapiConfigManager;
 import fk.prof.userapi.model.AggregatedProfileInfo;
 import fk.prof.userapi.model.AggregationWindowSummary;
 import io.vertx.core.*;
@@ -19,6 +25,8 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
@@ -33,40 +41,73 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
     private static final String DELIMITER = "/";
     private static final String WORKER_POOL_NAME = "aggregation.loader.pool";
     private static final String VERSION = "v0001";
+    // bound on the estimated bytes retained by profiles in the heap cache
+    public static final long DEFAULT_HEAP_CACHE_MAX_BYTES = 512 * 1024 * 1024;
     private final int profileLoadTimeout;
 
     private Vertx vertx;
     private AsyncStorage asyncStorage;
     private AggregatedProfileLoader profileLoader;
+    private ProfileDiskCache diskCache;
 
     private WorkerExecutor workerExecutor;
 
     private Cache<String, AggregatedProfileInfo> cache;
     private Cache<String, AggregationWindowSummary> summaryCache;
 
-    /* stores all requested futures that are waiting on file to be loaded from S3. If a file loadFromInputStream
-    * is in progress, this map will contain its corresponding key */
-    private Map<String, FuturesList<Object>> futuresForLoadingFiles;
+    /* in flight loads of files, shared by all the requests for a file while it is being loaded. A file is present in
+    * these maps only while its load is in progress */
+    private ConcurrentMap<String, CompletableFuture<AggregatedProfileInfo>> profilesLoading = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, CompletableFuture<AggregationWindowSummary>> summariesLoading = new ConcurrentHashMap<>();
+
+    private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(UserapiConfigManager.METRIC_REGISTRY);
+    private final Meter mtrCacheHit = metricRegistry.meter(MetricRegistry.name(ProfileStoreAPIImpl.class, "cache.hit"));
+    private final Meter mtrCacheMiss = metricRegistry.meter(MetricRegistry.name(ProfileStoreAPIImpl.class, "cache.miss"));
+    // profiles evicted from heap either to stay within the weight bound or on expiry
+    private final Meter mtrCacheEviction = metricRegistry.meter(MetricRegistry.name(ProfileStoreAPIImpl.class, "cache.eviction"));
+    private final Meter mtrDiskCacheHit = metricRegistry.meter(MetricRegistry.name(ProfileStoreAPIImpl.class, "disk.cache.hit"));
+    private final Meter mtrDiskCacheMiss = metricRegistry.meter(MetricRegistry.name(ProfileStoreAPIImpl.class, "disk.cache.miss"));
+    // time taken to load a profile missing in heap, from disk or storage
+    private final Timer tmrLoad = metricRegistry.timer(MetricRegistry.name(ProfileStoreAPIImpl.class, "load"));
 
     public ProfileStoreAPIImpl(Vertx vertx, AsyncStorage asyncStorage, int maxIdleRetentionInMin, Integer profileLoadTimeout, Integer workerPoolSize) {
+        this(vertx, asyncStorage, maxIdleRetentionInMin, profileLoadTimeout, workerPoolSize, ReadAhead.DEFAULT);
+    }
+
+    public ProfileStoreAPIImpl(Vertx vertx, AsyncStorage asyncStorage, int maxIdleRetentionInMin, Integer profileLoadTimeout, Integer workerPoolSize,
+                               ReadAhead readAhead) {
+        this(vertx, asyncStorage, maxIdleRetentionInMin, profileLoadTimeout, workerPoolSize, readAhead, DEFAULT_HEAP_CACHE_MAX_BYTES, null);
+    }
+
+    /**
+     * @param heapCacheMaxBytes bound on the bytes retained by profiles cached in heap, as estimated by {@link AggregatedProfileInfoWeigher}
+     * @param diskCache second tier of the profile cache, null to only cache profiles in heap
+     */
+    public ProfileStoreAPIImpl(Vertx vertx, AsyncStorage asyncStorage, int maxIdleRetentionInMin, Integer profileLoadTimeout, Integer workerPoolSize,
+                               ReadAhead readAhead, long heapCacheMaxBytes, ProfileDiskCache diskCache) {
         this.vertx = vertx;
         this.asyncStorage = asyncStorage;
-        this.profileLoader = new AggregatedProfileLoader(this.asyncStorage);
+        this.profileLoader = new AggregatedProfileLoader(this.asyncStorage, readAhead);
+        this.diskCache = diskCache;
         this.profileLoadTimeout = profileLoadTimeout;
 
         this.workerExecutor = vertx.createSharedWorkerExecutor(WORKER_POOL_NAME, workerPoolSize);
 
         this.cache = CacheBuilder.newBuilder()
-                .maximumSize(50)
+                .maximumWeight(heapCacheMaxBytes)
+                .weigher(new AggregatedProfileInfoWeigher())
                 .expireAfterAccess(maxIdleRetentionInMin, TimeUnit.MINUTES)
+                .removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        mtrCacheEviction.mark();
+                    }
+                })
                 .build();
 
         this.summaryCache = CacheBuilder.newBuilder()
                 .maximumSize(500)
                 .expireAfterAccess(maxIdleRetentionInMin, TimeUnit.MINUTES)
                 .build();
-
-        this.futuresForLoadingFiles = new HashMap<>();
     }
 
     private String getLastFromCommonPrefix(String commonPrefix) {
@@ -148,29 +189,57 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
     }
 
     @Override
-    synchronized public void load(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename) {
+    public void load(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename) {
         String fileNameKey = filename.getFileName(0);
 
         AggregatedProfileInfo cachedProfileInfo = cache.getIfPresent(fileNameKey);
         if (cachedProfileInfo == null) {
-            boolean fileLoadInProgress = futuresForLoadingFiles.containsKey(fileNameKey);
-            // save the future, so that it can be notified when the loading visit finishes
-            saveRequestedFuture(fileNameKey, future);
-            // set the timeout for this future
-            vertx.setTimer(profileLoadTimeout, timerId -> timeoutRequestedFuture(fileNameKey, future));
-
-            if (!fileLoadInProgress) {
-                workerExecutor.executeBlocking((Future<AggregatedProfileInfo> f) -> profileLoader.load(f, filename),
-                        true,
-                        result -> completeAggregatedProfileLoading(cache, result, fileNameKey));
-            }
+            mtrCacheMiss.mark();
+            CompletableFuture<AggregatedProfileInfo> loading = profilesLoading.computeIfAbsent(fileNameKey,
+                key -> startLoading(key, (Future<AggregatedProfileInfo> f) -> loadFromDiskOrStorage(f, filename), cache, profilesLoading));
+            awaitLoading(future, fileNameKey, loading);
         } else {
+            mtrCacheHit.mark();
             future.complete(cachedProfileInfo);
         }
     }
 
+    /**
+     * Loads the profile from the disk cache if present there, otherwise from the storage and caches it on disk before completing the
+     * future. Runs on a worker thread.
+     */
+    private void loadFromDiskOrStorage(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename) {
+        String fileNameKey = filename.getFileName(0);
+        Timer.Context loadTimer = tmrLoad.time();
+        if (diskCache != null) {
+            AggregatedProfileInfo cachedProfileInfo = diskCache.get(fileNameKey);
+            if (cachedProfileInfo != null) {
+                mtrDiskCacheHit.mark();
+                loadTimer.stop();
+                future.complete(cachedProfileInfo);
+                return;
+            }
+            mtrDiskCacheMiss.mark();
+        }
+
+        Future<AggregatedProfileInfo> loaded = Future.future();
+        loaded.setHandler(result -> {
+            loadTimer.stop();
+            if (result.failed()) {
+                future.fail(result.cause());
+                return;
+            }
+            // written before completing, so that the profile is on disk by the time it is handed out
+            if (diskCache != null) {
+                diskCache.put(fileNameKey, result.result());
+            }
+            future.complete(result.result());
+        });
+        profileLoader.load(loaded, filename);
+    }
+
     @Override
-    synchronized public void loadSummary(Future<AggregationWindowSummary> future, AggregatedProfileNamingStrategy filename) {
+    public void loadSummary(Future<AggregationWindowSummary> future, AggregatedProfileNamingStrategy filename) {
 
         if (!filename.isSummaryFile) {
             future.fail(new IllegalArgumentException(filename.getFileName(0) + " is not a summaryFile"));
@@ -181,52 +250,54 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
 
         AggregationWindowSummary cachedProfileInfo = summaryCache.getIfPresent(fileNameKey);
         if (cachedProfileInfo == null) {
-            boolean fileLoadInProgress = futuresForLoadingFiles.containsKey(fileNameKey);
-            // save the future, so that it can be notified when the loading visit finishes
-            saveRequestedFuture(fileNameKey, future);
-            // set the timeout for this future
-            vertx.setTimer(profileLoadTimeout, timerId -> timeoutRequestedFuture(fileNameKey, future));
-
-            if (!fileLoadInProgress) {
-                workerExecutor.executeBlocking((Future<AggregationWindowSummary> f) -> profileLoader.loadSummary(f, filename),
-                        true,
-                        result -> completeAggregatedProfileLoading(summaryCache, result, fileNameKey));
-            }
+            CompletableFuture<AggregationWindowSummary> loading = summariesLoading.computeIfAbsent(fileNameKey,
+                key -> startLoading(key, (Future<AggregationWindowSummary> f) -> profileLoader.loadSummary(f, filename), summaryCache, summariesLoading));
+            awaitLoading(future, fileNameKey, loading);
         } else {
             future.complete(cachedProfileInfo);
         }
     }
 
+    /**
+     * Starts loading the file on a worker thread. Once loaded, it is cached before being removed from the in flight loads, so that
+     * later requests find it in the cache.
+     * @return future shared by all the requests for the file until it is loaded
+     */
+    private <T> CompletableFuture<T> startLoading(String filename, Handler<Future<T>> loader, Cache<String, T> cache,
+                                                  ConcurrentMap<String, CompletableFuture<T>> inFlightLoads) {
+        CompletableFuture<T> loading = new CompletableFuture<>();
+        // unordered, so that loads of different files requested from the same context run in parallel
+        workerExecutor.executeBlocking(loader, false, result -> {
+            if (result.succeeded()) {
+                cache.put(filename, result.result());
+            }
+            inFlightLoads.remove(filename, loading);
 
-    synchronized private <T> void saveRequestedFuture(String filename, Future<T> future) {
-        FuturesList futures = futuresForLoadingFiles.get(filename);
-        if (futures == null) {
-            futures = new FuturesList();
-            futuresForLoadingFiles.put(filename, futures);
-        }
-        futures.addFuture(future);
-    }
-
-    synchronized private <T> void timeoutRequestedFuture(String filename, Future<T> future) {
-        if (future.isComplete()) {
-            return;
-        }
-        FuturesList futures = futuresForLoadingFiles.get(filename);
-        futures.removeFuture(future);
-
-        future.fail(new TimeoutException("timeout while waiting for file to loadFromInputStream from store: " + filename));
+            if (result.succeeded()) {
+                loading.complete(result.result());
+            } else {
+                loading.completeExceptionally(result.cause());
+            }
+        });
+        return loading;
     }
 
-    synchronized private <T> void completeAggregatedProfileLoading(Cache<String, T> cache, AsyncResult<T> result, String filename) {
-        if (result.succeeded()) {
-            cache.put(filename, result.result());
-        }
-
-        // complete all dependent futures
-        FuturesList futures = futuresForLoadingFiles.get(filename);
-        futures.complete(result);
-
-        futuresForLoadingFiles.remove(filename);
+    /**
+     * Completes the future of the request with the result of the in flight load, or fails it if the load does not complete within the
+     * timeout. Timing out a request does not affect the load or the other requests waiting on it.
+     */
+    private <T> void awaitLoading(Future<T> future, String filename, CompletableFuture<T> loading) {
+        long timerId = vertx.setTimer(profileLoadTimeout,
+            id -> future.tryFail(new TimeoutException("timeout while waiting for file to loadFromInputStream from store: " + filename)));
+
+        loading.whenComplete((result, error) -> {
+            vertx.cancelTimer(timerId);
+            if (error == null) {
+                future.tryComplete(result);
+            } else {
+                future.tryFail(error);
+            }
+        });
     }
 
     private <T> void completeFuture(T result, Throwable error, Future<T> future) {
@@ -279,32 +350,4 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
             return Objects.equals(this.first, ((Pair) that).first) && Objects.equals(this.second, ((Pair) that).second);
         }
     }
-
-    private static class FuturesList<T> {
-        List<Future<T>> futures = new ArrayList<>(2);
-
-        synchronized public void addFuture(Future<T> future) {
-            if (!exists(future)) {
-                futures.add(future);
-            }
-        }
-
-        synchronized public void removeFuture(Future<T> future) {
-            futures.removeIf(f -> f == future);
-        }
-
-        synchronized public void complete(AsyncResult<T> result) {
-            if (result.succeeded()) {
-                futures.forEach(f -> f.complete(result.result()));
-            } else {
-                futures.forEach(f -> f.fail(result.cause()));
-            }
-
-            futures.clear();
-        }
-
-        private boolean exists(Future<T> future) {
-            return futures.stream().anyMatch(f -> f == future);
-        }
-    }
 }
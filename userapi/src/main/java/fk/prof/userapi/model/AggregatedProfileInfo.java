@@ -32,6 +32,10 @@ public class AggregatedProfileInfo {
         this.aggregatedSamples = aggregatedSamples;
     }
 
+    public AggregatedProfileModel.Header getHeader() {
+        return header;
+    }
+
     public ZonedDateTime getStart() {
         return ZonedDateTime.parse(header.getAggregationStartTime(), DateTimeFormatter.ISO_ZONED_DATE_TIME);
     }
@@ -15,8 +15,15 @@ public class AggregatedSamplesPerTraceCtx {
     private final List<String> methodLookup;
 
     public AggregatedSamplesPerTraceCtx(AggregatedProfileModel.MethodLookUp methodIdlookup, AggregatedSamples aggregatedSamples) {
+        this(convertMethodLookup(methodIdlookup), aggregatedSamples);
+    }
+
+    /**
+     * @param methodLookup method names already converted to java signatures, possibly shared by all traces of a profile.
+     */
+    public AggregatedSamplesPerTraceCtx(List<String> methodLookup, AggregatedSamples aggregatedSamples) {
         this.aggregatedSamples = aggregatedSamples;
-        this.methodLookup = methodIdlookup.getFqdnList().stream().map(StackLineParser::convertJVMTypeSignToJava).collect(Collectors.toList());
+        this.methodLookup = methodLookup;
     }
 
     public AggregatedSamples getAggregatedSamples() {
@@ -26,4 +33,8 @@ public class AggregatedSamplesPerTraceCtx {
     public List<String> getMethodLookup() {
         return methodLookup;
     }
+
+    public static List<String> convertMethodLookup(AggregatedProfileModel.MethodLookUp methodIdlookup) {
+        return methodIdlookup.getFqdnList().stream().map(StackLineParser::convertJVMTypeSignToJava).collect(Collectors.toList());
+    }
 }
@@ -0,0 +1,69 @@
+package fk.prof.userapi.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pruned subtree of the cpu sampling stacktrace tree of a trace ctx, for drill down queries. Method lookup only has the methods
+ * referred to by the nodes of the subtree, keyed by their methodId, as the full lookup can be far larger than the subtree itself.
+ */
+public class AggregatedSamplesSubtree {
+
+    private final AggregatedCpuSamplesData aggregatedSamples;
+    private final Map<Integer, String> methodLookup;
+
+    private AggregatedSamplesSubtree(AggregatedCpuSamplesData aggregatedSamples, Map<Integer, String> methodLookup) {
+        this.aggregatedSamples = aggregatedSamples;
+        this.methodLookup = methodLookup;
+    }
+
+    public AggregatedCpuSamplesData getAggregatedSamples() {
+        return aggregatedSamples;
+    }
+
+    public Map<Integer, String> getMethodLookup() {
+        return methodLookup;
+    }
+
+    /**
+     * @param path nodes from the child of root to the root of the subtree, each one as "methodId" or "methodId:lineNo". An empty path
+     *             selects the root.
+     * @param maxDepth depth of the deepest nodes kept, relative to root of the subtree
+     * @param minOnStackSamples nodes with fewer samples are pruned along with their subtrees
+     * @throws IllegalArgumentException if the path is malformed or does not lead to a node
+     */
+    public static AggregatedSamplesSubtree extract(AggregatedSamplesPerTraceCtx samplesPerTraceCtx, String[] path, int maxDepth, int minOnStackSamples) {
+        if(!(samplesPerTraceCtx.getAggregatedSamples() instanceof AggregatedCpuSamplesData)) {
+            throw new IllegalArgumentException("Subtree can only be extracted from cpu sampling traces");
+        }
+        if(maxDepth < 0 || minOnStackSamples < 0) {
+            throw new IllegalArgumentException("maxDepth and minSamples should not be negative");
+        }
+        StacktraceTreeIterable tree = ((AggregatedCpuSamplesData) samplesPerTraceCtx.getAggregatedSamples()).getFrameNodes();
+
+        int node = 0;
+        for(String element: path) {
+            String[] parts = element.split(":", -1);
+            if(parts.length > 2) {
+                throw new IllegalArgumentException("Malformed path element: " + element);
+            }
+            int methodId = Integer.parseInt(parts[0].trim());
+            Integer lineNo = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : null;
+
+            node = tree.findChild(node, methodId, lineNo);
+            if(node < 0) {
+                throw new IllegalArgumentException("No node found at path element: " + element);
+            }
+        }
+
+        StacktraceTreeIterable subtree = tree.subtree(node, maxDepth, minOnStackSamples);
+        List<String> fullMethodLookup = samplesPerTraceCtx.getMethodLookup();
+        Map<Integer, String> methodLookup = new TreeMap<>();
+        for(int i = 0; i < subtree.getFrameNodeCount(); ++i) {
+            int methodId = subtree.getMethodId(i);
+            methodLookup.put(methodId, methodId < fullMethodLookup.size() ? fullMethodLookup.get(methodId) : null);
+        }
+        return new AggregatedSamplesSubtree(new AggregatedCpuSamplesData(subtree), methodLookup);
+    }
+}
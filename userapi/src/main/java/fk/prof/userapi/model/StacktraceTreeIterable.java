@@ -2,19 +2,141 @@ package fk.prof.userapi.model;
 
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
+ * Frame nodes of a stacktrace tree in dfs order, first node being the root. Fields of the nodes are kept in primitive arrays, one per
+ * field, instead of a FrameNode message per node, which takes a fraction of the heap.
+ * <p>
+ * Nodes can be read by their index without any allocation, while the iterator builds a FrameNode per node. Size of the subtree of
+ * every node is computed once when the tree is built, so children of a node are found by hopping over the subtrees of its preceding
+ * siblings, and a subtree can be extracted without walking the rest of the tree.
  * @author gaurav.ashok
  */
 public class StacktraceTreeIterable implements Iterable<AggregatedProfileModel.FrameNode> {
 
-    private List<AggregatedProfileModel.FrameNodeList> stackTraceParts;
+    private final int[] methodIds;
+    private final int[] childCounts;
+    private final int[] lineNos;
+    private final int[] onStackSamples;
+    private final int[] onCpuSamples;
+    // count of nodes in the subtree rooted at the node, including itself
+    private final int[] subtreeSizes;
+    private final int nodeCount;
 
     public StacktraceTreeIterable(List<AggregatedProfileModel.FrameNodeList> stackTraceParts) {
-        this.stackTraceParts = stackTraceParts;
+        this(buildFrom(stackTraceParts));
+    }
+
+    private StacktraceTreeIterable(Builder builder) {
+        this.nodeCount = builder.nodeCount;
+        this.methodIds = Arrays.copyOf(builder.methodIds, nodeCount);
+        this.childCounts = Arrays.copyOf(builder.childCounts, nodeCount);
+        this.lineNos = Arrays.copyOf(builder.lineNos, nodeCount);
+        this.onStackSamples = Arrays.copyOf(builder.onStackSamples, nodeCount);
+        this.onCpuSamples = Arrays.copyOf(builder.onCpuSamples, nodeCount);
+        this.subtreeSizes = computeSubtreeSizes(childCounts, nodeCount);
+    }
+
+    public int getFrameNodeCount() {
+        return nodeCount;
+    }
+
+    public int getMethodId(int index) {
+        return methodIds[index];
+    }
+
+    public int getChildCount(int index) {
+        return childCounts[index];
+    }
+
+    public int getLineNo(int index) {
+        return lineNos[index];
+    }
+
+    public int getOnStackSamples(int index) {
+        return onStackSamples[index];
+    }
+
+    public int getOnCpuSamples(int index) {
+        return onCpuSamples[index];
+    }
+
+    public int getSubtreeSize(int index) {
+        return subtreeSizes[index];
+    }
+
+    /**
+     * Finds the child of a node by its methodId, and its lineNo if given. Children of a node with same methodId differ in lineNo.
+     * @return index of the child or -1 if there is no such child
+     * @throws IllegalArgumentException if lineNo is not given and more than one child has the methodId
+     */
+    public int findChild(int parentIndex, int methodId, Integer lineNo) {
+        int found = -1;
+        int child = parentIndex + 1;
+        for(int i = 0; i < childCounts[parentIndex]; ++i) {
+            if(methodIds[child] == methodId && (lineNo == null || lineNos[child] == lineNo)) {
+                if(lineNo != null) {
+                    return child;
+                }
+                if(found >= 0) {
+                    throw new IllegalArgumentException("More than one child of node " + parentIndex + " has methodId " + methodId + ", lineNo is required");
+                }
+                found = child;
+            }
+            child += subtreeSizes[child];
+        }
+        return found;
+    }
+
+    /**
+     * Extracts the subtree rooted at a node, pruning nodes deeper than maxDepth and nodes with less than minOnStackSamples, along with
+     * their subtrees. Child counts of the extracted nodes only count the children kept.
+     * @param maxDepth depth of the deepest nodes kept, the root being at depth 0
+     */
+    public StacktraceTreeIterable subtree(int rootIndex, int maxDepth, int minOnStackSamples) {
+        Builder builder = new Builder();
+        // triples of node index, index of its parent in builder (-1 for root) and its depth
+        IntStack stack = new IntStack();
+        stack.push(rootIndex);
+        stack.push(-1);
+        stack.push(0);
+
+        int[] children = new int[16];
+        while(!stack.isEmpty()) {
+            int depth = stack.pop(), parentBuilderIndex = stack.pop(), index = stack.pop();
+
+            int builderIndex = builder.getFrameNodeCount();
+            builder.addFrameNode(methodIds[index], 0, lineNos[index], onStackSamples[index], onCpuSamples[index]);
+            if(parentBuilderIndex >= 0) {
+                ++builder.childCounts[parentBuilderIndex];
+            }
+            if(depth >= maxDepth) {
+                continue;
+            }
+
+            int keptChildren = 0;
+            int child = index + 1;
+            for(int i = 0; i < childCounts[index]; ++i) {
+                if(onStackSamples[child] >= minOnStackSamples) {
+                    if(keptChildren == children.length) {
+                        children = Arrays.copyOf(children, children.length * 2);
+                    }
+                    children[keptChildren++] = child;
+                }
+                child += subtreeSizes[child];
+            }
+            // pushed in reverse, so that children are visited in their original order
+            for(int i = keptChildren - 1; i >= 0; --i) {
+                stack.push(children[i]);
+                stack.push(builderIndex);
+                stack.push(depth + 1);
+            }
+        }
+        return builder.build();
     }
 
     @Override
@@ -22,14 +144,41 @@ public class StacktraceTreeIterable implements Iterable<AggregatedProfileModel.F
         return new FrameNodeIterator();
     }
 
+    private static Builder buildFrom(List<AggregatedProfileModel.FrameNodeList> stackTraceParts) {
+        Builder builder = new Builder();
+        for(AggregatedProfileModel.FrameNodeList part: stackTraceParts) {
+            for(AggregatedProfileModel.FrameNode node: part.getFrameNodesList()) {
+                builder.addFrameNode(node.getMethodId(), node.getChildCount(), node.getLineNo(),
+                    node.getCpuSamplingProps().getOnStackSamples(), node.getCpuSamplingProps().getOnCpuSamples());
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Nodes are in dfs order, so going from the last node to the first, subtrees of the children of a node are the ones last seen.
+     */
+    private static int[] computeSubtreeSizes(int[] childCounts, int nodeCount) {
+        int[] subtreeSizes = new int[nodeCount];
+        IntStack pending = new IntStack();
+        for(int i = nodeCount - 1; i >= 0; --i) {
+            int size = 1;
+            for(int c = 0; c < childCounts[i] && !pending.isEmpty(); ++c) {
+                size += pending.pop();
+            }
+            subtreeSizes[i] = size;
+            pending.push(size);
+        }
+        return subtreeSizes;
+    }
+
     class FrameNodeIterator implements Iterator<AggregatedProfileModel.FrameNode> {
 
-        int partIndex = 0;
-        int offsetWithinPart = 0;
+        int index = 0;
 
         @Override
         public boolean hasNext() {
-            return partIndex < stackTraceParts.size() && offsetWithinPart < stackTraceParts.get(partIndex).getFrameNodesCount();
+            return index < nodeCount;
         }
 
         @Override
@@ -38,15 +187,77 @@ public class StacktraceTreeIterable implements Iterable<AggregatedProfileModel.F
                 throw new NoSuchElementException();
             }
 
-            AggregatedProfileModel.FrameNode result = stackTraceParts.get(partIndex).getFrameNodes(offsetWithinPart);
+            AggregatedProfileModel.FrameNode result = AggregatedProfileModel.FrameNode.newBuilder()
+                .setMethodId(methodIds[index])
+                .setChildCount(childCounts[index])
+                .setLineNo(lineNos[index])
+                .setCpuSamplingProps(AggregatedProfileModel.CPUSamplingNodeProps.newBuilder()
+                    .setOnStackSamples(onStackSamples[index])
+                    .setOnCpuSamples(onCpuSamples[index]))
+                .build();
+
+            ++index;
+            return result;
+        }
+    }
+
+    private static class IntStack {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void push(int value) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int pop() {
+            return values[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    /**
+     * Accumulates frame nodes as they are decoded, growing the arrays as required.
+     */
+    public static class Builder {
+        private static final int INITIAL_CAPACITY = 256;
 
-            ++offsetWithinPart;
-            if(offsetWithinPart >= stackTraceParts.get(partIndex).getFrameNodesCount()) {
-                offsetWithinPart = 0;
-                ++partIndex;
+        private int[] methodIds = new int[INITIAL_CAPACITY];
+        private int[] childCounts = new int[INITIAL_CAPACITY];
+        private int[] lineNos = new int[INITIAL_CAPACITY];
+        private int[] onStackSamples = new int[INITIAL_CAPACITY];
+        private int[] onCpuSamples = new int[INITIAL_CAPACITY];
+        private int nodeCount = 0;
+
+        public Builder addFrameNode(int methodId, int childCount, int lineNo, int onStackSamples, int onCpuSamples) {
+            if(nodeCount == methodIds.length) {
+                int capacity = methodIds.length + (methodIds.length >> 1);
+                this.methodIds = Arrays.copyOf(this.methodIds, capacity);
+                this.childCounts = Arrays.copyOf(this.childCounts, capacity);
+                this.lineNos = Arrays.copyOf(this.lineNos, capacity);
+                this.onStackSamples = Arrays.copyOf(this.onStackSamples, capacity);
+                this.onCpuSamples = Arrays.copyOf(this.onCpuSamples, capacity);
             }
+            this.methodIds[nodeCount] = methodId;
+            this.childCounts[nodeCount] = childCount;
+            this.lineNos[nodeCount] = lineNo;
+            this.onStackSamples[nodeCount] = onStackSamples;
+            this.onCpuSamples[nodeCount] = onCpuSamples;
+            ++nodeCount;
+            return this;
+        }
 
-            return result;
+        public int getFrameNodeCount() {
+            return nodeCount;
+        }
+
+        public StacktraceTreeIterable build() {
+            return new StacktraceTreeIterable(this);
         }
     }
 }
@@ -9,6 +9,7 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.userapi.model.StacktraceTreeIterable;
 
 import java.io.IOException;
 
@@ -20,6 +21,7 @@ public class ProtoSerializers {
     public static void registerSerializers(ObjectMapper om) {
         SimpleModule module = new SimpleModule("protobufSerializers", new Version(1, 0, 0, null, null, null));
         module.addSerializer(AggregatedProfileModel.FrameNode.class, new FrameNodeSerializer());
+        module.addSerializer(StacktraceTreeIterable.class, new StacktraceTreeSerializer());
         module.addSerializer(AggregatedProfileModel.CPUSamplingNodeProps.class, new CpuSampleFrameNodePropsSerializer());
         module.addSerializer(AggregatedProfileModel.Header.class, new HeaderSerializer());
         module.addSerializer(AggregatedProfileModel.RecorderInfo.class, new RecorderInfoSerializer());
@@ -48,6 +50,33 @@ public class ProtoSerializers {
         }
     }
 
+    /**
+     * Writes nodes of the tree straight from its arrays, in the same format as {@link FrameNodeSerializer}.
+     */
+    static class StacktraceTreeSerializer extends StdSerializer<StacktraceTreeIterable> {
+
+        public StacktraceTreeSerializer() {
+            super(StacktraceTreeIterable.class);
+        }
+
+        @Override
+        public void serialize(StacktraceTreeIterable value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartArray();
+            for(int i = 0; i < value.getFrameNodeCount(); ++i) {
+                gen.writeStartArray();
+                gen.writeNumber(value.getMethodId(i));
+                gen.writeNumber(value.getChildCount(i));
+                gen.writeNumber(value.getLineNo(i));
+                gen.writeStartArray();
+                gen.writeNumber(value.getOnStackSamples(i));
+                gen.writeNumber(value.getOnCpuSamples(i));
+                gen.writeEndArray();
+                gen.writeEndArray();
+            }
+            gen.writeEndArray();
+        }
+    }
+
     static class TraceCtxDetailsSerializer extends StdSerializer<AggregatedProfileModel.TraceCtxDetail> {
 
         public TraceCtxDetailsSerializer() {
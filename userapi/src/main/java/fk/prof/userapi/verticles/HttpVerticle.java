@@ -7,6 +7,8 @@ import fk.prof.userapi.Configuration;
 import fk.prof.userapi.api.ProfileStoreAPI;
 import fk.prof.userapi.http.UserapiApiPathConstants;
 import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+import fk.prof.userapi.model.AggregatedSamplesSubtree;
 import fk.prof.userapi.model.AggregationWindowSummary;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
@@ -195,12 +197,23 @@ public class HttpVerticle extends AbstractVerticle {
         AggregatedProfileModel.WorkType workType = AggregatedProfileModel.WorkType.cpu_sample_work;
         String traceName = routingContext.request().getParam("traceName");
 
+        // optional drill down params, whole tree is returned if none of them is given
+        String path = routingContext.request().getParam("path");
+        String maxDepthParam = routingContext.request().getParam("maxDepth");
+        String minSamplesParam = routingContext.request().getParam("minSamples");
+        boolean subtreeQuery = path != null || maxDepthParam != null || minSamplesParam != null;
+
         ZonedDateTime startTime;
         int duration;
+        String[] pathElements;
+        int maxDepth, minSamples;
 
         try {
             startTime = ZonedDateTime.parse(routingContext.request().getParam("start"), DateTimeFormatter.ISO_ZONED_DATE_TIME);
             duration = Integer.parseInt(routingContext.request().getParam("duration"));
+            pathElements = path == null || path.isEmpty() ? new String[0] : path.split(",");
+            maxDepth = maxDepthParam == null ? Integer.MAX_VALUE : Integer.parseInt(maxDepthParam);
+            minSamples = minSamplesParam == null ? 0 : Integer.parseInt(minSamplesParam);
         } catch (Exception e) {
             setResponse(Future.failedFuture(new IllegalArgumentException(e)), routingContext);
             return;
@@ -217,7 +230,16 @@ public class HttpVerticle extends AbstractVerticle {
         Future<AggregatedProfileInfo> future = Future.future();
         future.setHandler((AsyncResult<AggregatedProfileInfo> result) -> {
             if (result.succeeded()) {
-                setResponse(Future.succeededFuture(result.result().getAggregatedSamples(traceName)), routingContext, true);
+                AggregatedSamplesPerTraceCtx samplesPerTraceCtx = result.result().getAggregatedSamples(traceName);
+                if (!subtreeQuery || samplesPerTraceCtx == null) {
+                    setResponse(Future.succeededFuture(samplesPerTraceCtx), routingContext, true);
+                    return;
+                }
+                try {
+                    setResponse(Future.succeededFuture(AggregatedSamplesSubtree.extract(samplesPerTraceCtx, pathElements, maxDepth, minSamples)), routingContext, true);
+                } catch (IllegalArgumentException e) {
+                    setResponse(Future.failedFuture(e), routingContext);
+                }
             } else {
                 setResponse(result, routingContext);
             }
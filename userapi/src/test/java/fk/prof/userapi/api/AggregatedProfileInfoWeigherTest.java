@@ -0,0 +1,30 @@
+package fk.prof.userapi.api;
+
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link AggregatedProfileInfoWeigher}
+ */
+public class AggregatedProfileInfoWeigherTest {
+
+    private final AggregatedProfileInfoWeigher weigher = new AggregatedProfileInfoWeigher();
+
+    @Test
+    public void testWeigh_shouldGrowWithFrameNodesAndCountSharedMethodLookupOnce() {
+        AggregatedProfileInfo oneTrace = ProfileDiskCacheTest.buildProfile(1);
+        AggregatedProfileInfo twoTraces = ProfileDiskCacheTest.buildProfile(2);
+
+        int weight1 = weigher.weigh("file1", oneTrace);
+        int weight2 = weigher.weigh("file2", twoTraces);
+
+        // 2nd trace adds its 3 frame nodes and name, while its method lookup is the same list
+        int traceNameBytes = AggregatedProfileInfoWeigher.BYTES_PER_METHOD_NAME + 2 * "trace-1".length();
+        assertEquals(3 * AggregatedProfileInfoWeigher.BYTES_PER_FRAME_NODE + traceNameBytes, weight2 - weight1);
+
+        // at least the frame nodes and method names
+        assertTrue(weight1 > 3 * AggregatedProfileInfoWeigher.BYTES_PER_FRAME_NODE + 3 * AggregatedProfileInfoWeigher.BYTES_PER_METHOD_NAME);
+    }
+}
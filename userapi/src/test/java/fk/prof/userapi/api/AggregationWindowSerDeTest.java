@@ -1,14 +1,23 @@
 package fk.prof.userapi.api;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedOutputStream;
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.model.AggregationWindowSerializer;
 import fk.prof.aggregation.model.AggregationWindowStorage;
 import fk.prof.aggregation.model.FinalizedAggregationWindow;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.storage.ObjectNotFoundException;
 import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.compression.CompressionCodec;
+import fk.prof.userapi.model.AggregatedCpuSamplesData;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+import fk.prof.userapi.model.AggregationWindowSummary;
 import io.vertx.core.Future;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
@@ -16,14 +25,18 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
@@ -56,6 +69,7 @@ public class AggregationWindowSerDeTest {
         MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
         Timer mockTimer = mock(Timer.class);
         when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.counter(any())).thenReturn(mock(Counter.class));
 
         AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
 
@@ -81,6 +95,146 @@ public class AggregationWindowSerDeTest {
         Assert.assertTrue("aggregation summary were not loaded", f2.succeeded());
     }
 
+    @Test
+    public void testStoreAndLoadInBlockFormat_shouldLoadSameProfileAsSequentialFormat() throws Exception {
+        String startime = "2017-03-01T07:00:00";
+        ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        FinalizedAggregationWindow window = MockAggregationWindow.buildAggregationWindow(startime, () -> sampleStackTraces, 1800);
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work);
+
+        HashMapBasedStorage sequentialStorage = new HashMapBasedStorage();
+        newStorage(sequentialStorage, null, CompressionCodec.GZIP).store(window);
+
+        HashMapBasedStorage blockStorage = new HashMapBasedStorage();
+        ForkJoinPool blockSerializationPool = new ForkJoinPool(2);
+        try {
+            newStorage(blockStorage, blockSerializationPool, CompressionCodec.GZIP).store(window);
+        }
+        finally {
+            blockSerializationPool.shutdown();
+        }
+        Assert.assertNotEquals("block format should not be compressed as a whole", (byte) 0x1f, blockStorage.data.get(file.getFileName(0))[0]);
+
+        Future<AggregatedProfileInfo> sequential = Future.future();
+        new AggregatedProfileLoader(sequentialStorage).load(sequential, file);
+        Assert.assertTrue("aggregated profiles were not loaded", sequential.succeeded());
+
+        Future<AggregatedProfileInfo> block = Future.future();
+        new AggregatedProfileLoader(blockStorage).load(block, file);
+        Assert.assertTrue("aggregated profiles in block format were not loaded", block.succeeded());
+
+        assertSameProfile(sequential.result(), block.result());
+    }
+
+    @Test
+    public void testLoadFromBlocksWithInvalidBlockIndex_shouldFailFuture() throws Exception {
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1",
+            ZonedDateTime.parse("2017-03-01T07:00:00Z", DateTimeFormatter.ISO_ZONED_DATE_TIME), 1800, AggregatedProfileModel.WorkType.cpu_sample_work);
+        AggregatedProfileLoader loader = new AggregatedProfileLoader(null);
+
+        Future<AggregatedProfileInfo> noBlocks = Future.future();
+        loader.loadFromBlocks(noBlocks, file, new ByteArrayInputStream(blockIndex(0)));
+        Assert.assertTrue("block index without blocks should fail", noBlocks.failed());
+
+        Future<AggregatedProfileInfo> negativeLength = Future.future();
+        loader.loadFromBlocks(negativeLength, file, new ByteArrayInputStream(blockIndex(1, -1, 10, 0)));
+        Assert.assertTrue("block with negative length should fail", negativeLength.failed());
+
+        Future<AggregatedProfileInfo> missingBlocks = Future.future();
+        loader.loadFromBlocks(missingBlocks, file, new ByteArrayInputStream(blockIndex(1, 10, 10, 0)));
+        Assert.assertTrue("block missing from the stream should fail", missingBlocks.failed());
+    }
+
+    @Test
+    public void testStoreAndLoadWithEachCodec_shouldLoadSameProfileAsGzip() throws Exception {
+        String startime = "2017-03-01T07:00:00";
+        ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        FinalizedAggregationWindow window = MockAggregationWindow.buildAggregationWindow(startime, () -> sampleStackTraces, 1800);
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work);
+        AggregatedProfileNamingStrategy summaryFile = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, 1800);
+
+        HashMapBasedStorage gzipStorage = new HashMapBasedStorage();
+        newStorage(gzipStorage, null, CompressionCodec.GZIP).store(window);
+        Future<AggregatedProfileInfo> expected = Future.future();
+        new AggregatedProfileLoader(gzipStorage).load(expected, file);
+        Assert.assertTrue("aggregated profiles were not loaded", expected.succeeded());
+
+        ForkJoinPool blockSerializationPool = new ForkJoinPool(2);
+        try {
+            for(CompressionCodec codec: CompressionCodec.values()) {
+                for(ForkJoinPool pool: Arrays.asList(null, blockSerializationPool)) {
+                    String tag = codec.getName() + (pool == null ? " sequential" : " block");
+                    HashMapBasedStorage codecStorage = new HashMapBasedStorage();
+                    newStorage(codecStorage, pool, codec).store(window);
+
+                    Future<AggregatedProfileInfo> profile = Future.future();
+                    new AggregatedProfileLoader(codecStorage).load(profile, file);
+                    Assert.assertTrue(tag + " aggregated profiles were not loaded", profile.succeeded());
+                    assertSameProfile(expected.result(), profile.result());
+
+                    Future<AggregationWindowSummary> summary = Future.future();
+                    new AggregatedProfileLoader(codecStorage).loadSummary(summary, summaryFile);
+                    Assert.assertTrue(tag + " summary was not loaded", summary.succeeded());
+                    Assert.assertEquals(tag + " summary should be compressed with gzip", (byte) 0x1f, codecStorage.data.get(summaryFile.getFileName(0))[0]);
+                }
+            }
+        }
+        finally {
+            blockSerializationPool.shutdown();
+        }
+    }
+
+    private static void assertSameProfile(AggregatedProfileInfo expected, AggregatedProfileInfo actual) {
+        Assert.assertEquals(Lists.newArrayList(expected.getTraces()), Lists.newArrayList(actual.getTraces()));
+        Assert.assertEquals(Lists.newArrayList(expected.getTraceDetails()), Lists.newArrayList(actual.getTraceDetails()));
+        Assert.assertEquals(Lists.newArrayList(expected.getProfiles()), Lists.newArrayList(actual.getProfiles()));
+        for(String trace: expected.getTraces()) {
+            AggregatedSamplesPerTraceCtx expectedSamples = expected.getAggregatedSamples(trace);
+            AggregatedSamplesPerTraceCtx actualSamples = actual.getAggregatedSamples(trace);
+            Assert.assertEquals(expectedSamples.getMethodLookup(), actualSamples.getMethodLookup());
+            Assert.assertEquals(Lists.newArrayList(((AggregatedCpuSamplesData) expectedSamples.getAggregatedSamples()).getFrameNodes()),
+                    Lists.newArrayList(((AggregatedCpuSamplesData) actualSamples.getAggregatedSamples()).getFrameNodes()));
+        }
+    }
+
+    /**
+     * Returns magic number and block format version followed by given values of block index and their checksum
+     */
+    private static byte[] blockIndex(int... values) throws IOException {
+        ByteArrayOutputStream indexOut = new ByteArrayOutputStream();
+        CodedOutputStream indexCout = CodedOutputStream.newInstance(indexOut);
+        for(int value: values) {
+            indexCout.writeUInt32NoTag(value);
+        }
+        indexCout.flush();
+        Adler32 checksum = new Adler32();
+        checksum.update(indexOut.toByteArray());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CodedOutputStream cout = CodedOutputStream.newInstance(out);
+        cout.writeUInt32NoTag(AggregationWindowSerializer.AGGREGATION_FILE_MAGIC_NUM);
+        cout.writeUInt32NoTag(AggregationWindowSerializer.BLOCK_FORMAT_VERSION);
+        cout.writeRawBytes(indexOut.toByteArray());
+        cout.writeUInt32NoTag((int) checksum.getValue());
+        cout.flush();
+        return out.toByteArray();
+    }
+
+    private static AggregationWindowStorage newStorage(AsyncStorage asyncStorage, ForkJoinPool blockSerializationPool, CompressionCodec codec) {
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(10);
+        poolConfig.setMaxIdle(10);
+
+        GenericObjectPool bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(10_000_000, false), poolConfig);
+
+        MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
+        Timer mockTimer = mock(Timer.class);
+        when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.counter(any())).thenReturn(mock(Counter.class));
+
+        return new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry, blockSerializationPool, codec);
+    }
+
     class HashMapBasedStorage implements AsyncStorage {
 
         Map<String, byte[]> data = new HashMap<>();
@@ -0,0 +1,158 @@
+package fk.prof.userapi.api;
+
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.userapi.model.AggregatedCpuSamplesData;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+import fk.prof.userapi.model.StacktraceTreeIterable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static fk.prof.userapi.model.ParseProfileTest.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ProfileDiskCache}
+ */
+public class ProfileDiskCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutAndGet_shouldReturnEqualProfile() throws Exception {
+        ProfileDiskCache diskCache = new ProfileDiskCache(folder.getRoot().toPath(), 1024 * 1024);
+        AggregatedProfileInfo profile = buildProfile(3);
+
+        assertNull(diskCache.get("profiles/file1"));
+        diskCache.put("profiles/file1", profile);
+
+        AggregatedProfileInfo cached = diskCache.get("profiles/file1");
+        assertNotNull(cached);
+        assertNull(diskCache.get("profiles/file2"));
+
+        assertEquals(profile.getHeader(), cached.getHeader());
+        assertEquals(toList(profile.getTraces()), toList(cached.getTraces()));
+        assertEquals(toList(profile.getTraceDetails()), toList(cached.getTraceDetails()));
+        assertEquals(toList(profile.getProfiles()), toList(cached.getProfiles()));
+        for (String trace : profile.getTraces()) {
+            assertEquals(profile.getAggregatedSamples(trace).getMethodLookup(), cached.getAggregatedSamples(trace).getMethodLookup());
+            assertEquals(frameNodes(profile, trace), frameNodes(cached, trace));
+        }
+        // method lookup is shared by the traces
+        assertSame(cached.getAggregatedSamples(traceName(0)).getMethodLookup(), cached.getAggregatedSamples(traceName(1)).getMethodLookup());
+    }
+
+    @Test
+    public void testPut_shouldEvictLeastRecentlyUsedFilesBeyondMaxBytes() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        ProfileDiskCache unbounded = new ProfileDiskCache(dir, Long.MAX_VALUE);
+        unbounded.put("profiles/file1", buildProfile(2));
+        long fileSize = unbounded.getTotalBytes();
+
+        // room for 2 files
+        ProfileDiskCache diskCache = new ProfileDiskCache(dir, 2 * fileSize + fileSize / 2);
+        assertEquals(fileSize, diskCache.getTotalBytes());
+
+        diskCache.put("profiles/file2", buildProfile(2));
+        assertNotNull(diskCache.get("profiles/file1"));
+        diskCache.put("profiles/file3", buildProfile(2));
+
+        assertNull(diskCache.get("profiles/file2"));
+        assertNotNull(diskCache.get("profiles/file1"));
+        assertNotNull(diskCache.get("profiles/file3"));
+        assertEquals(2 * fileSize, diskCache.getTotalBytes());
+        assertEquals(2, Files.list(dir).count());
+    }
+
+    @Test
+    public void testRestart_shouldEvictInOrderOfLastRead() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        ProfileDiskCache unbounded = new ProfileDiskCache(dir, Long.MAX_VALUE);
+        unbounded.put("profiles/file1", buildProfile(2));
+        long fileSize = unbounded.getTotalBytes();
+        unbounded.put("profiles/file2", buildProfile(2));
+
+        // written long ago, file1 before file2
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(dir.resolve(ProfileDiskCache.toFileName("profiles/file1")), FileTime.fromMillis(now - 2 * 60 * 60 * 1000));
+        Files.setLastModifiedTime(dir.resolve(ProfileDiskCache.toFileName("profiles/file2")), FileTime.fromMillis(now - 60 * 60 * 1000));
+        assertNotNull(unbounded.get("profiles/file1"));
+
+        // room for 2 files, after restart
+        ProfileDiskCache diskCache = new ProfileDiskCache(dir, 2 * fileSize + fileSize / 2);
+        diskCache.put("profiles/file3", buildProfile(2));
+
+        // file1 was read after file2 was written, so file2 is evicted first even though file1 was written earlier
+        assertNull(diskCache.get("profiles/file2"));
+        assertNotNull(diskCache.get("profiles/file1"));
+        assertNotNull(diskCache.get("profiles/file3"));
+    }
+
+    @Test
+    public void testGet_shouldTreatUnreadableFileAsMiss() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        ProfileDiskCache diskCache = new ProfileDiskCache(dir, Long.MAX_VALUE);
+        diskCache.put("profiles/file1", buildProfile(2));
+
+        Path file = Files.list(dir).findFirst().get();
+        Files.write(file, new byte[] {1, 2, 3});
+
+        assertNull(diskCache.get("profiles/file1"));
+        assertFalse(Files.exists(file));
+        assertEquals(0, diskCache.getTotalBytes());
+    }
+
+    static AggregatedProfileInfo buildProfile(int traceCount) {
+        List<String> traces = new ArrayList<>();
+        for (int i = 0; i < traceCount; ++i) {
+            traces.add(traceName(i));
+        }
+
+        List<String> methodLookup = AggregatedSamplesPerTraceCtx.convertMethodLookup(AggregatedProfileModel.MethodLookUp.newBuilder()
+            .addFqdn("~ ROOT ~.()")
+            .addFqdn("Lcom/example/App;main([Ljava/lang/String;)V")
+            .addFqdn("Lcom/example/App;print(Ljava/lang/String;)V").build());
+
+        Map<String, AggregatedSamplesPerTraceCtx> samples = new HashMap<>();
+        for (int i = 0; i < traceCount; ++i) {
+            AggregatedProfileModel.FrameNodeList frameNodes = AggregatedProfileModel.FrameNodeList.newBuilder()
+                .addFrameNodes(frameNode(0, 0, 1, 100 * (i + 1)))
+                .addFrameNodes(frameNode(1, 10, 1, 100 * (i + 1)))
+                .addFrameNodes(frameNode(2, 20 + i, 0, 100 * (i + 1)))
+                .setTraceCtxIdx(i)
+                .build();
+            samples.put(traces.get(i), new AggregatedSamplesPerTraceCtx(methodLookup,
+                new AggregatedCpuSamplesData(new StacktraceTreeIterable(Collections.singletonList(frameNodes)))));
+        }
+
+        return new AggregatedProfileInfo(buildHeader(), buildTraceName(traces.toArray(new String[0])), buildTraceCtxList(),
+            buildProfilesSummary(), samples);
+    }
+
+    private static AggregatedProfileModel.FrameNode frameNode(int methodId, int lineNo, int childCount, int samples) {
+        return AggregatedProfileModel.FrameNode.newBuilder().setMethodId(methodId).setLineNo(lineNo).setChildCount(childCount)
+            .setCpuSamplingProps(AggregatedProfileModel.CPUSamplingNodeProps.newBuilder().setOnStackSamples(samples).setOnCpuSamples(childCount == 0 ? samples : 0))
+            .build();
+    }
+
+    private static String traceName(int i) {
+        return "trace-" + i;
+    }
+
+    private static List<AggregatedProfileModel.FrameNode> frameNodes(AggregatedProfileInfo profile, String trace) {
+        return toList(((AggregatedCpuSamplesData) profile.getAggregatedSamples(trace).getAggregatedSamples()).getFrameNodes());
+    }
+
+    private static <T> List<T> toList(Iterable<T> iterable) {
+        return StreamSupport.stream(iterable.spliterator(), false).collect(Collectors.toList());
+    }
+}
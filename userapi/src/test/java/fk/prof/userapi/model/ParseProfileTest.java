@@ -10,6 +10,8 @@ import fk.prof.storage.S3AsyncStorage;
 import fk.prof.userapi.Configuration;
 import fk.prof.userapi.Deserializer;
 import fk.prof.userapi.UserapiConfigManager;
+import fk.prof.storage.buffer.ReadAhead;
+import fk.prof.userapi.api.ProfileDiskCache;
 import fk.prof.userapi.api.ProfileStoreAPI;
 import fk.prof.userapi.api.ProfileStoreAPIImpl;
 import fk.prof.userapi.model.json.ProtoSerializers;
@@ -23,7 +25,9 @@ import io.vertx.ext.unit.junit.VertxUnitRunner;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 
 import java.io.*;
@@ -31,6 +35,7 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.Adler32;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.GZIPOutputStream;
@@ -51,6 +56,9 @@ public class ParseProfileTest {
     final String traceName2 = "doSome-trace-2";
     private Configuration config;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testReadWriteForVariant() throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -83,12 +91,17 @@ public class ParseProfileTest {
 
         S3AsyncStorage storage = mock(S3AsyncStorage.class);
         String fileName = AggregatedProfileNamingStrategy.fromHeader("profiles", buildHeader()).getFileName(0);
-        InputStream s3InputStream = buildDefaultS3DataStream();
-
-        // for above filename return the inputStream
-        when(storage.fetchAsync(fileName)).thenReturn(CompletableFuture.supplyAsync(() -> s3InputStream));
+        byte[] s3Data = buildDefaultS3Data();
+
+        // for above filename return the length and requested ranges of the content
+        when(storage.lengthAsync(fileName)).thenReturn(CompletableFuture.completedFuture((long) s3Data.length));
+        when(storage.fetchAsync(eq(fileName), anyLong(), anyLong())).thenAnswer(invocation -> {
+            int offset = ((Long) invocation.getArgument(1)).intValue();
+            int length = ((Long) invocation.getArgument(2)).intValue();
+            return CompletableFuture.supplyAsync(() -> new ByteArrayInputStream(s3Data, offset, length));
+        });
         // for other filenames throw ObjectNotFoundException
-        when(storage.fetchAsync(argThat(arg -> !fileName.equals(arg)))).thenReturn(CompletableFuture.supplyAsync(() -> {
+        when(storage.lengthAsync(argThat(arg -> !fileName.equals(arg)))).thenReturn(CompletableFuture.supplyAsync(() -> {
             throw new ObjectNotFoundException("not found");
         }));
 
@@ -110,8 +123,9 @@ public class ParseProfileTest {
                     // both results are actually the same cached object
                     context.assertTrue(firstResult == secondResult);
 
-                    // gzip buffer size is 512 and our content size is ~470 bytes, so fetchAsync will be called 2 times.
-                    verify(storage, times(2)).fetchAsync(any());
+                    // content of ~470 bytes fits a single range. length of the next part is looked up to find the end of file.
+                    verify(storage, times(2)).lengthAsync(any());
+                    verify(storage, times(1)).fetchAsync(eq(fileName), eq(0L), eq((long) s3Data.length));
                     verifyNoMoreInteractions(storage);
                 }
             }
@@ -127,6 +141,120 @@ public class ParseProfileTest {
         profileDiscoveryAPI.load(future2, AggregatedProfileNamingStrategy.fromHeader("profiles", buildHeader()));
     }
 
+    @Test(timeout = 10000)
+    public void testAggregatedProfileLoad_shouldReadFromDiskCacheAfterRestart(TestContext context) throws Exception {
+        Async async = context.async();
+
+        S3AsyncStorage storage = mock(S3AsyncStorage.class);
+        AggregatedProfileNamingStrategy fileName = AggregatedProfileNamingStrategy.fromHeader("profiles", buildHeader());
+        byte[] s3Data = buildDefaultS3Data();
+
+        when(storage.lengthAsync(fileName.getFileName(0))).thenReturn(CompletableFuture.completedFuture((long) s3Data.length));
+        when(storage.fetchAsync(eq(fileName.getFileName(0)), anyLong(), anyLong())).thenAnswer(invocation -> {
+            int offset = ((Long) invocation.getArgument(1)).intValue();
+            int length = ((Long) invocation.getArgument(2)).intValue();
+            return CompletableFuture.completedFuture(new ByteArrayInputStream(s3Data, offset, length));
+        });
+        when(storage.lengthAsync(argThat(arg -> !fileName.getFileName(0).equals(arg)))).thenReturn(CompletableFuture.supplyAsync(() -> {
+            throw new ObjectNotFoundException("not found");
+        }));
+
+        ProfileDiskCache diskCache = new ProfileDiskCache(folder.getRoot().toPath(), Long.MAX_VALUE);
+        ProfileStoreAPI profileStoreAPI = new ProfileStoreAPIImpl(vertx, storage, 30, config.getProfileLoadTimeout(), config.getVertxWorkerPoolSize(),
+            ReadAhead.DEFAULT, ProfileStoreAPIImpl.DEFAULT_HEAP_CACHE_MAX_BYTES, diskCache);
+
+        Future<AggregatedProfileInfo> fromStorage = Future.future();
+        fromStorage.compose(profile -> {
+            testEquality(context, buildDefaultProfileInfo(), profile);
+            // profile is cached on disk before the load completes
+            context.assertTrue(diskCache.getTotalBytes() > 0);
+
+            // new instance with an empty heap cache, picking up files of the disk cache, same as after a restart
+            ProfileStoreAPI restarted;
+            try {
+                restarted = new ProfileStoreAPIImpl(vertx, storage, 30, config.getProfileLoadTimeout(), config.getVertxWorkerPoolSize(),
+                    ReadAhead.DEFAULT, ProfileStoreAPIImpl.DEFAULT_HEAP_CACHE_MAX_BYTES, new ProfileDiskCache(folder.getRoot().toPath(), Long.MAX_VALUE));
+            } catch (IOException e) {
+                return Future.failedFuture(e);
+            }
+
+            Future<AggregatedProfileInfo> fromDisk = Future.future();
+            restarted.load(fromDisk, fileName);
+            return fromDisk;
+        }).setHandler(result -> {
+            try {
+                if (result.failed()) {
+                    context.fail(result.cause());
+                } else {
+                    testEquality(context, buildDefaultProfileInfo(), result.result());
+                    // storage is only read the first time
+                    verify(storage, times(1)).fetchAsync(eq(fileName.getFileName(0)), anyLong(), anyLong());
+                }
+            }
+            catch (Exception e) {
+                context.fail(e);
+            }
+            finally {
+                async.complete();
+            }
+        });
+
+        profileStoreAPI.load(fromStorage, fileName);
+    }
+
+    @Test(timeout = 10000)
+    public void testLoad_shouldTimeoutRequestWithoutFailingOthersWaitingOnSameFile(TestContext context) throws Exception {
+        Async async = context.async();
+
+        S3AsyncStorage storage = mock(S3AsyncStorage.class);
+        AggregatedProfileNamingStrategy fileName = AggregatedProfileNamingStrategy.fromHeader("profiles", buildHeader());
+        byte[] s3Data = buildDefaultS3Data();
+
+        // length of the file is known only once the first request times out
+        CompletableFuture<Long> length = new CompletableFuture<>();
+        when(storage.lengthAsync(fileName.getFileName(0))).thenReturn(length);
+        when(storage.fetchAsync(eq(fileName.getFileName(0)), anyLong(), anyLong())).thenAnswer(invocation -> {
+            int offset = ((Long) invocation.getArgument(1)).intValue();
+            int len = ((Long) invocation.getArgument(2)).intValue();
+            return CompletableFuture.completedFuture(new ByteArrayInputStream(s3Data, offset, len));
+        });
+        when(storage.lengthAsync(argThat(arg -> !fileName.getFileName(0).equals(arg)))).thenReturn(CompletableFuture.supplyAsync(() -> {
+            throw new ObjectNotFoundException("not found");
+        }));
+
+        int loadTimeout = 1000;
+        ProfileStoreAPI profileStoreAPI = new ProfileStoreAPIImpl(vertx, storage, 30, loadTimeout, config.getVertxWorkerPoolSize());
+
+        Future<AggregatedProfileInfo> first = Future.future();
+        Future<AggregatedProfileInfo> second = Future.future();
+        first.setHandler(result -> {
+            context.assertTrue(result.failed());
+            context.assertTrue(result.cause() instanceof TimeoutException);
+            context.assertFalse(second.isComplete());
+            length.complete((long) s3Data.length);
+        });
+        second.setHandler(result -> {
+            try {
+                if (result.failed()) {
+                    context.fail(result.cause());
+                    return;
+                }
+                testEquality(context, buildDefaultProfileInfo(), result.result());
+                // both requests waited on the same load
+                verify(storage, times(1)).fetchAsync(eq(fileName.getFileName(0)), anyLong(), anyLong());
+            }
+            catch (Exception e) {
+                context.fail(e);
+            }
+            finally {
+                async.complete();
+            }
+        });
+
+        profileStoreAPI.load(first, fileName);
+        vertx.setTimer(loadTimeout / 2, id -> profileStoreAPI.load(second, fileName));
+    }
+
     private void testEquality(TestContext context, AggregatedProfileInfo expected, AggregatedProfileInfo actual) {
         context.assertEquals(expected.getStart(), actual.getStart());
         context.assertEquals(expected.getDuration(), actual.getDuration());
@@ -192,7 +320,7 @@ public class ParseProfileTest {
         return new AggregatedProfileInfo(buildHeader(), buildTraceName(traceName1, traceName2), buildTraceCtxList(), buildProfilesSummary(), samples);
     }
 
-    private InputStream buildDefaultS3DataStream() throws IOException {
+    private byte[] buildDefaultS3Data() throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         Adler32 adler32 = new Adler32();
 
@@ -238,7 +366,7 @@ public class ParseProfileTest {
 
         byte[] bytes = out.toByteArray();
         System.out.println("Size of zipped data: " + bytes.length);
-        return new ByteArrayInputStream(bytes);
+        return bytes;
     }
 
     private AggregatedProfileModel.MethodLookUp buildMethodLookup() {
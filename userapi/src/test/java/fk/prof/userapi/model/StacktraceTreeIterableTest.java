@@ -0,0 +1,173 @@
+package fk.prof.userapi.model;
+
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.google.common.collect.Lists;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.userapi.StacktraceTreeDecoder;
+import fk.prof.userapi.model.json.ProtoSerializers;
+import io.vertx.core.json.Json;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StacktraceTreeIterable} and {@link StacktraceTreeDecoder}
+ */
+public class StacktraceTreeIterableTest {
+
+    @BeforeClass
+    public static void setup() {
+        ProtoSerializers.registerSerializers(Json.mapper);
+    }
+
+    @Test
+    public void testDecode_shouldReadAllNodesOfTreeAndNothingAfterIt() throws Exception {
+        List<AggregatedProfileModel.FrameNodeList> frameNodeLists = buildFrameNodeLists();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (AggregatedProfileModel.FrameNodeList frameNodeList : frameNodeLists) {
+            frameNodeList.writeDelimitedTo(out);
+        }
+        out.write(42);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        StacktraceTreeIterable tree = StacktraceTreeDecoder.decode(in);
+
+        assertEquals(42, in.read());
+        assertEquals(-1, in.read());
+
+        List<AggregatedProfileModel.FrameNode> expected = new ArrayList<>();
+        frameNodeLists.forEach(list -> expected.addAll(list.getFrameNodesList()));
+        assertEquals(expected, Lists.newArrayList(tree));
+        assertEquals(Lists.newArrayList(new StacktraceTreeIterable(frameNodeLists)), Lists.newArrayList(tree));
+
+        assertEquals(5, tree.getFrameNodeCount());
+        assertEquals(4, tree.getMethodId(3));
+        assertEquals(20, tree.getLineNo(3));
+        assertEquals(600, tree.getOnStackSamples(4));
+        assertEquals(600, tree.getOnCpuSamples(4));
+    }
+
+    @Test
+    public void testJson_shouldBeSameAsThatOfFrameNodes() throws Exception {
+        List<AggregatedProfileModel.FrameNodeList> frameNodeLists = buildFrameNodeLists();
+        List<AggregatedProfileModel.FrameNode> frameNodes = new ArrayList<>();
+        frameNodeLists.forEach(list -> frameNodes.addAll(list.getFrameNodesList()));
+
+        assertEquals(Json.encode(frameNodes), Json.encode(new StacktraceTreeIterable(frameNodeLists)));
+    }
+
+    @Test
+    public void testBuilder_shouldGrowBeyondInitialCapacity() {
+        StacktraceTreeIterable.Builder builder = new StacktraceTreeIterable.Builder();
+        int nodeCount = 10000;
+        // a chain of nodes
+        for (int i = 0; i < nodeCount; ++i) {
+            builder.addFrameNode(i, i < nodeCount - 1 ? 1 : 0, i % 100, nodeCount, i == nodeCount - 1 ? nodeCount : 0);
+        }
+        StacktraceTreeIterable tree = builder.build();
+
+        assertEquals(nodeCount, tree.getFrameNodeCount());
+        int i = 0;
+        for (AggregatedProfileModel.FrameNode node : tree) {
+            assertEquals(i, node.getMethodId());
+            assertEquals(i % 100, node.getLineNo());
+            ++i;
+        }
+        assertEquals(nodeCount, i);
+    }
+
+    @Test
+    public void testSubtreeSizes_shouldCountAllNodesUnderNode() {
+        StacktraceTreeIterable tree = new StacktraceTreeIterable(buildFrameNodeLists());
+        int[] expected = {5, 1, 3, 2, 1};
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], tree.getSubtreeSize(i));
+        }
+
+        assertEquals(2, tree.findChild(0, 2, null));
+        assertEquals(2, tree.findChild(0, 2, 10));
+        assertEquals(-1, tree.findChild(0, 2, 11));
+        assertEquals(3, tree.findChild(2, 4, null));
+        assertEquals(-1, tree.findChild(1, 4, null));
+    }
+
+    @Test
+    public void testSubtree_shouldPruneByDepthAndSamples() {
+        StacktraceTreeIterable tree = new StacktraceTreeIterable(buildFrameNodeLists());
+
+        StacktraceTreeIterable pruned = tree.subtree(0, 1, 0);
+        assertEquals(Arrays.asList(frameNode(0, 0, 2, 600, 0), frameNode(1, 0, 0, 0, 0), frameNode(2, 10, 0, 600, 0)),
+            Lists.newArrayList(pruned));
+
+        pruned = tree.subtree(0, Integer.MAX_VALUE, 1);
+        assertEquals(Arrays.asList(frameNode(0, 0, 1, 600, 0), frameNode(2, 10, 1, 600, 0), frameNode(4, 20, 1, 600, 0), frameNode(3, 40, 0, 600, 600)),
+            Lists.newArrayList(pruned));
+        assertEquals(4, pruned.getSubtreeSize(0));
+
+        pruned = tree.subtree(3, Integer.MAX_VALUE, 0);
+        assertEquals(Arrays.asList(frameNode(4, 20, 1, 600, 0), frameNode(3, 40, 0, 600, 600)), Lists.newArrayList(pruned));
+
+        assertEquals(Lists.newArrayList(tree), Lists.newArrayList(tree.subtree(0, Integer.MAX_VALUE, 0)));
+    }
+
+    @Test
+    public void testExtractSubtree_shouldFollowPathAndOnlyLookupReferredMethods() throws Exception {
+        List<String> methodLookup = Arrays.asList("~ ROOT ~", "~ UNCLASSIFIABLE ~", "main", "print", "dosomething", "unused");
+        AggregatedSamplesPerTraceCtx samples = new AggregatedSamplesPerTraceCtx(methodLookup,
+            new AggregatedCpuSamplesData(new StacktraceTreeIterable(buildFrameNodeLists())));
+
+        AggregatedSamplesSubtree subtree = AggregatedSamplesSubtree.extract(samples, new String[] {"2:10", "4"}, 0, 0);
+        assertEquals(Collections.singletonList(frameNode(4, 20, 0, 600, 0)), Lists.newArrayList(subtree.getAggregatedSamples().getFrameNodes()));
+        assertEquals(Collections.singletonMap(4, "dosomething"), subtree.getMethodLookup());
+        assertEquals("{\"aggregated_samples\":{\"frame_nodes\":[[4,0,20,[600,0]]]},\"method_lookup\":{\"4\":\"dosomething\"}}",
+            Json.mapper.copy().setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE).writeValueAsString(subtree));
+
+        subtree = AggregatedSamplesSubtree.extract(samples, new String[0], 1, 1);
+        assertEquals(Arrays.asList("~ ROOT ~", "main"), new ArrayList<>(subtree.getMethodLookup().values()));
+
+        for (String[] badPath : new String[][] {{"3"}, {"2:11"}, {"x"}, {"2:10:1"}}) {
+            try {
+                AggregatedSamplesSubtree.extract(samples, badPath, 1, 0);
+                fail("Expected failure for path " + Arrays.toString(badPath));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * root
+     * |_ unclassified
+     * |_ main
+     *    |_ dosomething
+     *       |_ print
+     */
+    private static List<AggregatedProfileModel.FrameNodeList> buildFrameNodeLists() {
+        List<AggregatedProfileModel.FrameNodeList> list = new ArrayList<>();
+        list.add(AggregatedProfileModel.FrameNodeList.newBuilder()
+            .addFrameNodes(frameNode(0, 0, 2, 600, 0))
+            .addFrameNodes(frameNode(1, 0, 0, 0, 0))
+            .addFrameNodes(frameNode(2, 10, 1, 600, 0))
+            .setTraceCtxIdx(0).build());
+        list.add(AggregatedProfileModel.FrameNodeList.newBuilder()
+            .addFrameNodes(frameNode(4, 20, 1, 600, 0))
+            .addFrameNodes(frameNode(3, 40, 0, 600, 600))
+            .setTraceCtxIdx(0).build());
+        return list;
+    }
+
+    private static AggregatedProfileModel.FrameNode frameNode(int methodId, int lineNo, int childCount, int onStack, int onCpu) {
+        return AggregatedProfileModel.FrameNode.newBuilder().setMethodId(methodId).setLineNo(lineNo).setChildCount(childCount)
+            .setCpuSamplingProps(AggregatedProfileModel.CPUSamplingNodeProps.newBuilder().setOnStackSamples(onStack).setOnCpuSamples(onCpu))
+            .build();
+    }
+}